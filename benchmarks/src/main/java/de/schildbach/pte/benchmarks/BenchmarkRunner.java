@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs all benchmarks, reporting throughput and, via the GC profiler, allocation rate per operation. Accepts the usual
+ * JMH command line options, which take precedence, e.g. a regular expression selecting the benchmarks to run.
+ */
+public final class BenchmarkRunner
+{
+	public static void main(final String[] args) throws Exception
+	{
+		final CommandLineOptions commandLine = new CommandLineOptions(args);
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class);
+
+		// defaults, for whatever is not given on the command line
+		if (commandLine.getBenchModes().isEmpty())
+			options.mode(Mode.Throughput);
+		if (!commandLine.getTimeUnit().hasValue())
+			options.timeUnit(TimeUnit.SECONDS);
+		if (!commandLine.getForkCount().hasValue())
+			options.forks(1);
+		if (!commandLine.getWarmupIterations().hasValue())
+			options.warmupIterations(5);
+		if (!commandLine.getWarmupTime().hasValue())
+			options.warmupTime(TimeValue.seconds(1));
+		if (!commandLine.getMeasurementIterations().hasValue())
+			options.measurementIterations(10);
+		if (!commandLine.getMeasurementTime().hasValue())
+			options.measurementTime(TimeValue.seconds(1));
+
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.NvvProvider;
+import de.schildbach.pte.VrsProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryTripsContext;
+
+/**
+ * Encoding and decoding of trip query contexts as tokens, for a small (HAFAS) and a large (VRS) context.
+ */
+@State(Scope.Benchmark)
+public class ContextTokenBenchmark
+{
+	private NetworkProvider nvv;
+	private NetworkProvider vrs;
+	private QueryTripsContext hafasContext;
+	private QueryTripsContext vrsContext;
+	private String hafasToken;
+	private String vrsToken;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Fixtures.serve("http://auskunft.nvv.de/auskunft/bin/jp/query.exe", "hafas-trips.bin", "application/octet-stream");
+		Fixtures.serve("http://android.vrsinfo.de/index.php?eID=tx_vrsinfo_ass2_router", "vrs-router.json", "application/json");
+
+		nvv = new NvvProvider();
+		hafasContext = nvv.queryTrips(new Location(LocationType.STATION, "2200007"), null, new Location(LocationType.STATION, "2200931"),
+				Fixtures.TIME, true, null, null, null, null, null).context;
+		hafasToken = nvv.encodeQueryTripsContext(hafasContext);
+
+		vrs = new VrsProvider();
+		vrsContext = vrs.queryTrips(new Location(LocationType.STATION, "2071"), null, new Location(LocationType.STATION, "900"), Fixtures.TIME,
+				true, Product.ALL, null, null, null, null).context;
+		vrsToken = vrs.encodeQueryTripsContext(vrsContext);
+	}
+
+	@Benchmark
+	public String encodeHafas()
+	{
+		return nvv.encodeQueryTripsContext(hafasContext);
+	}
+
+	@Benchmark
+	public QueryTripsContext decodeHafas()
+	{
+		return nvv.decodeQueryTripsContext(hafasToken);
+	}
+
+	@Benchmark
+	public String encodeVrs()
+	{
+		return vrs.encodeQueryTripsContext(vrsContext);
+	}
+
+	@Benchmark
+	public QueryTripsContext decodeVrs()
+	{
+		return vrs.decodeQueryTripsContext(vrsToken);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.schildbach.pte.BayernProvider;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.VrrProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsResult;
+
+/**
+ * EFA: XSLT departure monitor and trips (via VRR) and mobile departure monitor and trips (via Bayern).
+ */
+@State(Scope.Benchmark)
+public class EfaBenchmark
+{
+	private NetworkProvider vrr;
+	private NetworkProvider bayern;
+
+	@Setup
+	public void setup()
+	{
+		Fixtures.serve("http://app.vrr.de/standard/XSLT_DM_REQUEST", "efa-departures.xml", "text/xml");
+		Fixtures.serve("http://app.vrr.de/standard/XSLT_TRIP_REQUEST2", "efa-trips.xml", "text/xml");
+		Fixtures.serve("http://mobile.defas-fgi.de/beg/XML_DM_REQUEST", "efa-mobile-departures.xml", "text/xml");
+		Fixtures.serve("http://mobile.defas-fgi.de/beg/XML_TRIP_REQUEST2", "efa-mobile-trips.xml", "text/xml");
+
+		vrr = new VrrProvider();
+		bayern = new BayernProvider();
+	}
+
+	@Benchmark
+	public QueryDeparturesResult departuresXml() throws IOException
+	{
+		return vrr.queryDepartures("20018235", Fixtures.TIME, 0, false);
+	}
+
+	@Benchmark
+	public QueryTripsResult tripsXml() throws IOException
+	{
+		return vrr.queryTrips(new Location(LocationType.STATION, "20018235"), null, new Location(LocationType.STATION, "20016032"), Fixtures.TIME,
+				true, null, null, null, null, null);
+	}
+
+	@Benchmark
+	public QueryDeparturesResult departuresMobile() throws IOException
+	{
+		return bayern.queryDepartures("80000689", Fixtures.TIME, 0, false);
+	}
+
+	@Benchmark
+	public QueryTripsResult tripsMobile() throws IOException
+	{
+		return bayern.queryTrips(new Location(LocationType.STATION, "80001082"), null, new Location(LocationType.STATION, "80001059"),
+				Fixtures.TIME, true, null, null, null, null, null);
+	}
+}
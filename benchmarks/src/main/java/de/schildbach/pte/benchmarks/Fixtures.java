@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Serves synthetic response bodies in place of the upstream APIs. Installs itself as the handler for {@code http} and
+ * {@code https} URLs, so that requests made by {@link de.schildbach.pte.util.ParserUtils} never leave the JVM and the
+ * complete code path from connection handling to parsing is measured.
+ *
+ * The fixtures are synthetic, made up to follow the formats the parsers expect at realistic sizes. They are not captured
+ * from the upstream APIs, so they say nothing about how those actually behave.
+ */
+public final class Fixtures
+{
+	/** Time the fixtures are set at, 2015-10-19 14:00 in central Europe. Queries should ask for it. */
+	public static final Date TIME = new Date(1445256000000L);
+
+	private static final String RESOURCE_PATH = "fixtures/";
+
+	private static final Map<String, Fixture> fixtures = new ConcurrentHashMap<String, Fixture>();
+
+	static
+	{
+		URL.setURLStreamHandlerFactory(new URLStreamHandlerFactory()
+		{
+			public URLStreamHandler createURLStreamHandler(final String protocol)
+			{
+				if ("http".equals(protocol) || "https".equals(protocol))
+				{
+					return new URLStreamHandler()
+					{
+						@Override
+						protected URLConnection openConnection(final URL url)
+						{
+							return new FixtureConnection(url, lookup(url));
+						}
+					};
+				}
+
+				return null;
+			}
+		});
+	}
+
+	private Fixtures()
+	{
+	}
+
+	private static final class Fixture
+	{
+		final byte[] body;
+		final String contentType;
+
+		Fixture(final byte[] body, final String contentType)
+		{
+			this.body = body;
+			this.contentType = contentType;
+		}
+	}
+
+	/**
+	 * Serves the fixture for all requests whose URL starts with the given prefix. The prefix may include the start of
+	 * the query, for APIs that multiplex on a query parameter. The longest matching prefix wins.
+	 */
+	public static void serve(final String urlPrefix, final String fixtureName, final String contentType)
+	{
+		fixtures.put(urlPrefix, new Fixture(load(fixtureName), contentType));
+	}
+
+	public static byte[] load(final String fixtureName)
+	{
+		final InputStream is = Fixtures.class.getResourceAsStream(RESOURCE_PATH + fixtureName);
+		if (is == null)
+			throw new IllegalArgumentException("unknown fixture: " + fixtureName);
+
+		try
+		{
+			return ByteStreams.toByteArray(is);
+		}
+		catch (final IOException x)
+		{
+			throw new RuntimeException(x);
+		}
+		finally
+		{
+			try
+			{
+				is.close();
+			}
+			catch (final IOException x)
+			{
+				// swallow
+			}
+		}
+	}
+
+	private static Fixture lookup(final URL url)
+	{
+		final String query = url.getQuery();
+		final String key = url.getProtocol() + "://" + url.getHost() + url.getPath() + (query != null ? "?" + query : "");
+		Fixture found = null;
+		int foundLength = -1;
+		for (final Map.Entry<String, Fixture> entry : fixtures.entrySet())
+		{
+			final String prefix = entry.getKey();
+			if (key.startsWith(prefix) && prefix.length() > foundLength)
+			{
+				found = entry.getValue();
+				foundLength = prefix.length();
+			}
+		}
+		return found;
+	}
+
+	private static final class FixtureConnection extends HttpURLConnection
+	{
+		private final Fixture fixture;
+
+		FixtureConnection(final URL url, final Fixture fixture)
+		{
+			super(url);
+			this.fixture = fixture;
+		}
+
+		@Override
+		public void connect()
+		{
+			connected = true;
+		}
+
+		@Override
+		public void disconnect()
+		{
+		}
+
+		@Override
+		public boolean usingProxy()
+		{
+			return false;
+		}
+
+		@Override
+		public int getResponseCode()
+		{
+			return fixture != null ? HTTP_OK : HTTP_NOT_FOUND;
+		}
+
+		@Override
+		public String getResponseMessage()
+		{
+			return fixture != null ? "OK" : "Not Found";
+		}
+
+		@Override
+		public OutputStream getOutputStream()
+		{
+			// request bodies are not part of the fixture key
+			return new ByteArrayOutputStream();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException
+		{
+			if (fixture == null)
+				throw new IOException("no fixture for " + url);
+			return new ByteArrayInputStream(fixture.body);
+		}
+
+		@Override
+		public InputStream getErrorStream()
+		{
+			return fixture == null ? new ByteArrayInputStream(new byte[0]) : null;
+		}
+
+		@Override
+		public String getHeaderField(final String name)
+		{
+			if (fixture != null && "content-type".equalsIgnoreCase(name))
+				return fixture.contentType;
+			return null;
+		}
+
+		@Override
+		public Map<String, List<String>> getHeaderFields()
+		{
+			final Map<String, List<String>> fields = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+			if (fixture != null)
+				fields.put("Content-Type", Collections.singletonList(fixture.contentType));
+			return fields;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.benchmarks;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.schildbach.pte.InvgProvider;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.NetworkProvider.DepartureSink;
+import de.schildbach.pte.NetworkProvider.Option;
+import de.schildbach.pte.NvvProvider;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+
+/**
+ * HAFAS: XML station board, also stopped after three departures, ajax-getstop JSON, binary trips (via NVV, also with lazy legs) and extxml trips (via INVG).
+ */
+@State(Scope.Benchmark)
+public class HafasBenchmark
+{
+	private NetworkProvider nvv;
+	private NetworkProvider invg;
+
+	@Setup
+	public void setup()
+	{
+		Fixtures.serve("http://auskunft.nvv.de/auskunft/bin/jp/stboard.exe", "hafas-stationboard.xml", "text/xml");
+		Fixtures.serve("http://auskunft.nvv.de/auskunft/bin/jp/ajax-getstop.exe", "hafas-getstop.js", "text/javascript");
+		Fixtures.serve("http://auskunft.nvv.de/auskunft/bin/jp/query.exe", "hafas-trips.bin", "application/octet-stream");
+		Fixtures.serve("http://fpa.invg.de/bin/extxml.exe", "hafas-trips.xml", "text/xml");
+
+		nvv = new NvvProvider();
+		invg = new InvgProvider();
+	}
+
+	@Benchmark
+	public QueryDeparturesResult departuresXml() throws IOException
+	{
+		return nvv.queryDepartures("2200007", Fixtures.TIME, 0, false);
+	}
+
+	@Benchmark
+	public QueryDeparturesResult departuresXmlFirst3() throws IOException
+	{
+		return nvv.queryDepartures("2200007", Fixtures.TIME, 0, false, new DepartureSink()
+		{
+			private int count = 0;
+
+			public boolean departure(final Location station, final Departure departure)
+			{
+				return ++count < 3;
+			}
+		});
+	}
+
+	@Benchmark
+	public SuggestLocationsResult suggestJson() throws IOException
+	{
+		return nvv.suggestLocations("Kassel");
+	}
+
+	@Benchmark
+	public QueryTripsResult tripsBinary() throws IOException
+	{
+		return nvv.queryTrips(new Location(LocationType.STATION, "2200007"), null, new Location(LocationType.STATION, "2200931"), Fixtures.TIME,
+				true, null, null, null, null, null);
+	}
+
+	@Benchmark
+	public QueryTripsResult tripsBinaryLazy() throws IOException
+	{
+		return nvv.queryTrips(new Location(LocationType.STATION, "2200007"), null, new Location(LocationType.STATION, "2200931"), Fixtures.TIME,
+				true, null, null, null, null, EnumSet.of(Option.LAZY_LEGS));
+	}
+
+	@Benchmark
+	public QueryTripsResult tripsXml() throws IOException
+	{
+		return invg.queryTrips(new Location(LocationType.STATION, "80301"), null, new Location(LocationType.STATION, "80302"), Fixtures.TIME, true,
+				null, null, null, null, null);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.ParisProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+
+/**
+ * Navitia: places, departures and journeys JSON (via Paris).
+ */
+@State(Scope.Benchmark)
+public class NavitiaBenchmark
+{
+	private static final String COVERAGE = "http://api.navitia.io/v1/coverage/fr-idf/";
+	private static final String STATION_ID = "stop_point:OIF:SP:59:3893145";
+
+	private NetworkProvider paris;
+
+	@Setup
+	public void setup()
+	{
+		Fixtures.serve(COVERAGE + "places", "navitia-places.json", "application/json");
+		Fixtures.serve(COVERAGE + "stop_points/" + STATION_ID + "/departures", "navitia-departures.json", "application/json");
+		// line lookups URL-encode the id, departures do not
+		Fixtures.serve(COVERAGE + "stop_points/" + STATION_ID.replace(":", "%3A") + "/routes", "navitia-routes.json", "application/json");
+		Fixtures.serve(COVERAGE + "lines/", "navitia-physical-modes.json", "application/json");
+		Fixtures.serve("http://api.navitia.io/v1/journeys", "navitia-journeys.json", "application/json");
+
+		paris = new ParisProvider("benchmark");
+	}
+
+	@Benchmark
+	public SuggestLocationsResult suggestJson() throws IOException
+	{
+		return paris.suggestLocations("Chatelet");
+	}
+
+	@Benchmark
+	public QueryDeparturesResult departuresJson() throws IOException
+	{
+		return paris.queryDepartures(STATION_ID, Fixtures.TIME, 60, false);
+	}
+
+	@Benchmark
+	public QueryTripsResult tripsJson() throws IOException
+	{
+		return paris.queryTrips(new Location(LocationType.STATION, "stop_point:OIF:SP:59:3893151"), null, new Location(LocationType.STATION,
+				"stop_point:OIF:SP:59:3893154"), Fixtures.TIME, true, null, null, null, null, null);
+	}
+}
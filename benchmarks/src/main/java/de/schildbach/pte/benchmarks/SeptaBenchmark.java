@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.benchmarks;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.SeptaProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+
+/**
+ * Septa: HTML station board and HTML nearby stations.
+ */
+@State(Scope.Benchmark)
+public class SeptaBenchmark
+{
+	private static final String STATION_BOARD = "http://airs1.septa.org/bin/stboard.exe/en";
+
+	private NetworkProvider septa;
+
+	@Setup
+	public void setup()
+	{
+		Fixtures.serve(STATION_BOARD + "?productsFilter=", "septa-departures.html", "text/html");
+		Fixtures.serve(STATION_BOARD + "?near=", "septa-nearby.html", "text/html");
+
+		septa = new SeptaProvider();
+	}
+
+	@Benchmark
+	public QueryDeparturesResult departuresHtml() throws IOException
+	{
+		return septa.queryDepartures("90004", Fixtures.TIME, 0, false);
+	}
+
+	@Benchmark
+	public NearbyLocationsResult nearbyHtml() throws IOException
+	{
+		return septa.queryNearbyLocations(EnumSet.of(LocationType.STATION), new Location(LocationType.STATION, "90004"), 0, 0);
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.NetworkProvider.WalkSpeed;
+import de.schildbach.pte.PacaProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+
+/**
+ * TSI: trip point search and journey planner JSON (via PACA).
+ */
+@State(Scope.Benchmark)
+public class TsiBenchmark
+{
+	private static final String API_BASE = "http://www.pacamobilite.fr/WebServices/TransinfoService/api";
+
+	private NetworkProvider paca;
+
+	@Setup
+	public void setup()
+	{
+		Fixtures.serve(API_BASE + "/Transport/v2/SearchTripPoint/json", "tsi-tripPoints.json", "application/json");
+		Fixtures.serve(API_BASE + "/journeyplanner/v2/PlanTrip/json", "tsi-planTrip.json", "application/json");
+
+		paca = new PacaProvider();
+	}
+
+	@Benchmark
+	public SuggestLocationsResult suggestJson() throws IOException
+	{
+		return paca.suggestLocations("Marseille");
+	}
+
+	@Benchmark
+	public QueryTripsResult tripsJson() throws IOException
+	{
+		return paca.queryTrips(new Location(LocationType.STATION, "1001"), null, new Location(LocationType.STATION, "1010"), Fixtures.TIME, true,
+				null, null, WalkSpeed.NORMAL, null, null);
+	}
+}
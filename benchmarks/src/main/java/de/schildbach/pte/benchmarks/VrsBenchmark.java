@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.VrsProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+
+/**
+ * VRS: objects, timetable and router JSON.
+ */
+@State(Scope.Benchmark)
+public class VrsBenchmark
+{
+	private static final String API_BASE = "http://android.vrsinfo.de/index.php?eID=";
+
+	private NetworkProvider vrs;
+
+	@Setup
+	public void setup()
+	{
+		Fixtures.serve(API_BASE + "tx_vrsinfo_ass2_objects", "vrs-objects.json", "application/json");
+		Fixtures.serve(API_BASE + "tx_vrsinfo_ass2_timetable", "vrs-timetable.json", "application/json");
+		Fixtures.serve(API_BASE + "tx_vrsinfo_his_info", "vrs-his.json", "application/json");
+		Fixtures.serve(API_BASE + "tx_vrsinfo_ass2_router", "vrs-router.json", "application/json");
+
+		vrs = new VrsProvider();
+	}
+
+	@Benchmark
+	public SuggestLocationsResult suggestJson() throws IOException
+	{
+		return vrs.suggestLocations("Neumarkt");
+	}
+
+	@Benchmark
+	public QueryDeparturesResult departuresJson() throws IOException
+	{
+		return vrs.queryDepartures("687", Fixtures.TIME, 60, false);
+	}
+
+	@Benchmark
+	public QueryTripsResult tripsJson() throws IOException
+	{
+		return vrs.queryTrips(new Location(LocationType.STATION, "2071"), null, new Location(LocationType.STATION, "900"), Fixtures.TIME, true,
+				Product.ALL, null, null, null, null);
+	}
+}
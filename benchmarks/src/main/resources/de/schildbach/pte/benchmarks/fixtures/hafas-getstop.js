@@ -0,0 +1 @@
+SLs.sls={"suggestions":[{"value":"Kassel Hauptbahnhof","id":"A=1@O=Kassel Hauptbahnhof@X=9489000@Y=51318000@U=80@L=002200007@B=1@p=1445000000@","extId":"002200007","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9489000","ycoord":"51318000","state":"id","prodClass":"63","weight":"30000"},{"value":"Kassel Wilhelmshöhe","id":"A=1@O=Kassel Wilhelmshöhe@X=9446000@Y=51313000@U=80@L=002200073@B=1@p=1445000000@","extId":"002200073","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9446000","ycoord":"51313000","state":"id","prodClass":"63","weight":"29100"},{"value":"Kassel Rathaus","id":"A=1@O=Kassel Rathaus@X=9495000@Y=51314000@U=80@L=002200280@B=1@p=1445000000@","extId":"002200280","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9495000","ycoord":"51314000","state":"id","prodClass":"63","weight":"28200"},{"value":"Kassel Königsplatz","id":"A=1@O=Kassel Königsplatz@X=9497000@Y=51316000@U=80@L=002200001@B=1@p=1445000000@","extId":"002200001","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9497000","ycoord":"51316000","state":"id","prodClass":"63","weight":"27300"},{"value":"Kassel Auestadion","id":"A=1@O=Kassel Auestadion@X=9491000@Y=51297000@U=80@L=002200520@B=1@p=1445000000@","extId":"002200520","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9491000","ycoord":"51297000","state":"id","prodClass":"63","weight":"26400"},{"value":"Baunatal Großenritte","id":"A=1@O=Baunatal Großenritte@X=9394000@Y=51261000@U=80@L=002200740@B=1@p=1445000000@","extId":"002200740","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9394000","ycoord":"51261000","state":"id","prodClass":"63","weight":"25500"},{"value":"Vellmar Osterberg/EKZ","id":"A=1@O=Vellmar Osterberg/EKZ@X=9470000@Y=51353000@U=80@L=002200860@B=1@p=1445000000@","extId":"002200860","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9470000","ycoord":"51353000","state":"id","prodClass":"63","weight":"24600"},{"value":"Kassel Holländischer Platz","id":"A=1@O=Kassel Holländischer Platz@X=9505000@Y=51324000@U=80@L=002200010@B=1@p=1445000000@","extId":"002200010","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9505000","ycoord":"51324000","state":"id","prodClass":"63","weight":"23700"},{"value":"Kassel Bahnhof Harleshausen","id":"A=1@O=Kassel Bahnhof Harleshausen@X=9439000@Y=51345000@U=80@L=002200440@B=1@p=1445000000@","extId":"002200440","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9439000","ycoord":"51345000","state":"id","prodClass":"63","weight":"22800"},{"value":"Lohfelden Vollmarshausen","id":"A=1@O=Lohfelden Vollmarshausen@X=9549000@Y=51268000@U=80@L=002200931@B=1@p=1445000000@","extId":"002200931","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9549000","ycoord":"51268000","state":"id","prodClass":"63","weight":"21900"},{"value":"Kaufungen Papierfabrik","id":"A=1@O=Kaufungen Papierfabrik@X=9601000@Y=51282000@U=80@L=002201102@B=1@p=1445000000@","extId":"002201102","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9601000","ycoord":"51282000","state":"id","prodClass":"63","weight":"21000"},{"value":"Kassel Am Stern","id":"A=1@O=Kassel Am Stern@X=9503000@Y=51317000@U=80@L=002200003@B=1@p=1445000000@","extId":"002200003","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9503000","ycoord":"51317000","state":"id","prodClass":"63","weight":"20100"},{"value":"Fuldatal Ihringshausen","id":"A=1@O=Fuldatal Ihringshausen@X=9533000@Y=51361000@U=80@L=002201500@B=1@p=1445000000@","extId":"002201500","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9533000","ycoord":"51361000","state":"id","prodClass":"63","weight":"19200"},{"value":"Melsungen Bahnhof","id":"A=1@O=Melsungen Bahnhof@X=9543000@Y=51130000@U=80@L=002201908@B=1@p=1445000000@","extId":"002201908","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9543000","ycoord":"51130000","state":"id","prodClass":"63","weight":"18300"},{"value":"Hofgeismar Bahnhof","id":"A=1@O=Hofgeismar Bahnhof@X=9384000@Y=51496000@U=80@L=002202031@B=1@p=1445000000@","extId":"002202031","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9384000","ycoord":"51496000","state":"id","prodClass":"63","weight":"17400"},{"value":"Wolfhagen Bahnhof","id":"A=1@O=Wolfhagen Bahnhof@X=9171000@Y=51326000@U=80@L=002202216@B=1@p=1445000000@","extId":"002202216","type":"1","typeStr":"[Bhf/Hst]","xcoord":"9171000","ycoord":"51326000","state":"id","prodClass":"63","weight":"16500"},{"value":"Kassel, Wilhelmshöher Allee","id":"A=2@O=Kassel, Wilhelmshöher Allee@X=9480000@Y=51310000@U=103@b=9900000@B=1@p=1445000000@","extId":"","type":"2","typeStr":"[Adr]","xcoord":"9480000","ycoord":"51310000","state":"id","prodClass":"0","weight":"2000"},{"value":"Kassel, Friedrich-Ebert-Straße","id":"A=2@O=Kassel, Friedrich-Ebert-Straße@X=9481000@Y=51310700@U=103@b=9900001@B=1@p=1445000000@","extId":"","type":"2","typeStr":"[Adr]","xcoord":"9481000","ycoord":"51310700","state":"id","prodClass":"0","weight":"1999"},{"value":"Kassel, Holländische Straße","id":"A=2@O=Kassel, Holländische Straße@X=9482000@Y=51311400@U=103@b=9900002@B=1@p=1445000000@","extId":"","type":"2","typeStr":"[Adr]","xcoord":"9482000","ycoord":"51311400","state":"id","prodClass":"0","weight":"1998"},{"value":"Kassel, Frankfurter Straße","id":"A=2@O=Kassel, Frankfurter Straße@X=9483000@Y=51312100@U=103@b=9900003@B=1@p=1445000000@","extId":"","type":"2","typeStr":"[Adr]","xcoord":"9483000","ycoord":"51312100","state":"id","prodClass":"0","weight":"1997"},{"value":"Kassel, Leipziger Straße","id":"A=2@O=Kassel, Leipziger Straße@X=9484000@Y=51312800@U=103@b=9900004@B=1@p=1445000000@","extId":"","type":"2","typeStr":"[Adr]","xcoord":"9484000","ycoord":"51312800","state":"id","prodClass":"0","weight":"1996"},{"value":"Kassel, Obere Königsstraße","id":"A=2@O=Kassel, Obere Königsstraße@X=9485000@Y=51313500@U=103@b=9900005@B=1@p=1445000000@","extId":"","type":"2","typeStr":"[Adr]","xcoord":"9485000","ycoord":"51313500","state":"id","prodClass":"0","weight":"1995"},{"value":"Kassel, Documenta-Halle","id":"A=4@O=Kassel, Documenta-Halle@X=9497000@Y=51312000@U=104@L=9900000@B=1@p=1445000000@","extId":"9900000","type":"4","typeStr":"[POI]","xcoord":"9497000","ycoord":"51312000","state":"id","prodClass":"0","weight":"900"},{"value":"Kassel, Staatstheater","id":"A=4@O=Kassel, Staatstheater@X=9498500@Y=51311100@U=104@L=9900001@B=1@p=1445000000@","extId":"9900001","type":"4","typeStr":"[POI]","xcoord":"9498500","ycoord":"51311100","state":"id","prodClass":"0","weight":"899"},{"value":"Kassel, Orangerie","id":"A=4@O=Kassel, Orangerie@X=9500000@Y=51310200@U=104@L=9900002@B=1@p=1445000000@","extId":"9900002","type":"4","typeStr":"[POI]","xcoord":"9500000","ycoord":"51310200","state":"id","prodClass":"0","weight":"898"},{"value":"Kassel, Herkules","id":"A=4@O=Kassel, Herkules@X=9501500@Y=51309300@U=104@L=9900003@B=1@p=1445000000@","extId":"9900003","type":"4","typeStr":"[POI]","xcoord":"9501500","ycoord":"51309300","state":"id","prodClass":"0","weight":"897"}]};SLs.showSuggestion();
\ No newline at end of file
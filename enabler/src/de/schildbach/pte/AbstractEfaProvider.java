@@ -75,7 +75,11 @@ import de.schildbach.pte.dto.Trip;
 import de.schildbach.pte.dto.Trip.Leg;
 import de.schildbach.pte.exception.InvalidDataException;
 import de.schildbach.pte.exception.ParserException;
+import de.schildbach.pte.util.CoordinateScanner;
 import de.schildbach.pte.util.ParserUtils;
+import de.schildbach.pte.util.ResponseSniffer;
+import de.schildbach.pte.util.TokenReader;
+import de.schildbach.pte.util.TokenWriter;
 import de.schildbach.pte.util.XmlPullUtil;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -120,16 +124,20 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 	@SuppressWarnings("serial")
 	private static class Context implements QueryTripsContext
 	{
-		private final String context;
+		private final String sessionId;
+		private final String requestId;
+		private final boolean lightweight;
 
-		private Context(final String context)
+		private Context(final String sessionId, final String requestId, final boolean lightweight)
 		{
-			this.context = context;
+			this.sessionId = sessionId;
+			this.requestId = requestId;
+			this.lightweight = lightweight;
 		}
 
 		public boolean canQueryLater()
 		{
-			return context != null;
+			return sessionId != null;
 		}
 
 		public boolean canQueryEarlier()
@@ -140,7 +148,7 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 		@Override
 		public String toString()
 		{
-			return getClass().getName() + "[" + context + "]";
+			return getClass().getName() + "[" + sessionId + "|" + requestId + "]";
 		}
 	}
 
@@ -384,12 +392,12 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			uri.append(parameters);
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), httpPost ? parameters.substring(1) : null, null, httpReferer, null);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
 			final XmlPullParser pp = parserFactory.newPullParser();
 			pp.setInput(is, null);
@@ -431,12 +439,12 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			uri.append(parameters);
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), httpPost ? parameters.substring(1) : null, null, httpReferer, null);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
 			final XmlPullParser pp = parserFactory.newPullParser();
 			pp.setInput(is, null);
@@ -550,12 +558,12 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			uri.append(parameters);
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), httpPost ? parameters.substring(1) : null, null, httpReferer, null);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
 			final XmlPullParser pp = parserFactory.newPullParser();
 			pp.setInput(is, null);
@@ -629,12 +637,12 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			uri.append(parameters);
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), httpPost ? parameters.substring(1) : null, null, httpReferer, null);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
 			final XmlPullParser pp = parserFactory.newPullParser();
 			pp.setInput(is, null);
@@ -941,12 +949,12 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			uri.append(parameters);
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), httpPost ? parameters.substring(1) : null, null, httpReferer, null);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
 			final XmlPullParser pp = parserFactory.newPullParser();
 			pp.setInput(is, null);
@@ -1451,7 +1459,16 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 	{
 		checkNotNull(Strings.emptyToNull(stationId));
 
-		return xsltDepartureMonitorRequest(stationId, time, maxDepartures, equivs);
+		return xsltDepartureMonitorRequest(stationId, time, maxDepartures, equivs, null);
+	}
+
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		checkNotNull(Strings.emptyToNull(stationId));
+
+		return xsltDepartureMonitorRequest(stationId, time, maxDepartures, equivs, checkNotNull(sink));
 	}
 
 	protected StringBuilder xsltDepartureMonitorRequestParameters(final String stationId, final @Nullable Date time, final int maxDepartures,
@@ -1491,7 +1508,7 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 	}
 
 	private QueryDeparturesResult xsltDepartureMonitorRequest(final String stationId, final @Nullable Date time, final int maxDepartures,
-			final boolean equivs) throws IOException
+			final boolean equivs, final @Nullable DepartureSink sink) throws IOException
 	{
 		final StringBuilder parameters = xsltDepartureMonitorRequestParameters(stationId, time, maxDepartures, equivs);
 
@@ -1500,12 +1517,12 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			uri.append(parameters);
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), httpPost ? parameters.substring(1) : null, null, httpReferer, null);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
 			final XmlPullParser pp = parserFactory.newPullParser();
 			pp.setInput(is, null);
@@ -1630,6 +1647,10 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 							predictedDepartureTime.isSet(Calendar.HOUR_OF_DAY) ? predictedDepartureTime.getTime() : null, line, position,
 							destination, null, null);
 					assignedStationDepartures.departures.add(departure);
+
+					// the rest of the response is not read
+					if (sink != null && !sink.departure(assignedStationDepartures.location, departure))
+						return result;
 				}
 
 				XmlPullUtil.skipExit(pp, "itdDepartureList");
@@ -1654,6 +1675,12 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 
 	protected QueryDeparturesResult queryDeparturesMobile(final String stationId, final @Nullable Date time, final int maxDepartures,
 			final boolean equivs) throws IOException
+	{
+		return queryDeparturesMobile(stationId, time, maxDepartures, equivs, null);
+	}
+
+	protected QueryDeparturesResult queryDeparturesMobile(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final @Nullable DepartureSink sink) throws IOException
 	{
 		final StringBuilder parameters = xsltDepartureMonitorRequestParameters(stationId, time, maxDepartures, equivs);
 
@@ -1662,12 +1689,12 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			uri.append(parameters);
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), httpPost ? parameters.substring(1) : null, null, httpReferer, null);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
 			final XmlPullParser pp = parserFactory.newPullParser();
 			pp.setInput(is, null);
@@ -1715,9 +1742,14 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 						result.stationDepartures.add(stationDepartures);
 					}
 
-					stationDepartures.departures.add(new Departure(plannedDepartureTime.getTime(),
+					final Departure departure = new Departure(plannedDepartureTime.getTime(),
 							predictedDepartureTime.isSet(Calendar.HOUR_OF_DAY) ? predictedDepartureTime.getTime() : null, lineDestination.line,
-							position, lineDestination.destination, null, null));
+							position, lineDestination.destination, null, null);
+					stationDepartures.departures.add(departure);
+
+					// the rest of the response is not read
+					if (sink != null && !sink.departure(stationDepartures.location, departure))
+						return result;
 
 					XmlPullUtil.skipExit(pp, "dp");
 				}
@@ -2095,6 +2127,8 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 		return uri.toString();
 	}
 
+	private static final Pattern P_COMMAND_ID = Pattern.compile("[\\w.:-]+");
+
 	private String commandLink(final String sessionId, final String requestId)
 	{
 		final StringBuilder uri = new StringBuilder(tripEndpoint);
@@ -2117,7 +2151,21 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
 			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options) throws IOException
 	{
+		return xsltTripRequest(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options, null);
+	}
 
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return xsltTripRequest(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options, checkNotNull(sink));
+	}
+
+	private QueryTripsResult xsltTripRequest(final Location from, final @Nullable Location via, final Location to, final Date date,
+			final boolean dep, final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final @Nullable TripSink sink) throws IOException
+	{
 		final String parameters = xsltTripRequestParameters(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options);
 
 		final StringBuilder uri = new StringBuilder(tripEndpoint);
@@ -2125,14 +2173,14 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			uri.append(parameters);
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), httpPost ? parameters.substring(1) : null, null, httpRefererTrip, sessionCookieName);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
-			return queryTrips(uri.toString(), is);
+			return queryTrips(uri.toString(), is, isLightweight(options), sink);
 		}
 		catch (final XmlPullParserException x)
 		{
@@ -2153,7 +2201,13 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			final boolean dep, final @Nullable Collection<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
 			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options) throws IOException
 	{
+		return queryTripsMobile(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options, null);
+	}
 
+	protected QueryTripsResult queryTripsMobile(final Location from, final @Nullable Location via, final Location to, final Date date,
+			final boolean dep, final @Nullable Collection<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final @Nullable TripSink sink) throws IOException
+	{
 		final String parameters = xsltTripRequestParameters(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options);
 
 		final StringBuilder uri = new StringBuilder(tripEndpoint);
@@ -2161,14 +2215,14 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			uri.append(parameters);
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), httpPost ? parameters.substring(1) : null, null, httpRefererTrip, sessionCookieName);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
-			return queryTripsMobile(uri.toString(), from, via, to, is);
+			return queryTripsMobile(uri.toString(), from, via, to, is, isLightweight(options), sink);
 		}
 		catch (final XmlPullParserException x)
 		{
@@ -2185,22 +2239,49 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 		}
 	}
 
+	@Override
+	protected void writeQueryTripsContext(final QueryTripsContext context, final TokenWriter writer)
+	{
+		if (context instanceof Context)
+		{
+			final Context c = (Context) context;
+			writer.writeString(c.sessionId).writeString(c.requestId).writeBoolean(c.lightweight);
+		}
+		else
+		{
+			super.writeQueryTripsContext(context, writer);
+		}
+	}
+
+	@Override
+	protected QueryTripsContext readQueryTripsContext(final TokenReader reader)
+	{
+		// only ids travel in the token, the command link is always built from the configured endpoint
+		final String sessionId = reader.readString();
+		final String requestId = reader.readString();
+		if (sessionId != null && !P_COMMAND_ID.matcher(sessionId).matches())
+			throw new IllegalArgumentException("illegal session id: " + sessionId);
+		if (requestId != null && !P_COMMAND_ID.matcher(requestId).matches())
+			throw new IllegalArgumentException("illegal request id: " + requestId);
+		return new Context(sessionId, requestId, reader.readBoolean());
+	}
+
 	public QueryTripsResult queryMoreTrips(final QueryTripsContext contextObj, final boolean later) throws IOException
 	{
 		final Context context = (Context) contextObj;
-		final String commandUri = context.context;
+		final String commandUri = commandLink(context.sessionId, context.requestId);
 		final StringBuilder uri = new StringBuilder(commandUri);
 		uri.append("&command=").append(later ? "tripNext" : "tripPrev");
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), null, null, httpRefererTrip, sessionCookieName);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 
-			return queryTrips(uri.toString(), is);
+			return queryTrips(uri.toString(), is, context.lightweight, null);
 		}
 		catch (final XmlPullParserException x)
 		{
@@ -2220,20 +2301,20 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 	protected QueryTripsResult queryMoreTripsMobile(final QueryTripsContext contextObj, final boolean later) throws IOException
 	{
 		final Context context = (Context) contextObj;
-		final String commandUri = context.context;
+		final String commandUri = commandLink(context.sessionId, context.requestId);
 		final StringBuilder uri = new StringBuilder(commandUri);
 		uri.append("&command=").append(later ? "tripNext" : "tripPrev");
 
 		InputStream is = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			is = ParserUtils.scrapeInputStream(uri.toString(), null, null, httpRefererTrip, sessionCookieName);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 			is.mark(512);
 
-			return queryTripsMobile(uri.toString(), null, null, null, is);
+			return queryTripsMobile(uri.toString(), null, null, null, is, context.lightweight, null);
 		}
 		catch (final XmlPullParserException x)
 		{
@@ -2250,7 +2331,8 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 		}
 	}
 
-	private QueryTripsResult queryTrips(final String uri, final InputStream is) throws XmlPullParserException, IOException
+	private QueryTripsResult queryTrips(final String uri, final InputStream is, final boolean lightweight, final @Nullable TripSink sink)
+			throws XmlPullParserException, IOException
 	{
 		final XmlPullParser pp = parserFactory.newPullParser();
 		pp.setInput(is, null);
@@ -2462,7 +2544,7 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 						if (itdMeansOfTransportType <= 16)
 						{
 							cancelled |= processPublicLeg(pp, legs, calendar, departureTime, departureTargetTime, departureLocation,
-									departurePosition, arrivalTime, arrivalTargetTime, arrivalLocation, arrivalPosition);
+									departurePosition, arrivalTime, arrivalTargetTime, arrivalLocation, arrivalPosition, lightweight);
 						}
 						else if (itdMeansOfTransportType == 97 && "nicht umsteigen".equals(itdMeansOfTransportProductName))
 						{
@@ -2479,18 +2561,18 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 						else if (itdMeansOfTransportType == 99 && "Fussweg".equals(itdMeansOfTransportProductName))
 						{
 							processIndividualLeg(pp, legs, Trip.Individual.Type.WALK, distance, departureTime, departureLocation, arrivalTime,
-									arrivalLocation);
+									arrivalLocation, lightweight);
 						}
 						else if (itdMeansOfTransportType == 100
 								&& (itdMeansOfTransportProductName == null || "Fussweg".equals(itdMeansOfTransportProductName)))
 						{
 							processIndividualLeg(pp, legs, Trip.Individual.Type.WALK, distance, departureTime, departureLocation, arrivalTime,
-									arrivalLocation);
+									arrivalLocation, lightweight);
 						}
 						else if (itdMeansOfTransportType == 105 && "Taxi".equals(itdMeansOfTransportProductName))
 						{
 							processIndividualLeg(pp, legs, Trip.Individual.Type.CAR, distance, departureTime, departureLocation, arrivalTime,
-									arrivalLocation);
+									arrivalLocation, lightweight);
 						}
 						else
 						{
@@ -2563,7 +2645,14 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 							numChanges);
 
 					if (!cancelled)
+					{
 						trips.add(trip);
+
+						// the rest of the response is not read
+						if (sink != null && !sink.trip(trip))
+							return new QueryTripsResult(header, uri, from, via, to, new Context((String) context, requestId,
+									lightweight), trips);
+					}
 				}
 
 				XmlPullUtil.skipExit(pp, "itdRouteList");
@@ -2575,12 +2664,13 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			XmlPullUtil.next(pp);
 		}
 
-		return new QueryTripsResult(header, uri, from, via, to, new Context(commandLink((String) context, requestId)), trips);
+		return new QueryTripsResult(header, uri, from, via, to, new Context((String) context, requestId, lightweight),
+				trips);
 	}
 
 	private void processIndividualLeg(final XmlPullParser pp, final List<Leg> legs, final Trip.Individual.Type individualType, final int distance,
-			final Date departureTime, final Location departureLocation, final Date arrivalTime, final Location arrivalLocation)
-			throws XmlPullParserException, IOException
+			final Date departureTime, final Location departureLocation, final Date arrivalTime, final Location arrivalLocation,
+			final boolean lightweight) throws XmlPullParserException, IOException
 	{
 		XmlPullUtil.enter(pp, "itdMeansOfTransport");
 		XmlPullUtil.skipExit(pp, "itdMeansOfTransport");
@@ -2592,7 +2682,9 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 			XmlPullUtil.next(pp);
 
 		List<Point> path = null;
-		if (XmlPullUtil.test(pp, "itdPathCoordinates"))
+		if (lightweight)
+			XmlPullUtil.optSkip(pp, "itdPathCoordinates");
+		else if (XmlPullUtil.test(pp, "itdPathCoordinates"))
 			path = processItdPathCoordinates(pp);
 
 		final Trip.Leg lastLeg = legs.size() > 0 ? legs.get(legs.size() - 1) : null;
@@ -2612,7 +2704,8 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 
 	private boolean processPublicLeg(final XmlPullParser pp, final List<Leg> legs, final Calendar calendar, final Date departureTime,
 			final Date departureTargetTime, final Location departureLocation, final Position departurePosition, final Date arrivalTime,
-			final Date arrivalTargetTime, final Location arrivalLocation, final Position arrivalPosition) throws XmlPullParserException, IOException
+			final Date arrivalTargetTime, final Location arrivalLocation, final Position arrivalPosition, final boolean lightweight)
+			throws XmlPullParserException, IOException
 	{
 		final String destinationName = normalizeLocationName(XmlPullUtil.optAttr(pp, "destination", null));
 		final String destinationId = XmlPullUtil.optAttr(pp, "destID", null);
@@ -2705,7 +2798,11 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 		}
 
 		List<Stop> intermediateStops = null;
-		if (XmlPullUtil.test(pp, "itdStopSeq"))
+		if (lightweight)
+		{
+			XmlPullUtil.optSkip(pp, "itdStopSeq");
+		}
+		else if (XmlPullUtil.test(pp, "itdStopSeq"))
 		{
 			XmlPullUtil.enter(pp, "itdStopSeq");
 			intermediateStops = new LinkedList<Stop>();
@@ -2784,7 +2881,9 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 		}
 
 		List<Point> path = null;
-		if (XmlPullUtil.test(pp, "itdPathCoordinates"))
+		if (lightweight)
+			XmlPullUtil.optSkip(pp, "itdPathCoordinates");
+		else if (XmlPullUtil.test(pp, "itdPathCoordinates"))
 			path = processItdPathCoordinates(pp);
 
 		boolean wheelChairAccess = false;
@@ -2834,7 +2933,7 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 	}
 
 	private QueryTripsResult queryTripsMobile(final String uri, final Location from, final @Nullable Location via, final Location to,
-			final InputStream is) throws XmlPullParserException, IOException
+			final InputStream is, final boolean lightweight, final @Nullable TripSink sink) throws XmlPullParserException, IOException
 	{
 		final XmlPullParser pp = parserFactory.newPullParser();
 		pp.setInput(is, null);
@@ -2936,16 +3035,27 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 						final LineDestination lineDestination = parseMobileM(pp, false);
 
 						final List<Point> path;
-						if (XmlPullUtil.test(pp, "pt"))
+						if (XmlPullUtil.test(pp, "pt") && !lightweight)
+						{
 							path = processCoordinateStrings(pp, "pt");
+						}
 						else
+						{
+							XmlPullUtil.optSkip(pp, "pt");
 							path = null;
+						}
 
 						XmlPullUtil.require(pp, "pss");
 
 						final List<Stop> intermediateStops;
 
-						if (!pp.isEmptyElementTag())
+						if (lightweight)
+						{
+							intermediateStops = null;
+
+							XmlPullUtil.next(pp);
+						}
+						else if (!pp.isEmptyElementTag())
 						{
 							XmlPullUtil.enter(pp, "pss");
 
@@ -3079,6 +3189,14 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 					final Trip trip = new Trip(tripId, firstDepartureLocation, lastArrivalLocation, legs, fares, null, numChanges);
 					trips.add(trip);
 
+					// the rest of the response is not read
+					if (sink != null && !sink.trip(trip))
+					{
+						final String[] context = (String[]) header.context;
+						return new QueryTripsResult(header, uri, from, via, to, new Context(context[0], context[1], lightweight),
+								trips);
+					}
+
 					XmlPullUtil.skipExit(pp, "tp");
 				}
 
@@ -3093,7 +3211,8 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 		if (trips.size() > 0)
 		{
 			final String[] context = (String[]) header.context;
-			return new QueryTripsResult(header, uri, from, via, to, new Context(commandLink(context[0], context[1])), trips);
+			return new QueryTripsResult(header, uri, from, via, to, new Context(context[0], context[1], lightweight),
+					trips);
 		}
 		else
 		{
@@ -3134,18 +3253,13 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 
 	private List<Point> processCoordinateStrings(final XmlPullParser pp, final String tag) throws XmlPullParserException, IOException
 	{
-		final List<Point> path = new LinkedList<Point>();
-
 		final String value = XmlPullUtil.valueTag(pp, tag);
-		for (final String coordStr : value.split(" +"))
-			path.add(parseCoord(coordStr));
-
-		return path;
+		return CoordinateScanner.toPoints(CoordinateScanner.scan(value, CoordinateScanner.MICRODEGREES), true);
 	}
 
 	private List<Point> processCoordinateBaseElems(final XmlPullParser pp) throws XmlPullParserException, IOException
 	{
-		final List<Point> path = new LinkedList<Point>();
+		final List<Point> path = new ArrayList<Point>();
 
 		XmlPullUtil.enter(pp, "itdCoordinateBaseElemList");
 
@@ -3170,9 +3284,9 @@ public abstract class AbstractEfaProvider extends AbstractNetworkProvider
 		if (coordStr == null)
 			return null;
 
-		final String[] parts = coordStr.split(",");
-		final int lat = (int) Math.round(Double.parseDouble(parts[1]));
-		final int lon = (int) Math.round(Double.parseDouble(parts[0]));
+		final CoordinateScanner scanner = new CoordinateScanner(coordStr, CoordinateScanner.MICRODEGREES);
+		final int lon = scanner.next();
+		final int lat = scanner.next();
 		return new Point(lat, lon);
 	}
 
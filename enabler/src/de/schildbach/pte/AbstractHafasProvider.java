@@ -55,6 +55,7 @@ import org.xmlpull.v1.XmlPullParserFactory;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
 
 import de.schildbach.pte.dto.Departure;
 import de.schildbach.pte.dto.Line;
@@ -76,9 +77,13 @@ import de.schildbach.pte.dto.SuggestedLocation;
 import de.schildbach.pte.dto.Trip;
 import de.schildbach.pte.exception.ParserException;
 import de.schildbach.pte.exception.SessionExpiredException;
+import de.schildbach.pte.util.HtmlTokenizer;
 import de.schildbach.pte.util.LittleEndianDataInputStream;
 import de.schildbach.pte.util.ParserUtils;
+import de.schildbach.pte.util.ResponseSniffer;
 import de.schildbach.pte.util.StringReplaceReader;
+import de.schildbach.pte.util.TokenReader;
+import de.schildbach.pte.util.TokenWriter;
 import de.schildbach.pte.util.XmlPullUtil;
 
 /**
@@ -112,12 +117,14 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 		public final String laterContext;
 		public final String earlierContext;
 		public final int sequence;
+		public final boolean lightweight;
 
-		public Context(final String laterContext, final String earlierContext, final int sequence)
+		public Context(final String laterContext, final String earlierContext, final int sequence, final boolean lightweight)
 		{
 			this.laterContext = laterContext;
 			this.earlierContext = earlierContext;
 			this.sequence = sequence;
+			this.lightweight = lightweight;
 		}
 
 		public boolean canQueryLater()
@@ -139,14 +146,25 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 		public final String ld;
 		public final int usedBufferSize;
 		private final boolean canQueryMore;
+		public final boolean lightweight;
+		// how legs are held in memory is up to each consumer, so it is not part of the token
+		public final boolean lazyLegs;
 
 		public QueryTripsBinaryContext(final String ident, final int seqNr, final String ld, final int usedBufferSize, final boolean canQueryMore)
+		{
+			this(ident, seqNr, ld, usedBufferSize, canQueryMore, false, false);
+		}
+
+		public QueryTripsBinaryContext(final String ident, final int seqNr, final String ld, final int usedBufferSize, final boolean canQueryMore,
+				final boolean lightweight, final boolean lazyLegs)
 		{
 			this.ident = ident;
 			this.seqNr = seqNr;
 			this.ld = ld;
 			this.usedBufferSize = usedBufferSize;
 			this.canQueryMore = canQueryMore;
+			this.lightweight = lightweight;
+			this.lazyLegs = lazyLegs;
 		}
 
 		public boolean canQueryLater()
@@ -453,13 +471,26 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 
 	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures, final boolean equivs)
 			throws IOException
+	{
+		return xmlStationBoardRequest(stationId, time, maxDepartures, equivs, null);
+	}
+
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		return xmlStationBoardRequest(stationId, time, maxDepartures, equivs, checkNotNull(sink));
+	}
+
+	private QueryDeparturesResult xmlStationBoardRequest(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final @Nullable DepartureSink sink) throws IOException
 	{
 		checkNotNull(Strings.emptyToNull(stationId));
 
 		final StringBuilder uri = new StringBuilder(stationBoardEndpoint);
 		appendXmlStationBoardParameters(uri, time, stationId, maxDepartures, equivs, "vs_java3");
 
-		return xmlStationBoard(uri.toString(), stationId);
+		return xmlStationBoard(uri.toString(), stationId, sink);
 	}
 
 	protected void appendXmlStationBoardParameters(final StringBuilder uri, final @Nullable Date time, final String stationId,
@@ -499,6 +530,12 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 	private static final Pattern P_XML_STATION_BOARD_DELAY = Pattern.compile("(?:-|k\\.A\\.?|cancel|\\+?\\s*(\\d+))");
 
 	protected final QueryDeparturesResult xmlStationBoard(final String uri, final String stationId) throws IOException
+	{
+		return xmlStationBoard(uri, stationId, null);
+	}
+
+	protected final QueryDeparturesResult xmlStationBoard(final String uri, final String stationId, final @Nullable DepartureSink sink)
+			throws IOException
 	{
 		final String normalizedStationId = normalizeStationId(stationId);
 
@@ -715,6 +752,10 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 					}
 
 					stationDepartures.departures.add(departure);
+
+					// the rest of the response is not read
+					if (sink != null && !sink.departure(location, departure))
+						return result;
 				}
 
 				XmlPullUtil.requireSkip(pp, "Journey");
@@ -762,14 +803,74 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 		return queryTripsBinary(from, via, to, date, dep, products, walkSpeed, accessibility, options);
 	}
 
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return queryTripsBinary(from, via, to, date, dep, products, walkSpeed, accessibility, options, checkNotNull(sink));
+	}
+
+	private static final int CONTEXT_KIND = 1;
+	private static final int CONTEXT_KIND_BINARY = 2;
+
+	@Override
+	protected void writeQueryTripsContext(final QueryTripsContext context, final TokenWriter writer)
+	{
+		if (context instanceof Context)
+		{
+			final Context c = (Context) context;
+			writer.writeByte(CONTEXT_KIND);
+			writer.writeString(c.laterContext);
+			writer.writeString(c.earlierContext);
+			writer.writeVarint(c.sequence);
+			writer.writeBoolean(c.lightweight);
+		}
+		else if (context instanceof QueryTripsBinaryContext)
+		{
+			final QueryTripsBinaryContext c = (QueryTripsBinaryContext) context;
+			writer.writeByte(CONTEXT_KIND_BINARY);
+			writer.writeString(c.ident);
+			writer.writeVarint(c.seqNr);
+			writer.writeString(c.ld);
+			writer.writeVarint(c.usedBufferSize);
+			writer.writeBoolean(c.canQueryMore);
+			writer.writeBoolean(c.lightweight);
+		}
+		else
+		{
+			super.writeQueryTripsContext(context, writer);
+		}
+	}
+
+	@Override
+	protected QueryTripsContext readQueryTripsContext(final TokenReader reader)
+	{
+		final int kind = reader.readByte();
+		if (kind == CONTEXT_KIND)
+			return new Context(reader.readString(), reader.readString(), reader.readInt(), reader.readBoolean());
+		else if (kind == CONTEXT_KIND_BINARY)
+			return new QueryTripsBinaryContext(reader.readString(), reader.readInt(), reader.readString(), reader.readInt(), reader.readBoolean(),
+					reader.readBoolean(), false);
+		else
+			throw new IllegalArgumentException("unknown context kind: " + kind);
+	}
+
 	public QueryTripsResult queryMoreTrips(final QueryTripsContext context, final boolean later) throws IOException
 	{
 		return queryMoreTripsBinary(context, later);
 	}
 
+	protected final QueryTripsResult queryTripsXml(final Location from, final @Nullable Location via, final Location to, final Date date,
+			final boolean dep, final @Nullable Collection<Product> products, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options) throws IOException
+	{
+		return queryTripsXml(from, via, to, date, dep, products, walkSpeed, accessibility, options, null);
+	}
+
 	protected final QueryTripsResult queryTripsXml(Location from, @Nullable Location via, Location to, final Date date, final boolean dep,
 			final @Nullable Collection<Product> products, final @Nullable WalkSpeed walkSpeed, final @Nullable Accessibility accessibility,
-			final @Nullable Set<Option> options) throws IOException
+			final @Nullable Set<Option> options, final @Nullable TripSink sink) throws IOException
 	{
 		final ResultHeader header = new ResultHeader(network, SERVER_PRODUCT);
 
@@ -821,7 +922,9 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 
 		final char bikeChar = (options != null && options.contains(Option.BIKE)) ? '1' : '0';
 
-		final StringBuilder conReq = new StringBuilder("<ConReq deliverPolyline=\"1\">");
+		final boolean lightweight = isLightweight(options);
+
+		final StringBuilder conReq = new StringBuilder("<ConReq deliverPolyline=\"").append(lightweight ? 0 : 1).append("\">");
 		conReq.append("<Start>").append(locationXml(from));
 		conReq.append("<Prod prod=\"").append(productsStr).append("\" bike=\"").append(bikeChar)
 				.append("\" couchette=\"0\" direct=\"0\" sleeper=\"0\"/>");
@@ -852,7 +955,7 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 		conReq.append(" sMode=\"N\"/>");
 		conReq.append("</ConReq>");
 
-		return queryTripsXml(null, true, conReq, from, via, to);
+		return queryTripsXml(null, true, conReq, from, via, to, lightweight, sink);
 	}
 
 	protected final QueryTripsResult queryMoreTripsXml(final QueryTripsContext contextObj, final boolean later) throws IOException
@@ -864,22 +967,22 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 		conScrReq.append("<ConResCtxt>").append(later ? context.laterContext : context.earlierContext).append("</ConResCtxt>");
 		conScrReq.append("</ConScrReq>");
 
-		return queryTripsXml(context, later, conScrReq, null, null, null);
+		return queryTripsXml(context, later, conScrReq, null, null, null, context.lightweight, null);
 	}
 
 	private QueryTripsResult queryTripsXml(final Context previousContext, final boolean later, final CharSequence conReq, final Location from,
-			final @Nullable Location via, final Location to) throws IOException
+			final @Nullable Location via, final Location to, final boolean lightweight, final @Nullable TripSink sink) throws IOException
 	{
 		final String request = wrapReqC(conReq, null);
 
 		Reader reader = null;
-		String firstChars = null;
+		ResponseSniffer.Head firstChars = null;
 
 		try
 		{
 			final String endpoint = extXmlEndpoint != null ? extXmlEndpoint : queryEndpoint;
 			final InputStream is = ParserUtils.scrapeInputStream(endpoint, request, null, null, sessionCookieName);
-			firstChars = ParserUtils.peekFirstChars(is);
+			firstChars = ParserUtils.firstChars(is);
 			reader = new InputStreamReader(is, Charsets.ISO_8859_1);
 
 			final XmlPullParserFactory factory = XmlPullParserFactory.newInstance(System.getProperty(XmlPullParserFactory.PROPERTY_NAME), null);
@@ -938,11 +1041,11 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 			final String c = XmlPullUtil.optValueTag(pp, "ConResCtxt", null);
 			final Context context;
 			if (previousContext == null)
-				context = new Context(c, c, 0);
+				context = new Context(c, c, 0, lightweight);
 			else if (later)
-				context = new Context(c, previousContext.earlierContext, previousContext.sequence + 1);
+				context = new Context(c, previousContext.earlierContext, previousContext.sequence + 1, lightweight);
 			else
-				context = new Context(previousContext.laterContext, c, previousContext.sequence + 1);
+				context = new Context(previousContext.laterContext, c, previousContext.sequence + 1, lightweight);
 
 			XmlPullUtil.enter(pp, "ConnectionList");
 
@@ -1086,7 +1189,11 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 						}
 						XmlPullUtil.skipExit(pp, "JourneyAttributeList");
 
-						if (XmlPullUtil.test(pp, "PassList"))
+						if (lightweight)
+						{
+							XmlPullUtil.optSkip(pp, "PassList");
+						}
+						else if (XmlPullUtil.test(pp, "PassList"))
 						{
 							intermediateStops = new LinkedList<Stop>();
 
@@ -1156,7 +1263,7 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 
 					// polyline
 					final List<Point> path;
-					if (XmlPullUtil.test(pp, "Polyline"))
+					if (XmlPullUtil.test(pp, "Polyline") && !lightweight)
 					{
 						path = new LinkedList<Point>();
 						XmlPullUtil.enter(pp, "Polyline");
@@ -1171,6 +1278,7 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 					}
 					else
 					{
+						XmlPullUtil.optSkip(pp, "Polyline");
 						path = null;
 					}
 
@@ -1225,7 +1333,12 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 
 				XmlPullUtil.skipExit(pp, "Connection");
 
-				trips.add(new Trip(id, departureLocation, arrivalLocation, legs, null, capacity, numTransfers));
+				final Trip trip = new Trip(id, departureLocation, arrivalLocation, legs, null, capacity, numTransfers);
+				trips.add(trip);
+
+				// the rest of the response is not read
+				if (sink != null && !sink.trip(trip))
+					return new QueryTripsResult(header, null, from, via, to, context, trips);
 			}
 
 			XmlPullUtil.skipExit(pp, "ConnectionList");
@@ -1437,9 +1550,16 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 
 	private final static int QUERY_TRIPS_BINARY_BUFFER_SIZE = 384 * 1024;
 
+	protected final QueryTripsResult queryTripsBinary(final Location from, final @Nullable Location via, final Location to, final Date date,
+			final boolean dep, final @Nullable Collection<Product> products, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options) throws IOException
+	{
+		return queryTripsBinary(from, via, to, date, dep, products, walkSpeed, accessibility, options, null);
+	}
+
 	protected final QueryTripsResult queryTripsBinary(Location from, @Nullable Location via, Location to, final Date date, final boolean dep,
 			final @Nullable Collection<Product> products, final @Nullable WalkSpeed walkSpeed, final @Nullable Accessibility accessibility,
-			final @Nullable Set<Option> options) throws IOException
+			final @Nullable Set<Option> options, final @Nullable TripSink sink) throws IOException
 	{
 		final ResultHeader header = new ResultHeader(network, SERVER_PRODUCT);
 
@@ -1476,7 +1596,8 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 		final StringBuilder uri = new StringBuilder(queryEndpoint);
 		appendQueryTripsBinaryParameters(uri, from, via, to, date, dep, products, accessibility, options);
 
-		return queryTripsBinary(uri.toString(), from, via, to, QUERY_TRIPS_BINARY_BUFFER_SIZE);
+		return queryTripsBinary(uri.toString(), from, via, to, QUERY_TRIPS_BINARY_BUFFER_SIZE, isLightweight(options), options != null
+				&& options.contains(Option.LAZY_LEGS), sink);
 	}
 
 	protected void appendQueryMoreTripsBinaryParameters(final StringBuilder uri, final QueryTripsBinaryContext context, final boolean later)
@@ -1497,7 +1618,8 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 		final StringBuilder uri = new StringBuilder(queryEndpoint);
 		appendQueryMoreTripsBinaryParameters(uri, context, later);
 
-		return queryTripsBinary(uri.toString(), null, null, null, QUERY_TRIPS_BINARY_BUFFER_SIZE + context.usedBufferSize);
+		return queryTripsBinary(uri.toString(), null, null, null, QUERY_TRIPS_BINARY_BUFFER_SIZE + context.usedBufferSize, context.lightweight,
+				context.lazyLegs, null);
 	}
 
 	private class CustomBufferedInputStream extends BufferedInputStream
@@ -1514,7 +1636,7 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 	}
 
 	private QueryTripsResult queryTripsBinary(final String uri, final Location from, final @Nullable Location via, final Location to,
-			final int expectedBufferSize) throws IOException
+			final int expectedBufferSize, final boolean lightweight, final boolean lazyLegs, final @Nullable TripSink sink) throws IOException
 	{
 		/*
 		 * Many thanks to Malte Starostik and Robert, who helped a lot with analyzing this API!
@@ -1524,8 +1646,28 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 
 		try
 		{
-			final CustomBufferedInputStream bis = new CustomBufferedInputStream(ParserUtils.scrapeInputStream(uri, sessionCookieName));
-			final String firstChars = ParserUtils.peekFirstChars(bis);
+			final InputStream input = ParserUtils.scrapeInputStream(uri, sessionCookieName);
+			final ResponseSniffer.Head firstChars = ParserUtils.firstChars(input);
+
+			// lazy legs are read from a buffer of the whole response, retained until they are accessed
+			final byte[] buffer;
+			if (lazyLegs)
+			{
+				try
+				{
+					buffer = ByteStreams.toByteArray(input);
+				}
+				finally
+				{
+					input.close();
+				}
+			}
+			else
+			{
+				buffer = null;
+			}
+
+			final CustomBufferedInputStream bis = new CustomBufferedInputStream(buffer != null ? new ByteArrayInputStream(buffer) : input);
 
 			// initialize input stream
 			is = new LittleEndianDataInputStream(bis);
@@ -1651,6 +1793,9 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 				// read comments
 				final CommentTable comments = new CommentTable(is, commentTablePtr, tripDetailsPtr - commentTablePtr, strings);
 
+				final BinaryLegsReader legsReader = new BinaryLegsReader(strings, stations, comments, resDate, attrsOffset, tripDetailsPtr,
+						tripDetailsLegOffset, tripDetailsLegSize, stopsOffset, stopsSize, disruptionsPtr, lightweight);
+
 				final List<Trip> trips = new ArrayList<Trip>(numTrips);
 
 				// read trips
@@ -1733,276 +1878,22 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 						}
 					}
 
-					final List<Trip.Leg> legs = new ArrayList<Trip.Leg>(numLegs);
-
-					for (int iLegs = 0; iLegs < numLegs; iLegs++)
-					{
-						is.reset();
-						is.skipBytes(0x4a + legsOffset + iLegs * 20);
-
-						final long plannedDepartureTime = time(is, resDate, tripDayOffset);
-						final Location departureLocation = stations.read(is);
-
-						final long plannedArrivalTime = time(is, resDate, tripDayOffset);
-						final Location arrivalLocation = stations.read(is);
-
-						final int type = is.readShortReverse();
-
-						final String lineName = strings.read(is);
-
-						final Position plannedDeparturePosition = normalizePosition(strings.read(is));
-						final Position plannedArrivalPosition = normalizePosition(strings.read(is));
-
-						final int legAttrIndex = is.readShortReverse();
-
-						final List<Line.Attr> lineAttrs = new ArrayList<Line.Attr>();
-						String lineComment = null;
-						boolean lineOnDemand = false;
-						for (final String comment : comments.read(is))
-						{
-							if (comment.startsWith("bf "))
-							{
-								lineAttrs.add(Line.Attr.WHEEL_CHAIR_ACCESS);
-							}
-							else if (comment.startsWith("FA ") || comment.startsWith("FB ") || comment.startsWith("FR "))
-							{
-								lineAttrs.add(Line.Attr.BICYCLE_CARRIAGE);
-							}
-							else if (comment.startsWith("$R ") || comment.startsWith("ga ") || comment.startsWith("Vs "))
-							{
-								lineOnDemand = true;
-								lineComment = comment.substring(5);
-							}
-						}
-
-						is.reset();
-						is.skipBytes(attrsOffset + legAttrIndex * 4);
-						String directionStr = null;
-						int lineClass = 0;
-						String lineCategory = null;
-						String routingType = null;
-						while (true)
-						{
-							final String key = strings.read(is);
-							if (key == null)
-								break;
-							else if (key.equals("Direction"))
-								directionStr = strings.read(is);
-							else if (key.equals("Class"))
-								lineClass = Integer.parseInt(strings.read(is));
-							else if (key.equals("Category"))
-								lineCategory = strings.read(is);
-							// else if (key.equals("Operator"))
-							// lineOperator = strings.read(is);
-							else if (key.equals("GisRoutingType"))
-								routingType = strings.read(is);
-							else
-								is.skipBytes(2);
-						}
-
-						if (lineCategory == null && lineName != null)
-							lineCategory = categoryFromName(lineName);
-
-						is.reset();
-						is.skipBytes(tripDetailsPtr + tripDetailsOffset + tripDetailsLegOffset + iLegs * tripDetailsLegSize);
-
-						if (tripDetailsLegSize != 16)
-							throw new IllegalStateException("unhandled trip details leg size: " + tripDetailsLegSize);
-
-						final long predictedDepartureTime = time(is, resDate, tripDayOffset);
-						final long predictedArrivalTime = time(is, resDate, tripDayOffset);
-						final Position predictedDeparturePosition = normalizePosition(strings.read(is));
-						final Position predictedArrivalPosition = normalizePosition(strings.read(is));
-
-						final int bits = is.readShortReverse();
-						final boolean arrivalCancelled = (bits & 0x10) != 0;
-						final boolean departureCancelled = (bits & 0x20) != 0;
-
-						is.readShort();
-
-						final int firstStopIndex = is.readShortReverse();
-
-						final int numStops = is.readShortReverse();
-
-						is.reset();
-						is.skipBytes(disruptionsPtr);
-
-						String disruptionText = null;
-
-						if (is.readShortReverse() == 1)
-						{
-							is.reset();
-							is.skipBytes(disruptionsPtr + 2 + iTrip * 2);
-
-							int disruptionsOffset = is.readShortReverse();
-							while (disruptionsOffset != 0)
-							{
-								is.reset();
-								is.skipBytes(disruptionsPtr + disruptionsOffset);
-
-								strings.read(is); // "0"
-
-								final int disruptionLeg = is.readShortReverse();
-
-								is.skipBytes(2); // bitmaske
-
-								strings.read(is); // start of line
-								strings.read(is); // end of line
-
-								strings.read(is); // id
-								/* final String disruptionTitle = */strings.read(is);
-								final String disruptionShortText = ParserUtils.formatHtml(strings.read(is));
-
-								disruptionsOffset = is.readShortReverse(); // next
-
-								if (iLegs == disruptionLeg)
-								{
-									final int disruptionAttrsIndex = is.readShortReverse();
-
-									is.reset();
-									is.skipBytes(attrsOffset + disruptionAttrsIndex * 4);
-
-									while (true)
-									{
-										final String key = strings.read(is);
-										if (key == null)
-											break;
-										else if (key.equals("Text"))
-											disruptionText = ParserUtils.resolveEntities(strings.read(is));
-										else
-											is.skipBytes(2);
-									}
-
-									if (disruptionShortText != null)
-										disruptionText = disruptionShortText;
-								}
-							}
-						}
-
-						List<Stop> intermediateStops = null;
-
-						if (numStops > 0)
-						{
-							is.reset();
-							is.skipBytes(tripDetailsPtr + stopsOffset + firstStopIndex * stopsSize);
-
-							if (stopsSize != 26)
-								throw new IllegalStateException("unhandled stops size: " + stopsSize);
-
-							intermediateStops = new ArrayList<Stop>(numStops);
-
-							for (int iStop = 0; iStop < numStops; iStop++)
-							{
-								final long plannedStopDepartureTime = time(is, resDate, tripDayOffset);
-								final Date plannedStopDepartureDate = plannedStopDepartureTime != 0 ? new Date(plannedStopDepartureTime) : null;
-								final long plannedStopArrivalTime = time(is, resDate, tripDayOffset);
-								final Date plannedStopArrivalDate = plannedStopArrivalTime != 0 ? new Date(plannedStopArrivalTime) : null;
-								final Position plannedStopDeparturePosition = normalizePosition(strings.read(is));
-								final Position plannedStopArrivalPosition = normalizePosition(strings.read(is));
-
-								is.readInt();
-
-								final long predictedStopDepartureTime = time(is, resDate, tripDayOffset);
-								final Date predictedStopDepartureDate = predictedStopDepartureTime != 0 ? new Date(predictedStopDepartureTime) : null;
-								final long predictedStopArrivalTime = time(is, resDate, tripDayOffset);
-								final Date predictedStopArrivalDate = predictedStopArrivalTime != 0 ? new Date(predictedStopArrivalTime) : null;
-								final Position predictedStopDeparturePosition = normalizePosition(strings.read(is));
-								final Position predictedStopArrivalPosition = normalizePosition(strings.read(is));
-
-								final int stopBits = is.readShortReverse();
-								final boolean stopArrivalCancelled = (stopBits & 0x10) != 0;
-								final boolean stopDepartureCancelled = (stopBits & 0x20) != 0;
-
-								is.readShort();
-
-								final Location stopLocation = stations.read(is);
-
-								final boolean validPredictedDate = !dominantPlanStopTime
-										|| (plannedStopArrivalDate != null && plannedStopDepartureDate != null);
-
-								final Stop stop = new Stop(stopLocation, plannedStopArrivalDate,
-										validPredictedDate ? predictedStopArrivalDate : null, plannedStopArrivalPosition,
-										predictedStopArrivalPosition, stopArrivalCancelled, plannedStopDepartureDate,
-										validPredictedDate ? predictedStopDepartureDate : null, plannedStopDeparturePosition,
-										predictedStopDeparturePosition, stopDepartureCancelled);
-
-								intermediateStops.add(stop);
-							}
-						}
-
-						final Trip.Leg leg;
-						if (type == 1 /* Fussweg */|| type == 3 /* Uebergang */|| type == 4 /* Uebergang */)
-						{
-							final Trip.Individual.Type individualType;
-							if (routingType == null)
-								individualType = type == 1 ? Trip.Individual.Type.WALK : Trip.Individual.Type.TRANSFER;
-							else if ("FOOT".equals(routingType))
-								individualType = Trip.Individual.Type.WALK;
-							else if ("BIKE".equals(routingType))
-								individualType = Trip.Individual.Type.BIKE;
-							else if ("CAR".equals(routingType) || "P+R".equals(routingType))
-								individualType = Trip.Individual.Type.CAR;
-							else
-								throw new IllegalStateException("unknown routingType: " + routingType);
-
-							final Date departureTime = new Date(predictedDepartureTime != 0 ? predictedDepartureTime : plannedDepartureTime);
-							final Date arrivalTime = new Date(predictedArrivalTime != 0 ? predictedArrivalTime : plannedArrivalTime);
-
-							final Trip.Leg lastLeg = legs.size() > 0 ? legs.get(legs.size() - 1) : null;
-							if (lastLeg != null && lastLeg instanceof Trip.Individual && ((Trip.Individual) lastLeg).type == individualType)
-							{
-								final Trip.Individual lastIndividualLeg = (Trip.Individual) legs.remove(legs.size() - 1);
-								leg = new Trip.Individual(individualType, lastIndividualLeg.departure, lastIndividualLeg.departureTime,
-										arrivalLocation, arrivalTime, null, 0);
-							}
-							else
-							{
-								leg = new Trip.Individual(individualType, departureLocation, departureTime, arrivalLocation, arrivalTime, null, 0);
-							}
-						}
-						else if (type == 2)
-						{
-							final Product lineProduct;
-							if (lineOnDemand)
-								lineProduct = Product.ON_DEMAND;
-							else if (lineClass != 0)
-								lineProduct = intToProduct(lineClass);
-							else
-								lineProduct = normalizeType(lineCategory);
-
-							final Line line = newLine(lineProduct, normalizeLineName(lineName), lineComment, lineAttrs.toArray(new Line.Attr[0]));
-
-							final Location direction;
-							if (directionStr != null)
-							{
-								final String[] directionPlaceAndName = splitStationName(directionStr);
-								direction = new Location(LocationType.ANY, null, directionPlaceAndName[0], directionPlaceAndName[1]);
-							}
-							else
-							{
-								direction = null;
-							}
-
-							final Stop departure = new Stop(departureLocation, true, plannedDepartureTime != 0 ? new Date(plannedDepartureTime)
-									: null, predictedDepartureTime != 0 ? new Date(predictedDepartureTime) : null, plannedDeparturePosition,
-									predictedDeparturePosition, departureCancelled);
-							final Stop arrival = new Stop(arrivalLocation, false, plannedArrivalTime != 0 ? new Date(plannedArrivalTime) : null,
-									predictedArrivalTime != 0 ? new Date(predictedArrivalTime) : null, plannedArrivalPosition,
-									predictedArrivalPosition, arrivalCancelled);
-
-							leg = new Trip.Public(line, direction, departure, arrival, intermediateStops, null, disruptionText);
-						}
-						else
-						{
-							throw new IllegalStateException("unhandled type: " + type);
-						}
-						legs.add(leg);
-					}
+					final List<Trip.Leg> legs;
+					if (buffer != null && numLegs > 0)
+						legs = legsReader.readLazy(is, buffer, iTrip, legsOffset, numLegs, tripDayOffset, tripDetailsOffset);
+					else
+						legs = legsReader.read(is, iTrip, legsOffset, numLegs, tripDayOffset, tripDetailsOffset);
 
 					final Trip trip = new Trip(connectionId, resDeparture, resArrival, legs, null, null, (int) numChanges);
 
 					if (realtimeStatus != 2) // Verbindung fällt aus
+					{
 						trips.add(trip);
+
+						// the rest of the response is not decoded
+						if (sink != null && !sink.trip(trip))
+							break;
+					}
 				}
 
 				// if result is only one single individual leg, don't query for more
@@ -2010,7 +1901,7 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 						|| !(trips.get(0).legs.get(0) instanceof Trip.Individual);
 
 				final QueryTripsResult result = new QueryTripsResult(header, uri, from, via, to, new QueryTripsBinaryContext(requestId, seqNr, ld,
-						bis.getCount(), canQueryMore), trips);
+						bis.getCount(), canQueryMore, lightweight, lazyLegs), trips);
 
 				return result;
 			}
@@ -2069,6 +1960,443 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 		}
 	}
 
+	/**
+	 * Reads the legs of trips from a binary trips response, once its tables and pointers are known.
+	 */
+	private final class BinaryLegsReader
+	{
+		private final StringTable strings;
+		private final StationTable stations;
+		private final CommentTable comments;
+		private final long resDate;
+		private final int attrsOffset;
+		private final int tripDetailsPtr;
+		private final int tripDetailsLegOffset;
+		private final int tripDetailsLegSize;
+		private final int stopsOffset;
+		private final int stopsSize;
+		private final int disruptionsPtr;
+		private final boolean lightweight;
+
+		public BinaryLegsReader(final StringTable strings, final StationTable stations, final CommentTable comments, final long resDate,
+				final int attrsOffset, final int tripDetailsPtr, final int tripDetailsLegOffset, final int tripDetailsLegSize,
+				final int stopsOffset, final int stopsSize, final int disruptionsPtr, final boolean lightweight)
+		{
+			this.strings = strings;
+			this.stations = stations;
+			this.comments = comments;
+			this.resDate = resDate;
+			this.attrsOffset = attrsOffset;
+			this.tripDetailsPtr = tripDetailsPtr;
+			this.tripDetailsLegOffset = tripDetailsLegOffset;
+			this.tripDetailsLegSize = tripDetailsLegSize;
+			this.stopsOffset = stopsOffset;
+			this.stopsSize = stopsSize;
+			this.disruptionsPtr = disruptionsPtr;
+			this.lightweight = lightweight;
+		}
+
+		public List<Trip.Leg> read(final LittleEndianDataInputStream is, final int iTrip, final int legsOffset, final int numLegs,
+				final int tripDayOffset, final int tripDetailsOffset) throws IOException
+		{
+			final List<Trip.Leg> legs = new ArrayList<Trip.Leg>(numLegs);
+
+			for (int iLegs = 0; iLegs < numLegs; iLegs++)
+			{
+				is.reset();
+				is.skipBytes(0x4a + legsOffset + iLegs * 20);
+
+				final long plannedDepartureTime = time(is, resDate, tripDayOffset);
+				final Location departureLocation = stations.read(is);
+
+				final long plannedArrivalTime = time(is, resDate, tripDayOffset);
+				final Location arrivalLocation = stations.read(is);
+
+				final int type = is.readShortReverse();
+
+				final String lineName = strings.read(is);
+
+				final Position plannedDeparturePosition = normalizePosition(strings.read(is));
+				final Position plannedArrivalPosition = normalizePosition(strings.read(is));
+
+				final int legAttrIndex = is.readShortReverse();
+
+				final List<Line.Attr> lineAttrs = new ArrayList<Line.Attr>();
+				String lineComment = null;
+				boolean lineOnDemand = false;
+				for (final String comment : comments.read(is))
+				{
+					if (comment.startsWith("bf "))
+					{
+						lineAttrs.add(Line.Attr.WHEEL_CHAIR_ACCESS);
+					}
+					else if (comment.startsWith("FA ") || comment.startsWith("FB ") || comment.startsWith("FR "))
+					{
+						lineAttrs.add(Line.Attr.BICYCLE_CARRIAGE);
+					}
+					else if (isOnDemandComment(comment))
+					{
+						lineOnDemand = true;
+						lineComment = comment.substring(5);
+					}
+				}
+
+				is.reset();
+				is.skipBytes(attrsOffset + legAttrIndex * 4);
+				String directionStr = null;
+				int lineClass = 0;
+				String lineCategory = null;
+				String routingType = null;
+				while (true)
+				{
+					final String key = strings.read(is);
+					if (key == null)
+						break;
+					else if (key.equals("Direction"))
+						directionStr = strings.read(is);
+					else if (key.equals("Class"))
+						lineClass = Integer.parseInt(strings.read(is));
+					else if (key.equals("Category"))
+						lineCategory = strings.read(is);
+					// else if (key.equals("Operator"))
+					// lineOperator = strings.read(is);
+					else if (key.equals("GisRoutingType"))
+						routingType = strings.read(is);
+					else
+						is.skipBytes(2);
+				}
+
+				if (lineCategory == null && lineName != null)
+					lineCategory = categoryFromName(lineName);
+
+				is.reset();
+				is.skipBytes(tripDetailsPtr + tripDetailsOffset + tripDetailsLegOffset + iLegs * tripDetailsLegSize);
+
+				if (tripDetailsLegSize != 16)
+					throw new IllegalStateException("unhandled trip details leg size: " + tripDetailsLegSize);
+
+				final long predictedDepartureTime = time(is, resDate, tripDayOffset);
+				final long predictedArrivalTime = time(is, resDate, tripDayOffset);
+				final Position predictedDeparturePosition = normalizePosition(strings.read(is));
+				final Position predictedArrivalPosition = normalizePosition(strings.read(is));
+
+				final int bits = is.readShortReverse();
+				final boolean arrivalCancelled = (bits & 0x10) != 0;
+				final boolean departureCancelled = (bits & 0x20) != 0;
+
+				is.readShort();
+
+				final int firstStopIndex = is.readShortReverse();
+
+				final int numStops = is.readShortReverse();
+
+				is.reset();
+				is.skipBytes(disruptionsPtr);
+
+				String disruptionText = null;
+
+				if (is.readShortReverse() == 1)
+				{
+					is.reset();
+					is.skipBytes(disruptionsPtr + 2 + iTrip * 2);
+
+					int disruptionsOffset = is.readShortReverse();
+					while (disruptionsOffset != 0)
+					{
+						is.reset();
+						is.skipBytes(disruptionsPtr + disruptionsOffset);
+
+						strings.read(is); // "0"
+
+						final int disruptionLeg = is.readShortReverse();
+
+						is.skipBytes(2); // bitmaske
+
+						strings.read(is); // start of line
+						strings.read(is); // end of line
+
+						strings.read(is); // id
+						/* final String disruptionTitle = */strings.read(is);
+						final String disruptionShortText = ParserUtils.formatHtml(strings.read(is));
+
+						disruptionsOffset = is.readShortReverse(); // next
+
+						if (iLegs == disruptionLeg)
+						{
+							final int disruptionAttrsIndex = is.readShortReverse();
+
+							is.reset();
+							is.skipBytes(attrsOffset + disruptionAttrsIndex * 4);
+
+							while (true)
+							{
+								final String key = strings.read(is);
+								if (key == null)
+									break;
+								else if (key.equals("Text"))
+									disruptionText = ParserUtils.resolveEntities(strings.read(is));
+								else
+									is.skipBytes(2);
+							}
+
+							if (disruptionShortText != null)
+								disruptionText = disruptionShortText;
+						}
+					}
+				}
+
+				List<Stop> intermediateStops = null;
+
+				if (numStops > 0 && !lightweight)
+				{
+					is.reset();
+					is.skipBytes(tripDetailsPtr + stopsOffset + firstStopIndex * stopsSize);
+
+					if (stopsSize != 26)
+						throw new IllegalStateException("unhandled stops size: " + stopsSize);
+
+					intermediateStops = new ArrayList<Stop>(numStops);
+
+					for (int iStop = 0; iStop < numStops; iStop++)
+					{
+						final long plannedStopDepartureTime = time(is, resDate, tripDayOffset);
+						final Date plannedStopDepartureDate = plannedStopDepartureTime != 0 ? new Date(plannedStopDepartureTime) : null;
+						final long plannedStopArrivalTime = time(is, resDate, tripDayOffset);
+						final Date plannedStopArrivalDate = plannedStopArrivalTime != 0 ? new Date(plannedStopArrivalTime) : null;
+						final Position plannedStopDeparturePosition = normalizePosition(strings.read(is));
+						final Position plannedStopArrivalPosition = normalizePosition(strings.read(is));
+
+						is.readInt();
+
+						final long predictedStopDepartureTime = time(is, resDate, tripDayOffset);
+						final Date predictedStopDepartureDate = predictedStopDepartureTime != 0 ? new Date(predictedStopDepartureTime) : null;
+						final long predictedStopArrivalTime = time(is, resDate, tripDayOffset);
+						final Date predictedStopArrivalDate = predictedStopArrivalTime != 0 ? new Date(predictedStopArrivalTime) : null;
+						final Position predictedStopDeparturePosition = normalizePosition(strings.read(is));
+						final Position predictedStopArrivalPosition = normalizePosition(strings.read(is));
+
+						final int stopBits = is.readShortReverse();
+						final boolean stopArrivalCancelled = (stopBits & 0x10) != 0;
+						final boolean stopDepartureCancelled = (stopBits & 0x20) != 0;
+
+						is.readShort();
+
+						final Location stopLocation = stations.read(is);
+
+						final boolean validPredictedDate = !dominantPlanStopTime
+								|| (plannedStopArrivalDate != null && plannedStopDepartureDate != null);
+
+						final Stop stop = new Stop(stopLocation, plannedStopArrivalDate,
+								validPredictedDate ? predictedStopArrivalDate : null, plannedStopArrivalPosition,
+								predictedStopArrivalPosition, stopArrivalCancelled, plannedStopDepartureDate,
+								validPredictedDate ? predictedStopDepartureDate : null, plannedStopDeparturePosition,
+								predictedStopDeparturePosition, stopDepartureCancelled);
+
+						intermediateStops.add(stop);
+					}
+				}
+
+				final Trip.Leg leg;
+				if (type == 1 /* Fussweg */|| type == 3 /* Uebergang */|| type == 4 /* Uebergang */)
+				{
+					final Trip.Individual.Type individualType;
+					if (routingType == null)
+						individualType = type == 1 ? Trip.Individual.Type.WALK : Trip.Individual.Type.TRANSFER;
+					else if ("FOOT".equals(routingType))
+						individualType = Trip.Individual.Type.WALK;
+					else if ("BIKE".equals(routingType))
+						individualType = Trip.Individual.Type.BIKE;
+					else if ("CAR".equals(routingType) || "P+R".equals(routingType))
+						individualType = Trip.Individual.Type.CAR;
+					else
+						throw new IllegalStateException("unknown routingType: " + routingType);
+
+					final Date departureTime = new Date(predictedDepartureTime != 0 ? predictedDepartureTime : plannedDepartureTime);
+					final Date arrivalTime = new Date(predictedArrivalTime != 0 ? predictedArrivalTime : plannedArrivalTime);
+
+					final Trip.Leg lastLeg = legs.size() > 0 ? legs.get(legs.size() - 1) : null;
+					if (lastLeg != null && lastLeg instanceof Trip.Individual && ((Trip.Individual) lastLeg).type == individualType)
+					{
+						final Trip.Individual lastIndividualLeg = (Trip.Individual) legs.remove(legs.size() - 1);
+						leg = new Trip.Individual(individualType, lastIndividualLeg.departure, lastIndividualLeg.departureTime,
+								arrivalLocation, arrivalTime, null, 0);
+					}
+					else
+					{
+						leg = new Trip.Individual(individualType, departureLocation, departureTime, arrivalLocation, arrivalTime, null, 0);
+					}
+				}
+				else if (type == 2)
+				{
+					final Product lineProduct = legProduct(lineOnDemand, lineClass, lineCategory);
+
+					final Line line = newLine(lineProduct, normalizeLineName(lineName), lineComment, lineAttrs.toArray(new Line.Attr[0]));
+
+					final Location direction;
+					if (directionStr != null)
+					{
+						final String[] directionPlaceAndName = splitStationName(directionStr);
+						direction = new Location(LocationType.ANY, null, directionPlaceAndName[0], directionPlaceAndName[1]);
+					}
+					else
+					{
+						direction = null;
+					}
+
+					final Stop departure = new Stop(departureLocation, true, plannedDepartureTime != 0 ? new Date(plannedDepartureTime)
+							: null, predictedDepartureTime != 0 ? new Date(predictedDepartureTime) : null, plannedDeparturePosition,
+							predictedDeparturePosition, departureCancelled);
+					final Stop arrival = new Stop(arrivalLocation, false, plannedArrivalTime != 0 ? new Date(plannedArrivalTime) : null,
+							predictedArrivalTime != 0 ? new Date(predictedArrivalTime) : null, plannedArrivalPosition,
+							predictedArrivalPosition, arrivalCancelled);
+
+					leg = new Trip.Public(line, direction, departure, arrival, intermediateStops, null, disruptionText);
+				}
+				else
+				{
+					throw new IllegalStateException("unhandled type: " + type);
+				}
+				legs.add(leg);
+			}
+
+			return legs;
+		}
+
+		/**
+		 * Reads only the times and products of a trip, and defers reading its legs until they are accessed.
+		 */
+		public Trip.LazyLegs readLazy(final LittleEndianDataInputStream is, final byte[] buffer, final int iTrip, final int legsOffset,
+				final int numLegs, final int tripDayOffset, final int tripDetailsOffset) throws IOException
+		{
+			final int legDetailsPtr = tripDetailsPtr + tripDetailsOffset + tripDetailsLegOffset;
+
+			is.reset();
+			is.skipBytes(0x4a + legsOffset);
+			final long plannedDepartureTime = time(is, resDate, tripDayOffset);
+			is.reset();
+			is.skipBytes(legDetailsPtr);
+			final long predictedDepartureTime = time(is, resDate, tripDayOffset);
+
+			is.reset();
+			is.skipBytes(0x4a + legsOffset + (numLegs - 1) * 20 + 4);
+			final long plannedArrivalTime = time(is, resDate, tripDayOffset);
+			is.reset();
+			is.skipBytes(legDetailsPtr + (numLegs - 1) * tripDetailsLegSize + 2);
+			final long predictedArrivalTime = time(is, resDate, tripDayOffset);
+
+			final Set<Product> products = EnumSet.noneOf(Product.class);
+			for (int iLegs = 0; iLegs < numLegs; iLegs++)
+			{
+				is.reset();
+				is.skipBytes(0x4a + legsOffset + iLegs * 20 + 8);
+
+				final int type = is.readShortReverse();
+				if (type != 2)
+					continue;
+
+				final String lineName = strings.read(is);
+				is.skipBytes(4);
+				final int legAttrIndex = is.readShortReverse();
+
+				boolean lineOnDemand = false;
+				for (final String comment : comments.read(is))
+					if (isOnDemandComment(comment))
+						lineOnDemand = true;
+
+				is.reset();
+				is.skipBytes(attrsOffset + legAttrIndex * 4);
+				int lineClass = 0;
+				String lineCategory = null;
+				while (true)
+				{
+					final String key = strings.read(is);
+					if (key == null)
+						break;
+					else if (key.equals("Class"))
+						lineClass = Integer.parseInt(strings.read(is));
+					else if (key.equals("Category"))
+						lineCategory = strings.read(is);
+					else
+						is.skipBytes(2);
+				}
+
+				if (lineCategory == null && lineName != null)
+					lineCategory = categoryFromName(lineName);
+
+				final Product product = legProduct(lineOnDemand, lineClass, lineCategory);
+				if (product != null)
+					products.add(product);
+			}
+
+			return new LazyBinaryLegs(new Date(predictedDepartureTime != 0 ? predictedDepartureTime : plannedDepartureTime), new Date(
+					predictedArrivalTime != 0 ? predictedArrivalTime : plannedArrivalTime), products, this, buffer, iTrip, legsOffset, numLegs,
+					tripDayOffset, tripDetailsOffset);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class LazyBinaryLegs extends Trip.LazyLegs
+	{
+		private BinaryLegsReader reader;
+		private byte[] buffer;
+		private final int iTrip;
+		private final int legsOffset;
+		private final int numLegs;
+		private final int tripDayOffset;
+		private final int tripDetailsOffset;
+
+		public LazyBinaryLegs(final Date firstDepartureTime, final Date lastArrivalTime, final Set<Product> products,
+				final BinaryLegsReader reader, final byte[] buffer, final int iTrip, final int legsOffset, final int numLegs,
+				final int tripDayOffset, final int tripDetailsOffset)
+		{
+			super(firstDepartureTime, lastArrivalTime, products);
+
+			this.reader = reader;
+			this.buffer = buffer;
+			this.iTrip = iTrip;
+			this.legsOffset = legsOffset;
+			this.numLegs = numLegs;
+			this.tripDayOffset = tripDayOffset;
+			this.tripDetailsOffset = tripDetailsOffset;
+		}
+
+		@Override
+		protected List<Trip.Leg> decodeLegs() throws IOException
+		{
+			final LittleEndianDataInputStream is = new LittleEndianDataInputStream(new ByteArrayInputStream(buffer));
+			try
+			{
+				return reader.read(is, iTrip, legsOffset, numLegs, tripDayOffset, tripDetailsOffset);
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+
+		@Override
+		protected void releaseBuffer()
+		{
+			reader = null;
+			buffer = null;
+		}
+	}
+
+	private static boolean isOnDemandComment(final String comment)
+	{
+		return comment.startsWith("$R ") || comment.startsWith("ga ") || comment.startsWith("Vs ");
+	}
+
+	private Product legProduct(final boolean onDemand, final int lineClass, final String lineCategory)
+	{
+		if (onDemand)
+			return Product.ON_DEMAND;
+		else if (lineClass != 0)
+			return intToProduct(lineClass);
+		else
+			return normalizeType(lineCategory);
+	}
+
 	private Location location(final LittleEndianDataInputStream is, final StringTable strings) throws IOException
 	{
 		final String name = strings.read(is);
@@ -2495,58 +2823,84 @@ public abstract class AbstractHafasProvider extends AbstractNetworkProvider
 		}
 	}
 
-	protected void setHtmlNearbyStationsPattern(final Pattern htmlNearbyStationsPattern)
+	protected void setHtmlNearbyStationsRow(final String attribute, final Pattern value)
 	{
-		this.htmlNearbyStationsPattern = htmlNearbyStationsPattern;
+		this.htmlNearbyStationsRowAttribute = attribute;
+		this.htmlNearbyStationsRowValue = value;
 	}
 
-	private Pattern htmlNearbyStationsPattern = Pattern.compile("<tr class=\"(zebra[^\"]*)\">(.*?)</tr>", Pattern.DOTALL);
+	private String htmlNearbyStationsRowAttribute = "class";
+	private Pattern htmlNearbyStationsRowValue = Pattern.compile("zebra.*");
 
-	private final static Pattern P_NEARBY_FINE_COORDS = Pattern
-			.compile("REQMapRoute0\\.Location0\\.X=(-?\\d+)&(?:amp;)?REQMapRoute0\\.Location0\\.Y=(-?\\d+)&");
-	private final static Pattern P_NEARBY_FINE_LOCATION = Pattern.compile("[\\?&;]input=(\\d+)&[^\"]*\">([^<]*)<");
+	private final static Pattern P_NEARBY_FINE_COORDS = Pattern.compile("REQMapRoute0\\.Location0\\.X=(-?\\d+)&REQMapRoute0\\.Location0\\.Y=(-?\\d+)&");
+	private final static Pattern P_NEARBY_FINE_LOCATION = Pattern.compile("[\\?&]input=(\\d+)&");
 
 	protected final NearbyLocationsResult htmlNearbyStations(final String uri) throws IOException
 	{
 		final List<Location> stations = new ArrayList<Location>();
 
-		final CharSequence page = ParserUtils.scrape(uri);
+		Reader reader = null;
 		String oldZebra = null;
 
-		final Matcher mCoarse = htmlNearbyStationsPattern.matcher(page);
-
-		while (mCoarse.find())
+		try
 		{
-			final String zebra = mCoarse.group(1);
-			if (oldZebra != null && zebra.equals(oldZebra))
-				throw new IllegalArgumentException("missed row? last:" + zebra);
-			else
-				oldZebra = zebra;
-
-			final Matcher mFineLocation = P_NEARBY_FINE_LOCATION.matcher(mCoarse.group(2));
+			reader = new InputStreamReader(ParserUtils.scrapeInputStream(uri), Charsets.ISO_8859_1);
+			final HtmlTokenizer html = new HtmlTokenizer(reader);
 
-			if (mFineLocation.find())
+			while (true)
 			{
+				final HtmlTokenizer.Token token = html.next();
+				if (token == HtmlTokenizer.Token.END_DOCUMENT)
+					break;
+				if (token != HtmlTokenizer.Token.START_TAG || !"tr".equals(html.getName()))
+					continue;
+
+				final String zebra = html.getAttribute(htmlNearbyStationsRowAttribute);
+				final HtmlTokenizer.Element row = html.readElement();
+				if (zebra == null || !htmlNearbyStationsRowValue.matcher(zebra).matches())
+					continue;
+
+				if (oldZebra != null && zebra.equals(oldZebra))
+					throw new IllegalArgumentException("missed row? last:" + zebra);
+				else
+					oldZebra = zebra;
+
+				String parsedId = null;
+				String parsedName = null;
 				int parsedLon = 0;
 				int parsedLat = 0;
-				final String parsedId = mFineLocation.group(1);
-				final String parsedName = ParserUtils.resolveEntities(mFineLocation.group(2));
+				for (final HtmlTokenizer.Element link : row.all("a"))
+				{
+					final String href = link.attribute("href");
+					if (href == null)
+						continue;
 
-				final Matcher mFineCoords = P_NEARBY_FINE_COORDS.matcher(mCoarse.group(2));
+					final Matcher mFineLocation = P_NEARBY_FINE_LOCATION.matcher(href);
+					if (parsedId == null && mFineLocation.find())
+					{
+						parsedId = mFineLocation.group(1);
+						parsedName = link.text();
+					}
 
-				if (mFineCoords.find())
-				{
-					parsedLon = Integer.parseInt(mFineCoords.group(1));
-					parsedLat = Integer.parseInt(mFineCoords.group(2));
+					final Matcher mFineCoords = P_NEARBY_FINE_COORDS.matcher(href);
+					if (parsedLon == 0 && parsedLat == 0 && mFineCoords.find())
+					{
+						parsedLon = Integer.parseInt(mFineCoords.group(1));
+						parsedLat = Integer.parseInt(mFineCoords.group(2));
+					}
 				}
 
+				if (parsedId == null)
+					throw new IllegalArgumentException("cannot parse '" + row + "' on " + uri);
+
 				final String[] placeAndName = splitStationName(parsedName);
 				stations.add(new Location(LocationType.STATION, parsedId, parsedLat, parsedLon, placeAndName[0], placeAndName[1]));
 			}
-			else
-			{
-				throw new IllegalArgumentException("cannot parse '" + mCoarse.group(2) + "' on " + uri);
-			}
+		}
+		finally
+		{
+			if (reader != null)
+				reader.close();
 		}
 
 		return new NearbyLocationsResult(null, stations);
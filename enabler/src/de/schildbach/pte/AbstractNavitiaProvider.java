@@ -36,7 +36,6 @@ import android.support.annotation.Nullable;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import com.google.common.base.Strings;
 
@@ -66,7 +65,10 @@ import de.schildbach.pte.dto.Trip.Leg;
 import de.schildbach.pte.dto.Trip.Public;
 import de.schildbach.pte.exception.NotFoundException;
 import de.schildbach.pte.exception.ParserException;
+import de.schildbach.pte.util.CoordinateScanner;
 import de.schildbach.pte.util.ParserUtils;
+import de.schildbach.pte.util.TokenReader;
+import de.schildbach.pte.util.TokenWriter;
 import de.schildbach.pte.util.WordUtils;
 
 /**
@@ -106,13 +108,15 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 		private final Location to;
 		private final String prevQueryUri;
 		private final String nextQueryUri;
+		private final boolean lightweight;
 
-		private Context(final Location from, final Location to, final String prevQueryUri, final String nextQueryUri)
+		private Context(final Location from, final Location to, final String prevQueryUri, final String nextQueryUri, final boolean lightweight)
 		{
 			this.from = from;
 			this.to = to;
 			this.prevQueryUri = prevQueryUri;
 			this.nextQueryUri = nextQueryUri;
+			this.lightweight = lightweight;
 		}
 
 		public boolean canQueryLater()
@@ -272,9 +276,9 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 		return new SimpleDateFormat("yyyyMMdd'T'HHmmss").format(date);
 	}
 
-	private LinkedList<Point> parsePath(final JSONArray coordinates) throws IOException
+	private List<Point> parsePath(final JSONArray coordinates) throws IOException
 	{
-		LinkedList<Point> path = new LinkedList<Point>();
+		final List<Point> path = new ArrayList<Point>(coordinates.length());
 
 		for (int i = 0; i < coordinates.length(); ++i)
 		{
@@ -318,7 +322,7 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 		}
 	}
 
-	private LegInfo parseLegInfo(final JSONObject section) throws IOException
+	private LegInfo parseLegInfo(final JSONObject section, final boolean lightweight) throws IOException
 	{
 		try
 		{
@@ -344,9 +348,9 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 
 				// Build path and distance. Check first that geojson
 				// object exists.
-				LinkedList<Point> path = null;
+				List<Point> path = null;
 				int distance = 0;
-				if (section.has("geojson"))
+				if (!lightweight && section.has("geojson"))
 				{
 					final JSONObject jsonPath = section.getJSONObject("geojson");
 					final JSONArray coordinates = jsonPath.getJSONArray("coordinates");
@@ -448,12 +452,12 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 		}
 	}
 
-	private Leg parseLeg(final JSONObject section) throws IOException
+	private Leg parseLeg(final JSONObject section, final boolean lightweight) throws IOException
 	{
 		try
 		{
 			// Build common leg info.
-			final LegInfo legInfo = parseLegInfo(section);
+			final LegInfo legInfo = parseLegInfo(section, lightweight);
 			if (legInfo == null)
 				return null;
 
@@ -494,11 +498,19 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 					final Stop arrivalStop = parseStop(stopDateTimes.getJSONObject(nbStopDateTime - 1));
 
 					// Build intermediate stops.
-					final LinkedList<Stop> intermediateStops = new LinkedList<Stop>();
-					for (int i = 1; i < nbStopDateTime - 1; ++i)
+					final LinkedList<Stop> intermediateStops;
+					if (!lightweight)
 					{
-						final Stop intermediateStop = parseStop(stopDateTimes.getJSONObject(i));
-						intermediateStops.add(intermediateStop);
+						intermediateStops = new LinkedList<Stop>();
+						for (int i = 1; i < nbStopDateTime - 1; ++i)
+						{
+							final Stop intermediateStop = parseStop(stopDateTimes.getJSONObject(i));
+							intermediateStops.add(intermediateStop);
+						}
+					}
+					else
+					{
+						intermediateStops = null;
 					}
 
 					// Build message.
@@ -551,8 +563,8 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 		}
 	}
 
-	private void parseQueryTripsResult(final JSONObject head, final Location from, final Location to, final QueryTripsResult result)
-			throws IOException
+	private void parseQueryTripsResult(final JSONObject head, final Location from, final Location to, final boolean lightweight,
+			final QueryTripsResult result) throws IOException
 	{
 		try
 		{
@@ -570,7 +582,7 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 				for (int j = 0; j < sections.length(); ++j)
 				{
 					final JSONObject section = sections.getJSONObject(j);
-					final Leg leg = parseLeg(section);
+					final Leg leg = parseLeg(section, lightweight);
 					if (leg != null)
 						legs.add(leg);
 				}
@@ -1036,6 +1048,11 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 					queryUri.append("&last_section_mode=bike");
 				}
 
+				// Leave out paths, which also loses the distance of legs.
+				final boolean lightweight = isLightweight(options);
+				if (lightweight)
+					queryUri.append("&disable_geojson=true");
+
 				// Set forbidden physical modes.
 				if (products != null && !products.equals(Product.ALL))
 				{
@@ -1118,9 +1135,9 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 						}
 
 						final QueryTripsResult result = new QueryTripsResult(resultHeader, queryUri.toString(), from, null, to, new Context(from, to,
-								prevQueryUri, nextQueryUri), new LinkedList<Trip>());
+								prevQueryUri, nextQueryUri, lightweight), new LinkedList<Trip>());
 
-						parseQueryTripsResult(head, from, to, result);
+						parseQueryTripsResult(head, from, to, lightweight, result);
 
 						return result;
 					}
@@ -1169,6 +1186,57 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 		}
 	}
 
+	@Override
+	protected void writeQueryTripsContext(final QueryTripsContext context, final TokenWriter writer)
+	{
+		if (context instanceof Context)
+		{
+			final Context c = (Context) context;
+			writer.writeLocation(c.from);
+			writer.writeLocation(c.to);
+			writer.writeString(queryOf(c.prevQueryUri));
+			writer.writeString(queryOf(c.nextQueryUri));
+			writer.writeBoolean(c.lightweight);
+		}
+		else
+		{
+			super.writeQueryTripsContext(context, writer);
+		}
+	}
+
+	@Override
+	protected QueryTripsContext readQueryTripsContext(final TokenReader reader)
+	{
+		final Location from = reader.readLocation();
+		final Location to = reader.readLocation();
+		final String prevQuery = reader.readString();
+		final String nextQuery = reader.readString();
+		return new Context(from, to, journeysUri(prevQuery), journeysUri(nextQuery), reader.readBoolean());
+	}
+
+	/**
+	 * Only the query of a paging link travels in a token. The link itself is rebuilt on the configured endpoint, so that
+	 * a token can neither redirect the request nor the authorization to another host.
+	 */
+	private static String queryOf(final String uri)
+	{
+		if (uri == null)
+			return null;
+
+		final int q = uri.indexOf('?');
+		return q >= 0 ? uri.substring(q + 1) : "";
+	}
+
+	private String journeysUri(final String query)
+	{
+		if (query == null)
+			return null;
+		if (query.indexOf('#') >= 0)
+			throw new IllegalArgumentException("illegal query: " + query);
+
+		return tripUri() + "journeys?" + query;
+	}
+
 	public QueryTripsResult queryMoreTrips(final QueryTripsContext contextObj, final boolean later) throws IOException
 	{
 		final ResultHeader resultHeader = new ResultHeader(network, SERVER_PRODUCT, SERVER_VERSION, 0, null);
@@ -1193,9 +1261,9 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 				final String nextQueryUri = next.getString("href");
 
 				final QueryTripsResult result = new QueryTripsResult(resultHeader, queryUri, from, null, to, new Context(from, to, prevQueryUri,
-						nextQueryUri), new LinkedList<Trip>());
+						nextQueryUri, context.lightweight), new LinkedList<Trip>());
 
-				parseQueryTripsResult(head, from, to, result);
+				parseQueryTripsResult(head, from, to, context.lightweight, result);
 
 				return result;
 			}
@@ -1224,33 +1292,21 @@ public abstract class AbstractNavitiaProvider extends AbstractNetworkProvider
 			final JSONObject regionInfo = regions.getJSONObject(0);
 			final String shape = regionInfo.getString("shape");
 
-			// Parse string using JSON tokenizer for coordinates.
-			List<Point> pointList = new ArrayList<Point>();
-			final JSONTokener shapeTokener = new JSONTokener(shape);
-			shapeTokener.skipTo('(');
-			shapeTokener.next();
-			shapeTokener.next();
-			char c = shapeTokener.next();
-			while (c != ')')
+			// Scan the outer ring of the WKT polygon, which is in (longitude, latitude) order.
+			final int start = shape.indexOf("((");
+			final int end = shape.indexOf(')', start);
+			if (start == -1 || end == -1)
+				throw new ParserException("cannot parse shape: " + shape);
+			final CoordinateScanner scanner = new CoordinateScanner(shape, start, end, CoordinateScanner.DEGREES);
+			final List<Point> pointList = new ArrayList<Point>();
+			while (scanner.hasNext())
 			{
-				// Navitia coordinates are in (longitude, latitude) order.
-				final String lonString = shapeTokener.nextTo(' ');
-				shapeTokener.next();
-				final String latString = shapeTokener.nextTo(",)");
-				c = shapeTokener.next();
-
-				// Append new point with (latitude, longitude) order.
-				final double lat = Double.parseDouble(latString);
-				final double lon = Double.parseDouble(lonString);
-				pointList.add(Point.fromDouble(lat, lon));
+				final int lon = scanner.next();
+				final int lat = scanner.next();
+				pointList.add(new Point(lat, lon));
 			}
 
-			// Fill point array.
-			final Point[] pointArray = new Point[pointList.size()];
-			for (int i = 0; i < pointList.size(); ++i)
-				pointArray[i] = pointList.get(i);
-
-			return pointArray;
+			return pointList.toArray(new Point[pointList.size()]);
 		}
 		catch (final JSONException jsonExc)
 		{
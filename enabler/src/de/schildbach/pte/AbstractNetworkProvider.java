@@ -18,6 +18,8 @@
 package de.schildbach.pte;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
 import java.util.EnumSet;
 import java.util.Map;
 import java.util.Set;
@@ -29,10 +31,17 @@ import android.support.annotation.Nullable;
 
 import com.google.common.base.Strings;
 
+import de.schildbach.pte.dto.Location;
 import de.schildbach.pte.dto.Point;
 import de.schildbach.pte.dto.Position;
 import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsContext;
+import de.schildbach.pte.dto.QueryTripsResult;
 import de.schildbach.pte.dto.Style;
+import de.schildbach.pte.util.SinkUtils;
+import de.schildbach.pte.util.TokenReader;
+import de.schildbach.pte.util.TokenWriter;
 
 /**
  * @author Andreas Schildbach
@@ -45,12 +54,25 @@ public abstract class AbstractNetworkProvider implements NetworkProvider
 	protected int numTripsRequested = 6;
 	private @Nullable Map<String, Style> styles = null;
 	protected @Nullable String sessionCookieName = null;
+	private final DeparturesBatch departuresBatch;
+
+	private static final int CONTEXT_TOKEN_VERSION = 3;
 
 	protected static final Set<Product> ALL_EXCEPT_HIGHSPEED = EnumSet.complementOf(EnumSet.of(Product.HIGH_SPEED_TRAIN));
 
 	protected AbstractNetworkProvider(final NetworkId network)
+	{
+		this(network, DeparturesBatch.DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * @param departuresBatchParallelism
+	 *            departure queries of {@link #queryDeparturesBatch} that may run at the same time
+	 */
+	protected AbstractNetworkProvider(final NetworkId network, final int departuresBatchParallelism)
 	{
 		this.network = network;
+		this.departuresBatch = new DeparturesBatch(this, departuresBatchParallelism);
 	}
 
 	public final NetworkId id()
@@ -69,11 +91,47 @@ public abstract class AbstractNetworkProvider implements NetworkProvider
 
 	protected abstract boolean hasCapability(Capability capability);
 
+	public void queryDeparturesBatch(final Collection<String> stationIds, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DeparturesListener listener) throws IOException
+	{
+		departuresBatch.query(stationIds, time, maxDepartures, equivs, listener);
+	}
+
+	/**
+	 * Hands the complete result of {@link #queryDepartures(String, Date, int, boolean)} to the sink. Providers that can
+	 * stop parsing early override this.
+	 */
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		return SinkUtils.feedDepartures(queryDepartures(stationId, time, maxDepartures, equivs), sink);
+	}
+
+	/**
+	 * Hands the complete result of
+	 * {@link #queryTrips(Location, Location, Location, Date, boolean, Set, Optimize, WalkSpeed, Accessibility, Set)} to
+	 * the sink. Providers that can stop parsing early override this.
+	 */
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return SinkUtils.feedTrips(queryTrips(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options), sink);
+	}
+
 	public Set<Product> defaultProducts()
 	{
 		return ALL_EXCEPT_HIGHSPEED;
 	}
 
+	/**
+	 * @return time zone the network runs its timetables in
+	 */
+	public TimeZone getTimeZone()
+	{
+		return timeZone;
+	}
+
 	protected void setTimeZone(final String timeZoneId)
 	{
 		this.timeZone = TimeZone.getTimeZone(timeZoneId);
@@ -89,6 +147,43 @@ public abstract class AbstractNetworkProvider implements NetworkProvider
 		this.styles = styles;
 	}
 
+	public final String encodeQueryTripsContext(final QueryTripsContext context)
+	{
+		final TokenWriter writer = new TokenWriter();
+		writer.writeByte(CONTEXT_TOKEN_VERSION);
+		writer.writeString(network.name());
+		writeQueryTripsContext(context, writer);
+		return writer.toToken();
+	}
+
+	public final QueryTripsContext decodeQueryTripsContext(final String token)
+	{
+		final TokenReader reader = new TokenReader(token);
+		final int version = reader.readByte();
+		if (version != CONTEXT_TOKEN_VERSION)
+			throw new IllegalArgumentException("unsupported token version: " + version);
+		final String tokenNetwork = reader.readString();
+		if (!network.name().equals(tokenNetwork))
+			throw new IllegalArgumentException("token of network " + tokenNetwork + " used for " + network);
+		final QueryTripsContext context = readQueryTripsContext(reader);
+		reader.requireEnd();
+		return context;
+	}
+
+	/**
+	 * Writes the fields of a context of this provider. Providers that support querying more trips override this
+	 * together with {@link #readQueryTripsContext(TokenReader)}.
+	 */
+	protected void writeQueryTripsContext(final QueryTripsContext context, final TokenWriter writer)
+	{
+		throw new UnsupportedOperationException("cannot encode " + context.getClass().getName());
+	}
+
+	protected QueryTripsContext readQueryTripsContext(final TokenReader reader)
+	{
+		throw new UnsupportedOperationException("cannot decode contexts of " + network);
+	}
+
 	protected void setSessionCookieName(final String sessionCookieName)
 	{
 		this.sessionCookieName = sessionCookieName;
@@ -151,6 +246,11 @@ public abstract class AbstractNetworkProvider implements NetworkProvider
 		return null;
 	}
 
+	protected static boolean isLightweight(final @Nullable Set<Option> options)
+	{
+		return options != null && options.contains(Option.LIGHTWEIGHT);
+	}
+
 	protected static String normalizeStationId(final String stationId)
 	{
 		if (stationId == null || stationId.length() == 0)
@@ -58,6 +58,8 @@ import de.schildbach.pte.dto.SuggestedLocation;
 import de.schildbach.pte.dto.Trip;
 import de.schildbach.pte.exception.ParserException;
 import de.schildbach.pte.util.ParserUtils;
+import de.schildbach.pte.util.TokenReader;
+import de.schildbach.pte.util.TokenWriter;
 
 /**
  * @author Kjell Braden <afflux@pentabarf.de>
@@ -617,6 +619,42 @@ public abstract class AbstractTsiProvider extends AbstractNetworkProvider
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	protected void writeQueryTripsContext(final QueryTripsContext context, final TokenWriter writer)
+	{
+		if (context instanceof Context)
+		{
+			final Context c = (Context) context;
+			writer.writeLocation(c.from);
+			writer.writeLocation(c.via);
+			writer.writeLocation(c.to);
+			writer.writeProducts(c.products);
+			writer.writeByte(c.walkSpeed != null ? c.walkSpeed.ordinal() + 1 : 0);
+			writer.writeDate(c.earliestArrival);
+			writer.writeDate(c.latestDeparture);
+		}
+		else
+		{
+			super.writeQueryTripsContext(context, writer);
+		}
+	}
+
+	@Override
+	protected QueryTripsContext readQueryTripsContext(final TokenReader reader)
+	{
+		final Location from = reader.readLocation();
+		final Location via = reader.readLocation();
+		final Location to = reader.readLocation();
+		final Set<Product> products = reader.readProducts();
+		final int walkSpeed = reader.readByte();
+		if (walkSpeed > WalkSpeed.values().length)
+			throw new IllegalArgumentException("unknown walk speed: " + walkSpeed);
+		final Context context = new Context(from, via, to, products, walkSpeed > 0 ? WalkSpeed.values()[walkSpeed - 1] : null, null, null);
+		context.earliestArrival = reader.readDate();
+		context.latestDeparture = reader.readDate();
+		return context;
+	}
+
 	public QueryTripsResult queryMoreTrips(final QueryTripsContext context, final boolean later) throws IOException
 	{
 		return ((Context) context).queryMore(this, later);
@@ -126,6 +126,15 @@ public class BayernProvider extends AbstractEfaProvider
 		return queryDeparturesMobile(stationId, time, maxDepartures, equivs);
 	}
 
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		checkNotNull(Strings.emptyToNull(stationId));
+
+		return queryDeparturesMobile(stationId, time, maxDepartures, equivs, checkNotNull(sink));
+	}
+
 	@Override
 	public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
 	{
@@ -166,6 +175,14 @@ public class BayernProvider extends AbstractEfaProvider
 		return queryTripsMobile(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options);
 	}
 
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return queryTripsMobile(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options, sink);
+	}
+
 	@Override
 	public QueryTripsResult queryMoreTrips(final QueryTripsContext contextObj, final boolean later) throws IOException
 	{
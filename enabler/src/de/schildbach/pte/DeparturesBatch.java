@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.schildbach.pte.NetworkProvider.DeparturesListener;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.StationDepartures;
+import de.schildbach.pte.util.Deadline;
+
+/**
+ * Runs departure queries for many stations against one provider. At most as many queries as there are permits run at
+ * the same time, shared by all batches of that provider. If equivalent stations are queried, a result that already
+ * contains a requested station is handed out for it as well, rather than querying it again. The queries run within
+ * the {@link Deadline} of the batch, if any.
+ */
+public final class DeparturesBatch
+{
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+			.setNameFormat("departures-batch-%d").build());
+
+	private final NetworkProvider provider;
+	private final Semaphore permits;
+
+	public DeparturesBatch(final NetworkProvider provider, final int parallelism)
+	{
+		checkArgument(parallelism > 0, "parallelism must be positive: %s", parallelism);
+		this.provider = checkNotNull(provider);
+		this.permits = new Semaphore(parallelism);
+	}
+
+	private static final class Outcome
+	{
+		final String stationId;
+		final QueryDeparturesResult result;
+		final Exception exception;
+
+		Outcome(final String stationId, final QueryDeparturesResult result, final Exception exception)
+		{
+			this.stationId = stationId;
+			this.result = result;
+			this.exception = exception;
+		}
+	}
+
+	/**
+	 * Queries all stations and reports each outcome to the listener as soon as it is known. The listener is called on
+	 * the calling thread, one outcome at a time. Returns when all stations have been reported.
+	 */
+	public void query(final Collection<String> stationIds, final @Nullable Date time, final int maxDepartures, final boolean equivs,
+			final DeparturesListener listener) throws IOException
+	{
+		final Set<String> queue = new LinkedHashSet<String>(stationIds);
+		final Deadline deadline = Deadline.current();
+		final CompletionService<Outcome> completion = new ExecutorCompletionService<Outcome>(executor);
+		int inFlight = 0;
+
+		try
+		{
+			while (!queue.isEmpty() || inFlight > 0)
+			{
+				// never wait for a permit while own queries are pending, their completion is what frees it
+				while (!queue.isEmpty() && (inFlight == 0 ? acquire() : permits.tryAcquire()))
+				{
+					final String stationId = queue.iterator().next();
+					queue.remove(stationId);
+					completion.submit(new Callable<Outcome>()
+					{
+						public Outcome call()
+						{
+							final Deadline previous = Deadline.bind(deadline);
+							try
+							{
+								return new Outcome(stationId, provider.queryDepartures(stationId, time, maxDepartures, equivs), null);
+							}
+							catch (final Exception x)
+							{
+								return new Outcome(stationId, null, x);
+							}
+							finally
+							{
+								Deadline.bind(previous);
+							}
+						}
+					});
+					inFlight++;
+				}
+
+				// the permit is only released once the outcome is handled, so that no equivalent is queried meanwhile
+				final Outcome outcome = completion.take().get();
+				inFlight--;
+				permits.release();
+
+				if (outcome.exception != null)
+				{
+					listener.onFailure(outcome.stationId, outcome.exception);
+					continue;
+				}
+
+				listener.onDepartures(outcome.stationId, outcome.result);
+
+				// equivalence is symmetric, so the board of one station equally serves its equivalents
+				if (equivs && outcome.result.status == QueryDeparturesResult.Status.OK)
+					for (final StationDepartures stationDepartures : outcome.result.stationDepartures)
+						if (stationDepartures.location.id != null && queue.remove(stationDepartures.location.id))
+							listener.onDepartures(stationDepartures.location.id, outcome.result);
+			}
+		}
+		catch (final InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted with " + (queue.size() + inFlight) + " stations outstanding");
+		}
+		catch (final ExecutionException x)
+		{
+			// cannot happen, outcomes carry their exceptions
+			throw new RuntimeException(x.getCause());
+		}
+		finally
+		{
+			if (inFlight > 0)
+				releaseWhenDone(completion, inFlight);
+		}
+	}
+
+	/**
+	 * Releases the permits of queries the caller no longer waits for, as they complete.
+	 */
+	private void releaseWhenDone(final CompletionService<Outcome> completion, final int inFlight)
+	{
+		executor.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					for (int i = 0; i < inFlight; i++)
+					{
+						completion.take();
+						permits.release();
+					}
+				}
+				catch (final InterruptedException x)
+				{
+					// executor is shut down along with the process
+				}
+			}
+		});
+	}
+
+	private boolean acquire() throws InterruptedException
+	{
+		permits.acquire();
+		return true;
+	}
+}
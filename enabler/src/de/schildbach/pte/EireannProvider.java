@@ -92,6 +92,14 @@ public class EireannProvider extends AbstractHafasProvider
 		return queryTripsXml(from, via, to, date, dep, products, walkSpeed, accessibility, options);
 	}
 
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return queryTripsXml(from, via, to, date, dep, products, walkSpeed, accessibility, options, sink);
+	}
+
 	@Override
 	public QueryTripsResult queryMoreTrips(final QueryTripsContext context, final boolean later) throws IOException
 	{
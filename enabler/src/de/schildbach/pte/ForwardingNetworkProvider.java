@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import android.support.annotation.Nullable;
+
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.Point;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsContext;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.Style;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+
+/**
+ * Network provider that forwards all calls to another provider. Subclasses override the calls they want to decorate,
+ * e.g. for caching.
+ */
+public abstract class ForwardingNetworkProvider implements NetworkProvider
+{
+	protected final NetworkProvider delegate;
+	private final DeparturesBatch departuresBatch = new DeparturesBatch(this, DeparturesBatch.DEFAULT_PARALLELISM);
+
+	protected ForwardingNetworkProvider(final NetworkProvider delegate)
+	{
+		this.delegate = checkNotNull(delegate);
+	}
+
+	public NetworkId id()
+	{
+		return delegate.id();
+	}
+
+	public boolean hasCapabilities(final Capability... capabilities)
+	{
+		return delegate.hasCapabilities(capabilities);
+	}
+
+	public NearbyLocationsResult queryNearbyLocations(final EnumSet<LocationType> types, final Location location, final int maxDistance,
+			final int maxLocations) throws IOException
+	{
+		return delegate.queryNearbyLocations(types, location, maxDistance, maxLocations);
+	}
+
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures, final boolean equivs)
+			throws IOException
+	{
+		return delegate.queryDepartures(stationId, time, maxDepartures, equivs);
+	}
+
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		return delegate.queryDepartures(stationId, time, maxDepartures, equivs, sink);
+	}
+
+	/**
+	 * Runs the batch through {@link #queryDepartures(String, Date, int, boolean)} of this provider, so that its
+	 * decoration applies to each station.
+	 */
+	public void queryDeparturesBatch(final Collection<String> stationIds, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DeparturesListener listener) throws IOException
+	{
+		departuresBatch.query(stationIds, time, maxDepartures, equivs, listener);
+	}
+
+	public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
+	{
+		return delegate.suggestLocations(constraint);
+	}
+
+	public Set<Product> defaultProducts()
+	{
+		return delegate.defaultProducts();
+	}
+
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options) throws IOException
+	{
+		return delegate.queryTrips(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options);
+	}
+
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return delegate.queryTrips(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options, sink);
+	}
+
+	public QueryTripsResult queryMoreTrips(final QueryTripsContext context, final boolean later) throws IOException
+	{
+		return delegate.queryMoreTrips(context, later);
+	}
+
+	public String encodeQueryTripsContext(final QueryTripsContext context)
+	{
+		return delegate.encodeQueryTripsContext(context);
+	}
+
+	public QueryTripsContext decodeQueryTripsContext(final String token)
+	{
+		return delegate.decodeQueryTripsContext(token);
+	}
+
+	public Style lineStyle(final @Nullable String network, final @Nullable Product product, final @Nullable String label)
+	{
+		return delegate.lineStyle(network, product, label);
+	}
+
+	public Point[] getArea() throws IOException
+	{
+		return delegate.getArea();
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.util.Deadline;
+
+/**
+ * Hedges idempotent queries against the latency tail of the upstream. If a query has not answered within a percentile
+ * of the recent latencies of the same method, an identical query is sent and whichever answers first wins; the other
+ * is cancelled. Failures do not trigger a hedge, and a failed attempt only counts once the other one has failed as
+ * well.
+ *
+ * Hedges are paid from a {@link Budget}, which is shared by all providers by default, so that hedging adds at most a
+ * fixed fraction of load. In an outage, when every query is slow, the budget runs dry instead of doubling the load.
+ *
+ * Attempts run within the {@link Deadline} of the call. The losing attempt is cancelled along with its connection.
+ *
+ * Only location suggestions, nearby locations and departures are hedged. Queries reporting to a sink are not, as both
+ * attempts would feed the sink.
+ */
+public class HedgingNetworkProvider extends ForwardingNetworkProvider
+{
+	public static final double DEFAULT_PERCENTILE = 95;
+
+	private static final int WINDOW_SIZE = 200;
+	private static final int MIN_SAMPLES = 20;
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+			.setNameFormat("hedged-query-%d").build());
+
+	/**
+	 * Allows one hedge per {@code 1 / ratio} queries, saved up to a maximum for bursts of slow queries.
+	 */
+	public static final class Budget
+	{
+		public static final Budget GLOBAL = new Budget(0.05, 10);
+
+		private final double ratio;
+		private final double maxBalance;
+		private double balance = 0;
+
+		public Budget(final double ratio, final double maxBalance)
+		{
+			checkArgument(ratio > 0 && ratio <= 1, "ratio out of range: %s", ratio);
+			checkArgument(maxBalance >= 1, "maxBalance must allow for a hedge: %s", maxBalance);
+			this.ratio = ratio;
+			this.maxBalance = maxBalance;
+		}
+
+		private synchronized void deposit()
+		{
+			balance = Math.min(balance + ratio, maxBalance);
+		}
+
+		private synchronized boolean withdraw()
+		{
+			if (balance < 1)
+				return false;
+			balance -= 1;
+			return true;
+		}
+	}
+
+	/**
+	 * Latencies of the most recently completed attempts of one method, in nanoseconds.
+	 */
+	private static final class Latencies
+	{
+		private final long[] window = new long[WINDOW_SIZE];
+		private int size = 0;
+		private int next = 0;
+
+		private synchronized void record(final long nanos)
+		{
+			window[next] = nanos;
+			next = (next + 1) % window.length;
+			size = Math.min(size + 1, window.length);
+		}
+
+		/**
+		 * @return latency at the given percentile, or {@code -1} if there are too few samples to tell
+		 */
+		private synchronized long percentile(final double percentile)
+		{
+			if (size < MIN_SAMPLES)
+				return -1;
+
+			final long[] sorted = new long[size];
+			System.arraycopy(window, 0, sorted, 0, size);
+			Arrays.sort(sorted);
+			final int rank = (int) Math.ceil(percentile / 100 * size);
+			return sorted[Math.max(Math.min(rank, size), 1) - 1];
+		}
+	}
+
+	private final double percentile;
+	private final Budget budget;
+	private final Latencies suggestLocationsLatencies = new Latencies();
+	private final Latencies nearbyLocationsLatencies = new Latencies();
+	private final Latencies departuresLatencies = new Latencies();
+
+	public HedgingNetworkProvider(final NetworkProvider delegate)
+	{
+		this(delegate, DEFAULT_PERCENTILE, Budget.GLOBAL);
+	}
+
+	/**
+	 * @param percentile
+	 *            percentile of recent latencies after which a query is hedged, between 0 and 100
+	 */
+	public HedgingNetworkProvider(final NetworkProvider delegate, final double percentile, final Budget budget)
+	{
+		super(delegate);
+		checkArgument(percentile > 0 && percentile <= 100, "percentile out of range: %s", percentile);
+		this.percentile = percentile;
+		this.budget = checkNotNull(budget);
+	}
+
+	@Override
+	public NearbyLocationsResult queryNearbyLocations(final EnumSet<LocationType> types, final Location location, final int maxDistance,
+			final int maxLocations) throws IOException
+	{
+		return hedge(nearbyLocationsLatencies, new Callable<NearbyLocationsResult>()
+		{
+			public NearbyLocationsResult call() throws IOException
+			{
+				return delegate.queryNearbyLocations(types, location, maxDistance, maxLocations);
+			}
+		});
+	}
+
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures, final boolean equivs)
+			throws IOException
+	{
+		return hedge(departuresLatencies, new Callable<QueryDeparturesResult>()
+		{
+			public QueryDeparturesResult call() throws IOException
+			{
+				return delegate.queryDepartures(stationId, time, maxDepartures, equivs);
+			}
+		});
+	}
+
+	@Override
+	public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
+	{
+		return hedge(suggestLocationsLatencies, new Callable<SuggestLocationsResult>()
+		{
+			public SuggestLocationsResult call() throws IOException
+			{
+				return delegate.suggestLocations(constraint);
+			}
+		});
+	}
+
+	private <T> T hedge(final Latencies latencies, final Callable<T> query) throws IOException
+	{
+		final long delay = latencies.percentile(percentile);
+		budget.deposit();
+
+		final CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+		final Deadline deadline = Deadline.current();
+		final List<Attempt<T>> attempts = new ArrayList<Attempt<T>>(2);
+		final List<Future<T>> futures = new ArrayList<Future<T>>(2);
+		try
+		{
+			attempts.add(new Attempt<T>(latencies, query, deadline));
+			futures.add(completion.submit(attempts.get(0)));
+			Future<T> done = delay >= 0 ? completion.poll(delay, TimeUnit.NANOSECONDS) : completion.take();
+			if (done == null)
+			{
+				if (budget.withdraw())
+				{
+					attempts.add(new Attempt<T>(latencies, query, deadline));
+					futures.add(completion.submit(attempts.get(1)));
+				}
+				done = completion.take();
+			}
+
+			ExecutionException failure = null;
+			for (int pending = attempts.size();;)
+			{
+				try
+				{
+					return done.get();
+				}
+				catch (final ExecutionException x)
+				{
+					if (failure == null)
+						failure = x;
+				}
+
+				if (--pending == 0)
+					throw rethrow(failure.getCause());
+				done = completion.take();
+			}
+		}
+		catch (final InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for " + attempts.size() + " attempts");
+		}
+		finally
+		{
+			for (final Future<T> future : futures)
+				future.cancel(true);
+			for (final Attempt<T> attempt : attempts)
+				attempt.cancel();
+		}
+	}
+
+	/**
+	 * One attempt of a query. It runs within the deadline of the call, if any, and under a deadline of its own, so
+	 * that cancelling the attempt closes its connection.
+	 */
+	private final class Attempt<T> implements Callable<T>
+	{
+		private final Latencies latencies;
+		private final Callable<T> query;
+		private final Deadline callDeadline;
+		private Deadline deadline = null;
+		private boolean cancelled = false;
+
+		private Attempt(final Latencies latencies, final Callable<T> query, final Deadline callDeadline)
+		{
+			this.latencies = latencies;
+			this.query = query;
+			this.callDeadline = callDeadline;
+		}
+
+		public T call() throws Exception
+		{
+			final Deadline previous = Deadline.bind(callDeadline);
+			final Deadline attemptDeadline = Deadline.begin();
+			try
+			{
+				synchronized (this)
+				{
+					deadline = attemptDeadline;
+					if (cancelled)
+						attemptDeadline.cancel();
+				}
+
+				final long start = nanoTime();
+				final T result = query.call();
+				latencies.record(nanoTime() - start);
+				return result;
+			}
+			finally
+			{
+				attemptDeadline.end();
+				Deadline.bind(previous);
+			}
+		}
+
+		private synchronized void cancel()
+		{
+			cancelled = true;
+			if (deadline != null)
+				deadline.cancel();
+		}
+	}
+
+	protected long nanoTime()
+	{
+		return System.nanoTime();
+	}
+
+	private static IOException rethrow(final Throwable cause) throws IOException
+	{
+		if (cause instanceof IOException)
+			throw (IOException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		throw new RuntimeException(cause);
+	}
+}
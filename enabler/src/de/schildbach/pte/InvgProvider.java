@@ -53,6 +53,7 @@ import de.schildbach.pte.dto.ResultHeader;
 import de.schildbach.pte.dto.StationDepartures;
 import de.schildbach.pte.dto.Style;
 import de.schildbach.pte.util.ParserUtils;
+import de.schildbach.pte.util.SinkUtils;
 
 /**
  * @author Andreas Schildbach
@@ -302,6 +303,13 @@ public class InvgProvider extends AbstractHafasProvider
 		}
 	}
 
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		return SinkUtils.feedDepartures(queryDepartures(stationId, time, maxDepartures, equivs), sink);
+	}
+
 	@Override
 	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
 			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
@@ -310,6 +318,14 @@ public class InvgProvider extends AbstractHafasProvider
 		return queryTripsXml(from, via, to, date, dep, products, walkSpeed, accessibility, options);
 	}
 
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return queryTripsXml(from, via, to, date, dep, products, walkSpeed, accessibility, options, sink);
+	}
+
 	@Override
 	public QueryTripsResult queryMoreTrips(final QueryTripsContext context, final boolean later) throws IOException
 	{
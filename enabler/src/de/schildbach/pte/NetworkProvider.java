@@ -18,12 +18,14 @@
 package de.schildbach.pte;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.Set;
 
 import android.support.annotation.Nullable;
 
+import de.schildbach.pte.dto.Departure;
 import de.schildbach.pte.dto.Location;
 import de.schildbach.pte.dto.LocationType;
 import de.schildbach.pte.dto.NearbyLocationsResult;
@@ -34,6 +36,7 @@ import de.schildbach.pte.dto.QueryTripsContext;
 import de.schildbach.pte.dto.QueryTripsResult;
 import de.schildbach.pte.dto.Style;
 import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.dto.Trip;
 
 /**
  * Interface to be implemented by providers of transportation networks.
@@ -71,7 +74,41 @@ public interface NetworkProvider
 
 	public enum Option
 	{
-		BIKE
+		/* take a bike along */
+		BIKE,
+		/* omit paths and intermediate stops of legs, e.g. for list views */
+		LIGHTWEIGHT,
+		/* decode legs of trips only when they are accessed, where supported */
+		LAZY_LEGS
+	}
+
+	public interface DeparturesListener
+	{
+		void onDepartures(String stationId, QueryDeparturesResult result);
+
+		void onFailure(String stationId, Exception exception);
+	}
+
+	/**
+	 * Receives departures one by one, while the response is still being parsed.
+	 */
+	public interface DepartureSink
+	{
+		/**
+		 * @return {@code true} for more departures, {@code false} to stop parsing and close the connection
+		 */
+		boolean departure(Location station, Departure departure);
+	}
+
+	/**
+	 * Receives trips one by one, while the response is still being parsed.
+	 */
+	public interface TripSink
+	{
+		/**
+		 * @return {@code true} for more trips, {@code false} to stop parsing and close the connection
+		 */
+		boolean trip(Trip trip);
 	}
 
 	NetworkId id();
@@ -111,6 +148,38 @@ public interface NetworkProvider
 	 */
 	QueryDeparturesResult queryDepartures(String stationId, @Nullable Date time, int maxDepartures, boolean equivs) throws IOException;
 
+	/**
+	 * Get departures at a given station, handing each one to a sink as soon as it is parsed. Departures arrive in the
+	 * order of the response, which is not necessarily sorted by time. Once the sink does not want more, the rest of the
+	 * response is skipped, so that few departures can be had without the cost of all.
+	 * 
+	 * @param sink
+	 *            receives the departures, on the calling thread
+	 * @return result object containing the departures parsed until the sink stopped
+	 * @throws IOException
+	 * @see #queryDepartures(String, Date, int, boolean)
+	 */
+	QueryDeparturesResult queryDepartures(String stationId, @Nullable Date time, int maxDepartures, boolean equivs, DepartureSink sink)
+			throws IOException;
+
+	/**
+	 * Get departures at many stations. Queries run in parallel, and each result is reported as soon as it is known.
+	 * 
+	 * @param stationIds
+	 *            ids of the stations
+	 * @param time
+	 *            desired time for departing, or {@code null} for the provider default
+	 * @param maxDepartures
+	 *            maximum number of departures to get per station or {@code 0}
+	 * @param equivs
+	 *            also query equivalent stations?
+	 * @param listener
+	 *            receives the result or failure of each station, on the calling thread
+	 * @throws IOException
+	 */
+	void queryDeparturesBatch(Collection<String> stationIds, @Nullable Date time, int maxDepartures, boolean equivs, DeparturesListener listener)
+			throws IOException;
+
 	/**
 	 * Meant for auto-completion of location names, like in an {@link android.widget.AutoCompleteTextView}
 	 * 
@@ -158,6 +227,20 @@ public interface NetworkProvider
 			@Nullable Optimize optimize, @Nullable WalkSpeed walkSpeed, @Nullable Accessibility accessibility, @Nullable Set<Option> options)
 			throws IOException;
 
+	/**
+	 * Query trips, handing each one to a sink as soon as it is parsed. Once the sink does not want more, the rest of
+	 * the response is skipped.
+	 * 
+	 * @param sink
+	 *            receives the trips, on the calling thread
+	 * @return result object containing the trips parsed until the sink stopped, and a context for querying more
+	 * @throws IOException
+	 * @see #queryTrips(Location, Location, Location, Date, boolean, Set, Optimize, WalkSpeed, Accessibility, Set)
+	 */
+	QueryTripsResult queryTrips(Location from, @Nullable Location via, Location to, Date date, boolean dep, @Nullable Set<Product> products,
+			@Nullable Optimize optimize, @Nullable WalkSpeed walkSpeed, @Nullable Accessibility accessibility, @Nullable Set<Option> options,
+			TripSink sink) throws IOException;
+
 	/**
 	 * Query more trips (e.g. earlier or later)
 	 * 
@@ -170,6 +253,28 @@ public interface NetworkProvider
 	 */
 	QueryTripsResult queryMoreTrips(QueryTripsContext context, boolean later) throws IOException;
 
+	/**
+	 * Encode a context as an opaque, URL-safe token, so that more trips can be queried without keeping the context
+	 * around, e.g. by another instance of the same provider.
+	 * 
+	 * @param context
+	 *            context of a result of this provider
+	 * @return token
+	 */
+	String encodeQueryTripsContext(QueryTripsContext context);
+
+	/**
+	 * Decode a token made by {@link #encodeQueryTripsContext(QueryTripsContext)}. Tokens are not authenticated; whoever
+	 * hands them to untrusted parties should sign them.
+	 * 
+	 * @param token
+	 *            token made by a provider of the same network
+	 * @return context to query more trips from
+	 * @throws IllegalArgumentException
+	 *             if the token is malformed, outdated or made for another network
+	 */
+	QueryTripsContext decodeQueryTripsContext(String token);
+
 	/**
 	 * Get style of line
 	 * 
@@ -34,13 +34,13 @@ public class NsProvider extends AbstractHafasProvider
 {
 	private static final String API_BASE = "http://hafas.bene-system.com/bin/";
 
-	private static final Pattern HTML_NEARBY_STATIONS_PATTERN = Pattern.compile("<tr bgcolor=\"#(E7EEF9|99BAE4)\">(.*?)</tr>", Pattern.DOTALL);
+	private static final Pattern HTML_NEARBY_STATIONS_ROW = Pattern.compile("#(E7EEF9|99BAE4)");
 
 	public NsProvider()
 	{
 		super(NetworkId.NS, API_BASE + "stboard.exe/nn", API_BASE + "ajax-getstop.exe/nny", API_BASE + "query.exe/nn", 10);
 
-		setHtmlNearbyStationsPattern(HTML_NEARBY_STATIONS_PATTERN);
+		setHtmlNearbyStationsRow("bgcolor", HTML_NEARBY_STATIONS_ROW);
 		setStationBoardHasLocation(true);
 	}
 
@@ -109,6 +109,14 @@ public class NvbwProvider extends AbstractEfaProvider
 		return queryTripsMobile(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options);
 	}
 
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return queryTripsMobile(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options, sink);
+	}
+
 	@Override
 	public QueryTripsResult queryMoreTrips(final QueryTripsContext contextObj, final boolean later) throws IOException
 	{
@@ -20,6 +20,8 @@ package de.schildbach.pte;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
@@ -34,6 +36,7 @@ import java.util.regex.Pattern;
 
 import android.support.annotation.Nullable;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 
 import de.schildbach.pte.dto.Departure;
@@ -49,7 +52,11 @@ import de.schildbach.pte.dto.QueryTripsContext;
 import de.schildbach.pte.dto.QueryTripsResult;
 import de.schildbach.pte.dto.ResultHeader;
 import de.schildbach.pte.dto.StationDepartures;
+import de.schildbach.pte.util.HtmlTokenizer;
+import de.schildbach.pte.util.HtmlTokenizer.Element;
+import de.schildbach.pte.util.HtmlTokenizer.Token;
 import de.schildbach.pte.util.ParserUtils;
+import de.schildbach.pte.util.SinkUtils;
 
 /**
  * @author Andreas Schildbach
@@ -135,31 +142,10 @@ public class SeptaProvider extends AbstractHafasProvider
 		uri.append(ParserUtils.urlEncode(String.format(Locale.ENGLISH, "%02d:%02d %s", hour, minute, amPm)));
 	}
 
-	private static final Pattern P_DEPARTURES_PAGE_COARSE = Pattern
-			.compile(
-					".*?" //
-							+ "(?:" //
-							+ "<div class=\"hfsTitleText\">([^<]*)<.*?" // location
-							+ "\n(\\d{2}/\\d{2}/\\d{4})[^\n]*\n" // date
-							+ "Departure (\\d{1,2}:\\d{2} [AP]M)\n.*?" // time
-							+ "(?:<table class=\"resultTable\"[^>]*>(.+?)</table>|(No trains in this space of time))" //
-							+ "|(input cannot be interpreted)|(Verbindung zum Server konnte leider nicht hergestellt werden|kann vom Server derzeit leider nicht bearbeitet werden))" //
-							+ ".*?" //
-					, Pattern.DOTALL);
-	private static final Pattern P_DEPARTURES_COARSE = Pattern.compile("<tr class=\"(depboard-\\w*)\">(.*?)</tr>", Pattern.DOTALL);
-	private static final Pattern P_DEPARTURES_FINE = Pattern.compile(".*?" //
-			+ "<td class=\"time\">(\\d{1,2}:\\d{2} [AP]M)</td>\n" // plannedTime
-			+ "(?:<td class=\"[\\w ]*prognosis[\\w ]*\">\n" //
-			+ "(?:&nbsp;|<span class=\"rtLimit\\d\">(p&#252;nktlich|\\d{1,2}:\\d{2})</span>)\n</td>\n" // predictedTime
-			+ ")?.*?" //
-			+ "<img class=\"product\" src=\"/hafas-res/img/products/(\\w+)_pic\\.gif\" width=\"\\d+\" height=\"\\d+\" alt=\"([^\"]*)\".*?" // type,
-			// line
-			+ "<strong>\n" //
-			+ "<a href=\"http://airs1\\.septa\\.org/bin/stboard\\.exe/en\\?input=(\\d+)&[^>]*>" // destinationId
-			+ "\\s*(.*?)\\s*</a>\n" // destination
-			+ "</strong>.*?" //
-			+ "(?:<td class=\"center sepline top\">\n(" + ParserUtils.P_PLATFORM + ").*?)?" // position
-	, Pattern.DOTALL);
+	private static final Pattern P_DEPARTURES_DATE = Pattern.compile("(\\d{2}/\\d{2}/\\d{4})");
+	private static final Pattern P_DEPARTURES_TIME = Pattern.compile("Departure (\\d{1,2}:\\d{2} [AP]M)");
+	private static final Pattern P_DEPARTURES_PRODUCT = Pattern.compile("/hafas-res/img/products/(\\w+)_pic\\.gif");
+	private static final Pattern P_DEPARTURES_DESTINATION_ID = Pattern.compile("[\\?&]input=(\\d+)");
 
 	@Override
 	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures, final boolean equivs)
@@ -170,114 +156,196 @@ public class SeptaProvider extends AbstractHafasProvider
 		final ResultHeader header = new ResultHeader(network, SERVER_PRODUCT);
 		final QueryDeparturesResult result = new QueryDeparturesResult(header);
 
-		// scrape page
 		final StringBuilder uri = new StringBuilder(stationBoardEndpoint);
 		appendXmlStationBoardParameters(uri, time, stationId, maxDepartures, false, null);
-		final CharSequence page = ParserUtils.scrape(uri.toString());
 
-		// parse page
-		final Matcher mPageCoarse = P_DEPARTURES_PAGE_COARSE.matcher(page);
-		if (mPageCoarse.matches())
-		{
-			// messages
-			if (mPageCoarse.group(5) != null)
-			{
-				result.stationDepartures.add(new StationDepartures(new Location(LocationType.STATION, stationId),
-						Collections.<Departure> emptyList(), null));
-				return result;
-			}
-			else if (mPageCoarse.group(6) != null)
-				return new QueryDeparturesResult(header, Status.INVALID_STATION);
-			else if (mPageCoarse.group(7) != null)
-				return new QueryDeparturesResult(header, Status.SERVICE_DOWN);
-
-			final String[] placeAndName = splitStationName(ParserUtils.resolveEntities(mPageCoarse.group(1)));
-			final Calendar currentTime = new GregorianCalendar(timeZone);
-			currentTime.clear();
-			ParserUtils.parseAmericanDate(currentTime, mPageCoarse.group(2));
-			ParserUtils.parseAmericanTime(currentTime, mPageCoarse.group(3));
-
-			final List<Departure> departures = new ArrayList<Departure>(8);
-			String oldZebra = null;
-
-			final Matcher mDepCoarse = P_DEPARTURES_COARSE.matcher(mPageCoarse.group(4));
-			while (mDepCoarse.find())
-			{
-				final String zebra = mDepCoarse.group(1);
-				if (oldZebra != null && zebra.equals(oldZebra))
-					throw new IllegalArgumentException("missed row? last:" + zebra);
-				else
-					oldZebra = zebra;
+		Reader reader = null;
 
-				final Matcher mDepFine = P_DEPARTURES_FINE.matcher(mDepCoarse.group(2));
-				if (mDepFine.matches())
-				{
-					final Calendar plannedTime = new GregorianCalendar(timeZone);
-					plannedTime.setTimeInMillis(currentTime.getTimeInMillis());
-					ParserUtils.parseAmericanTime(plannedTime, mDepFine.group(1));
+		try
+		{
+			reader = new InputStreamReader(ParserUtils.scrapeInputStream(uri.toString()), Charsets.ISO_8859_1);
+			final HtmlTokenizer html = new HtmlTokenizer(reader);
 
-					if (plannedTime.getTimeInMillis() - currentTime.getTimeInMillis() < -PARSER_DAY_ROLLOVER_THRESHOLD_MS)
-						plannedTime.add(Calendar.DAY_OF_MONTH, 1);
+			String location = null;
+			String date = null;
+			String departureTime = null;
 
-					final Calendar predictedTime;
-					final String prognosis = ParserUtils.resolveEntities(mDepFine.group(2));
-					if (prognosis != null)
+			while (true)
+			{
+				final Token token = html.next();
+				if (token == Token.END_DOCUMENT)
+				{
+					throw new IllegalArgumentException("cannot parse page on " + stationId);
+				}
+				else if (token == Token.TEXT)
+				{
+					// messages
+					final String text = html.getText();
+					if (text.contains("No trains in this space of time"))
 					{
-						predictedTime = new GregorianCalendar(timeZone);
-						if (prognosis.equals("pünktlich"))
-						{
-							predictedTime.setTimeInMillis(plannedTime.getTimeInMillis());
-						}
-						else
-						{
-							predictedTime.setTimeInMillis(currentTime.getTimeInMillis());
-							ParserUtils.parseAmericanTime(predictedTime, prognosis);
-						}
+						result.stationDepartures.add(new StationDepartures(new Location(LocationType.STATION, stationId),
+								Collections.<Departure> emptyList(), null));
+						return result;
 					}
-					else
+					else if (text.contains("input cannot be interpreted"))
 					{
-						predictedTime = null;
+						return new QueryDeparturesResult(header, Status.INVALID_STATION);
 					}
-
-					final String lineType = mDepFine.group(3);
-
-					final Line line = parseLine(lineType, ParserUtils.resolveEntities(mDepFine.group(4)), false);
-
-					final String destinationId = mDepFine.group(5);
-					final String destinationName = ParserUtils.resolveEntities(mDepFine.group(6));
-					final Location destination;
-					if (destinationId != null)
+					else if (text.contains("Verbindung zum Server konnte leider nicht hergestellt werden")
+							|| text.contains("kann vom Server derzeit leider nicht bearbeitet werden"))
 					{
-						final String[] destinationPlaceAndName = splitStationName(destinationName);
-						destination = new Location(LocationType.STATION, destinationId, destinationPlaceAndName[0], destinationPlaceAndName[1]);
+						return new QueryDeparturesResult(header, Status.SERVICE_DOWN);
 					}
-					else
+
+					if (location != null)
 					{
-						destination = new Location(LocationType.ANY, null, null, destinationName);
+						final Matcher mDate = P_DEPARTURES_DATE.matcher(text);
+						if (date == null && mDate.find())
+							date = mDate.group(1);
+						final Matcher mTime = P_DEPARTURES_TIME.matcher(text);
+						if (departureTime == null && mTime.find())
+							departureTime = mTime.group(1);
 					}
+				}
+				else if (token == Token.START_TAG && "div".equals(html.getName()) && "hfsTitleText".equals(html.getAttribute("class")))
+				{
+					location = html.readElement().text();
+				}
+				else if (token == Token.START_TAG && "table".equals(html.getName()) && "resultTable".equals(html.getAttribute("class")))
+				{
+					if (location == null || date == null || departureTime == null)
+						throw new IllegalArgumentException("cannot parse header on " + stationId);
+
+					final String[] placeAndName = splitStationName(location);
+					final Calendar currentTime = new GregorianCalendar(timeZone);
+					currentTime.clear();
+					ParserUtils.parseAmericanDate(currentTime, date);
+					ParserUtils.parseAmericanTime(currentTime, departureTime);
 
-					final Position position = parsePosition(ParserUtils.resolveEntities(mDepFine.group(7)));
+					final List<Departure> departures = parseDepartures(html, currentTime, stationId);
 
-					final Departure dep = new Departure(plannedTime.getTime(), predictedTime != null ? predictedTime.getTime() : null, line,
-							position, destination, null, null);
+					result.stationDepartures.add(new StationDepartures(new Location(LocationType.STATION, stationId, placeAndName[0],
+							placeAndName[1]), departures, null));
+					return result;
+				}
+			}
+		}
+		finally
+		{
+			if (reader != null)
+				reader.close();
+		}
+	}
 
-					if (!departures.contains(dep))
-						departures.add(dep);
+	private List<Departure> parseDepartures(final HtmlTokenizer html, final Calendar currentTime, final String stationId) throws IOException
+	{
+		final List<Departure> departures = new ArrayList<Departure>(8);
+		String oldZebra = null;
+
+		Element row;
+		while ((row = html.nextRow()) != null)
+		{
+			final String zebra = row.attribute("class");
+			if (zebra == null || !zebra.startsWith("depboard-"))
+				continue;
+
+			if (oldZebra != null && zebra.equals(oldZebra))
+				throw new IllegalArgumentException("missed row? last:" + zebra);
+			else
+				oldZebra = zebra;
+
+			Element timeCell = null;
+			Element prognosisCell = null;
+			Element positionCell = null;
+			for (final Element cell : row.cells())
+			{
+				if (cell.hasClass("time"))
+					timeCell = cell;
+				else if (cell.hasClass("prognosis"))
+					prognosisCell = cell;
+				else if (cell.hasClass("top"))
+					positionCell = cell;
+			}
+
+			Matcher mProduct = null;
+			String lineLabel = null;
+			for (final Element image : row.all("img"))
+			{
+				final String src = image.attribute("src");
+				if (image.hasClass("product") && src != null)
+				{
+					mProduct = P_DEPARTURES_PRODUCT.matcher(src);
+					lineLabel = image.attribute("alt");
+					break;
+				}
+			}
+
+			final Element strong = row.first("strong");
+			final Element destinationLink = strong != null ? strong.first("a") : null;
+
+			if (timeCell == null || mProduct == null || !mProduct.find() || lineLabel == null || destinationLink == null)
+				throw new IllegalArgumentException("cannot parse '" + row + "' on " + stationId);
+
+			final Calendar plannedTime = new GregorianCalendar(timeZone);
+			plannedTime.setTimeInMillis(currentTime.getTimeInMillis());
+			ParserUtils.parseAmericanTime(plannedTime, timeCell.text());
+
+			if (plannedTime.getTimeInMillis() - currentTime.getTimeInMillis() < -PARSER_DAY_ROLLOVER_THRESHOLD_MS)
+				plannedTime.add(Calendar.DAY_OF_MONTH, 1);
+
+			final Calendar predictedTime;
+			final String prognosis = prognosisCell != null ? Strings.emptyToNull(prognosisCell.text()) : null;
+			if (prognosis != null)
+			{
+				predictedTime = new GregorianCalendar(timeZone);
+				if (prognosis.equals("pünktlich"))
+				{
+					predictedTime.setTimeInMillis(plannedTime.getTimeInMillis());
 				}
 				else
 				{
-					throw new IllegalArgumentException("cannot parse '" + mDepCoarse.group(2) + "' on " + stationId);
+					predictedTime.setTimeInMillis(currentTime.getTimeInMillis());
+					ParserUtils.parseAmericanTime(predictedTime, prognosis);
 				}
 			}
+			else
+			{
+				predictedTime = null;
+			}
 
-			result.stationDepartures.add(new StationDepartures(new Location(LocationType.STATION, stationId, placeAndName[0], placeAndName[1]),
-					departures, null));
-			return result;
-		}
-		else
-		{
-			throw new IllegalArgumentException("cannot parse '" + page + "' on " + stationId);
+			final Line line = parseLine(mProduct.group(1), lineLabel, false);
+
+			final String destinationHref = destinationLink.attribute("href");
+			final Matcher mDestinationId = destinationHref != null ? P_DEPARTURES_DESTINATION_ID.matcher(destinationHref) : null;
+			final String destinationName = destinationLink.text();
+			final Location destination;
+			if (mDestinationId != null && mDestinationId.find())
+			{
+				final String[] destinationPlaceAndName = splitStationName(destinationName);
+				destination = new Location(LocationType.STATION, mDestinationId.group(1), destinationPlaceAndName[0], destinationPlaceAndName[1]);
+			}
+			else
+			{
+				destination = new Location(LocationType.ANY, null, null, destinationName);
+			}
+
+			final Position position = positionCell != null ? parsePosition(Strings.emptyToNull(positionCell.text())) : null;
+
+			final Departure dep = new Departure(plannedTime.getTime(), predictedTime != null ? predictedTime.getTime() : null, line, position,
+					destination, null, null);
+
+			if (!departures.contains(dep))
+				departures.add(dep);
 		}
+
+		return departures;
+	}
+
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		return SinkUtils.feedDepartures(queryDepartures(stationId, time, maxDepartures, equivs), sink);
 	}
 
 	@Override
@@ -288,6 +356,14 @@ public class SeptaProvider extends AbstractHafasProvider
 		return queryTripsXml(from, via, to, date, dep, products, walkSpeed, accessibility, options);
 	}
 
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return queryTripsXml(from, via, to, date, dep, products, walkSpeed, accessibility, options, sink);
+	}
+
 	@Override
 	public QueryTripsResult queryMoreTrips(final QueryTripsContext context, final boolean later) throws IOException
 	{
@@ -71,7 +71,10 @@ import de.schildbach.pte.dto.SuggestLocationsResult;
 import de.schildbach.pte.dto.SuggestedLocation;
 import de.schildbach.pte.dto.Trip;
 import de.schildbach.pte.dto.Trip.Leg;
+import de.schildbach.pte.util.CoordinateScanner;
 import de.schildbach.pte.util.ParserUtils;
+import de.schildbach.pte.util.TokenReader;
+import de.schildbach.pte.util.TokenWriter;
 
 /**
  * @author Michael Dyrna
@@ -443,6 +446,19 @@ public class VrsProvider extends AbstractNetworkProvider
 	// filter is supported, but LongDistanceTrains filter seems to be ignored.
 	// TODO equivs not supported; JSON result would support multiple timetables
 	public QueryDeparturesResult queryDepartures(final String stationId, @Nullable Date time, int maxDepartures, boolean equivs) throws IOException
+	{
+		return timetableRequest(stationId, time, maxDepartures, null);
+	}
+
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		return timetableRequest(stationId, time, maxDepartures, checkNotNull(sink));
+	}
+
+	private QueryDeparturesResult timetableRequest(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final @Nullable DepartureSink sink) throws IOException
 	{
 		checkNotNull(Strings.emptyToNull(stationId));
 
@@ -525,6 +541,13 @@ public class VrsProvider extends AbstractNetworkProvider
 					}
 					final Departure d = new Departure(plannedTime, predictedTime, line, position, destination, null, null);
 					departures.add(d);
+
+					// neither the remaining departures nor the lines of the station are queried
+					if (sink != null && !sink.departure(location, d))
+					{
+						result.stationDepartures.add(new StationDepartures(location, departures, lines));
+						return result;
+					}
 				}
 
 				queryLinesForStation(location.id, lines);
@@ -696,6 +719,20 @@ public class VrsProvider extends AbstractNetworkProvider
 	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, Date date, boolean dep,
 			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
 			final @Nullable Accessibility accessibility, @Nullable Set<Option> options) throws IOException
+	{
+		return routerRequest(from, via, to, date, dep, products, null);
+	}
+
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		return routerRequest(from, via, to, date, dep, products, checkNotNull(sink));
+	}
+
+	private QueryTripsResult routerRequest(final Location from, final @Nullable Location via, final Location to, final Date date,
+			final boolean dep, final @Nullable Set<Product> products, final @Nullable TripSink sink) throws IOException
 	{
 		// The EXACT_POINTS feature generates an about 50% bigger API response, probably well compressible.
 		final boolean EXACT_POINTS = true;
@@ -946,7 +983,12 @@ public class VrsProvider extends AbstractNetworkProvider
 				int changes = route.getInt("changes");
 				List<Fare> fares = parseFare(route.optJSONObject("costs"));
 
-				trips.add(new Trip(null /* id */, tripOrigin, tripDestination, legs, fares, null /* capacity */, changes));
+				final Trip trip = new Trip(null /* id */, tripOrigin, tripDestination, legs, fares, null /* capacity */, changes);
+				trips.add(trip);
+
+				// the remaining routes are not parsed
+				if (sink != null && !sink.trip(trip))
+					break;
 			}
 			long serverTime = parseDateTime(head.getString("generated")).getTime();
 			final ResultHeader header = new ResultHeader(NetworkId.VRS, SERVER_PRODUCT, null, serverTime, null);
@@ -954,7 +996,7 @@ public class VrsProvider extends AbstractNetworkProvider
 			context.to = to;
 			context.via = via;
 			context.products = products;
-			if (trips.size() == 1)
+			if (routes.length() == 1)
 			{
 				if (dep)
 					context.disableLater();
@@ -1005,17 +1047,45 @@ public class VrsProvider extends AbstractNetworkProvider
 	protected static void parsePolygon(final String polygonStr, final List<Point> polygonArr)
 	{
 		if (polygonStr != null && !polygonStr.isEmpty())
+			CoordinateScanner.addPoints(CoordinateScanner.scan(polygonStr, CoordinateScanner.DEGREES), false, polygonArr);
+	}
+
+	@Override
+	protected void writeQueryTripsContext(final QueryTripsContext context, final TokenWriter writer)
+	{
+		if (context instanceof Context)
+		{
+			final Context c = (Context) context;
+			writer.writeBoolean(c.canQueryLater);
+			writer.writeBoolean(c.canQueryEarlier);
+			writer.writeDate(c.lastDeparture);
+			writer.writeDate(c.firstArrival);
+			writer.writeLocation(c.from);
+			writer.writeLocation(c.via);
+			writer.writeLocation(c.to);
+			writer.writeProducts(c.products);
+		}
+		else
 		{
-			String pointsArr[] = polygonStr.split("\\s");
-			for (String point : pointsArr)
-			{
-				String latlon[] = point.split(",");
-				polygonArr
-						.add(new Point((int) Math.round(Double.parseDouble(latlon[0]) * 1E6), (int) Math.round(Double.parseDouble(latlon[1]) * 1E6)));
-			}
+			super.writeQueryTripsContext(context, writer);
 		}
 	}
 
+	@Override
+	protected QueryTripsContext readQueryTripsContext(final TokenReader reader)
+	{
+		final Context context = new Context();
+		context.canQueryLater = reader.readBoolean();
+		context.canQueryEarlier = reader.readBoolean();
+		context.lastDeparture = reader.readDate();
+		context.firstArrival = reader.readDate();
+		context.from = reader.readLocation();
+		context.via = reader.readLocation();
+		context.to = reader.readLocation();
+		context.products = reader.readProducts();
+		return context;
+	}
+
 	public QueryTripsResult queryMoreTrips(QueryTripsContext context, boolean later) throws IOException
 	{
 		Context ctx = (Context) context;
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.cache;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+
+import de.schildbach.pte.ForwardingNetworkProvider;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.StationDepartures;
+import de.schildbach.pte.exception.BlockedException;
+import de.schildbach.pte.util.SinkUtils;
+
+/**
+ * Caches departure boards per station. Only the widest board fetched for a station is kept; narrower or later requests
+ * are answered by slicing that board, as long as they start before its last departure. Invalid stations are cached negatively. If the upstream is down or blocks us,
+ * the last good board is served as stale while it is refreshed in the background.
+ */
+public class DeparturesCache extends ForwardingNetworkProvider
+{
+	public static final class Result
+	{
+		public final QueryDeparturesResult result;
+		public final boolean stale;
+		public final long fetchedAt;
+
+		private Result(final QueryDeparturesResult result, final boolean stale, final long fetchedAt)
+		{
+			this.result = checkNotNull(result);
+			this.stale = stale;
+			this.fetchedAt = fetchedAt;
+		}
+
+		@Override
+		public String toString()
+		{
+			return MoreObjects.toStringHelper(this).add("stale", stale).add("fetchedAt", fetchedAt).addValue(result).toString();
+		}
+	}
+
+	private static final class Entry
+	{
+		final QueryDeparturesResult board;
+		final long fetchedAt;
+		final long from;
+		final int maxDepartures;
+		final long downSince;
+		final AtomicBoolean refreshing;
+
+		Entry(final QueryDeparturesResult board, final long fetchedAt, final long from, final int maxDepartures, final long downSince,
+				final AtomicBoolean refreshing)
+		{
+			this.board = board;
+			this.fetchedAt = fetchedAt;
+			this.from = from;
+			this.maxDepartures = maxDepartures;
+			this.downSince = downSince;
+			this.refreshing = refreshing;
+		}
+
+		boolean isNegative()
+		{
+			return board.status == QueryDeparturesResult.Status.INVALID_STATION;
+		}
+
+		Entry down(final long now)
+		{
+			return new Entry(board, fetchedAt, from, maxDepartures, downSince != 0 ? downSince : now, refreshing);
+		}
+	}
+
+	private final Executor refreshExecutor;
+	private long maxAge = 30 * 1000;
+	private long maxStale = 15 * 60 * 1000;
+	private long negativeMaxAge = 60 * 60 * 1000;
+
+	private final Map<String, Entry> entries;
+
+	private static final Logger log = Logger.getLogger(DeparturesCache.class.getSimpleName());
+
+	public DeparturesCache(final NetworkProvider delegate, final Executor refreshExecutor, final int maxEntries)
+	{
+		super(delegate);
+		this.refreshExecutor = checkNotNull(refreshExecutor);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 4881834676653825761L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/** Age in milliseconds after which a board is fetched again. */
+	public void setMaxAge(final long maxAge)
+	{
+		this.maxAge = maxAge;
+	}
+
+	/** Age in milliseconds up to which a board is still served while the upstream is failing. */
+	public void setMaxStale(final long maxStale)
+	{
+		this.maxStale = maxStale;
+	}
+
+	/** Age in milliseconds up to which an invalid station is remembered. */
+	public void setNegativeMaxAge(final long negativeMaxAge)
+	{
+		this.negativeMaxAge = negativeMaxAge;
+	}
+
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures, final boolean equivs)
+			throws IOException
+	{
+		return queryDeparturesCached(stationId, time, maxDepartures, equivs).result;
+	}
+
+	/**
+	 * Hands the cached or freshly fetched board to the sink, as a board needs to be complete for caching.
+	 */
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		return SinkUtils.feedDepartures(queryDepartures(stationId, time, maxDepartures, equivs), sink);
+	}
+
+	public Result queryDeparturesCached(final String stationId, final @Nullable Date time, final int maxDepartures, final boolean equivs)
+			throws IOException
+	{
+		final String key = key(stationId, equivs);
+		final long now = currentTimeMillis();
+		final long from = time != null ? time.getTime() : now;
+		final Entry entry = get(key);
+
+		if (entry != null)
+		{
+			final long age = now - entry.fetchedAt;
+
+			if (entry.isNegative())
+			{
+				if (age < negativeMaxAge)
+					return new Result(entry.board, false, entry.fetchedAt);
+			}
+			else if (entry.downSince != 0 && age < maxStale)
+			{
+				// upstream is known to be failing, don't wait for it
+				refreshInBackground(key, stationId, equivs, entry);
+				return new Result(slice(entry.board, from, maxDepartures), true, entry.fetchedAt);
+			}
+			else if (age < maxAge && covers(entry, from, maxDepartures))
+			{
+				return new Result(slice(entry.board, from, maxDepartures), false, entry.fetchedAt);
+			}
+		}
+
+		final Entry goodEntry = entry != null && !entry.isNegative() && now - entry.fetchedAt < maxStale ? entry : null;
+		final int fetchMaxDepartures = widen(maxDepartures, goodEntry != null ? goodEntry.maxDepartures : 0);
+
+		final QueryDeparturesResult result;
+		try
+		{
+			result = delegate.queryDepartures(stationId, time, fetchMaxDepartures, equivs);
+		}
+		catch (final BlockedException x)
+		{
+			if (goodEntry == null)
+				throw x;
+
+			log.info("blocked while fetching departures for " + stationId + ", serving stale board");
+			markDown(key, stationId, equivs, goodEntry, now);
+			return new Result(slice(goodEntry.board, from, maxDepartures), true, goodEntry.fetchedAt);
+		}
+
+		if (result.status == QueryDeparturesResult.Status.SERVICE_DOWN && goodEntry != null)
+		{
+			markDown(key, stationId, equivs, goodEntry, now);
+			return new Result(slice(goodEntry.board, from, maxDepartures), true, goodEntry.fetchedAt);
+		}
+
+		if (result.status == QueryDeparturesResult.Status.OK || result.status == QueryDeparturesResult.Status.INVALID_STATION)
+			put(key, new Entry(result, now, from, fetchMaxDepartures, 0, new AtomicBoolean()));
+
+		if (result.status == QueryDeparturesResult.Status.OK && fetchMaxDepartures != maxDepartures)
+			return new Result(slice(result, from, maxDepartures), false, now);
+		else
+			return new Result(result, false, now);
+	}
+
+	public void invalidate(final String stationId)
+	{
+		synchronized (entries)
+		{
+			entries.remove(key(stationId, false));
+			entries.remove(key(stationId, true));
+		}
+	}
+
+	protected long currentTimeMillis()
+	{
+		return System.currentTimeMillis();
+	}
+
+	private void markDown(final String key, final String stationId, final boolean equivs, final Entry entry, final long now)
+	{
+		final Entry downEntry = entry.down(now);
+		put(key, downEntry);
+		refreshInBackground(key, stationId, equivs, downEntry);
+	}
+
+	private void refreshInBackground(final String key, final String stationId, final boolean equivs, final Entry entry)
+	{
+		if (!entry.refreshing.compareAndSet(false, true))
+			return;
+
+		refreshExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					final long now = currentTimeMillis();
+					final QueryDeparturesResult result = delegate.queryDepartures(stationId, null, entry.maxDepartures, equivs);
+					if (result.status == QueryDeparturesResult.Status.OK || result.status == QueryDeparturesResult.Status.INVALID_STATION)
+						put(key, new Entry(result, now, now, entry.maxDepartures, 0, new AtomicBoolean()));
+				}
+				catch (final IOException x)
+				{
+					log.log(Level.INFO, "background refresh of departures for " + stationId + " failed", x);
+				}
+				catch (final RuntimeException x)
+				{
+					log.log(Level.WARNING, "background refresh of departures for " + stationId + " failed", x);
+				}
+				finally
+				{
+					entry.refreshing.set(false);
+				}
+			}
+		});
+	}
+
+	private Entry get(final String key)
+	{
+		synchronized (entries)
+		{
+			return entries.get(key);
+		}
+	}
+
+	private void put(final String key, final Entry entry)
+	{
+		synchronized (entries)
+		{
+			entries.put(key, entry);
+		}
+	}
+
+	private static String key(final String stationId, final boolean equivs)
+	{
+		return equivs ? stationId + "+" : stationId;
+	}
+
+	private static int widen(final int maxDepartures, final int cachedMaxDepartures)
+	{
+		if (maxDepartures == 0 || cachedMaxDepartures == 0)
+			return maxDepartures;
+		return Math.max(maxDepartures, cachedMaxDepartures);
+	}
+
+	private static boolean covers(final Entry entry, final long from, final int maxDepartures)
+	{
+		if (from < entry.from)
+			return false;
+
+		if (maxDepartures == 0 && entry.maxDepartures != 0)
+			return false;
+
+		for (final StationDepartures stationDepartures : entry.board.stationDepartures)
+		{
+			// upstreams limit boards by a time window as well, so a board is complete only up to its last departure
+			if (from > lastTime(stationDepartures.departures, entry.from))
+				return false;
+
+			final int size = stationDepartures.departures.size();
+			final boolean truncated = entry.maxDepartures == 0 || size >= entry.maxDepartures;
+			if (truncated && countFrom(stationDepartures.departures, from) < maxDepartures)
+				return false;
+		}
+
+		return true;
+	}
+
+	private static long lastTime(final List<Departure> departures, final long from)
+	{
+		long last = from;
+		for (final Departure departure : departures)
+			last = Math.max(last, departure.getTime().getTime());
+		return last;
+	}
+
+	private static int countFrom(final List<Departure> departures, final long from)
+	{
+		int count = 0;
+		for (final Departure departure : departures)
+			if (departure.getTime().getTime() >= from)
+				count++;
+		return count;
+	}
+
+	static QueryDeparturesResult slice(final QueryDeparturesResult board, final long from, final int maxDepartures)
+	{
+		final QueryDeparturesResult result = new QueryDeparturesResult(board.header, board.status);
+
+		for (final StationDepartures stationDepartures : board.stationDepartures)
+		{
+			final List<Departure> departures = new ArrayList<Departure>(maxDepartures > 0 ? maxDepartures : stationDepartures.departures.size());
+			for (final Departure departure : stationDepartures.departures)
+			{
+				if (maxDepartures > 0 && departures.size() >= maxDepartures)
+					break;
+				if (departure.getTime().getTime() >= from)
+					departures.add(departure);
+			}
+
+			result.stationDepartures.add(new StationDepartures(stationDepartures.location, departures, stationDepartures.lines));
+		}
+
+		return result;
+	}
+}
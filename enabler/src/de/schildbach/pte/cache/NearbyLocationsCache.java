@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.cache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.support.annotation.Nullable;
+
+import de.schildbach.pte.ForwardingNetworkProvider;
+import de.schildbach.pte.LocationUtils;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.ResultHeader;
+
+/**
+ * Caches nearby locations in fixed geo tiles. Requests are snapped to the tiles they overlap, missing tiles are
+ * fetched from the upstream once, and the result is assembled from the merged tiles ranked by distance. Requests
+ * without coordinates or spanning too many tiles are passed through.
+ *
+ * A tile whose result reaches the maximum number of locations may be missing some, so it is fetched in quadrants
+ * instead. If even the smallest quadrants are truncated, the tile is remembered as uncacheable for a while, and
+ * requests touching it are passed through without trying again.
+ */
+public class NearbyLocationsCache extends ForwardingNetworkProvider
+{
+	private static final class Tile
+	{
+		final ResultHeader header;
+		final NearbyLocationsResult.Status status;
+		final List<Location> locations;
+		final long fetchedAt;
+
+		/**
+		 * Marks a tile the upstream truncates even when split.
+		 */
+		static Tile uncacheable(final long fetchedAt)
+		{
+			return new Tile(null, NearbyLocationsResult.Status.OK, null, fetchedAt);
+		}
+
+		boolean isUncacheable()
+		{
+			return locations == null && status == NearbyLocationsResult.Status.OK;
+		}
+
+		Tile(final ResultHeader header, final NearbyLocationsResult.Status status, final List<Location> locations, final long fetchedAt)
+		{
+			this.header = header;
+			this.status = status;
+			this.locations = locations;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private static final double METERS_PER_DEGREE = 111320;
+	private static final int MAX_SPLITS = 3;
+
+	private final int tileSize;
+	private int defaultMaxDistance = 1000;
+	private int maxTilesPerQuery = 25;
+	private int tileMaxLocations = 100;
+	private long maxAge = 24 * 60 * 60 * 1000;
+	private long uncacheableMaxAge = 60 * 60 * 1000;
+
+	private final Map<String, Tile> tiles;
+
+	/**
+	 * @param tileSize
+	 *            edge length of a tile in microdegrees
+	 * @param maxTiles
+	 *            maximum number of tiles to keep
+	 */
+	public NearbyLocationsCache(final NetworkProvider delegate, final int tileSize, final int maxTiles)
+	{
+		super(delegate);
+		checkArgument(tileSize > 0, "tile size must be positive");
+		this.tileSize = tileSize;
+		this.tiles = new LinkedHashMap<String, Tile>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = -526560251830103140L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Tile> eldest)
+			{
+				return size() > maxTiles;
+			}
+		};
+	}
+
+	/** Distance in meters to use if a request doesn't specify one. */
+	public void setDefaultMaxDistance(final int defaultMaxDistance)
+	{
+		this.defaultMaxDistance = defaultMaxDistance;
+	}
+
+	/** Requests that would need more tiles than this are passed through. */
+	public void setMaxTilesPerQuery(final int maxTilesPerQuery)
+	{
+		this.maxTilesPerQuery = maxTilesPerQuery;
+	}
+
+	/**
+	 * Maximum number of locations to ask the upstream for when fetching a tile. A result of that size is taken as
+	 * truncated, so this must not exceed the maximum the upstream answers with.
+	 */
+	public void setTileMaxLocations(final int tileMaxLocations)
+	{
+		this.tileMaxLocations = tileMaxLocations;
+	}
+
+	/** Age in milliseconds after which a tile is fetched again. */
+	public void setMaxAge(final long maxAge)
+	{
+		this.maxAge = maxAge;
+	}
+
+	/** Age in milliseconds after which a tile found to be uncacheable is tried again. */
+	public void setUncacheableMaxAge(final long uncacheableMaxAge)
+	{
+		this.uncacheableMaxAge = uncacheableMaxAge;
+	}
+
+	@Override
+	public NearbyLocationsResult queryNearbyLocations(final EnumSet<LocationType> types, final Location location, final int maxDistance,
+			final int maxLocations) throws IOException
+	{
+		if (!location.hasLocation())
+			return delegate.queryNearbyLocations(types, location, maxDistance, maxLocations);
+
+		final int distance = maxDistance > 0 ? maxDistance : defaultMaxDistance;
+		final int latSpan = (int) (distance / METERS_PER_DEGREE * 1E6);
+		final int lonSpan = (int) (distance / (METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(location.lat / 1E6)), 0.01)) * 1E6);
+		final int minLatTile = tileIndex(location.lat - latSpan);
+		final int maxLatTile = tileIndex(location.lat + latSpan);
+		final int minLonTile = tileIndex(location.lon - lonSpan);
+		final int maxLonTile = tileIndex(location.lon + lonSpan);
+
+		if ((long) (maxLatTile - minLatTile + 1) * (maxLonTile - minLonTile + 1) > maxTilesPerQuery)
+			return delegate.queryNearbyLocations(types, location, maxDistance, maxLocations);
+
+		ResultHeader header = null;
+		final List<Location> candidates = new ArrayList<Location>();
+		final Set<Location> seen = new HashSet<Location>();
+		for (int latTile = minLatTile; latTile <= maxLatTile; latTile++)
+		{
+			for (int lonTile = minLonTile; lonTile <= maxLonTile; lonTile++)
+			{
+				final Tile tile = tile(types, latTile, lonTile);
+				if (tile == null)
+					return delegate.queryNearbyLocations(types, location, maxDistance, maxLocations);
+				if (tile.status != NearbyLocationsResult.Status.OK)
+					return new NearbyLocationsResult(tile.header, tile.status);
+
+				if (header == null)
+					header = tile.header;
+				for (final Location candidate : tile.locations)
+					if (seen.add(candidate))
+						candidates.add(candidate);
+			}
+		}
+
+		final Map<Location, Float> distances = new LinkedHashMap<Location, Float>(candidates.size());
+		for (final Location candidate : candidates)
+		{
+			final float d = LocationUtils.computeDistance(location.lat / 1E6, location.lon / 1E6, candidate.lat / 1E6, candidate.lon / 1E6);
+			if (d <= distance)
+				distances.put(candidate, d);
+		}
+
+		final List<Location> locations = new ArrayList<Location>(distances.keySet());
+		Collections.sort(locations, new Comparator<Location>()
+		{
+			public int compare(final Location location0, final Location location1)
+			{
+				return distances.get(location0).compareTo(distances.get(location1));
+			}
+		});
+
+		if (maxLocations > 0 && locations.size() > maxLocations)
+			return new NearbyLocationsResult(header, new ArrayList<Location>(locations.subList(0, maxLocations)));
+		else
+			return new NearbyLocationsResult(header, locations);
+	}
+
+	/**
+	 * @return tile, or {@code null} if the upstream truncates its locations even when split
+	 */
+	private @Nullable Tile tile(final EnumSet<LocationType> types, final int latTile, final int lonTile) throws IOException
+	{
+		final String key = types + ":" + latTile + "," + lonTile;
+		final long now = System.currentTimeMillis();
+
+		synchronized (tiles)
+		{
+			final Tile tile = tiles.get(key);
+			if (tile != null && tile.isUncacheable() && now - tile.fetchedAt < uncacheableMaxAge)
+				return null;
+			if (tile != null && !tile.isUncacheable() && now - tile.fetchedAt < maxAge)
+				return tile;
+		}
+
+		final Tile tile = fetch(types, latTile * tileSize, lonTile * tileSize, tileSize, tileSize, 0, now);
+		if (tile == null || tile.status == NearbyLocationsResult.Status.OK)
+		{
+			synchronized (tiles)
+			{
+				tiles.put(key, tile != null ? tile : Tile.uncacheable(now));
+			}
+		}
+		return tile;
+	}
+
+	/**
+	 * Fetches the locations within a rectangle, by querying the circle around it. If the result is truncated, the
+	 * rectangle is fetched in quadrants.
+	 *
+	 * @return locations within the rectangle, or {@code null} if the result is still truncated after splitting
+	 */
+	private @Nullable Tile fetch(final EnumSet<LocationType> types, final int minLat, final int minLon, final int latSize, final int lonSize,
+			final int splits, final long now) throws IOException
+	{
+		final int centerLat = minLat + latSize / 2;
+		final int centerLon = minLon + lonSize / 2;
+		// radius of the circle around the rectangle
+		final float toMin = LocationUtils.computeDistance(centerLat / 1E6, centerLon / 1E6, minLat / 1E6, minLon / 1E6);
+		final float toMax = LocationUtils.computeDistance(centerLat / 1E6, centerLon / 1E6, (minLat + latSize) / 1E6, (minLon + lonSize) / 1E6);
+		final int radius = (int) Math.ceil(Math.max(toMin, toMax));
+
+		final NearbyLocationsResult result = delegate.queryNearbyLocations(types, Location.coord(centerLat, centerLon), radius, tileMaxLocations);
+		if (result.status != NearbyLocationsResult.Status.OK)
+			return new Tile(result.header, result.status, null, now);
+
+		if (tileMaxLocations > 0 && result.locations.size() >= tileMaxLocations)
+		{
+			if (splits >= MAX_SPLITS || latSize < 2 || lonSize < 2)
+				return null;
+
+			final int[] latMins = { minLat, minLat + latSize / 2 };
+			final int[] latSizes = { latSize / 2, latSize - latSize / 2 };
+			final int[] lonMins = { minLon, minLon + lonSize / 2 };
+			final int[] lonSizes = { lonSize / 2, lonSize - lonSize / 2 };
+			final List<Location> locations = new ArrayList<Location>();
+			for (int i = 0; i < 2; i++)
+			{
+				for (int j = 0; j < 2; j++)
+				{
+					final Tile quadrant = fetch(types, latMins[i], lonMins[j], latSizes[i], lonSizes[j], splits + 1, now);
+					if (quadrant == null || quadrant.status != NearbyLocationsResult.Status.OK)
+						return quadrant;
+					locations.addAll(quadrant.locations);
+				}
+			}
+			return new Tile(result.header, result.status, locations, now);
+		}
+
+		final List<Location> locations = new ArrayList<Location>();
+		for (final Location location : result.locations)
+			if (location.hasLocation() && location.lat >= minLat && location.lat < minLat + latSize && location.lon >= minLon
+					&& location.lon < minLon + lonSize)
+				locations.add(location);
+		return new Tile(result.header, result.status, locations, now);
+	}
+
+	private int tileIndex(final int microDegrees)
+	{
+		return (int) Math.floor((double) microDegrees / tileSize);
+	}
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+
+import de.schildbach.pte.LocationUtils;
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.SuggestedLocation;
+
+/**
+ * Persistent index of stations seen in upstream responses of one network. Stations are appended to a memory-mapped
+ * file and indexed in memory by name trigrams and by a spatial grid. Grid cells that an upstream nearby query has
+ * covered completely are remembered, so that nearby queries within covered cells can be answered locally. Coverage
+ * expires after a while, so that new stations are learned when the upstream is asked again.
+ */
+public final class StopIndex implements Closeable
+{
+	private static final int MAGIC = 0x50544958; // PTIX
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12; // magic, version, end of data
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+
+	private static final byte KIND_STATION = 1;
+	private static final byte KIND_COVERED_CELL = 2; // without time, as written by earlier versions
+	private static final byte KIND_COVERED_CELL_AT = 3;
+	private static final byte FLAG_SUPERSEDED = 1;
+
+	// station record: kind, flags, hits, lat, lon, then id, place and name each as length-prefixed UTF-8
+	private static final int OFFSET_FLAGS = 1;
+	private static final int OFFSET_HITS = 2;
+	private static final int OFFSET_LAT = 6;
+	private static final int OFFSET_LON = 10;
+	private static final int OFFSET_STRINGS = 14;
+	private static final int COVERED_CELL_SIZE = 9;
+	private static final int COVERED_CELL_AT_SIZE = 17; // kind, lat cell, lon cell, time
+
+	/** Edge length of a grid cell in microdegrees. */
+	public static final int CELL_SIZE = 10000;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int end;
+
+	private final Map<String, Integer> stations = new HashMap<String, Integer>();
+	private final Map<Long, IntList> trigrams = new HashMap<Long, IntList>();
+	private final Map<Long, IntList> cells = new HashMap<Long, IntList>();
+	private final Map<Long, Long> coveredCells = new HashMap<Long, Long>();
+	private long maxCoverageAge = 7 * 24 * 60 * 60 * 1000l;
+
+	public static StopIndex open(final File directory, final NetworkId network) throws IOException
+	{
+		return new StopIndex(new File(directory, network.name().toLowerCase(Locale.ENGLISH) + ".stops"));
+	}
+
+	public StopIndex(final File indexFile) throws IOException
+	{
+		this.file = new RandomAccessFile(indexFile, "rw");
+		this.channel = file.getChannel();
+
+		final long size = channel.size();
+		if (size == 0)
+		{
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			setEnd(HEADER_SIZE);
+		}
+		else
+		{
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+				throw new IOException("not a stop index: " + indexFile);
+			if (buffer.getInt(4) != VERSION)
+				throw new IOException("unsupported stop index version " + buffer.getInt(4) + ": " + indexFile);
+			end = buffer.getInt(8);
+			load();
+		}
+	}
+
+	private void load()
+	{
+		int offset = HEADER_SIZE;
+		while (offset < end)
+		{
+			final byte kind = buffer.get(offset);
+			if (kind == KIND_STATION)
+			{
+				if ((buffer.get(offset + OFFSET_FLAGS) & FLAG_SUPERSEDED) == 0)
+					index(offset);
+				offset = stationRecordEnd(offset);
+			}
+			else if (kind == KIND_COVERED_CELL)
+			{
+				// unknown time, so verify again
+				coveredCells.put(cellKey(buffer.getInt(offset + 1), buffer.getInt(offset + 5)), 0l);
+				offset += COVERED_CELL_SIZE;
+			}
+			else if (kind == KIND_COVERED_CELL_AT)
+			{
+				coveredCells.put(cellKey(buffer.getInt(offset + 1), buffer.getInt(offset + 5)), buffer.getLong(offset + 9));
+				offset += COVERED_CELL_AT_SIZE;
+			}
+			else
+			{
+				throw new IllegalStateException("unknown record kind " + kind + " at " + offset);
+			}
+		}
+	}
+
+	public synchronized int size()
+	{
+		return stations.size();
+	}
+
+	/** Age in milliseconds after which covered cells are not answered locally anymore, until covered again. */
+	public synchronized void setMaxCoverageAge(final long maxCoverageAge)
+	{
+		this.maxCoverageAge = maxCoverageAge;
+	}
+
+	/**
+	 * Records a location. Anything but identified stations is ignored. Known stations have their hit count increased,
+	 * and are updated if the location carries more details than recorded so far.
+	 */
+	public synchronized void record(final Location location) throws IOException
+	{
+		if (location == null || location.type != LocationType.STATION || !location.hasId())
+			return;
+
+		final Integer existing = stations.get(location.id);
+		if (existing == null)
+		{
+			append(location, 1);
+			return;
+		}
+
+		final int offset = existing;
+		final int hits = buffer.getInt(offset + OFFSET_HITS) + 1;
+		final Location recorded = readLocation(offset);
+		final boolean improvesCoord = location.hasLocation() && !recorded.hasLocation();
+		final boolean improvesName = location.name != null && (recorded.name == null || (location.place != null && recorded.place == null));
+		if (!improvesCoord && !improvesName)
+		{
+			buffer.putInt(offset + OFFSET_HITS, hits);
+			return;
+		}
+
+		buffer.put(offset + OFFSET_FLAGS, (byte) (buffer.get(offset + OFFSET_FLAGS) | FLAG_SUPERSEDED));
+		unindex(offset, recorded);
+		final int lat = improvesCoord ? location.lat : recorded.lat;
+		final int lon = improvesCoord ? location.lon : recorded.lon;
+		final String place = improvesName ? location.place : recorded.place;
+		final String name = improvesName ? location.name : recorded.name;
+		append(new Location(LocationType.STATION, location.id, lat, lon, place, name), hits);
+	}
+
+	public synchronized void record(final Iterable<Location> locations) throws IOException
+	{
+		for (final Location location : locations)
+			record(location);
+	}
+
+	/**
+	 * Remembers that an upstream nearby query returned all stations within the given circle. Grid cells lying
+	 * completely within the circle are marked as covered as of now.
+	 */
+	public synchronized void markCovered(final int lat, final int lon, final int maxDistance) throws IOException
+	{
+		final long now = System.currentTimeMillis();
+		final int[] range = cellRange(lat, lon, maxDistance);
+		for (int latCell = range[0]; latCell <= range[1]; latCell++)
+		{
+			for (int lonCell = range[2]; lonCell <= range[3]; lonCell++)
+			{
+				final long key = cellKey(latCell, lonCell);
+				if (isCovered(key, now))
+					continue;
+
+				final int minLat = latCell * CELL_SIZE, maxLat = minLat + CELL_SIZE;
+				final int minLon = lonCell * CELL_SIZE, maxLon = minLon + CELL_SIZE;
+				if (distance(lat, lon, minLat, minLon) <= maxDistance && distance(lat, lon, minLat, maxLon) <= maxDistance
+						&& distance(lat, lon, maxLat, minLon) <= maxDistance && distance(lat, lon, maxLat, maxLon) <= maxDistance)
+				{
+					ensureCapacity(COVERED_CELL_AT_SIZE);
+					buffer.put(end, KIND_COVERED_CELL_AT);
+					buffer.putInt(end + 1, latCell);
+					buffer.putInt(end + 5, lonCell);
+					buffer.putLong(end + 9, now);
+					setEnd(end + COVERED_CELL_AT_SIZE);
+					coveredCells.put(key, now);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Suggests stations whose place and name contain all words of the constraint.
+	 *
+	 * @return suggestions with their hit count as priority, or {@code null} if the constraint is too short to be
+	 *         looked up
+	 */
+	public synchronized List<SuggestedLocation> suggest(final CharSequence constraint, final int minHits)
+	{
+		final String normalized = SuggestLocationsCache.normalize(constraint);
+		if (normalized.length() == 0)
+			return null;
+		final String[] tokens = normalized.split(" ");
+
+		IntList candidates = null;
+		for (final String token : tokens)
+		{
+			for (int i = 0; i + 3 <= token.length(); i++)
+			{
+				final IntList postings = trigrams.get(trigramKey(token, i));
+				if (postings == null)
+					return new ArrayList<SuggestedLocation>(0);
+				candidates = candidates == null ? postings : candidates.intersect(postings);
+			}
+		}
+		if (candidates == null)
+			return null;
+
+		final List<SuggestedLocation> suggestions = new ArrayList<SuggestedLocation>();
+		for (int i = 0; i < candidates.size; i++)
+		{
+			final int offset = candidates.values[i];
+			final int hits = buffer.getInt(offset + OFFSET_HITS);
+			if (hits < minHits)
+				continue;
+
+			final Location location = readLocation(offset);
+			final String text = text(location);
+			boolean matches = true;
+			for (final String token : tokens)
+			{
+				if (!text.contains(token))
+				{
+					matches = false;
+					break;
+				}
+			}
+			if (matches)
+				suggestions.add(new SuggestedLocation(location, hits));
+		}
+
+		return suggestions;
+	}
+
+	/**
+	 * Finds stations near a coordinate.
+	 *
+	 * @return stations sorted by distance, or {@code null} if not all grid cells touched by the circle are covered, or
+	 *         their coverage has expired
+	 */
+	public synchronized List<Location> nearby(final int lat, final int lon, final int maxDistance, final int maxLocations)
+	{
+		final long now = System.currentTimeMillis();
+		final int[] range = cellRange(lat, lon, maxDistance);
+		for (int latCell = range[0]; latCell <= range[1]; latCell++)
+			for (int lonCell = range[2]; lonCell <= range[3]; lonCell++)
+				if (!isCovered(cellKey(latCell, lonCell), now))
+					return null;
+
+		final List<Location> locations = new ArrayList<Location>();
+		final Map<Location, Float> distances = new HashMap<Location, Float>();
+		for (int latCell = range[0]; latCell <= range[1]; latCell++)
+		{
+			for (int lonCell = range[2]; lonCell <= range[3]; lonCell++)
+			{
+				final IntList offsets = cells.get(cellKey(latCell, lonCell));
+				if (offsets == null)
+					continue;
+
+				for (int i = 0; i < offsets.size; i++)
+				{
+					final int offset = offsets.values[i];
+					final float d = distance(lat, lon, buffer.getInt(offset + OFFSET_LAT), buffer.getInt(offset + OFFSET_LON));
+					if (d <= maxDistance)
+					{
+						final Location location = readLocation(offset);
+						locations.add(location);
+						distances.put(location, d);
+					}
+				}
+			}
+		}
+
+		Collections.sort(locations, new Comparator<Location>()
+		{
+			public int compare(final Location location0, final Location location1)
+			{
+				return distances.get(location0).compareTo(distances.get(location1));
+			}
+		});
+
+		if (maxLocations > 0 && locations.size() > maxLocations)
+			return new ArrayList<Location>(locations.subList(0, maxLocations));
+		return locations;
+	}
+
+	private boolean isCovered(final long cellKey, final long now)
+	{
+		final Long coveredAt = coveredCells.get(cellKey);
+		return coveredAt != null && now - coveredAt < maxCoverageAge;
+	}
+
+	public synchronized void flush()
+	{
+		buffer.force();
+	}
+
+	public synchronized void close() throws IOException
+	{
+		buffer.force();
+		channel.close();
+		file.close();
+	}
+
+	private void append(final Location location, final int hits) throws IOException
+	{
+		final byte[] id = location.id.getBytes(Charsets.UTF_8);
+		final byte[] place = location.place != null ? location.place.getBytes(Charsets.UTF_8) : null;
+		final byte[] name = location.name != null ? location.name.getBytes(Charsets.UTF_8) : null;
+		if (id.length > Short.MAX_VALUE || (place != null && place.length > Short.MAX_VALUE) || (name != null && name.length > Short.MAX_VALUE))
+			return;
+		final int length = OFFSET_STRINGS + 6 + id.length + (place != null ? place.length : 0) + (name != null ? name.length : 0);
+		ensureCapacity(length);
+
+		final int offset = end;
+		buffer.put(offset, KIND_STATION);
+		buffer.put(offset + OFFSET_FLAGS, (byte) 0);
+		buffer.putInt(offset + OFFSET_HITS, hits);
+		buffer.putInt(offset + OFFSET_LAT, location.lat);
+		buffer.putInt(offset + OFFSET_LON, location.lon);
+		int p = offset + OFFSET_STRINGS;
+		p = putString(p, id);
+		p = putString(p, place);
+		putString(p, name);
+		setEnd(offset + length);
+
+		index(offset);
+	}
+
+	private int putString(int p, final byte[] bytes)
+	{
+		if (bytes == null)
+		{
+			buffer.putShort(p, (short) -1);
+			return p + 2;
+		}
+
+		buffer.putShort(p, (short) bytes.length);
+		p += 2;
+		for (final byte b : bytes)
+			buffer.put(p++, b);
+		return p;
+	}
+
+	private String getString(final int p)
+	{
+		final short length = buffer.getShort(p);
+		if (length < 0)
+			return null;
+
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = buffer.get(p + 2 + i);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	private int stringEnd(final int p)
+	{
+		return p + 2 + Math.max(buffer.getShort(p), 0);
+	}
+
+	private int stationRecordEnd(final int offset)
+	{
+		return stringEnd(stringEnd(stringEnd(offset + OFFSET_STRINGS)));
+	}
+
+	private Location readLocation(final int offset)
+	{
+		final int idOffset = offset + OFFSET_STRINGS;
+		final int placeOffset = stringEnd(idOffset);
+		final int nameOffset = stringEnd(placeOffset);
+		return new Location(LocationType.STATION, getString(idOffset), buffer.getInt(offset + OFFSET_LAT), buffer.getInt(offset + OFFSET_LON),
+				getString(placeOffset), getString(nameOffset));
+	}
+
+	private void index(final int offset)
+	{
+		final Location location = readLocation(offset);
+		stations.put(location.id, offset);
+
+		for (final long trigram : trigrams(text(location)))
+			postings(trigrams, trigram).add(offset);
+
+		if (location.hasLocation())
+			postings(cells, cellKey(cellIndex(location.lat), cellIndex(location.lon))).add(offset);
+	}
+
+	private void unindex(final int offset, final Location location)
+	{
+		for (final long trigram : trigrams(text(location)))
+			postings(trigrams, trigram).remove(offset);
+
+		if (location.hasLocation())
+			postings(cells, cellKey(cellIndex(location.lat), cellIndex(location.lon))).remove(offset);
+	}
+
+	private static IntList postings(final Map<Long, IntList> map, final long key)
+	{
+		IntList postings = map.get(key);
+		if (postings == null)
+		{
+			postings = new IntList();
+			map.put(key, postings);
+		}
+		return postings;
+	}
+
+	private static String text(final Location location)
+	{
+		if (location.name == null)
+			return "";
+		return SuggestLocationsCache.normalize(location.place != null ? location.place + " " + location.name : location.name);
+	}
+
+	private static Set<Long> trigrams(final String text)
+	{
+		final Set<Long> trigrams = new HashSet<Long>();
+		for (int i = 0; i + 3 <= text.length(); i++)
+			trigrams.add(trigramKey(text, i));
+		return trigrams;
+	}
+
+	private static long trigramKey(final String text, final int i)
+	{
+		return ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+	}
+
+	private static int cellIndex(final int microDegrees)
+	{
+		return (int) Math.floor((double) microDegrees / CELL_SIZE);
+	}
+
+	private static long cellKey(final int latCell, final int lonCell)
+	{
+		return ((long) latCell << 32) | (lonCell & 0xffffffffl);
+	}
+
+	private static int[] cellRange(final int lat, final int lon, final int maxDistance)
+	{
+		final int latSpan = (int) (maxDistance / 111320.0 * 1E6);
+		final int lonSpan = (int) (maxDistance / (111320.0 * Math.max(Math.cos(Math.toRadians(lat / 1E6)), 0.01)) * 1E6);
+		return new int[] { cellIndex(lat - latSpan), cellIndex(lat + latSpan), cellIndex(lon - lonSpan), cellIndex(lon + lonSpan) };
+	}
+
+	private static float distance(final int lat1, final int lon1, final int lat2, final int lon2)
+	{
+		return LocationUtils.computeDistance(lat1 / 1E6, lon1 / 1E6, lat2 / 1E6, lon2 / 1E6);
+	}
+
+	private void ensureCapacity(final int length) throws IOException
+	{
+		if (end + length <= buffer.capacity())
+			return;
+
+		int capacity = buffer.capacity();
+		while (capacity < end + length)
+			capacity *= 2;
+		buffer.force();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	private void setEnd(final int end)
+	{
+		this.end = end;
+		buffer.putInt(8, end);
+	}
+
+	private static final class IntList
+	{
+		int[] values = new int[4];
+		int size = 0;
+
+		void add(final int value)
+		{
+			if (size == values.length)
+			{
+				final int[] newValues = new int[size * 2];
+				System.arraycopy(values, 0, newValues, 0, size);
+				values = newValues;
+			}
+			values[size++] = value;
+		}
+
+		void remove(final int value)
+		{
+			for (int i = 0; i < size; i++)
+			{
+				if (values[i] == value)
+				{
+					System.arraycopy(values, i + 1, values, i, size - i - 1);
+					size--;
+					return;
+				}
+			}
+		}
+
+		/** Both lists are in ascending order, as offsets are only ever appended. */
+		IntList intersect(final IntList other)
+		{
+			final IntList result = new IntList();
+			int i = 0, j = 0;
+			while (i < size && j < other.size)
+			{
+				if (values[i] < other.values[j])
+					i++;
+				else if (values[i] > other.values[j])
+					j++;
+				else
+				{
+					result.add(values[i]);
+					i++;
+					j++;
+				}
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.cache;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import android.support.annotation.Nullable;
+
+import de.schildbach.pte.ForwardingNetworkProvider;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsContext;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.ResultHeader;
+import de.schildbach.pte.dto.StationDepartures;
+import de.schildbach.pte.dto.Stop;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.dto.SuggestedLocation;
+import de.schildbach.pte.dto.Trip;
+
+/**
+ * Records all stations passing through into a {@link StopIndex}. Nearby stations are answered from the index where it
+ * is known to be complete. Suggestions are answered from the index if the constraint names a well-known station, i.e.
+ * it is the complete name or the leading words of the name of a station seen often enough. Otherwise they come from
+ * the upstream, as only it knows addresses and points of interest and how to rank them; the index then only answers
+ * them when the upstream is unavailable.
+ */
+public class StopIndexProvider extends ForwardingNetworkProvider
+{
+	private static final String SERVER_PRODUCT = "stopindex";
+
+	private final StopIndex index;
+	private int minHits = 3;
+	private int maxSuggestions = 10;
+	private int upstreamMaxLocations = 0;
+
+	private static final Logger log = Logger.getLogger(StopIndexProvider.class.getSimpleName());
+
+	public StopIndexProvider(final NetworkProvider delegate, final StopIndex index)
+	{
+		super(delegate);
+		this.index = checkNotNull(index);
+	}
+
+	/** Stations need to have been seen this often to be suggested locally. */
+	public void setMinHits(final int minHits)
+	{
+		this.minHits = minHits;
+	}
+
+	/** Local suggestions are limited to this many, the most often seen first. */
+	public void setMaxSuggestions(final int maxSuggestions)
+	{
+		this.maxSuggestions = maxSuggestions;
+	}
+
+	/**
+	 * Number of locations the upstream returns at most if no or a larger maximum is asked for. If unknown, only results
+	 * smaller than an explicit maximum are taken as complete.
+	 */
+	public void setUpstreamMaxLocations(final int upstreamMaxLocations)
+	{
+		this.upstreamMaxLocations = upstreamMaxLocations;
+	}
+
+	@Override
+	public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
+	{
+		final List<SuggestedLocation> candidates = index.suggest(constraint, minHits);
+		if (candidates != null && namesStation(SuggestLocationsCache.normalize(constraint), candidates))
+			return suggestLocally(constraint);
+
+		final SuggestLocationsResult result;
+		try
+		{
+			result = delegate.suggestLocations(constraint);
+		}
+		catch (final IOException x)
+		{
+			final SuggestLocationsResult local = suggestLocally(constraint);
+			if (local != null)
+				return local;
+			throw x;
+		}
+
+		if (result.status == SuggestLocationsResult.Status.OK)
+		{
+			record(result.getLocations());
+			return result;
+		}
+		else
+		{
+			final SuggestLocationsResult local = suggestLocally(constraint);
+			return local != null ? local : result;
+		}
+	}
+
+	/**
+	 * Whether the constraint is the name of one of the stations, or its leading words, with or without the place.
+	 */
+	private static boolean namesStation(final String constraint, final List<SuggestedLocation> suggestions)
+	{
+		for (final SuggestedLocation suggestion : suggestions)
+		{
+			final Location location = suggestion.location;
+			if (startsWithWords(SuggestLocationsCache.normalize(location.name), constraint))
+				return true;
+			if (location.place != null && startsWithWords(SuggestLocationsCache.normalize(location.place + " " + location.name), constraint))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean startsWithWords(final String text, final String words)
+	{
+		return text.startsWith(words) && (text.length() == words.length() || text.charAt(words.length()) == ' ');
+	}
+
+	private @Nullable SuggestLocationsResult suggestLocally(final CharSequence constraint)
+	{
+		final List<SuggestedLocation> local = index.suggest(constraint, minHits);
+		if (local == null || local.isEmpty())
+			return null;
+
+		Collections.sort(local);
+		return new SuggestLocationsResult(new ResultHeader(id(), SERVER_PRODUCT), local.size() > maxSuggestions ? new ArrayList<SuggestedLocation>(
+				local.subList(0, maxSuggestions)) : local);
+	}
+
+	@Override
+	public NearbyLocationsResult queryNearbyLocations(final EnumSet<LocationType> types, final Location location, final int maxDistance,
+			final int maxLocations) throws IOException
+	{
+		final boolean stationsOnly = types.size() == 1 && types.contains(LocationType.STATION);
+		if (stationsOnly && location.hasLocation() && maxDistance > 0)
+		{
+			final List<Location> local = index.nearby(location.lat, location.lon, maxDistance, maxLocations);
+			if (local != null)
+				return new NearbyLocationsResult(new ResultHeader(id(), SERVER_PRODUCT), local);
+		}
+
+		final NearbyLocationsResult result = delegate.queryNearbyLocations(types, location, maxDistance, maxLocations);
+		if (result.status == NearbyLocationsResult.Status.OK)
+		{
+			record(result.locations);
+
+			if (types.contains(LocationType.STATION) && location.hasLocation() && maxDistance > 0
+					&& isComplete(result.locations.size(), maxLocations))
+			{
+				try
+				{
+					index.markCovered(location.lat, location.lon, maxDistance);
+				}
+				catch (final IOException x)
+				{
+					log.log(Level.WARNING, "cannot write stop index", x);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Whether a result of the given size contains all locations within the distance, rather than as many as the
+	 * requested or the upstream maximum allowed.
+	 */
+	private boolean isComplete(final int size, final int maxLocations)
+	{
+		final int limit;
+		if (maxLocations > 0 && upstreamMaxLocations > 0)
+			limit = Math.min(maxLocations, upstreamMaxLocations);
+		else if (maxLocations > 0)
+			limit = maxLocations;
+		else
+			limit = upstreamMaxLocations;
+		return limit > 0 && size < limit;
+	}
+
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures, final boolean equivs)
+			throws IOException
+	{
+		final QueryDeparturesResult result = delegate.queryDepartures(stationId, time, maxDepartures, equivs);
+		if (result.status == QueryDeparturesResult.Status.OK)
+		{
+			for (final StationDepartures stationDepartures : result.stationDepartures)
+			{
+				record(stationDepartures.location);
+				for (final Departure departure : stationDepartures.departures)
+					record(departure.destination);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options) throws IOException
+	{
+		return record(delegate.queryTrips(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options));
+	}
+
+	@Override
+	public QueryTripsResult queryMoreTrips(final QueryTripsContext context, final boolean later) throws IOException
+	{
+		return record(delegate.queryMoreTrips(context, later));
+	}
+
+	private QueryTripsResult record(final QueryTripsResult result)
+	{
+		if (result.status == QueryTripsResult.Status.AMBIGUOUS)
+		{
+			record(result.ambiguousFrom);
+			record(result.ambiguousVia);
+			record(result.ambiguousTo);
+		}
+		else if (result.status == QueryTripsResult.Status.OK)
+		{
+			for (final Trip trip : result.trips)
+			{
+				// don't decode legs only to record them
+				if (trip.legs instanceof Trip.LazyLegs && !((Trip.LazyLegs) trip.legs).isDecoded())
+				{
+					record(trip.from);
+					record(trip.to);
+					continue;
+				}
+
+				for (final Trip.Leg leg : trip.legs)
+				{
+					record(leg.departure);
+					record(leg.arrival);
+					if (leg instanceof Trip.Public)
+					{
+						final Trip.Public publicLeg = (Trip.Public) leg;
+						record(publicLeg.destination);
+						if (publicLeg.intermediateStops != null)
+							for (final Stop stop : publicLeg.intermediateStops)
+								record(stop.location);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private void record(final @Nullable List<Location> locations)
+	{
+		if (locations != null)
+			for (final Location location : locations)
+				record(location);
+	}
+
+	private void record(final @Nullable Location location)
+	{
+		try
+		{
+			index.record(location);
+		}
+		catch (final IOException x)
+		{
+			log.log(Level.WARNING, "cannot write stop index", x);
+		}
+	}
+}
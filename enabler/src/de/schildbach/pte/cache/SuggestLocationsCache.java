@@ -0,0 +1,322 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.cache;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.schildbach.pte.ForwardingNetworkProvider;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.dto.SuggestedLocation;
+
+/**
+ * Caches location suggestions by normalized constraint. If a shorter prefix of a constraint is cached and its result
+ * was complete, i.e. not truncated by the upstream, the suggestions for the longer constraint are filtered locally
+ * from it. Cached constraints are kept in a trie, so finding the longest cached prefix takes time proportional to the
+ * length of the constraint, regardless of the number of entries.
+ */
+public class SuggestLocationsCache extends ForwardingNetworkProvider
+{
+	private static final class Entry
+	{
+		final String key;
+		final SuggestLocationsResult result;
+		final boolean complete;
+		final long fetchedAt;
+
+		Entry(final String key, final SuggestLocationsResult result, final boolean complete, final long fetchedAt)
+		{
+			this.key = key;
+			this.result = result;
+			this.complete = complete;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private static final class Node
+	{
+		private static final char[] NO_KEYS = new char[0];
+		private static final Node[] NO_CHILDREN = new Node[0];
+
+		char[] keys = NO_KEYS;
+		Node[] children = NO_CHILDREN;
+		int size = 0;
+		Entry entry;
+
+		Node child(final char c)
+		{
+			final int i = indexOf(c);
+			return i >= 0 ? children[i] : null;
+		}
+
+		Node getOrAddChild(final char c)
+		{
+			int i = indexOf(c);
+			if (i >= 0)
+				return children[i];
+
+			i = -i - 1;
+			if (size == keys.length)
+			{
+				final int capacity = size == 0 ? 2 : size * 2;
+				final char[] newKeys = new char[capacity];
+				final Node[] newChildren = new Node[capacity];
+				System.arraycopy(keys, 0, newKeys, 0, size);
+				System.arraycopy(children, 0, newChildren, 0, size);
+				keys = newKeys;
+				children = newChildren;
+			}
+			System.arraycopy(keys, i, keys, i + 1, size - i);
+			System.arraycopy(children, i, children, i + 1, size - i);
+			final Node child = new Node();
+			keys[i] = c;
+			children[i] = child;
+			size++;
+			return child;
+		}
+
+		void removeChild(final char c)
+		{
+			final int i = indexOf(c);
+			if (i < 0)
+				return;
+			System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+			System.arraycopy(children, i + 1, children, i, size - i - 1);
+			size--;
+			children[size] = null;
+		}
+
+		boolean isEmpty()
+		{
+			return size == 0 && entry == null;
+		}
+
+		private int indexOf(final char c)
+		{
+			int low = 0;
+			int high = size - 1;
+			while (low <= high)
+			{
+				final int mid = (low + high) >>> 1;
+				final char key = keys[mid];
+				if (key < c)
+					low = mid + 1;
+				else if (key > c)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -(low + 1);
+		}
+	}
+
+	private final Node root = new Node();
+	private final Map<String, Entry> lru;
+	private int completeThreshold = 10;
+	private long maxAge = 60 * 60 * 1000;
+
+	public SuggestLocationsCache(final NetworkProvider delegate, final int maxEntries)
+	{
+		super(delegate);
+		this.lru = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = -7948272130083347476L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest)
+			{
+				if (size() <= maxEntries)
+					return false;
+
+				removeFromTrie(eldest.getKey());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Results with fewer suggestions than this are considered complete, i.e. not truncated by the upstream. Must not
+	 * exceed the maximum number of suggestions the upstream returns.
+	 */
+	public void setCompleteThreshold(final int completeThreshold)
+	{
+		this.completeThreshold = completeThreshold;
+	}
+
+	/** Age in milliseconds after which suggestions are fetched again. */
+	public void setMaxAge(final long maxAge)
+	{
+		this.maxAge = maxAge;
+	}
+
+	@Override
+	public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
+	{
+		final String key = normalize(constraint);
+		if (key.length() == 0)
+			return delegate.suggestLocations(constraint);
+
+		final long now = System.currentTimeMillis();
+		final Entry cached = lookup(key, now);
+		if (cached != null)
+		{
+			if (cached.key.length() == key.length())
+				return cached.result;
+			else
+				return filter(cached.result, key);
+		}
+
+		final SuggestLocationsResult result = delegate.suggestLocations(constraint);
+		if (result.status == SuggestLocationsResult.Status.OK)
+		{
+			final boolean complete = result.getLocations().size() < completeThreshold;
+			put(new Entry(key, result, complete, now));
+		}
+
+		return result;
+	}
+
+	private synchronized Entry lookup(final String key, final long now)
+	{
+		Entry best = null;
+		Node node = root;
+		for (int i = 0; node != null; i++)
+		{
+			final Entry entry = node.entry;
+			if (entry != null && now - entry.fetchedAt < maxAge && (entry.complete || i == key.length()))
+				best = entry;
+			if (i == key.length())
+				break;
+			node = node.child(key.charAt(i));
+		}
+
+		if (best != null)
+			lru.get(best.key); // touch
+		return best;
+	}
+
+	private synchronized void put(final Entry entry)
+	{
+		Node node = root;
+		for (int i = 0; i < entry.key.length(); i++)
+			node = node.getOrAddChild(entry.key.charAt(i));
+		node.entry = entry;
+		lru.put(entry.key, entry);
+	}
+
+	private void removeFromTrie(final String key)
+	{
+		final Node[] path = new Node[key.length() + 1];
+		Node node = root;
+		path[0] = node;
+		for (int i = 0; i < key.length(); i++)
+		{
+			node = node.child(key.charAt(i));
+			if (node == null)
+				return;
+			path[i + 1] = node;
+		}
+
+		node.entry = null;
+		for (int i = key.length(); i > 0 && path[i].isEmpty(); i--)
+			path[i - 1].removeChild(key.charAt(i - 1));
+	}
+
+	private static SuggestLocationsResult filter(final SuggestLocationsResult result, final String key)
+	{
+		final String[] tokens = key.split(" ");
+		final List<Location> locations = result.getLocations();
+		final List<SuggestedLocation> filtered = new ArrayList<SuggestedLocation>(locations.size());
+		int priority = locations.size();
+		for (final Location location : locations)
+		{
+			final String text = normalize(location.place != null ? location.place + " " + location.name : location.name);
+			boolean matches = true;
+			for (final String token : tokens)
+			{
+				if (!text.contains(token))
+				{
+					matches = false;
+					break;
+				}
+			}
+
+			// priorities are not exposed by the result, so preserve its order instead
+			if (matches)
+				filtered.add(new SuggestedLocation(location, priority));
+			priority--;
+		}
+
+		return new SuggestLocationsResult(result.header, filtered);
+	}
+
+	/**
+	 * Normalizes a constraint for use as cache key. Folds case, collapses whitespace, transliterates German umlauts and
+	 * strips other diacritics.
+	 */
+	public static String normalize(final CharSequence constraint)
+	{
+		if (constraint == null)
+			return "";
+
+		// composed first, so that umlauts typed as vowel and combining diaeresis are transliterated as well
+		final String composed = Normalizer.normalize(constraint, Normalizer.Form.NFC);
+		final StringBuilder folded = new StringBuilder(composed.length() + 4);
+		for (int i = 0; i < composed.length(); i++)
+		{
+			final char c = Character.toLowerCase(composed.charAt(i));
+			if (c == 'ä')
+				folded.append("ae");
+			else if (c == 'ö')
+				folded.append("oe");
+			else if (c == 'ü')
+				folded.append("ue");
+			else if (c == 'ß')
+				folded.append("ss");
+			else
+				folded.append(c);
+		}
+
+		final String decomposed = Normalizer.normalize(folded, Normalizer.Form.NFD);
+		final StringBuilder normalized = new StringBuilder(decomposed.length());
+		boolean space = false;
+		for (int i = 0; i < decomposed.length(); i++)
+		{
+			final char c = decomposed.charAt(i);
+			if (Character.isWhitespace(c) || Character.isSpaceChar(c))
+			{
+				space = normalized.length() > 0;
+			}
+			else if (Character.getType(c) != Character.NON_SPACING_MARK)
+			{
+				if (space)
+					normalized.append(' ');
+				normalized.append(c);
+				space = false;
+			}
+		}
+
+		return normalized.toString();
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.dto;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+/**
+ * Difference between two departure boards of a station. Departures are identified by line, planned time and
+ * destination; a departure is changed if its predicted time, position, message or capacity differ.
+ */
+@SuppressWarnings("serial")
+public final class DeparturesDiff implements Serializable
+{
+	public final Location location;
+	public final List<Departure> added;
+	public final List<Departure> removed;
+	public final List<Departure> changed;
+
+	public DeparturesDiff(final Location location, final List<Departure> added, final List<Departure> removed, final List<Departure> changed)
+	{
+		this.location = checkNotNull(location);
+		this.added = checkNotNull(added);
+		this.removed = checkNotNull(removed);
+		this.changed = checkNotNull(changed);
+	}
+
+	public boolean isEmpty()
+	{
+		return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+	}
+
+	/**
+	 * Computes the differences per station. Stations missing in one of the results are treated as having no
+	 * departures there.
+	 */
+	public static List<DeparturesDiff> between(final QueryDeparturesResult previous, final QueryDeparturesResult current)
+	{
+		final Map<Location, List<Departure>> previousByStation = byStation(previous);
+		final Map<Location, List<Departure>> currentByStation = byStation(current);
+
+		final List<DeparturesDiff> diffs = new LinkedList<DeparturesDiff>();
+		for (final Map.Entry<Location, List<Departure>> entry : currentByStation.entrySet())
+		{
+			final List<Departure> previousDepartures = previousByStation.remove(entry.getKey());
+			final DeparturesDiff diff = between(entry.getKey(),
+					previousDepartures != null ? previousDepartures : Collections.<Departure> emptyList(), entry.getValue());
+			if (!diff.isEmpty())
+				diffs.add(diff);
+		}
+		for (final Map.Entry<Location, List<Departure>> entry : previousByStation.entrySet())
+		{
+			final DeparturesDiff diff = between(entry.getKey(), entry.getValue(), Collections.<Departure> emptyList());
+			if (!diff.isEmpty())
+				diffs.add(diff);
+		}
+		return diffs;
+	}
+
+	public static DeparturesDiff between(final Location location, final List<Departure> previous, final List<Departure> current)
+	{
+		final Map<Key, Departure> previousByKey = byKey(previous);
+		final List<Departure> added = new ArrayList<Departure>();
+		final List<Departure> changed = new ArrayList<Departure>();
+
+		for (final Map.Entry<Key, Departure> entry : byKey(current).entrySet())
+		{
+			final Departure departure = entry.getValue();
+			final Departure previousDeparture = previousByKey.remove(entry.getKey());
+			if (previousDeparture == null)
+				added.add(departure);
+			else if (isChanged(previousDeparture, departure))
+				changed.add(departure);
+		}
+
+		return new DeparturesDiff(location, added, new ArrayList<Departure>(previousByKey.values()), changed);
+	}
+
+	private static boolean isChanged(final Departure previous, final Departure current)
+	{
+		return !Objects.equal(previous.predictedTime, current.predictedTime) || !Objects.equal(previous.position, current.position)
+				|| !Objects.equal(previous.message, current.message) || !Arrays.equals(previous.capacity, current.capacity);
+	}
+
+	private static Map<Location, List<Departure>> byStation(final QueryDeparturesResult result)
+	{
+		final Map<Location, List<Departure>> byStation = new LinkedHashMap<Location, List<Departure>>();
+		if (result.stationDepartures != null)
+			for (final StationDepartures stationDepartures : result.stationDepartures)
+				byStation.put(stationDepartures.location, stationDepartures.departures);
+		return byStation;
+	}
+
+	private static Map<Key, Departure> byKey(final List<Departure> departures)
+	{
+		final Map<Key, Departure> byKey = new LinkedHashMap<Key, Departure>(departures.size() * 2);
+		for (final Departure departure : departures)
+		{
+			// departures sharing line, time and destination are told apart by their order
+			int occurrence = 0;
+			Key key;
+			do
+			{
+				key = new Key(departure, occurrence++);
+			}
+			while (byKey.containsKey(key));
+			byKey.put(key, departure);
+		}
+		return byKey;
+	}
+
+	private static final class Key
+	{
+		private final Line line;
+		private final Date time;
+		private final Location destination;
+		private final int occurrence;
+
+		Key(final Departure departure, final int occurrence)
+		{
+			this.line = departure.line;
+			this.time = departure.plannedTime != null ? departure.plannedTime : departure.predictedTime;
+			this.destination = departure.destination;
+			this.occurrence = occurrence;
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if (o == this)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			final Key other = (Key) o;
+			return this.occurrence == other.occurrence && Objects.equal(this.line, other.line) && Objects.equal(this.time, other.time)
+					&& Objects.equal(this.destination, other.destination);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hashCode(line, time, destination, occurrence);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return MoreObjects.toStringHelper(this).addValue(location).add("added", added.size()).add("removed", removed.size())
+				.add("changed", changed.size()).toString();
+	}
+}
@@ -22,7 +22,11 @@ import android.support.annotation.Nullable;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.List;
@@ -64,6 +68,9 @@ public final class Trip implements Serializable, Comparable<Trip>
 
 	public Date getFirstDepartureTime()
 	{
+		if (legs instanceof LazyLegs)
+			return ((LazyLegs) legs).firstDepartureTime;
+
 		return legs.get(0).getDepartureTime();
 	}
 
@@ -88,6 +95,9 @@ public final class Trip implements Serializable, Comparable<Trip>
 
 	public Date getLastArrivalTime()
 	{
+		if (legs instanceof LazyLegs)
+			return ((LazyLegs) legs).lastArrivalTime;
+
 		return legs.get(legs.size() - 1).getArrivalTime();
 	}
 
@@ -187,6 +197,9 @@ public final class Trip implements Serializable, Comparable<Trip>
 
 	public Set<Product> products()
 	{
+		if (legs instanceof LazyLegs)
+			return EnumSet.copyOf(((LazyLegs) legs).products);
+
 		final Set<Product> products = EnumSet.noneOf(Product.class);
 
 		for (final Leg leg : legs)
@@ -273,6 +286,92 @@ public final class Trip implements Serializable, Comparable<Trip>
 		return this.getId().compareTo(trip.getId());
 	}
 
+	/**
+	 * Legs that are decoded on first access, from a response buffer retained until then. The departure and arrival
+	 * times and the products of the trip are known without decoding them.
+	 * 
+	 * Call {@link #release()} before keeping trips around, e.g. in a cache, so that the buffer does not stay in memory.
+	 * The buffer is usually shared by all trips of a response, and much larger than the legs of one trip.
+	 */
+	public abstract static class LazyLegs extends AbstractList<Leg> implements Serializable
+	{
+		private static final long serialVersionUID = -4317095412934480512L;
+
+		private final Date firstDepartureTime;
+		private final Date lastArrivalTime;
+		private final EnumSet<Product> products = EnumSet.noneOf(Product.class);
+		private List<Leg> legs = null;
+
+		protected LazyLegs(final Date firstDepartureTime, final Date lastArrivalTime, final Set<Product> products)
+		{
+			this.firstDepartureTime = checkNotNull(firstDepartureTime);
+			this.lastArrivalTime = checkNotNull(lastArrivalTime);
+			this.products.addAll(products);
+		}
+
+		/** Decodes the legs from the retained buffer. Called at most once. */
+		protected abstract List<Leg> decodeLegs() throws IOException;
+
+		/** Drops all references to the retained buffer. */
+		protected abstract void releaseBuffer();
+
+		public synchronized boolean isDecoded()
+		{
+			return legs != null;
+		}
+
+		/**
+		 * Decodes the legs if that has not happened yet, and drops the retained buffer. The trip stays fully usable.
+		 */
+		public void release()
+		{
+			legs();
+		}
+
+		private synchronized List<Leg> legs()
+		{
+			if (legs == null)
+			{
+				try
+				{
+					legs = decodeLegs();
+				}
+				catch (final IOException x)
+				{
+					throw new RuntimeException(x);
+				}
+
+				releaseBuffer();
+			}
+
+			return legs;
+		}
+
+		@Override
+		public Leg get(final int index)
+		{
+			return legs().get(index);
+		}
+
+		@Override
+		public int size()
+		{
+			return legs().size();
+		}
+
+		@Override
+		public boolean isEmpty()
+		{
+			// there is always at least one leg
+			return false;
+		}
+
+		protected Object writeReplace() throws ObjectStreamException
+		{
+			return new ArrayList<Leg>(legs());
+		}
+	}
+
 	public abstract static class Leg implements Serializable
 	{
 		private static final long serialVersionUID = 8498461220084523265L;
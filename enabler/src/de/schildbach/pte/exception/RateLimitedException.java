@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.exception;
+
+import java.net.URL;
+
+/**
+ * Thrown instead of sending a request that would exceed the rate limit of the upstream, and could not wait for a
+ * permit long enough.
+ */
+@SuppressWarnings("serial")
+public class RateLimitedException extends AbstractHttpException
+{
+	private final long waitMs;
+
+	public RateLimitedException(final URL url, final long waitMs)
+	{
+		super(url, "rate limited for " + waitMs + " ms: " + url);
+		this.waitMs = waitMs;
+	}
+
+	/**
+	 * @return time until the next request would be permitted, in milliseconds
+	 */
+	public long getWaitMs()
+	{
+		return waitMs;
+	}
+}
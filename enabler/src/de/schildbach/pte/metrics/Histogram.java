@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values with a fixed relative precision over a wide range, in the manner of HDR histograms.
+ * Values are counted in buckets of powers of two, each split linearly into sub-buckets, so that the value reported for
+ * a percentile is off by at most one sub-bucket, i.e. {@code 2 / 2^subBucketBits} of the value. Memory is fixed and
+ * recording is lock-free.
+ */
+public final class Histogram
+{
+	private final int subBucketBits;
+	private final int subBucketHalfCount;
+	private final long highestTrackableValue;
+	private final AtomicLongArray counts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param highestTrackableValue
+	 *            larger values are counted as this value
+	 * @param subBucketBits
+	 *            precision, e.g. 7 for values within 1.6%
+	 */
+	public Histogram(final long highestTrackableValue, final int subBucketBits)
+	{
+		if (subBucketBits < 1 || subBucketBits > 16)
+			throw new IllegalArgumentException("subBucketBits: " + subBucketBits);
+		this.subBucketBits = subBucketBits;
+		this.subBucketHalfCount = 1 << (subBucketBits - 1);
+		this.highestTrackableValue = highestTrackableValue;
+		this.counts = new AtomicLongArray(index(highestTrackableValue) + 1);
+	}
+
+	public void record(final long value)
+	{
+		final long clamped = Math.min(Math.max(value, 0), highestTrackableValue);
+		counts.incrementAndGet(index(clamped));
+		count.incrementAndGet();
+		sum.addAndGet(clamped);
+		long currentMax;
+		while (clamped > (currentMax = max.get()) && !max.compareAndSet(currentMax, clamped))
+			;
+	}
+
+	public long count()
+	{
+		return count.get();
+	}
+
+	public long max()
+	{
+		return max.get();
+	}
+
+	public double mean()
+	{
+		final long n = count.get();
+		return n > 0 ? (double) sum.get() / n : 0;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return highest value that is equivalent to the values at the given percentile, or 0 if nothing was recorded
+	 */
+	public long percentile(final double percentile)
+	{
+		final long total = count.get();
+		if (total == 0)
+			return 0;
+
+		final long rank = Math.max((long) Math.ceil(Math.min(percentile, 100) / 100 * total), 1);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	private int index(final long value)
+	{
+		final int subBucketCount = subBucketHalfCount << 1;
+		if (value < subBucketCount)
+			return (int) value;
+
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits + 1;
+		return shift * subBucketHalfCount + (int) (value >>> shift);
+	}
+
+	private long highestValue(final int index)
+	{
+		final int subBucketCount = subBucketHalfCount << 1;
+		if (index < subBucketCount)
+			return index;
+
+		final int shift = index / subBucketHalfCount - 1;
+		final long subBucket = index - shift * subBucketHalfCount;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Histogram[count=" + count() + ", p50=" + percentile(50) + ", p99=" + percentile(99) + ", max=" + max() + "]";
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.schildbach.pte.NetworkId;
+
+/**
+ * Keeps histograms of the phases of queries in memory, per network and method. Times are recorded in microseconds,
+ * up to an hour, within 1.6%.
+ */
+public class HistogramInstrumentation implements Instrumentation
+{
+	private static final long HIGHEST_TRACKABLE_MICROS = 60L * 60 * 1000 * 1000;
+	private static final int SUB_BUCKET_BITS = 7;
+
+	public enum Phase
+	{
+		TOTAL, CONNECT, FIRST_BYTE, BODY_READ, DECOMPRESS, PARSE
+	}
+
+	public static final class Key implements Comparable<Key>
+	{
+		public final NetworkId network;
+		public final String method;
+
+		private Key(final NetworkId network, final String method)
+		{
+			this.network = network;
+			this.method = method;
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if (o == this)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			final Key other = (Key) o;
+			return network == other.network && method.equals(other.method);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return network.hashCode() * 31 + method.hashCode();
+		}
+
+		public int compareTo(final Key other)
+		{
+			final int networkComparison = network.compareTo(other.network);
+			return networkComparison != 0 ? networkComparison : method.compareTo(other.method);
+		}
+
+		@Override
+		public String toString()
+		{
+			return network + "." + method;
+		}
+	}
+
+	public static final class Stats
+	{
+		private final Histogram[] phases = new Histogram[Phase.values().length];
+		private final ConcurrentMap<String, AtomicLong> outcomes = new ConcurrentHashMap<String, AtomicLong>();
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong objects = new AtomicLong();
+		private final AtomicLong compressedBytes = new AtomicLong();
+		private final AtomicLong uncompressedBytes = new AtomicLong();
+
+		private Stats()
+		{
+			for (int i = 0; i < phases.length; i++)
+				phases[i] = new Histogram(HIGHEST_TRACKABLE_MICROS, SUB_BUCKET_BITS);
+		}
+
+		private void record(final QueryMetrics metrics)
+		{
+			record(Phase.TOTAL, metrics.total());
+			record(Phase.CONNECT, metrics.connect());
+			record(Phase.FIRST_BYTE, metrics.firstByte());
+			record(Phase.BODY_READ, metrics.bodyRead());
+			record(Phase.DECOMPRESS, metrics.decompress());
+			record(Phase.PARSE, metrics.parse());
+
+			AtomicLong outcome = outcomes.get(metrics.outcome());
+			if (outcome == null)
+			{
+				final AtomicLong newOutcome = new AtomicLong();
+				outcome = outcomes.putIfAbsent(metrics.outcome(), newOutcome);
+				if (outcome == null)
+					outcome = newOutcome;
+			}
+			outcome.incrementAndGet();
+
+			requests.addAndGet(metrics.requests());
+			objects.addAndGet(metrics.objects());
+			compressedBytes.addAndGet(metrics.compressedBytes());
+			uncompressedBytes.addAndGet(metrics.uncompressedBytes());
+		}
+
+		private void record(final Phase phase, final long nanos)
+		{
+			phases[phase.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		}
+
+		/**
+		 * @return histogram of the given phase, in microseconds
+		 */
+		public Histogram phase(final Phase phase)
+		{
+			return phases[phase.ordinal()];
+		}
+
+		public long queries()
+		{
+			return phases[Phase.TOTAL.ordinal()].count();
+		}
+
+		/**
+		 * @return number of queries by outcome, which is the status of the result or the simple name of the exception
+		 */
+		public SortedMap<String, Long> outcomes()
+		{
+			final SortedMap<String, Long> snapshot = new TreeMap<String, Long>();
+			for (final Map.Entry<String, AtomicLong> entry : outcomes.entrySet())
+				snapshot.put(entry.getKey(), entry.getValue().get());
+			return snapshot;
+		}
+
+		public long requests()
+		{
+			return requests.get();
+		}
+
+		public long objects()
+		{
+			return objects.get();
+		}
+
+		public long compressedBytes()
+		{
+			return compressedBytes.get();
+		}
+
+		public long uncompressedBytes()
+		{
+			return uncompressedBytes.get();
+		}
+	}
+
+	private final ConcurrentMap<Key, Stats> stats = new ConcurrentHashMap<Key, Stats>();
+
+	public void query(final QueryMetrics metrics)
+	{
+		final Key key = new Key(metrics.network, metrics.method);
+		Stats keyStats = stats.get(key);
+		if (keyStats == null)
+		{
+			final Stats newStats = new Stats();
+			keyStats = stats.putIfAbsent(key, newStats);
+			if (keyStats == null)
+				keyStats = newStats;
+		}
+		keyStats.record(metrics);
+	}
+
+	/**
+	 * @return stats of all networks and methods queried so far, ordered by network and method
+	 */
+	public SortedMap<Key, Stats> stats()
+	{
+		return new TreeMap<Key, Stats>(stats);
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import android.support.annotation.Nullable;
+
+import de.schildbach.pte.ForwardingNetworkProvider;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsContext;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.StationDepartures;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+
+/**
+ * Reports the metrics of every query to an {@link Instrumentation}. The network phases are added by the HTTP layer
+ * while the query runs on the calling thread.
+ */
+public class InstrumentedNetworkProvider extends ForwardingNetworkProvider
+{
+	private final Instrumentation instrumentation;
+
+	public InstrumentedNetworkProvider(final NetworkProvider delegate, final Instrumentation instrumentation)
+	{
+		super(delegate);
+		this.instrumentation = checkNotNull(instrumentation);
+	}
+
+	@Override
+	public NearbyLocationsResult queryNearbyLocations(final EnumSet<LocationType> types, final Location location, final int maxDistance,
+			final int maxLocations) throws IOException
+	{
+		final QueryMetrics metrics = QueryMetrics.begin(id(), "queryNearbyLocations");
+		try
+		{
+			final NearbyLocationsResult result = delegate.queryNearbyLocations(types, location, maxDistance, maxLocations);
+			metrics.succeeded(result.status.name(), result.locations != null ? result.locations.size() : 0);
+			return result;
+		}
+		catch (final IOException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		catch (final RuntimeException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		finally
+		{
+			metrics.end(instrumentation);
+		}
+	}
+
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures, final boolean equivs)
+			throws IOException
+	{
+		final QueryMetrics metrics = QueryMetrics.begin(id(), "queryDepartures");
+		try
+		{
+			final QueryDeparturesResult result = delegate.queryDepartures(stationId, time, maxDepartures, equivs);
+			metrics.succeeded(result.status.name(), departures(result));
+			return result;
+		}
+		catch (final IOException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		catch (final RuntimeException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		finally
+		{
+			metrics.end(instrumentation);
+		}
+	}
+
+	@Override
+	public QueryDeparturesResult queryDepartures(final String stationId, final @Nullable Date time, final int maxDepartures,
+			final boolean equivs, final DepartureSink sink) throws IOException
+	{
+		final QueryMetrics metrics = QueryMetrics.begin(id(), "queryDepartures");
+		try
+		{
+			final QueryDeparturesResult result = delegate.queryDepartures(stationId, time, maxDepartures, equivs, sink);
+			metrics.succeeded(result.status.name(), departures(result));
+			return result;
+		}
+		catch (final IOException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		catch (final RuntimeException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		finally
+		{
+			metrics.end(instrumentation);
+		}
+	}
+
+	@Override
+	public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
+	{
+		final QueryMetrics metrics = QueryMetrics.begin(id(), "suggestLocations");
+		try
+		{
+			final SuggestLocationsResult result = delegate.suggestLocations(constraint);
+			metrics.succeeded(result.status.name(), result.status == SuggestLocationsResult.Status.OK ? result.getLocations().size() : 0);
+			return result;
+		}
+		catch (final IOException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		catch (final RuntimeException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		finally
+		{
+			metrics.end(instrumentation);
+		}
+	}
+
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options) throws IOException
+	{
+		final QueryMetrics metrics = QueryMetrics.begin(id(), "queryTrips");
+		try
+		{
+			final QueryTripsResult result = delegate.queryTrips(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options);
+			metrics.succeeded(result.status.name(), result.trips != null ? result.trips.size() : 0);
+			return result;
+		}
+		catch (final IOException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		catch (final RuntimeException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		finally
+		{
+			metrics.end(instrumentation);
+		}
+	}
+
+	@Override
+	public QueryTripsResult queryTrips(final Location from, final @Nullable Location via, final Location to, final Date date, final boolean dep,
+			final @Nullable Set<Product> products, final @Nullable Optimize optimize, final @Nullable WalkSpeed walkSpeed,
+			final @Nullable Accessibility accessibility, final @Nullable Set<Option> options, final TripSink sink) throws IOException
+	{
+		final QueryMetrics metrics = QueryMetrics.begin(id(), "queryTrips");
+		try
+		{
+			final QueryTripsResult result = delegate.queryTrips(from, via, to, date, dep, products, optimize, walkSpeed, accessibility, options,
+					sink);
+			metrics.succeeded(result.status.name(), result.trips != null ? result.trips.size() : 0);
+			return result;
+		}
+		catch (final IOException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		catch (final RuntimeException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		finally
+		{
+			metrics.end(instrumentation);
+		}
+	}
+
+	@Override
+	public QueryTripsResult queryMoreTrips(final QueryTripsContext context, final boolean later) throws IOException
+	{
+		final QueryMetrics metrics = QueryMetrics.begin(id(), "queryMoreTrips");
+		try
+		{
+			final QueryTripsResult result = delegate.queryMoreTrips(context, later);
+			metrics.succeeded(result.status.name(), result.trips != null ? result.trips.size() : 0);
+			return result;
+		}
+		catch (final IOException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		catch (final RuntimeException x)
+		{
+			metrics.failed(x);
+			throw x;
+		}
+		finally
+		{
+			metrics.end(instrumentation);
+		}
+	}
+
+	private static int departures(final QueryDeparturesResult result)
+	{
+		int count = 0;
+		for (final StationDepartures stationDepartures : result.stationDepartures)
+			count += stationDepartures.departures.size();
+		return count;
+	}
+}
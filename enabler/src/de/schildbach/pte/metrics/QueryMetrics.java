@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.metrics;
+
+import com.google.common.base.MoreObjects;
+
+import de.schildbach.pte.NetworkId;
+
+/**
+ * Metrics of a single query, collected while it runs. The query is bound to its thread, so that the HTTP layer in
+ * {@link de.schildbach.pte.util.ParserUtils} can add the time spent on each upstream request. Whatever time of the
+ * query is not spent on the network or decompression is taken as parse time.
+ *
+ * All times are in nanoseconds.
+ */
+public final class QueryMetrics
+{
+	private static final ThreadLocal<QueryMetrics> CURRENT = new ThreadLocal<QueryMetrics>();
+
+	public final NetworkId network;
+	public final String method;
+
+	private final QueryMetrics outer;
+	private final long startedAt = System.nanoTime();
+	private long total = 0;
+	// an Error is the only way to end a query without passing a result or exception
+	private String outcome = "Error";
+	private int objects = 0;
+	private int requests = 0;
+	private long connect = 0;
+	private long firstByte = 0;
+	private long bodyRead = 0;
+	private long decompress = 0;
+	private long compressedBytes = 0;
+	private long uncompressedBytes = 0;
+
+	private QueryMetrics(final NetworkId network, final String method, final QueryMetrics outer)
+	{
+		this.network = network;
+		this.method = method;
+		this.outer = outer;
+	}
+
+	/**
+	 * Starts collecting metrics of a query on the current thread. Must be followed by {@link #end(Instrumentation)} on
+	 * the same thread.
+	 */
+	public static QueryMetrics begin(final NetworkId network, final String method)
+	{
+		final QueryMetrics metrics = new QueryMetrics(network, method, CURRENT.get());
+		CURRENT.set(metrics);
+		return metrics;
+	}
+
+	/**
+	 * @return metrics of the query running on the current thread, or {@code null} if there is none
+	 */
+	public static QueryMetrics current()
+	{
+		return CURRENT.get();
+	}
+
+	/**
+	 * Stops collecting and reports the metrics.
+	 */
+	public void end(final Instrumentation instrumentation)
+	{
+		total = System.nanoTime() - startedAt;
+		if (outer != null)
+			CURRENT.set(outer);
+		else
+			CURRENT.remove();
+		instrumentation.query(this);
+	}
+
+	public void succeeded(final String status, final int objects)
+	{
+		this.outcome = status;
+		this.objects = objects;
+	}
+
+	public void failed(final Exception x)
+	{
+		this.outcome = x.getClass().getSimpleName();
+	}
+
+	/**
+	 * Adds an upstream request, with the time for connecting, including resolving the host, and waiting for the
+	 * response after sending the request.
+	 */
+	public void request(final long connect, final long firstByte)
+	{
+		this.requests++;
+		this.connect += connect;
+		this.firstByte += firstByte;
+	}
+
+	/**
+	 * Adds time spent reading response bodies as received, and their size.
+	 */
+	public void bodyRead(final long nanos, final long bytes)
+	{
+		this.bodyRead += nanos;
+		this.compressedBytes += bytes;
+	}
+
+	/**
+	 * Adds time spent decompressing response bodies, not including reading them, and their size as handed to the
+	 * parser.
+	 */
+	public void decoded(final long nanos, final long bytes)
+	{
+		this.decompress += nanos;
+		this.uncompressedBytes += bytes;
+	}
+
+	public long total()
+	{
+		return total;
+	}
+
+	public String outcome()
+	{
+		return outcome;
+	}
+
+	/**
+	 * @return number of locations, departures or trips in the result
+	 */
+	public int objects()
+	{
+		return objects;
+	}
+
+	public int requests()
+	{
+		return requests;
+	}
+
+	public long connect()
+	{
+		return connect;
+	}
+
+	public long firstByte()
+	{
+		return firstByte;
+	}
+
+	public long bodyRead()
+	{
+		return bodyRead;
+	}
+
+	public long decompress()
+	{
+		return decompress;
+	}
+
+	public long parse()
+	{
+		return Math.max(total - connect - firstByte - bodyRead - decompress, 0);
+	}
+
+	public long compressedBytes()
+	{
+		return compressedBytes;
+	}
+
+	/**
+	 * @return size of the response bodies as handed to the parser, after decompression
+	 */
+	public long uncompressedBytes()
+	{
+		return uncompressedBytes;
+	}
+
+	@Override
+	public String toString()
+	{
+		return MoreObjects.toStringHelper(this).addValue(network).addValue(method).addValue(outcome).add("objects", objects)
+				.add("requests", requests).add("total", total).add("connect", connect).add("firstByte", firstByte)
+				.add("bodyRead", bodyRead).add("decompress", decompress).add("parse", parse()).add("bytes", compressedBytes)
+				.add("uncompressed", uncompressedBytes).toString();
+	}
+}
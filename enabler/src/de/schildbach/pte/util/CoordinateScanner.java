@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.schildbach.pte.dto.Point;
+
+/**
+ * Scans lists of decimal coordinates, like {@code "7.1,51.2 7.2,51.3"} or {@code "POLYGON((7.1 51.2, 7.2 51.3))"},
+ * directly from character data into microdegrees, without creating intermediate strings or doubles. Any character
+ * that cannot start a number separates values.
+ */
+public final class CoordinateScanner
+{
+	/** Shift for values given in degrees. */
+	public static final int DEGREES = 6;
+	/** Shift for values given in microdegrees already. */
+	public static final int MICRODEGREES = 0;
+
+	private static final long[] POWERS_OF_TEN = new long[19];
+
+	static
+	{
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	private final CharSequence chars;
+	private final int end;
+	private final int shift;
+	private int pos;
+
+	/**
+	 * @param shift
+	 *            decimal places to shift values by to get microdegrees, {@link #DEGREES} or {@link #MICRODEGREES}
+	 */
+	public CoordinateScanner(final CharSequence chars, final int shift)
+	{
+		this(chars, 0, chars.length(), shift);
+	}
+
+	public CoordinateScanner(final CharSequence chars, final int start, final int end, final int shift)
+	{
+		this.chars = chars;
+		this.pos = start;
+		this.end = end;
+		this.shift = shift;
+	}
+
+	public boolean hasNext()
+	{
+		while (pos < end)
+		{
+			final char c = chars.charAt(pos);
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.')
+				return true;
+			pos++;
+		}
+		return false;
+	}
+
+	/**
+	 * @return next value, in microdegrees
+	 */
+	public int next()
+	{
+		if (!hasNext())
+			throw new IllegalStateException("no more values at " + pos);
+
+		boolean negative = false;
+		char c = chars.charAt(pos);
+		if (c == '-' || c == '+')
+		{
+			negative = c == '-';
+			pos++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = shift;
+		boolean fraction = false;
+		for (; pos < end; pos++)
+		{
+			c = chars.charAt(pos);
+			if (c >= '0' && c <= '9')
+			{
+				// digits beyond the precision of a long do not matter for coordinates
+				if (digits < 18)
+				{
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0)
+						digits++;
+					if (fraction)
+						exponent--;
+				}
+				else if (!fraction)
+				{
+					exponent++;
+				}
+			}
+			else if (c == '.' && !fraction)
+			{
+				fraction = true;
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		if (pos < end && (c == 'e' || c == 'E'))
+		{
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < end && (chars.charAt(pos) == '-' || chars.charAt(pos) == '+'))
+				negativeExponent = chars.charAt(pos++) == '-';
+			int e = 0;
+			for (; pos < end && (c = chars.charAt(pos)) >= '0' && c <= '9'; pos++)
+				e = e * 10 + (c - '0');
+			exponent += negativeExponent ? -e : e;
+		}
+
+		if (negative)
+			mantissa = -mantissa;
+
+		// a single rounding step, halves are rounded up like Math.round() does
+		if (exponent >= POWERS_OF_TEN.length)
+			throw new IllegalStateException("value out of range before " + pos);
+		else if (exponent >= 0)
+			return (int) (mantissa * POWERS_OF_TEN[exponent]);
+		else if (-exponent < POWERS_OF_TEN.length)
+			return (int) Math.round((double) mantissa / POWERS_OF_TEN[-exponent]);
+		else
+			return 0;
+	}
+
+	/**
+	 * @return all values, in microdegrees
+	 */
+	public static int[] scan(final CharSequence chars, final int shift)
+	{
+		final CoordinateScanner scanner = new CoordinateScanner(chars, shift);
+		int[] values = new int[16];
+		int count = 0;
+		while (scanner.hasNext())
+		{
+			if (count == values.length)
+			{
+				final int[] grown = new int[count * 2];
+				System.arraycopy(values, 0, grown, 0, count);
+				values = grown;
+			}
+			values[count++] = scanner.next();
+		}
+
+		if (count == values.length)
+			return values;
+		final int[] trimmed = new int[count];
+		System.arraycopy(values, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	/**
+	 * Appends the pairs of values as points.
+	 *
+	 * @param lonFirst
+	 *            {@code true} if longitude comes first in each pair, as with x/y coordinates
+	 */
+	public static void addPoints(final int[] values, final boolean lonFirst, final List<Point> points)
+	{
+		if (values.length % 2 != 0)
+			throw new IllegalArgumentException("odd number of values: " + values.length);
+
+		for (int i = 0; i < values.length; i += 2)
+			points.add(lonFirst ? new Point(values[i + 1], values[i]) : new Point(values[i], values[i + 1]));
+	}
+
+	public static List<Point> toPoints(final int[] values, final boolean lonFirst)
+	{
+		final List<Point> points = new ArrayList<Point>(values.length / 2);
+		addPoints(values, lonFirst, points);
+		return points;
+	}
+}
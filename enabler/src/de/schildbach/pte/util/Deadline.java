@@ -0,0 +1,339 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.schildbach.pte.exception.DeadlineExceededException;
+
+/**
+ * Time budget of a call, shared by all upstream requests made on its behalf. The deadline is bound to the calling
+ * thread, so that the HTTP layer in {@link ParserUtils} can limit the timeouts of each request to the time remaining,
+ * and refuse to send requests once it has passed. When it passes, or the deadline is cancelled from another thread,
+ * the connections opened under it are closed, which aborts requests blocked on the network.
+ *
+ * Deadlines nest: a deadline begun while another is bound expires no later than the outer one, and is cancelled with
+ * it.
+ *
+ * <pre>
+ * final Deadline deadline = Deadline.begin(10000);
+ * try
+ * {
+ * 	provider.queryTrips(...);
+ * }
+ * finally
+ * {
+ * 	deadline.end();
+ * }
+ * </pre>
+ */
+public final class Deadline
+{
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+	private static final long NANOS_PER_MS = 1000 * 1000;
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+	private static final Sweeper sweeper = new Sweeper();
+
+	private final Deadline outer;
+	private final boolean expires;
+	private final long expiresAt;
+	private final long sequence = SEQUENCE.getAndIncrement();
+	private final List<HttpURLConnection> connections = new LinkedList<HttpURLConnection>();
+	private boolean armed = false;
+	private volatile boolean cancelled = false;
+	private boolean ended = false;
+
+	private Deadline(final Deadline outer, final boolean expires, final long expiresAt)
+	{
+		this.outer = outer;
+		this.expires = expires;
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * Closes the connections of deadlines as they pass. One thread serves all deadlines, and a deadline is forgotten as
+	 * soon as it ends, so that finished calls are not kept in memory until their time would have been up. The thread is
+	 * only started once a deadline is first armed, so that apps not using deadlines don't get it.
+	 */
+	private static final class Sweeper implements Runnable
+	{
+		private boolean started = false;
+
+		private final SortedSet<Deadline> armed = new TreeSet<Deadline>(new Comparator<Deadline>()
+		{
+			public int compare(final Deadline deadline1, final Deadline deadline2)
+			{
+				final long diff = deadline1.expiresAt - deadline2.expiresAt;
+				if (diff != 0)
+					return diff < 0 ? -1 : 1;
+				return deadline1.sequence < deadline2.sequence ? -1 : (deadline1.sequence > deadline2.sequence ? 1 : 0);
+			}
+		});
+
+		synchronized void arm(final Deadline deadline)
+		{
+			if (!started)
+			{
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("deadline-%d").build().newThread(this).start();
+				started = true;
+			}
+
+			armed.add(deadline);
+			// wake up early if it passes before the one waited for
+			if (armed.first() == deadline)
+				notify();
+		}
+
+		synchronized void disarm(final Deadline deadline)
+		{
+			armed.remove(deadline);
+		}
+
+		synchronized int size()
+		{
+			return armed.size();
+		}
+
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					final Deadline passed;
+					synchronized (this)
+					{
+						if (armed.isEmpty())
+						{
+							wait();
+							continue;
+						}
+
+						final Deadline first = armed.first();
+						final long remaining = first.expiresAt - System.nanoTime();
+						if (remaining > 0)
+						{
+							TimeUnit.NANOSECONDS.timedWait(this, remaining);
+							continue;
+						}
+
+						armed.remove(first);
+						passed = first;
+					}
+
+					// outside of the lock, as closing takes the lock of the deadline
+					passed.close(false);
+				}
+			}
+			catch (final InterruptedException x)
+			{
+				// daemon thread, ends with the process
+			}
+		}
+	}
+
+	/**
+	 * Begins a deadline the given time from now and binds it to the current thread. Must be followed by {@link #end()}
+	 * on the same thread.
+	 */
+	public static Deadline begin(final long timeoutMs)
+	{
+		checkArgument(timeoutMs >= 0, "timeoutMs must not be negative: %s", timeoutMs);
+		final Deadline outer = CURRENT.get();
+		long expiresAt = System.nanoTime() + timeoutMs * NANOS_PER_MS;
+		if (outer != null && outer.expires && outer.expiresAt - expiresAt < 0)
+			expiresAt = outer.expiresAt;
+		return bindNew(new Deadline(outer, true, expiresAt));
+	}
+
+	/**
+	 * Begins a deadline without a time limit of its own, which can be cancelled separately from the outer one.
+	 */
+	public static Deadline begin()
+	{
+		final Deadline outer = CURRENT.get();
+		return bindNew(new Deadline(outer, outer != null && outer.expires, outer != null ? outer.expiresAt : 0));
+	}
+
+	private static Deadline bindNew(final Deadline deadline)
+	{
+		CURRENT.set(deadline);
+		return deadline;
+	}
+
+	/**
+	 * @return deadline bound to the current thread, or {@code null} if there is none
+	 */
+	public static Deadline current()
+	{
+		return CURRENT.get();
+	}
+
+	/**
+	 * Binds the given deadline to the current thread, e.g. to continue a call on another thread.
+	 *
+	 * @return deadline bound before, to be restored by binding it again
+	 */
+	public static Deadline bind(final Deadline deadline)
+	{
+		final Deadline previous = CURRENT.get();
+		if (deadline != null)
+			CURRENT.set(deadline);
+		else
+			CURRENT.remove();
+		return previous;
+	}
+
+	/**
+	 * Ends the deadline and binds the outer one again. Connections opened under the deadline are left alone.
+	 */
+	public void end()
+	{
+		synchronized (this)
+		{
+			ended = true;
+			connections.clear();
+			if (armed)
+				sweeper.disarm(this);
+		}
+		bind(outer);
+	}
+
+	/**
+	 * Cancels the call, closing all connections opened under this deadline. Requests made afterwards fail.
+	 */
+	public void cancel()
+	{
+		close(true);
+	}
+
+	public boolean isCancelled()
+	{
+		for (Deadline deadline = this; deadline != null; deadline = deadline.outer)
+			if (deadline.cancelled)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return time remaining in milliseconds, or {@link Long#MAX_VALUE} if there is no time limit
+	 */
+	public long remainingMs()
+	{
+		if (!expires)
+			return Long.MAX_VALUE;
+		return Math.max(expiresAt - System.nanoTime(), 0) / NANOS_PER_MS;
+	}
+
+	/**
+	 * @throws InterruptedIOException
+	 *             if the call has been cancelled
+	 * @throws DeadlineExceededException
+	 *             if the deadline has passed
+	 */
+	public void check() throws IOException
+	{
+		if (isCancelled())
+			throw new InterruptedIOException("call cancelled");
+		if (expires && expiresAt - System.nanoTime() <= 0)
+			throw new DeadlineExceededException("deadline exceeded");
+	}
+
+	/**
+	 * @return the given timeout, limited to the time remaining
+	 */
+	int timeout(final int timeoutMs)
+	{
+		return (int) Math.max(Math.min(timeoutMs, remainingMs()), 1);
+	}
+
+	/**
+	 * Closes the connection once the deadline passes or it is cancelled, whichever comes first. The connection must be
+	 * connected already, as closing it before would have no effect.
+	 *
+	 * @throws IOException
+	 *             if the deadline has been cancelled or has passed while connecting
+	 */
+	void register(final HttpURLConnection connection) throws IOException
+	{
+		for (Deadline deadline = this; deadline != null; deadline = deadline.outer)
+		{
+			synchronized (deadline)
+			{
+				if (deadline.ended)
+					continue;
+				deadline.connections.add(connection);
+				if (deadline.expires && !deadline.armed)
+				{
+					deadline.armed = true;
+					sweeper.arm(deadline);
+				}
+			}
+		}
+
+		try
+		{
+			check();
+		}
+		catch (final IOException x)
+		{
+			connection.disconnect();
+			throw x;
+		}
+	}
+
+	/**
+	 * @return number of deadlines waiting to pass, for tests
+	 */
+	static int armedCount()
+	{
+		return sweeper.size();
+	}
+
+	private void close(final boolean cancel)
+	{
+		final List<HttpURLConnection> toClose;
+		synchronized (this)
+		{
+			if (ended)
+				return;
+			if (cancel)
+				cancelled = true;
+			toClose = new ArrayList<HttpURLConnection>(connections);
+			connections.clear();
+		}
+
+		for (final HttpURLConnection connection : toClose)
+			connection.disconnect();
+	}
+}
@@ -0,0 +1,666 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Streaming tokenizer for the HTML pages some providers serve instead of an API. Pages are read through a small buffer,
+ * so memory is bounded by the longest tag or text run rather than by the page. Character references are decoded in the
+ * same pass. Comments, doctypes, processing instructions and the content of scripts and styles are skipped.
+ *
+ * Single elements, typically table rows, can be read as small trees via {@link #readElement()} and {@link #nextRow()},
+ * with end tags that HTML allows to be omitted closed implicitly.
+ */
+public final class HtmlTokenizer
+{
+	public enum Token
+	{
+		START_TAG, END_TAG, TEXT, END_DOCUMENT
+	}
+
+	/**
+	 * Element read by {@link HtmlTokenizer#readElement()}, with its attributes, child elements and text content.
+	 */
+	public static final class Element
+	{
+		public final String name;
+		public final List<Element> children = new ArrayList<Element>(2);
+		private final Map<String, String> attributes;
+		private final StringBuilder text = new StringBuilder();
+
+		private Element(final String name, final Map<String, String> attributes)
+		{
+			this.name = name;
+			this.attributes = attributes;
+		}
+
+		public String attribute(final String name)
+		{
+			return attributes.get(name);
+		}
+
+		public boolean hasClass(final String cssClass)
+		{
+			final String classes = attributes.get("class");
+			if (classes == null)
+				return false;
+
+			for (int start = 0; start < classes.length();)
+			{
+				int end = start;
+				while (end < classes.length() && !Character.isWhitespace(classes.charAt(end)))
+					end++;
+				if (end - start == cssClass.length() && classes.regionMatches(start, cssClass, 0, cssClass.length()))
+					return true;
+				start = end + 1;
+			}
+			return false;
+		}
+
+		/**
+		 * @return text content of this element and its descendants, with whitespace collapsed and trimmed
+		 */
+		public String text()
+		{
+			final StringBuilder collapsed = new StringBuilder(text.length());
+			boolean whitespace = false;
+			for (int i = 0; i < text.length(); i++)
+			{
+				final char c = text.charAt(i);
+				if (Character.isWhitespace(c))
+				{
+					whitespace = true;
+				}
+				else
+				{
+					if (whitespace && collapsed.length() > 0)
+						collapsed.append(' ');
+					collapsed.append(c);
+					whitespace = false;
+				}
+			}
+			return collapsed.toString();
+		}
+
+		/**
+		 * @return first descendant with the given name, in document order, or {@code null} if there is none
+		 */
+		public Element first(final String name)
+		{
+			for (final Element child : children)
+			{
+				if (child.name.equals(name))
+					return child;
+				final Element descendant = child.first(name);
+				if (descendant != null)
+					return descendant;
+			}
+			return null;
+		}
+
+		/**
+		 * @return all descendants with the given name, in document order
+		 */
+		public List<Element> all(final String name)
+		{
+			final List<Element> elements = new ArrayList<Element>(4);
+			collect(name, elements);
+			return elements;
+		}
+
+		private void collect(final String name, final List<Element> elements)
+		{
+			for (final Element child : children)
+			{
+				if (child.name.equals(name))
+					elements.add(child);
+				child.collect(name, elements);
+			}
+		}
+
+		/**
+		 * @return data and header cells, if this element is a table row
+		 */
+		public List<Element> cells()
+		{
+			final List<Element> cells = new ArrayList<Element>(children.size());
+			for (final Element child : children)
+				if (child.name.equals("td") || child.name.equals("th"))
+					cells.add(child);
+			return cells;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "<" + name + " " + attributes + ">" + text() + "</" + name + ">";
+		}
+	}
+
+	private static final int BUFFER_SIZE = 4096;
+	private static final int MAX_ENTITY_LENGTH = 10;
+
+	private static final Set<String> VOID_ELEMENTS = ImmutableSet.of("area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta",
+			"param", "source", "wbr");
+	private static final Set<String> RAW_TEXT_ELEMENTS = ImmutableSet.of("script", "style");
+	private static final Set<String> CONTAINERS = ImmutableSet.of("table", "thead", "tbody", "tfoot", "ul", "ol");
+
+	private static final Map<String, Character> NAMED_ENTITIES = new HashMap<String, Character>();
+
+	static
+	{
+		NAMED_ENTITIES.put("amp", '&');
+		NAMED_ENTITIES.put("lt", '<');
+		NAMED_ENTITIES.put("gt", '>');
+		NAMED_ENTITIES.put("quot", '"');
+		NAMED_ENTITIES.put("apos", '\'');
+		NAMED_ENTITIES.put("nbsp", ' ');
+		NAMED_ENTITIES.put("szlig", 'ß');
+		NAMED_ENTITIES.put("auml", 'ä');
+		NAMED_ENTITIES.put("ouml", 'ö');
+		NAMED_ENTITIES.put("uuml", 'ü');
+		NAMED_ENTITIES.put("Auml", 'Ä');
+		NAMED_ENTITIES.put("Ouml", 'Ö');
+		NAMED_ENTITIES.put("Uuml", 'Ü');
+	}
+
+	private final Reader reader;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+
+	private Token token = null;
+	private String name = null;
+	private Map<String, String> attributes = Collections.emptyMap();
+	private boolean emptyElement = false;
+	private final StringBuilder text = new StringBuilder();
+	private boolean pushedBack = false;
+
+	public HtmlTokenizer(final Reader reader)
+	{
+		this.reader = reader;
+	}
+
+	public Token next() throws IOException
+	{
+		if (pushedBack)
+		{
+			pushedBack = false;
+			return token;
+		}
+
+		if (token == Token.START_TAG && !emptyElement && RAW_TEXT_ELEMENTS.contains(name))
+		{
+			skipRawText(name);
+			attributes = Collections.emptyMap();
+			return token = Token.END_TAG;
+		}
+
+		text.setLength(0);
+		int ampersand = -1;
+		while (true)
+		{
+			final int c = peek(0);
+			if (c == -1)
+				break;
+
+			if (c == '<')
+			{
+				final int c1 = peek(1);
+				if (isLetter(c1) || c1 == '/' || c1 == '!' || c1 == '?')
+				{
+					if (text.length() > 0)
+						break;
+
+					pos++;
+					if (c1 == '/')
+					{
+						pos++;
+						name = readName();
+						skipPast('>');
+						attributes = Collections.emptyMap();
+						return token = Token.END_TAG;
+					}
+					else if (c1 == '!' || c1 == '?')
+					{
+						skipMarkup();
+						continue;
+					}
+					else
+					{
+						readStartTag();
+						return token = Token.START_TAG;
+					}
+				}
+			}
+
+			pos++;
+			ampersand = appendDecoding(text, ampersand, (char) c);
+		}
+
+		name = null;
+		attributes = Collections.emptyMap();
+		return token = text.length() > 0 ? Token.TEXT : Token.END_DOCUMENT;
+	}
+
+	/**
+	 * @return lower case name of the current start or end tag
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return decoded value of an attribute of the current start tag, or {@code null} if it is not present
+	 */
+	public String getAttribute(final String name)
+	{
+		return attributes.get(name);
+	}
+
+	public boolean isEmptyElement()
+	{
+		return emptyElement;
+	}
+
+	/**
+	 * @return decoded text of the current text token
+	 */
+	public String getText()
+	{
+		return text.toString();
+	}
+
+	/**
+	 * Reads the element at the current start tag, including its content and end tag. Reading stops before a start tag
+	 * or an end tag that implicitly ends the element.
+	 */
+	public Element readElement() throws IOException
+	{
+		if (token != Token.START_TAG)
+			throw new IllegalStateException("not at start tag: " + token);
+
+		final Element root = new Element(name, attributes);
+		if (emptyElement || VOID_ELEMENTS.contains(name))
+			return root;
+
+		final List<Element> open = new ArrayList<Element>(8);
+		open.add(root);
+		while (true)
+		{
+			final Token token = next();
+			if (token == Token.START_TAG)
+			{
+				int top = open.size() - 1;
+				while (top >= 0 && implicitlyEnds(name, open.get(top).name))
+					top--;
+				if (top < 0)
+				{
+					pushedBack = true;
+					return root;
+				}
+				while (open.size() > top + 1)
+					open.remove(open.size() - 1);
+
+				final Element element = new Element(name, attributes);
+				open.get(top).children.add(element);
+				if (!emptyElement && !VOID_ELEMENTS.contains(name))
+					open.add(element);
+			}
+			else if (token == Token.END_TAG)
+			{
+				int index = open.size() - 1;
+				while (index >= 0 && !open.get(index).name.equals(name))
+					index--;
+				if (index == 0)
+				{
+					return root;
+				}
+				else if (index > 0)
+				{
+					while (open.size() > index)
+						open.remove(open.size() - 1);
+				}
+				else if (CONTAINERS.contains(name))
+				{
+					pushedBack = true;
+					return root;
+				}
+			}
+			else if (token == Token.TEXT)
+			{
+				for (final Element element : open)
+					element.text.append(text);
+			}
+			else
+			{
+				return root;
+			}
+		}
+	}
+
+	/**
+	 * Reads the next row of the current table, skipping nested tables.
+	 *
+	 * @return the row, or {@code null} at the end of the table or document
+	 */
+	public Element nextRow() throws IOException
+	{
+		while (true)
+		{
+			final Token token = next();
+			if (token == Token.END_DOCUMENT)
+				return null;
+			else if (token == Token.END_TAG && name.equals("table"))
+				return null;
+			else if (token == Token.START_TAG && name.equals("tr"))
+				return readElement();
+			else if (token == Token.START_TAG && name.equals("table"))
+				readElement();
+		}
+	}
+
+	/**
+	 * Decodes numeric and the common named character references in a single pass. Unknown references are kept as they
+	 * are.
+	 */
+	public static String decodeEntities(final CharSequence str)
+	{
+		final StringBuilder builder = new StringBuilder(str.length());
+		int ampersand = -1;
+		for (int i = 0; i < str.length(); i++)
+			ampersand = appendDecoding(builder, ampersand, str.charAt(i));
+		return builder.toString();
+	}
+
+	/**
+	 * Appends a character, replacing a character reference ended by it.
+	 *
+	 * @return position of the ampersand of a possible reference in progress, or {@code -1}
+	 */
+	private static int appendDecoding(final StringBuilder builder, final int ampersand, final char c)
+	{
+		if (c == ';' && ampersand != -1)
+		{
+			final int codePoint = decodeEntity(builder, ampersand + 1);
+			if (codePoint != -1)
+			{
+				builder.setLength(ampersand);
+				builder.appendCodePoint(codePoint);
+				return -1;
+			}
+		}
+
+		builder.append(c);
+		if (c == '&')
+			return builder.length() - 1;
+		else if (ampersand == -1 || builder.length() - ampersand > MAX_ENTITY_LENGTH)
+			return -1;
+		else if (isLetter(c) || (c >= '0' && c <= '9') || (c == '#' && builder.length() - ampersand == 2))
+			return ampersand;
+		else
+			return -1;
+	}
+
+	private static int decodeEntity(final StringBuilder builder, final int start)
+	{
+		final int end = builder.length();
+		if (start == end)
+			return -1;
+
+		if (builder.charAt(start) != '#')
+		{
+			final Character c = NAMED_ENTITIES.get(builder.substring(start, end));
+			return c != null ? c.charValue() : -1;
+		}
+
+		final boolean hex = start + 1 < end && (builder.charAt(start + 1) == 'x' || builder.charAt(start + 1) == 'X');
+		final int digits = start + (hex ? 2 : 1);
+		if (digits == end)
+			return -1;
+		int codePoint = 0;
+		for (int i = digits; i < end; i++)
+		{
+			final int digit = Character.digit(builder.charAt(i), hex ? 16 : 10);
+			if (digit == -1)
+				return -1;
+			codePoint = codePoint * (hex ? 16 : 10) + digit;
+			if (codePoint > Character.MAX_CODE_POINT)
+				return -1;
+		}
+		return codePoint;
+	}
+
+	private static boolean implicitlyEnds(final String startTag, final String openElement)
+	{
+		if (startTag.equals("tr"))
+			return openElement.equals("tr") || openElement.equals("td") || openElement.equals("th");
+		else if (startTag.equals("td") || startTag.equals("th"))
+			return openElement.equals("td") || openElement.equals("th");
+		else if (startTag.equals("li"))
+			return openElement.equals("li");
+		else
+			return false;
+	}
+
+	private void readStartTag() throws IOException
+	{
+		name = readName();
+		attributes = new LinkedHashMap<String, String>(4);
+		emptyElement = false;
+
+		while (true)
+		{
+			skipWhitespace();
+			final int c = peek(0);
+			if (c == -1)
+			{
+				return;
+			}
+			else if (c == '>')
+			{
+				pos++;
+				return;
+			}
+			else if (c == '/')
+			{
+				pos++;
+				if (peek(0) == '>')
+				{
+					pos++;
+					emptyElement = true;
+					return;
+				}
+				continue;
+			}
+
+			final String attributeName = readName();
+			if (attributeName.length() == 0)
+			{
+				// stray character, like a quote
+				pos++;
+				continue;
+			}
+			skipWhitespace();
+			if (peek(0) == '=')
+			{
+				pos++;
+				skipWhitespace();
+				attributes.put(attributeName, readAttributeValue());
+			}
+			else
+			{
+				attributes.put(attributeName, "");
+			}
+		}
+	}
+
+	private String readName() throws IOException
+	{
+		final StringBuilder name = new StringBuilder(16);
+		while (true)
+		{
+			final int c = peek(0);
+			if (c == -1 || c == '>' || c == '/' || c == '=' || Character.isWhitespace(c) || c == '"' || c == '\'')
+				break;
+			name.append(Character.toLowerCase((char) c));
+			pos++;
+		}
+		return name.toString();
+	}
+
+	private String readAttributeValue() throws IOException
+	{
+		final StringBuilder value = new StringBuilder(32);
+		int ampersand = -1;
+		final int quote = peek(0);
+		if (quote == '"' || quote == '\'')
+		{
+			pos++;
+			while (true)
+			{
+				final int c = read();
+				if (c == -1 || c == quote)
+					break;
+				ampersand = appendDecoding(value, ampersand, (char) c);
+			}
+		}
+		else
+		{
+			while (true)
+			{
+				final int c = peek(0);
+				if (c == -1 || c == '>' || Character.isWhitespace(c))
+					break;
+				pos++;
+				ampersand = appendDecoding(value, ampersand, (char) c);
+			}
+		}
+		return value.toString();
+	}
+
+	private void skipMarkup() throws IOException
+	{
+		if (peek(0) == '!' && peek(1) == '-' && peek(2) == '-')
+		{
+			pos += 3;
+			int dashes = 0;
+			while (true)
+			{
+				final int c = read();
+				if (c == -1 || (c == '>' && dashes >= 2))
+					return;
+				dashes = c == '-' ? dashes + 1 : 0;
+			}
+		}
+		else
+		{
+			skipPast('>');
+		}
+	}
+
+	private void skipRawText(final String element) throws IOException
+	{
+		while (true)
+		{
+			final int c = read();
+			if (c == -1)
+				return;
+			if (c == '<' && peek(0) == '/')
+			{
+				boolean matches = true;
+				for (int i = 0; i < element.length() && matches; i++)
+					matches = Character.toLowerCase(peek(1 + i)) == element.charAt(i);
+				if (matches)
+				{
+					pos++;
+					readName();
+					skipPast('>');
+					return;
+				}
+			}
+		}
+	}
+
+	private void skipPast(final char end) throws IOException
+	{
+		while (true)
+		{
+			final int c = read();
+			if (c == -1 || c == end)
+				return;
+		}
+	}
+
+	private void skipWhitespace() throws IOException
+	{
+		while (true)
+		{
+			final int c = peek(0);
+			if (c == -1 || !Character.isWhitespace(c))
+				return;
+			pos++;
+		}
+	}
+
+	private int read() throws IOException
+	{
+		final int c = peek(0);
+		if (c != -1)
+			pos++;
+		return c;
+	}
+
+	private int peek(final int offset) throws IOException
+	{
+		if (pos + offset >= limit)
+		{
+			if (pos > 0)
+			{
+				System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+				limit -= pos;
+				pos = 0;
+			}
+			while (offset >= limit)
+			{
+				final int n = reader.read(buffer, limit, buffer.length - limit);
+				if (n == -1)
+					return -1;
+				limit += n;
+			}
+		}
+		return buffer[pos + offset];
+	}
+
+	private static boolean isLetter(final int c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+}
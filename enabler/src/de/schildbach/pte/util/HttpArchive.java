@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Directory of recorded HTTP exchanges, written by {@link ParserUtils} in record mode and served by a replay server
+ * later. Each exchange is stored as a properties file with the request key, status, headers and timings, and a file
+ * with the raw response body, still content encoded as received. Files are numbered in recording order.
+ */
+public final class HttpArchive
+{
+	/** Request header carrying the upstream URL when a request is sent to a replay server instead. */
+	public static final String ORIGINAL_URL_HEADER = "X-Original-Url";
+
+	private static final String META_SUFFIX = ".properties";
+	private static final String BODY_SUFFIX = ".body";
+
+	public static final class Exchange
+	{
+		public final String method;
+		public final String url;
+		public final String requestHash;
+		public final int status;
+		public final Map<String, List<String>> headers;
+		/** Time from opening the connection to the response headers, in milliseconds. */
+		public final long latency;
+		/** Time for receiving the response body, in milliseconds. */
+		public final long duration;
+		public final byte[] body;
+
+		public Exchange(final String method, final String url, final String requestHash, final int status,
+				final Map<String, List<String>> headers, final long latency, final long duration, final byte[] body)
+		{
+			this.method = method;
+			this.url = url;
+			this.requestHash = requestHash;
+			this.status = status;
+			this.headers = headers;
+			this.latency = latency;
+			this.duration = duration;
+			this.body = body;
+		}
+
+		public String key()
+		{
+			return HttpArchive.key(method, url, requestHash);
+		}
+
+		@Override
+		public String toString()
+		{
+			return method + " " + url + " -> " + status + " (" + body.length + " bytes, " + latency + "+" + duration + " ms)";
+		}
+	}
+
+	private final File directory;
+	private int count;
+
+	public HttpArchive(final File directory)
+	{
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IllegalArgumentException("cannot create " + directory);
+		this.count = metaFiles().length;
+	}
+
+	public static String key(final String method, final String url, final String requestHash)
+	{
+		return method + " " + url + (requestHash != null ? " " + requestHash : "");
+	}
+
+	/**
+	 * @return hash identifying a request body, or {@code null} if there is none
+	 */
+	public static String requestHash(final byte[] requestBody)
+	{
+		if (requestBody == null)
+			return null;
+		return Hashing.sha1().hashBytes(requestBody).toString();
+	}
+
+	public synchronized void record(final Exchange exchange) throws IOException
+	{
+		final String name = String.format("%05d", count++);
+
+		final Properties meta = new Properties();
+		meta.setProperty("method", exchange.method);
+		meta.setProperty("url", exchange.url);
+		if (exchange.requestHash != null)
+			meta.setProperty("request", exchange.requestHash);
+		meta.setProperty("status", Integer.toString(exchange.status));
+		meta.setProperty("latency", Long.toString(exchange.latency));
+		meta.setProperty("duration", Long.toString(exchange.duration));
+		int i = 0;
+		for (final Map.Entry<String, List<String>> header : exchange.headers.entrySet())
+			if (header.getKey() != null)
+				for (final String value : header.getValue())
+					meta.setProperty("header." + i++, header.getKey() + ": " + value);
+
+		Files.write(exchange.body, new File(directory, name + BODY_SUFFIX));
+		final OutputStream os = new FileOutputStream(new File(directory, name + META_SUFFIX));
+		try
+		{
+			meta.store(os, exchange.method + " " + exchange.url);
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+
+	/**
+	 * @return all exchanges, in recording order
+	 */
+	public synchronized List<Exchange> load() throws IOException
+	{
+		final File[] metaFiles = metaFiles();
+		Arrays.sort(metaFiles);
+
+		final List<Exchange> exchanges = new ArrayList<Exchange>(metaFiles.length);
+		for (final File metaFile : metaFiles)
+		{
+			final Properties meta = new Properties();
+			final InputStream is = new FileInputStream(metaFile);
+			try
+			{
+				meta.load(is);
+			}
+			finally
+			{
+				is.close();
+			}
+
+			final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+			for (int i = 0; meta.containsKey("header." + i); i++)
+			{
+				final String header = meta.getProperty("header." + i);
+				final int colon = header.indexOf(": ");
+				final String name = header.substring(0, colon);
+				List<String> values = headers.get(name);
+				if (values == null)
+				{
+					values = new ArrayList<String>(1);
+					headers.put(name, values);
+				}
+				values.add(header.substring(colon + 2));
+			}
+
+			final String name = metaFile.getName().substring(0, metaFile.getName().length() - META_SUFFIX.length());
+			final byte[] body = Files.toByteArray(new File(directory, name + BODY_SUFFIX));
+
+			exchanges.add(new Exchange(meta.getProperty("method"), meta.getProperty("url"), meta.getProperty("request"), Integer.parseInt(meta
+					.getProperty("status")), headers, Long.parseLong(meta.getProperty("latency")), Long.parseLong(meta.getProperty("duration")), body));
+		}
+		return exchanges;
+	}
+
+	private File[] metaFiles()
+	{
+		return directory.listFiles(new FilenameFilter()
+		{
+			public boolean accept(final File dir, final String name)
+			{
+				return name.endsWith(META_SUFFIX);
+			}
+		});
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[" + directory + "]";
+	}
+}
@@ -18,6 +18,8 @@
 package de.schildbach.pte.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -36,18 +38,22 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
 
 import de.schildbach.pte.exception.BlockedException;
 import de.schildbach.pte.exception.InternalErrorException;
 import de.schildbach.pte.exception.NotFoundException;
 import de.schildbach.pte.exception.SessionExpiredException;
 import de.schildbach.pte.exception.UnexpectedRedirectException;
+import de.schildbach.pte.metrics.QueryMetrics;
 
 /**
  * @author Andreas Schildbach
@@ -58,10 +64,67 @@ public final class ParserUtils
 	private static final String SCRAPE_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
 	public static final int SCRAPE_INITIAL_CAPACITY = 4096;
 	private static final int SCRAPE_COPY_SIZE = 2048;
-	private static final int SCRAPE_PEEK_SIZE = 4096;
 	private static final int SCRAPE_CONNECT_TIMEOUT = 5000;
 	private static final int SCRAPE_READ_TIMEOUT = 15000;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
 	private static HttpCookie sessionCookie;
+	private static volatile HttpArchive recordArchive;
+	private static volatile URL replayUrl;
+	private static final ConcurrentMap<String, RateLimiter> rateLimiters = new ConcurrentHashMap<String, RateLimiter>();
+	private static volatile double defaultPermitsPerSecond = 0;
+	private static volatile int defaultBurst;
+	private static volatile long defaultMaxWaitMs;
+
+	/**
+	 * Records all following exchanges into the given archive, or stops recording if {@code null}.
+	 */
+	public static void setRecordArchive(final HttpArchive archive)
+	{
+		recordArchive = archive;
+	}
+
+	/**
+	 * Sends all following requests to the given replay server instead of upstream, or stops replaying if
+	 * {@code null}. The upstream URL is passed in the {@link HttpArchive#ORIGINAL_URL_HEADER} header.
+	 */
+	public static void setReplayUrl(final URL url)
+	{
+		replayUrl = url;
+	}
+
+	/**
+	 * Limits the rate of requests to the given host, which identifies the endpoint of a network, or removes the limit
+	 * if {@code null}. Overrides the default limit.
+	 */
+	public static void setRateLimiter(final String host, final RateLimiter rateLimiter)
+	{
+		if (rateLimiter != null)
+			rateLimiters.put(host, rateLimiter);
+		else
+			rateLimiters.remove(host);
+	}
+
+	/**
+	 * Limits the rate of requests to every host that has no limit of its own, each with a {@link RateLimiter} of its
+	 * own. A rate of zero removes the default limit from hosts not contacted yet.
+	 */
+	public static void setDefaultRateLimit(final double permitsPerSecond, final int burst, final long maxWaitMs)
+	{
+		defaultBurst = burst;
+		defaultMaxWaitMs = maxWaitMs;
+		defaultPermitsPerSecond = permitsPerSecond;
+	}
+
+	private static RateLimiter rateLimiter(final String host)
+	{
+		final RateLimiter rateLimiter = rateLimiters.get(host);
+		if (rateLimiter != null || defaultPermitsPerSecond <= 0)
+			return rateLimiter;
+
+		final RateLimiter newRateLimiter = new RateLimiter(defaultPermitsPerSecond, defaultBurst, defaultMaxWaitMs);
+		final RateLimiter existingRateLimiter = rateLimiters.putIfAbsent(host, newRateLimiter);
+		return existingRateLimiter != null ? existingRateLimiter : newRateLimiter;
+	}
 
 	public static final CharSequence scrape(final String url) throws IOException
 	{
@@ -140,12 +203,25 @@ public final class ParserUtils
 		while (true)
 		{
 			final URL url = new URL(urlStr);
-			final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			final URL replay = replayUrl;
+			final URL targetUrl = replay != null ? replay : url;
+			final Deadline deadline = Deadline.current();
+			if (deadline != null)
+				deadline.check();
+
+			final RateLimiter rateLimiter = rateLimiter(url.getHost());
+			if (rateLimiter != null)
+				rateLimiter.acquire(url);
+
+			final long requestStart = System.currentTimeMillis();
+			final QueryMetrics metrics = QueryMetrics.current();
+
+			final HttpURLConnection connection = (HttpURLConnection) targetUrl.openConnection();
 
 			connection.setDoInput(true);
 			connection.setDoOutput(postRequest != null);
-			connection.setConnectTimeout(SCRAPE_CONNECT_TIMEOUT);
-			connection.setReadTimeout(SCRAPE_READ_TIMEOUT);
+			connection.setConnectTimeout(deadline != null ? deadline.timeout(SCRAPE_CONNECT_TIMEOUT) : SCRAPE_CONNECT_TIMEOUT);
+			connection.setReadTimeout(deadline != null ? deadline.timeout(SCRAPE_READ_TIMEOUT) : SCRAPE_READ_TIMEOUT);
 			connection.addRequestProperty("User-Agent", SCRAPE_USER_AGENT);
 			connection.addRequestProperty("Accept", SCRAPE_ACCEPT);
 			connection.addRequestProperty("Accept-Encoding", "gzip");
@@ -162,43 +238,81 @@ public final class ParserUtils
 			if (authorization != null)
 				connection.addRequestProperty("Authorization", authorization);
 
-			if (postRequest != null)
-			{
-				final byte[] postRequestBytes = postRequest.getBytes(requestEncoding.name());
+			if (targetUrl != url)
+				connection.addRequestProperty(HttpArchive.ORIGINAL_URL_HEADER, urlStr);
 
+			final byte[] postRequestBytes = postRequest != null ? postRequest.getBytes(requestEncoding.name()) : null;
+			if (postRequestBytes != null)
+			{
 				connection.setRequestMethod("POST");
 				connection.addRequestProperty("Content-Type", "application/x-www-form-urlencoded");
 				connection.addRequestProperty("Content-Length", Integer.toString(postRequestBytes.length));
+			}
 
+			// includes resolving the host, which can't be told apart without resolving twice
+			final long connectStart = System.nanoTime();
+			connection.connect();
+			final long connectEnd = System.nanoTime();
+
+			if (deadline != null)
+				deadline.register(connection);
+
+			if (postRequestBytes != null)
+			{
 				final OutputStream os = connection.getOutputStream();
 				os.write(postRequestBytes);
 				os.close();
 			}
 
 			final int responseCode = connection.getResponseCode();
+			InputStream responseStream = responseCode == HttpURLConnection.HTTP_OK ? connection.getInputStream() : connection.getErrorStream();
+
+			MeteredInputStream meteredBody = null;
+			if (metrics != null)
+			{
+				metrics.request(connectEnd - connectStart, System.nanoTime() - connectEnd);
+				if (responseStream != null)
+					responseStream = meteredBody = new MeteredInputStream(responseStream, metrics, null);
+			}
+
+			final HttpArchive archive = recordArchive;
+			if (archive != null)
+				responseStream = record(archive, url, postRequestBytes, connection, responseCode, responseStream, requestStart);
+
+			if (rateLimiter != null)
+			{
+				if (responseCode == HttpURLConnection.HTTP_FORBIDDEN || responseCode == HTTP_TOO_MANY_REQUESTS
+						|| responseCode == HttpURLConnection.HTTP_UNAVAILABLE)
+					rateLimiter.blocked(retryAfterMs(connection));
+				else if (responseCode == HttpURLConnection.HTTP_OK)
+					rateLimiter.succeeded();
+			}
+
 			if (responseCode == HttpURLConnection.HTTP_OK)
 			{
 				final String contentType = connection.getContentType();
 				final String contentEncoding = connection.getContentEncoding();
 
-				InputStream is = new BufferedInputStream(connection.getInputStream());
+				InputStream is = new BufferedInputStream(responseStream);
 
 				if ("gzip".equalsIgnoreCase(contentEncoding) || "application/octet-stream".equalsIgnoreCase(contentType))
 					is = wrapGzip(is);
 
-				if (!url.getHost().equals(connection.getURL().getHost()))
+				if (meteredBody != null)
+					is = new MeteredInputStream(is, metrics, meteredBody);
+
+				if (!targetUrl.getHost().equals(connection.getURL().getHost()))
 					throw new UnexpectedRedirectException(url, connection.getURL());
 
-				final String firstChars = peekFirstChars(is);
+				final ResponseSniffer.Head head = ResponseSniffer.sniff(is, contentType);
 
-				final URL redirectUrl = testRedirect(url, firstChars);
-				if (redirectUrl != null)
-					throw new UnexpectedRedirectException(url, redirectUrl);
+				if (head.redirect != null)
+					throw new UnexpectedRedirectException(url, new URL(url, head.redirect));
 
-				if (testExpired(firstChars))
+				if (head.expired)
 					throw new SessionExpiredException();
 
-				if (testInternalError(firstChars))
+				if (head.internalError)
 					throw new InternalErrorException(url, new InputStreamReader(is, requestEncoding));
 
 				// save cookie
@@ -223,17 +337,17 @@ public final class ParserUtils
 					}
 				}
 
-				return is;
+				return ResponseSniffer.attach(is, head);
 			}
 			else if (responseCode == HttpURLConnection.HTTP_BAD_REQUEST || responseCode == HttpURLConnection.HTTP_UNAUTHORIZED
 					|| responseCode == HttpURLConnection.HTTP_FORBIDDEN || responseCode == HttpURLConnection.HTTP_NOT_ACCEPTABLE
-					|| responseCode == HttpURLConnection.HTTP_UNAVAILABLE)
+					|| responseCode == HTTP_TOO_MANY_REQUESTS || responseCode == HttpURLConnection.HTTP_UNAVAILABLE)
 			{
-				throw new BlockedException(url, new InputStreamReader(connection.getErrorStream(), requestEncoding));
+				throw new BlockedException(url, new InputStreamReader(responseStream, requestEncoding));
 			}
 			else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND)
 			{
-				throw new NotFoundException(url, new InputStreamReader(connection.getErrorStream(), requestEncoding));
+				throw new NotFoundException(url, new InputStreamReader(responseStream, requestEncoding));
 			}
 			else if (responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP)
 			{
@@ -241,7 +355,7 @@ public final class ParserUtils
 			}
 			else if (responseCode == HttpURLConnection.HTTP_INTERNAL_ERROR)
 			{
-				throw new InternalErrorException(url, new InputStreamReader(connection.getErrorStream(), requestEncoding));
+				throw new InternalErrorException(url, new InputStreamReader(responseStream, requestEncoding));
 			}
 			else
 			{
@@ -254,6 +368,129 @@ public final class ParserUtils
 		}
 	}
 
+	/**
+	 * @return delay asked for by the server in milliseconds, or zero if there is none or it is given as a date
+	 */
+	private static long retryAfterMs(final HttpURLConnection connection)
+	{
+		final String retryAfter = connection.getHeaderField("Retry-After");
+		if (retryAfter == null)
+			return 0;
+
+		try
+		{
+			return Math.max(Long.parseLong(retryAfter.trim()), 0) * 1000;
+		}
+		catch (final NumberFormatException x)
+		{
+			return 0;
+		}
+	}
+
+	private static InputStream record(final HttpArchive archive, final URL url, final byte[] requestBody, final HttpURLConnection connection,
+			final int responseCode, final InputStream responseStream, final long requestStart) throws IOException
+	{
+		final long responseStart = System.currentTimeMillis();
+		final byte[] body;
+		if (responseStream != null)
+		{
+			body = ByteStreams.toByteArray(responseStream);
+			responseStream.close();
+		}
+		else
+		{
+			body = new byte[0];
+		}
+		final long responseEnd = System.currentTimeMillis();
+
+		archive.record(new HttpArchive.Exchange(requestBody != null ? "POST" : "GET", url.toString(), HttpArchive.requestHash(requestBody),
+				responseCode, connection.getHeaderFields(), responseStart - requestStart, responseEnd - responseStart, body));
+
+		return new ByteArrayInputStream(body);
+	}
+
+	/**
+	 * Adds time and bytes read to the metrics of the current query. Wraps either the body as received, or the body as
+	 * decoded, in which case the time spent reading the body as received is left out.
+	 */
+	private static final class MeteredInputStream extends FilterInputStream
+	{
+		private final QueryMetrics metrics;
+		private final MeteredInputStream body;
+		private long nanos = 0;
+		private long bytes = 0;
+		private long markedBytes = 0;
+
+		private MeteredInputStream(final InputStream in, final QueryMetrics metrics, final MeteredInputStream body)
+		{
+			super(in);
+			this.metrics = metrics;
+			this.body = body;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final long start = System.nanoTime();
+			final long bodyStart = body != null ? body.nanos : 0;
+			final int b = in.read();
+			count(start, bodyStart, b != -1 ? 1 : 0);
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException
+		{
+			final long start = System.nanoTime();
+			final long bodyStart = body != null ? body.nanos : 0;
+			final int read = in.read(buffer, offset, length);
+			count(start, bodyStart, Math.max(read, 0));
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException
+		{
+			final long start = System.nanoTime();
+			final long bodyStart = body != null ? body.nanos : 0;
+			final long skipped = in.skip(n);
+			count(start, bodyStart, skipped);
+			return skipped;
+		}
+
+		@Override
+		public synchronized void mark(final int readLimit)
+		{
+			in.mark(readLimit);
+			markedBytes = bytes;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException
+		{
+			in.reset();
+			// bytes read again after a reset are not counted twice
+			report(0, markedBytes - bytes);
+			bytes = markedBytes;
+		}
+
+		private void count(final long start, final long bodyStart, final long read)
+		{
+			final long elapsed = System.nanoTime() - start;
+			nanos += elapsed;
+			bytes += read;
+			report(body != null ? elapsed - (body.nanos - bodyStart) : elapsed, read);
+		}
+
+		private void report(final long elapsed, final long read)
+		{
+			if (body != null)
+				metrics.decoded(elapsed, read);
+			else
+				metrics.bodyRead(elapsed, read);
+		}
+	}
+
 	private static InputStream wrapGzip(final InputStream is) throws IOException
 	{
 		is.mark(2);
@@ -289,63 +526,39 @@ public final class ParserUtils
 		}
 	}
 
-	public static String peekFirstChars(final InputStream is) throws IOException
+	/**
+	 * @return head of the response, printable for error messages
+	 */
+	public static ResponseSniffer.Head firstChars(final InputStream is) throws IOException
 	{
-		is.mark(SCRAPE_PEEK_SIZE);
-		final byte[] firstBytes = new byte[SCRAPE_PEEK_SIZE];
-		final int read = is.read(firstBytes);
-		if (read == -1)
-			return "";
-		is.reset();
-		return new String(firstBytes, 0, read).replaceAll("\\p{C}", "");
+		return ResponseSniffer.head(is);
 	}
 
-	private static final Pattern P_REDIRECT_HTTP_EQUIV = Pattern.compile("<META\\s+http-equiv=\"?refresh\"?\\s+content=\"\\d+;\\s*URL=([^\"]+)\"",
-			Pattern.CASE_INSENSITIVE);
-
-	private static final Pattern P_REDIRECT_SCRIPT = Pattern.compile(
-			"<script\\s+(?:type=\"text/javascript\"|language=\"javascript\")>\\s*(?:window.location|location.href)\\s*=\\s*\"([^\"]+)\"",
-			Pattern.CASE_INSENSITIVE);
+	public static String peekFirstChars(final InputStream is) throws IOException
+	{
+		return firstChars(is).toString();
+	}
 
 	public static URL testRedirect(final URL context, final String content) throws MalformedURLException
 	{
-		// check for redirect by http-equiv meta tag header
-		final Matcher mHttpEquiv = P_REDIRECT_HTTP_EQUIV.matcher(content);
-		if (mHttpEquiv.find())
-			return new URL(context, mHttpEquiv.group(1));
-
-		// check for redirect by window.location javascript
-		final Matcher mScript = P_REDIRECT_SCRIPT.matcher(content);
-		if (mScript.find())
-			return new URL(context, mScript.group(1));
-
-		return null;
+		final String redirect = sniff(content).redirect;
+		return redirect != null ? new URL(context, redirect) : null;
 	}
 
-	private static final Pattern P_EXPIRED = Pattern
-			.compile(">\\s*(Your session has expired\\.|Session Expired|Ihre Verbindungskennung ist nicht mehr g.ltig\\.)\\s*<");
-
 	public static boolean testExpired(final String content)
 	{
-		// check for expired session
-		final Matcher mSessionExpired = P_EXPIRED.matcher(content);
-		if (mSessionExpired.find())
-			return true;
-
-		return false;
+		return sniff(content).expired;
 	}
 
-	private static final Pattern P_INTERNAL_ERROR = Pattern
-			.compile(">\\s*(Internal Error|Server ein Fehler aufgetreten|Internal error in gateway|VRN - Keine Verbindung zum Server m.glich)\\s*<");
-
 	public static boolean testInternalError(final String content)
 	{
-		// check for internal error
-		final Matcher m = P_INTERNAL_ERROR.matcher(content);
-		if (m.find())
-			return true;
+		return sniff(content).internalError;
+	}
 
-		return false;
+	private static ResponseSniffer.Head sniff(final String content)
+	{
+		final byte[] bytes = content.getBytes(Charsets.UTF_8);
+		return ResponseSniffer.classify(bytes, bytes.length);
 	}
 
 	private static final Pattern P_HTML_UNORDERED_LIST = Pattern.compile("<ul>(.*?)</ul>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
@@ -402,49 +615,12 @@ public final class ParserUtils
 		return resolveEntities(html3);
 	}
 
-	private static final Pattern P_ENTITY = Pattern.compile("&(?:#(x[\\da-f]+|\\d+)|(amp|quot|apos|szlig|nbsp));");
-
 	public static String resolveEntities(final CharSequence str)
 	{
 		if (str == null)
 			return null;
 
-		final Matcher matcher = P_ENTITY.matcher(str);
-		final StringBuilder builder = new StringBuilder(str.length());
-		int pos = 0;
-		while (matcher.find())
-		{
-			final char c;
-			final String code = matcher.group(1);
-			if (code != null)
-			{
-				if (code.charAt(0) == 'x')
-					c = (char) Integer.valueOf(code.substring(1), 16).intValue();
-				else
-					c = (char) Integer.parseInt(code);
-			}
-			else
-			{
-				final String namedEntity = matcher.group(2);
-				if (namedEntity.equals("amp"))
-					c = '&';
-				else if (namedEntity.equals("quot"))
-					c = '"';
-				else if (namedEntity.equals("apos"))
-					c = '\'';
-				else if (namedEntity.equals("szlig"))
-					c = '\u00df';
-				else if (namedEntity.equals("nbsp"))
-					c = ' ';
-				else
-					throw new IllegalStateException("unknown entity: " + namedEntity);
-			}
-			builder.append(str.subSequence(pos, matcher.start()));
-			builder.append(c);
-			pos = matcher.end();
-		}
-		builder.append(str.subSequence(pos, str.length()));
-		return builder.toString();
+		return HtmlTokenizer.decodeEntities(str);
 	}
 
 	private static final Pattern P_ISO_DATE = Pattern.compile("(\\d{4})-?(\\d{2})-?(\\d{2})");
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.schildbach.pte.dto.Point;
+
+/**
+ * Encoding and simplification of paths, as in {@link de.schildbach.pte.dto.Trip.Leg#path}.
+ *
+ * Polylines use the common encoded polyline algorithm, but with a precision of 6 decimal places, so that microdegrees
+ * survive the round trip unchanged.
+ */
+public final class PathUtils
+{
+	// meters per microdegree of latitude
+	private static final double METERS_PER_MICRODEGREE = 6371009 * Math.PI / 180 / 1E6;
+
+	private PathUtils()
+	{
+	}
+
+	public static String encodePolyline(final List<Point> path)
+	{
+		final StringBuilder polyline = new StringBuilder(path.size() * 6);
+		int lastLat = 0, lastLon = 0;
+		for (final Point point : path)
+		{
+			encodeSigned(polyline, point.lat - lastLat);
+			encodeSigned(polyline, point.lon - lastLon);
+			lastLat = point.lat;
+			lastLon = point.lon;
+		}
+		return polyline.toString();
+	}
+
+	private static void encodeSigned(final StringBuilder polyline, final int value)
+	{
+		long v = value < 0 ? ~((long) value << 1) : (long) value << 1;
+		while (v >= 0x20)
+		{
+			polyline.append((char) ((0x20 | (v & 0x1f)) + 63));
+			v >>= 5;
+		}
+		polyline.append((char) (v + 63));
+	}
+
+	public static List<Point> decodePolyline(final CharSequence polyline)
+	{
+		final List<Point> path = new ArrayList<Point>();
+		final int length = polyline.length();
+		int index = 0;
+		int lat = 0, lon = 0;
+		final long[] result = new long[1];
+		while (index < length)
+		{
+			index = decodeSigned(polyline, index, result);
+			lat += (int) result[0];
+			index = decodeSigned(polyline, index, result);
+			lon += (int) result[0];
+			path.add(new Point(lat, lon));
+		}
+		return path;
+	}
+
+	private static int decodeSigned(final CharSequence polyline, int index, final long[] result)
+	{
+		long v = 0;
+		int shift = 0;
+		int b;
+		do
+		{
+			if (index >= polyline.length())
+				throw new IllegalArgumentException("truncated polyline");
+			b = polyline.charAt(index++) - 63;
+			v |= (long) (b & 0x1f) << shift;
+			shift += 5;
+		}
+		while (b >= 0x20);
+		result[0] = (v & 1) != 0 ? ~(v >> 1) : v >> 1;
+		return index;
+	}
+
+	/**
+	 * Simplifies a path using the Douglas-Peucker algorithm. Points that deviate less than the tolerance from the
+	 * simplified path are dropped; the first and last point are always kept.
+	 *
+	 * @param tolerance
+	 *            maximum deviation in meters
+	 */
+	public static List<Point> simplify(final List<Point> path, final double tolerance)
+	{
+		final int size = path.size();
+		if (size <= 2 || tolerance <= 0)
+			return path;
+
+		// project to a plane in meters, good enough for the extent of a leg
+		final double[] x = new double[size];
+		final double[] y = new double[size];
+		long latSum = 0;
+		for (final Point point : path)
+			latSum += point.lat;
+		final double lonScale = METERS_PER_MICRODEGREE * Math.cos(Math.toRadians(latSum / size / 1E6));
+		int i = 0;
+		for (final Point point : path)
+		{
+			x[i] = point.lon * lonScale;
+			y[i] = point.lat * METERS_PER_MICRODEGREE;
+			i++;
+		}
+
+		final boolean[] keep = new boolean[size];
+		keep[0] = true;
+		keep[size - 1] = true;
+		final double toleranceSquared = tolerance * tolerance;
+
+		// explicit stack of index ranges, as long paths would recurse too deep
+		final int[] stack = new int[size * 2];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = size - 1;
+		while (top > 0)
+		{
+			final int last = stack[--top];
+			final int first = stack[--top];
+
+			double maxDistanceSquared = 0;
+			int farthest = -1;
+			for (int j = first + 1; j < last; j++)
+			{
+				final double distanceSquared = segmentDistanceSquared(x[j], y[j], x[first], y[first], x[last], y[last]);
+				if (distanceSquared > maxDistanceSquared)
+				{
+					maxDistanceSquared = distanceSquared;
+					farthest = j;
+				}
+			}
+
+			if (farthest >= 0 && maxDistanceSquared > toleranceSquared)
+			{
+				keep[farthest] = true;
+				stack[top++] = first;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = last;
+			}
+		}
+
+		final List<Point> simplified = new ArrayList<Point>();
+		i = 0;
+		for (final Point point : path)
+			if (keep[i++])
+				simplified.add(point);
+		return simplified;
+	}
+
+	private static double segmentDistanceSquared(final double px, final double py, final double ax, final double ay, final double bx,
+			final double by)
+	{
+		final double dx = bx - ax;
+		final double dy = by - ay;
+		final double lengthSquared = dx * dx + dy * dy;
+		double t = lengthSquared > 0 ? ((px - ax) * dx + (py - ay) * dy) / lengthSquared : 0;
+		t = Math.max(0, Math.min(1, t));
+		final double ex = px - (ax + t * dx);
+		final double ey = py - (ay + t * dy);
+		return ex * ex + ey * ey;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.InterruptedIOException;
+import java.net.URL;
+
+import de.schildbach.pte.exception.RateLimitedException;
+
+/**
+ * Token bucket limiting the rate of requests to one upstream endpoint. Permits accrue at a steady rate up to a burst
+ * size. A request that finds no permit waits for its turn in line, unless its turn is further away than the maximum
+ * wait, in which case it is rejected right away. A maximum wait of zero rejects whenever no permit is available.
+ *
+ * The wait is also limited by the {@link Deadline} of the call, if any.
+ *
+ * When the upstream starts blocking, all requests are paused for a backoff period that doubles with every further
+ * block and ends with the first successful response. Permits do not accrue during the pause, so that traffic resumes
+ * at the steady rate rather than with a burst.
+ */
+public final class RateLimiter
+{
+	private static final long INITIAL_BACKOFF_MS = 1000;
+	private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+	private static final long NANOS_PER_MS = 1000 * 1000;
+
+	private final double permitsPerNano;
+	private final int burst;
+	private final long maxWaitNanos;
+
+	private double permits;
+	private long updatedAt = System.nanoTime();
+	private long backoffMs = 0;
+	private long pausedUntil = updatedAt;
+
+	/**
+	 * @param permitsPerSecond
+	 *            steady rate of requests
+	 * @param burst
+	 *            number of requests that may be sent at once after a quiet period
+	 * @param maxWaitMs
+	 *            longest time a request waits for a permit, or zero to reject requests immediately
+	 */
+	public RateLimiter(final double permitsPerSecond, final int burst, final long maxWaitMs)
+	{
+		checkArgument(permitsPerSecond > 0, "permitsPerSecond must be positive: %s", permitsPerSecond);
+		checkArgument(burst >= 1, "burst must be at least one: %s", burst);
+		checkArgument(maxWaitMs >= 0, "maxWaitMs must not be negative: %s", maxWaitMs);
+		this.permitsPerNano = permitsPerSecond / 1000 / NANOS_PER_MS;
+		this.burst = burst;
+		this.maxWaitNanos = maxWaitMs * NANOS_PER_MS;
+		this.permits = burst;
+	}
+
+	/**
+	 * Takes a permit for a request to the given URL, waiting for it if necessary.
+	 *
+	 * @throws RateLimitedException
+	 *             if no permit is available within the maximum wait
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting
+	 */
+	public void acquire(final URL url) throws RateLimitedException, InterruptedIOException
+	{
+		final Deadline callDeadline = Deadline.current();
+		final long maxWait = callDeadline != null ? Math.min(callDeadline.remainingMs(), maxWaitNanos / NANOS_PER_MS) * NANOS_PER_MS
+				: maxWaitNanos;
+		final long deadline = System.nanoTime() + maxWait;
+		while (true)
+		{
+			final long wait = reserve(deadline);
+			if (wait < 0)
+				throw new RateLimitedException(url, -wait / NANOS_PER_MS);
+			if (wait == 0)
+				return;
+
+			try
+			{
+				Thread.sleep(wait / NANOS_PER_MS, (int) (wait % NANOS_PER_MS));
+			}
+			catch (final InterruptedException x)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for rate limit: " + url);
+			}
+
+			// the upstream may have blocked while waiting, so that the reserved permit is void
+			if (!stillPaused())
+				return;
+		}
+	}
+
+	/**
+	 * Reports that the upstream blocked a request, e.g. with 403, 429 or 503.
+	 *
+	 * @param retryAfterMs
+	 *            time the upstream asked to wait, or zero if unknown
+	 */
+	public synchronized void blocked(final long retryAfterMs)
+	{
+		final long now = System.nanoTime();
+		refill(now);
+		backoffMs = backoffMs == 0 ? INITIAL_BACKOFF_MS : Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+		final long pauseMs = Math.max(backoffMs, Math.min(retryAfterMs, MAX_BACKOFF_MS));
+		pausedUntil = Math.max(pausedUntil, now + pauseMs * NANOS_PER_MS);
+		permits = Math.min(permits, 0);
+	}
+
+	/**
+	 * Reports that the upstream answered a request normally, which ends the backoff.
+	 */
+	public synchronized void succeeded()
+	{
+		backoffMs = 0;
+	}
+
+	/**
+	 * @return time to wait for the reserved permit in nanoseconds, or the negated time until a permit would be
+	 *         available if that is beyond the deadline
+	 */
+	private synchronized long reserve(final long deadline)
+	{
+		final long now = System.nanoTime();
+		refill(now);
+
+		final long permitAt = Math.max(now, pausedUntil) + (permits >= 1 ? 0 : (long) Math.ceil((1 - permits) / permitsPerNano));
+		final long wait = permitAt - now;
+		if (wait > 0 && permitAt - deadline > 0)
+			return -wait;
+
+		permits -= 1;
+		return wait;
+	}
+
+	private synchronized boolean stillPaused()
+	{
+		final long now = System.nanoTime();
+		if (pausedUntil - now <= 0)
+			return false;
+
+		// give back the void permit and line up again
+		refill(now);
+		permits += 1;
+		return true;
+	}
+
+	private void refill(final long now)
+	{
+		final long accruedFrom = Math.max(updatedAt, pausedUntil);
+		if (now - accruedFrom > 0)
+			permits = Math.min(permits + (now - accruedFrom) * permitsPerNano, burst);
+		updatedAt = now;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[" + permitsPerNano * 1000 * NANOS_PER_MS + "/s, burst=" + burst + "]";
+	}
+}
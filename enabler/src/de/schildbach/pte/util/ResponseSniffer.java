@@ -0,0 +1,344 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Classifies the head of a response, looking for redirects, expired sessions and internal errors that servers report
+ * as ordinary pages. The head is scanned once, as bytes, with a few precompiled patterns anchored at tag boundaries.
+ * Control characters are ignored, as if they had been removed. Responses that cannot be markup, like binary or JSON
+ * payloads, are not scanned at all.
+ *
+ * The head is kept as bytes and only turned into characters when printed, for error messages.
+ */
+public final class ResponseSniffer
+{
+	public static final int PEEK_SIZE = 4096;
+
+	public static final class Head
+	{
+		private final byte[] bytes;
+		private final int length;
+		/** Redirect target, relative to the request, or {@code null} if the response is not a redirect. */
+		public final String redirect;
+		public final boolean expired;
+		public final boolean internalError;
+		private String chars = null;
+
+		private Head(final byte[] bytes, final int length, final String redirect, final boolean expired, final boolean internalError)
+		{
+			this.bytes = bytes;
+			this.length = length;
+			this.redirect = redirect;
+			this.expired = expired;
+			this.internalError = internalError;
+		}
+
+		/**
+		 * @return first characters of the response, without control characters
+		 */
+		@Override
+		public String toString()
+		{
+			if (chars == null)
+				chars = new String(bytes, 0, length).replaceAll("\\p{C}", "");
+			return chars;
+		}
+	}
+
+	private static final Object WHITESPACE = new Object();
+	private static final Object WHITESPACES = new Object();
+	private static final Object DIGITS = new Object();
+	private static final Object ANY = new Object();
+	private static final Object CAPTURE = new Object();
+
+	private static final class Optional
+	{
+		private final byte b;
+
+		private Optional(final char c)
+		{
+			this.b = (byte) c;
+		}
+	}
+
+	private static final class Alternatives
+	{
+		private final Object[][] branches;
+
+		private Alternatives(final Object[]... branches)
+		{
+			this.branches = branches;
+		}
+	}
+
+	private static byte[] lit(final String literal)
+	{
+		final byte[] bytes = new byte[literal.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) literal.charAt(i);
+		return bytes;
+	}
+
+	// <META\s+http-equiv="?refresh"?\s+content="\d+;\s*URL=([^"]+)", case insensitive
+	private static final Object[] P_REDIRECT_HTTP_EQUIV = { lit("<meta"), WHITESPACES, lit("http-equiv="), new Optional('"'), lit("refresh"),
+			new Optional('"'), WHITESPACES, lit("content=\""), DIGITS, lit(";"), WHITESPACE, lit("url="), CAPTURE, lit("\"") };
+
+	// <script\s+(?:type="text/javascript"|language="javascript")>\s*(?:window.location|location.href)\s*=\s*"([^"]+)",
+	// case insensitive
+	private static final Object[] P_REDIRECT_SCRIPT = { lit("<script"), WHITESPACES,
+			new Alternatives(new Object[] { lit("type=\"text/javascript\"") }, new Object[] { lit("language=\"javascript\"") }), lit(">"),
+			WHITESPACE,
+			new Alternatives(new Object[] { lit("window"), ANY, lit("location") }, new Object[] { lit("location"), ANY, lit("href") }),
+			WHITESPACE, lit("="), WHITESPACE, lit("\""), CAPTURE, lit("\"") };
+
+	// >\s*(Your session has expired\.|Session Expired|Ihre Verbindungskennung ist nicht mehr g.ltig\.)\s*<
+	private static final Object[] P_EXPIRED = {
+			lit(">"),
+			WHITESPACE,
+			new Alternatives(new Object[] { lit("Your session has expired.") }, new Object[] { lit("Session Expired") }, new Object[] {
+					lit("Ihre Verbindungskennung ist nicht mehr g"), ANY, lit("ltig.") }), WHITESPACE, lit("<") };
+
+	// >\s*(Internal Error|Server ein Fehler aufgetreten|Internal error in gateway|VRN - Keine Verbindung zum Server m.glich)\s*<
+	private static final Object[] P_INTERNAL_ERROR = {
+			lit(">"),
+			WHITESPACE,
+			new Alternatives(new Object[] { lit("Internal Error") }, new Object[] { lit("Server ein Fehler aufgetreten") },
+					new Object[] { lit("Internal error in gateway") }, new Object[] { lit("VRN - Keine Verbindung zum Server m"), ANY,
+							lit("glich") }), WHITESPACE, lit("<") };
+
+	/**
+	 * Peeks at the head of a stream and classifies it, unless the content type rules out markup. The stream must support
+	 * mark and reset, and is returned to where it was.
+	 */
+	public static Head sniff(final InputStream is, final String contentType) throws IOException
+	{
+		final byte[] bytes = new byte[PEEK_SIZE];
+		final int length = peek(is, bytes);
+		if (!mightBeMarkup(contentType))
+			return new Head(bytes, length, null, false, false);
+		return classify(bytes, length);
+	}
+
+	/**
+	 * Peeks at the head of a stream, without classifying it. If the stream was returned by
+	 * {@link ParserUtils#scrapeInputStream(String)}, its head is reused.
+	 */
+	public static Head head(final InputStream is) throws IOException
+	{
+		if (is instanceof HeadInputStream)
+			return ((HeadInputStream) is).head;
+
+		final byte[] bytes = new byte[PEEK_SIZE];
+		return new Head(bytes, peek(is, bytes), null, false, false);
+	}
+
+	/**
+	 * @return stream that carries the head, for {@link #head(InputStream)}
+	 */
+	public static InputStream attach(final InputStream is, final Head head)
+	{
+		return new HeadInputStream(is, head);
+	}
+
+	public static Head classify(final byte[] bytes, final int length)
+	{
+		final int[] capture = new int[2];
+		String httpEquivRedirect = null;
+		String scriptRedirect = null;
+		boolean expired = false;
+		boolean internalError = false;
+
+		for (int i = 0; i < length; i++)
+		{
+			final byte b = bytes[i];
+			if (b == '<')
+			{
+				if (httpEquivRedirect == null && match(P_REDIRECT_HTTP_EQUIV, 0, bytes, i, length, true, capture) != -1)
+					httpEquivRedirect = captured(bytes, capture);
+				else if (scriptRedirect == null && match(P_REDIRECT_SCRIPT, 0, bytes, i, length, true, capture) != -1)
+					scriptRedirect = captured(bytes, capture);
+			}
+			else if (b == '>')
+			{
+				if (!expired && match(P_EXPIRED, 0, bytes, i, length, false, capture) != -1)
+					expired = true;
+				if (!internalError && match(P_INTERNAL_ERROR, 0, bytes, i, length, false, capture) != -1)
+					internalError = true;
+			}
+		}
+
+		return new Head(bytes, length, httpEquivRedirect != null ? httpEquivRedirect : scriptRedirect, expired, internalError);
+	}
+
+	private static int peek(final InputStream is, final byte[] bytes) throws IOException
+	{
+		is.mark(bytes.length);
+		final int read = is.read(bytes);
+		if (read == -1)
+			return 0;
+		is.reset();
+		return read;
+	}
+
+	private static boolean mightBeMarkup(final String contentType)
+	{
+		if (contentType == null)
+			return true;
+
+		final String type = contentType.toLowerCase(Locale.ENGLISH);
+		return !(type.startsWith("application/octet-stream") || type.startsWith("image/") || type.contains("json") || type
+				.contains("javascript"));
+	}
+
+	/**
+	 * @return position after the match, or {@code -1} if the pattern does not match at the given position
+	 */
+	private static int match(final Object[] pattern, final int start, final byte[] bytes, int pos, final int end, final boolean ignoreCase,
+			final int[] capture)
+	{
+		for (int step = start; step < pattern.length; step++)
+		{
+			final Object element = pattern[step];
+			if (element instanceof byte[])
+			{
+				for (final byte expected : (byte[]) element)
+				{
+					pos = skipControl(bytes, pos, end);
+					if (pos == end)
+						return -1;
+					final byte actual = bytes[pos++];
+					if (actual != expected && !(ignoreCase && toLowerCase(actual) == toLowerCase(expected)))
+						return -1;
+				}
+			}
+			else if (element == WHITESPACE || element == WHITESPACES)
+			{
+				int count = 0;
+				while ((pos = skipControl(bytes, pos, end)) < end && bytes[pos] == ' ')
+				{
+					pos++;
+					count++;
+				}
+				if (element == WHITESPACES && count == 0)
+					return -1;
+			}
+			else if (element == DIGITS)
+			{
+				int count = 0;
+				while ((pos = skipControl(bytes, pos, end)) < end && bytes[pos] >= '0' && bytes[pos] <= '9')
+				{
+					pos++;
+					count++;
+				}
+				if (count == 0)
+					return -1;
+			}
+			else if (element == ANY)
+			{
+				pos = skipControl(bytes, pos, end);
+				if (pos == end)
+					return -1;
+				// a character encoded in several bytes counts once
+				if ((bytes[pos++] & 0xc0) == 0xc0)
+					while (pos < end && (bytes[pos] & 0xc0) == 0x80)
+						pos++;
+			}
+			else if (element == CAPTURE)
+			{
+				capture[0] = pos;
+				int count = 0;
+				while ((pos = skipControl(bytes, pos, end)) < end && bytes[pos] != '"')
+				{
+					pos++;
+					count++;
+				}
+				if (count == 0)
+					return -1;
+				capture[1] = pos;
+			}
+			else if (element instanceof Optional)
+			{
+				final int next = skipControl(bytes, pos, end);
+				if (next < end && bytes[next] == ((Optional) element).b)
+					pos = next + 1;
+			}
+			else if (element instanceof Alternatives)
+			{
+				for (final Object[] branch : ((Alternatives) element).branches)
+				{
+					final int branchEnd = match(branch, 0, bytes, pos, end, ignoreCase, capture);
+					if (branchEnd != -1)
+					{
+						final int matchEnd = match(pattern, step + 1, bytes, branchEnd, end, ignoreCase, capture);
+						if (matchEnd != -1)
+							return matchEnd;
+					}
+				}
+				return -1;
+			}
+			else
+			{
+				throw new IllegalStateException("unknown element: " + element);
+			}
+		}
+		return pos;
+	}
+
+	private static String captured(final byte[] bytes, final int[] capture)
+	{
+		final byte[] captured = new byte[capture[1] - capture[0]];
+		int length = 0;
+		for (int i = capture[0]; i < capture[1]; i++)
+			if (!isControl(bytes[i]))
+				captured[length++] = bytes[i];
+		return new String(captured, 0, length);
+	}
+
+	private static int skipControl(final byte[] bytes, int pos, final int end)
+	{
+		while (pos < end && isControl(bytes[pos]))
+			pos++;
+		return pos;
+	}
+
+	private static boolean isControl(final byte b)
+	{
+		return (b >= 0 && b < ' ') || b == 0x7f;
+	}
+
+	private static byte toLowerCase(final byte b)
+	{
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	private static final class HeadInputStream extends FilterInputStream
+	{
+		private final Head head;
+
+		private HeadInputStream(final InputStream in, final Head head)
+		{
+			super(in);
+			this.head = head;
+		}
+	}
+}
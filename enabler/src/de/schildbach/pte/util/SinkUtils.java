@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.schildbach.pte.NetworkProvider.DepartureSink;
+import de.schildbach.pte.NetworkProvider.TripSink;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.StationDepartures;
+import de.schildbach.pte.dto.Trip;
+
+/**
+ * Feeds complete results to sinks, for providers and decorators that cannot stop parsing early. The results returned
+ * are cut where the sink stopped, like those of providers that do stop parsing.
+ */
+public final class SinkUtils
+{
+	private SinkUtils()
+	{
+	}
+
+	/**
+	 * Hands the departures of the result to the sink, until it does not want more.
+	 * 
+	 * @return the result, up to and including the departure the sink stopped at
+	 */
+	public static QueryDeparturesResult feedDepartures(final QueryDeparturesResult result, final DepartureSink sink)
+	{
+		for (int i = 0; i < result.stationDepartures.size(); i++)
+		{
+			final StationDepartures stationDepartures = result.stationDepartures.get(i);
+			final List<Departure> departures = stationDepartures.departures;
+			for (int j = 0; j < departures.size(); j++)
+			{
+				if (!sink.departure(stationDepartures.location, departures.get(j)))
+				{
+					final QueryDeparturesResult cut = new QueryDeparturesResult(result.header, result.status);
+					cut.stationDepartures.addAll(result.stationDepartures.subList(0, i));
+					cut.stationDepartures.add(new StationDepartures(stationDepartures.location, new ArrayList<Departure>(departures.subList(0,
+							j + 1)), stationDepartures.lines));
+					return cut;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Hands the trips of the result to the sink, until it does not want more.
+	 * 
+	 * @return the result, up to and including the trip the sink stopped at
+	 */
+	public static QueryTripsResult feedTrips(final QueryTripsResult result, final TripSink sink)
+	{
+		if (result.trips == null)
+			return result;
+
+		for (int i = 0; i < result.trips.size(); i++)
+			if (!sink.trip(result.trips.get(i)))
+				return new QueryTripsResult(result.header, result.queryUri, result.from, result.via, result.to, result.context,
+						new ArrayList<Trip>(result.trips.subList(0, i + 1)));
+
+		return result;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.Product;
+
+/**
+ * Reads tokens written by {@link TokenWriter}. Malformed tokens cause an {@link IllegalArgumentException}.
+ */
+public final class TokenReader
+{
+	private final byte[] bytes;
+	private int position = 0;
+
+	public TokenReader(final String token)
+	{
+		try
+		{
+			this.bytes = TokenWriter.ENCODING.decode(token);
+		}
+		catch (final IllegalArgumentException x)
+		{
+			throw new IllegalArgumentException("malformed token: " + token, x);
+		}
+	}
+
+	public int readByte()
+	{
+		if (position >= bytes.length)
+			throw new IllegalArgumentException("truncated token");
+		return bytes[position++] & 0xff;
+	}
+
+	public boolean readBoolean()
+	{
+		return readByte() != 0;
+	}
+
+	public long readVarint()
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			final int b = readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("malformed varint");
+	}
+
+	public int readInt()
+	{
+		final long value = readVarint();
+		if (value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("int out of range: " + value);
+		return (int) value;
+	}
+
+	public long readSignedVarint()
+	{
+		final long value = readVarint();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	public @Nullable String readString()
+	{
+		final int length = readInt() - 1;
+		if (length < 0)
+			return null;
+		if (length > bytes.length - position)
+			throw new IllegalArgumentException("truncated token");
+
+		final String string = new String(bytes, position, length, Charsets.UTF_8);
+		position += length;
+		return string;
+	}
+
+	public @Nullable Date readDate()
+	{
+		if (!readBoolean())
+			return null;
+		return new Date(readSignedVarint());
+	}
+
+	public @Nullable Location readLocation()
+	{
+		final int type = readByte();
+		if (type == 0)
+			return null;
+		if (type > LocationType.values().length)
+			throw new IllegalArgumentException("unknown location type: " + type);
+
+		final String id = readString();
+		final int lat = (int) readSignedVarint();
+		final int lon = (int) readSignedVarint();
+		final String place = readString();
+		final String name = readString();
+		return new Location(LocationType.values()[type - 1], id, lat, lon, place, name);
+	}
+
+	public @Nullable Set<Product> readProducts()
+	{
+		final String codes = readString();
+		if (codes == null)
+			return null;
+
+		final Set<Product> products = EnumSet.noneOf(Product.class);
+		for (int i = 0; i < codes.length(); i++)
+			products.add(Product.fromCode(codes.charAt(i)));
+		return products;
+	}
+
+	/**
+	 * Makes sure the whole token has been read.
+	 */
+	public void requireEnd()
+	{
+		if (position != bytes.length)
+			throw new IllegalArgumentException("trailing bytes in token");
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+import java.util.Date;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.Product;
+
+/**
+ * Writes compact binary tokens, e.g. of trip query contexts, and returns them as URL-safe strings. Integers are
+ * varints, signed ones zigzag encoded; nullable values are preceded by a presence marker. See {@link TokenReader}.
+ */
+public final class TokenWriter
+{
+	static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+	public TokenWriter writeByte(final int b)
+	{
+		out.write(b);
+		return this;
+	}
+
+	public TokenWriter writeBoolean(final boolean b)
+	{
+		return writeByte(b ? 1 : 0);
+	}
+
+	public TokenWriter writeVarint(long value)
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+		return this;
+	}
+
+	public TokenWriter writeSignedVarint(final long value)
+	{
+		return writeVarint((value << 1) ^ (value >> 63));
+	}
+
+	public TokenWriter writeString(final @Nullable String string)
+	{
+		if (string == null)
+			return writeVarint(0);
+
+		final byte[] bytes = string.getBytes(Charsets.UTF_8);
+		writeVarint(bytes.length + 1);
+		out.write(bytes, 0, bytes.length);
+		return this;
+	}
+
+	public TokenWriter writeDate(final @Nullable Date date)
+	{
+		if (date == null)
+			return writeBoolean(false);
+
+		writeBoolean(true);
+		return writeSignedVarint(date.getTime());
+	}
+
+	public TokenWriter writeLocation(final @Nullable Location location)
+	{
+		if (location == null)
+			return writeByte(0);
+
+		writeByte(location.type.ordinal() + 1);
+		writeString(location.id);
+		writeSignedVarint(location.lat);
+		writeSignedVarint(location.lon);
+		writeString(location.place);
+		return writeString(location.name);
+	}
+
+	public TokenWriter writeProducts(final @Nullable Collection<Product> products)
+	{
+		if (products == null)
+			return writeString(null);
+
+		final StringBuilder codes = new StringBuilder(products.size());
+		for (final Product product : products)
+			codes.append(product.code);
+		return writeString(codes.toString());
+	}
+
+	public String toToken()
+	{
+		return ENCODING.encode(out.toByteArray());
+	}
+}
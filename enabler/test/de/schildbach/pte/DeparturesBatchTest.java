@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.schildbach.pte.NetworkProvider.DeparturesListener;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.StationDepartures;
+
+public class DeparturesBatchTest
+{
+	@Test
+	public void boundedParallelism() throws Exception
+	{
+		final FakeProvider provider = new FakeProvider(2);
+		final Map<String, Object> outcomes = new HashMap<String, Object>();
+		new DeparturesBatch(provider, 2).query(Arrays.asList("1", "2", "3", "4", "5", "6", "fail"), null, 0, false, new Listener(outcomes));
+
+		assertEquals(7, outcomes.size());
+		assertTrue(outcomes.get("fail") instanceof IOException);
+		assertTrue(outcomes.get("1") instanceof QueryDeparturesResult);
+		assertEquals(2, provider.maxConcurrent.get());
+		assertEquals(7, provider.calls.get());
+	}
+
+	@Test
+	public void equivsServeRequestedStations() throws Exception
+	{
+		final FakeProvider provider = new FakeProvider(0);
+		final Map<String, Object> outcomes = new HashMap<String, Object>();
+		new DeparturesBatch(provider, 1).query(Arrays.asList("1", "1a", "2"), null, 0, true, new Listener(outcomes));
+
+		assertEquals(3, outcomes.size());
+		assertEquals(outcomes.get("1"), outcomes.get("1a"));
+		assertEquals(2, provider.calls.get());
+	}
+
+	private static final class Listener implements DeparturesListener
+	{
+		private final Map<String, Object> outcomes;
+
+		Listener(final Map<String, Object> outcomes)
+		{
+			this.outcomes = outcomes;
+		}
+
+		public void onDepartures(final String stationId, final QueryDeparturesResult result)
+		{
+			outcomes.put(stationId, result);
+		}
+
+		public void onFailure(final String stationId, final Exception exception)
+		{
+			outcomes.put(stationId, exception);
+		}
+	}
+
+	private static final class FakeProvider extends StubNetworkProvider
+	{
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger concurrent = new AtomicInteger();
+		final AtomicInteger maxConcurrent = new AtomicInteger();
+		private final CountDownLatch overlap;
+
+		/**
+		 * @param overlap
+		 *            number of queries that wait for each other, so that they are provably in flight at the same time
+		 */
+		FakeProvider(final int overlap)
+		{
+			super(Capability.DEPARTURES);
+			this.overlap = new CountDownLatch(overlap);
+		}
+
+		@Override
+		public QueryDeparturesResult queryDepartures(final String stationId, final Date time, final int maxDepartures, final boolean equivs)
+				throws IOException
+		{
+			calls.incrementAndGet();
+			final int current = concurrent.incrementAndGet();
+			try
+			{
+				synchronized (maxConcurrent)
+				{
+					maxConcurrent.set(Math.max(maxConcurrent.get(), current));
+				}
+				overlap.countDown();
+				overlap.await(5, TimeUnit.SECONDS);
+				if (stationId.equals("fail"))
+					throw new IOException("fail");
+
+				final QueryDeparturesResult result = new QueryDeparturesResult(header());
+				result.stationDepartures.add(new StationDepartures(new Location(LocationType.STATION, stationId), Collections
+						.<Departure> emptyList(), null));
+				if (equivs)
+					result.stationDepartures.add(new StationDepartures(new Location(LocationType.STATION, stationId + "a"), Collections
+							.<Departure> emptyList(), null));
+				return result;
+			}
+			catch (final InterruptedException x)
+			{
+				throw new RuntimeException(x);
+			}
+			finally
+			{
+				concurrent.decrementAndGet();
+			}
+		}
+	}
+}
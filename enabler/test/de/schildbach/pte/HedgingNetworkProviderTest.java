@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.schildbach.pte.HedgingNetworkProvider.Budget;
+import de.schildbach.pte.NetworkProvider.Capability;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.dto.SuggestedLocation;
+
+public class HedgingNetworkProviderTest
+{
+	private static final int WARM_UP = 30;
+
+	private final FakeProvider fake = new FakeProvider();
+	private final ExecutorService caller = Executors.newSingleThreadExecutor();
+
+	@After
+	public void tearDown()
+	{
+		fake.release.countDown();
+		caller.shutdownNow();
+	}
+
+	@Test
+	public void hedgesSlowQuery() throws Exception
+	{
+		final NetworkProvider provider = new HedgingNetworkProvider(fake, 90, new Budget(1, 1));
+		warmUp(provider);
+
+		// the hedge answers while the first attempt is still blocked, which is then cancelled
+		final SuggestLocationsResult result = provider.suggestLocations("slow");
+		assertEquals("slow1", result.getLocations().get(0).id);
+		assertEquals(2, fake.calls("slow"));
+		assertTrue(fake.cancelled.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void respectsBudget() throws Exception
+	{
+		final NetworkProvider provider = new HedgingNetworkProvider(fake, 90, new Budget(0.01, 1));
+		warmUp(provider);
+
+		final Future<SuggestLocationsResult> result = caller.submit(new Callable<SuggestLocationsResult>()
+		{
+			public SuggestLocationsResult call() throws IOException
+			{
+				return provider.suggestLocations("slow");
+			}
+		});
+		assertTrue(fake.blocked.await(5, TimeUnit.SECONDS));
+
+		// the hedge delay is the percentile of instant warm-up queries, so a hedge would have been sent by now
+		assertFalse(fake.hedged.await(100, TimeUnit.MILLISECONDS));
+		fake.release.countDown();
+		assertEquals("slow0", result.get(5, TimeUnit.SECONDS).getLocations().get(0).id);
+		assertEquals(1, fake.calls("slow"));
+	}
+
+	@Test
+	public void failuresAreNotHedged() throws Exception
+	{
+		// every query appears to take a minute, so the failure is known long before a hedge would be sent
+		final AtomicLong clock = new AtomicLong();
+		final NetworkProvider provider = new HedgingNetworkProvider(fake, 90, new Budget(1, 1))
+		{
+			@Override
+			protected long nanoTime()
+			{
+				return clock.addAndGet(60l * 1000 * 1000 * 1000);
+			}
+		};
+		warmUp(provider);
+
+		try
+		{
+			provider.suggestLocations("fail");
+			fail();
+		}
+		catch (final IOException x)
+		{
+			assertEquals("fail", x.getMessage());
+		}
+		assertEquals(1, fake.calls("fail"));
+	}
+
+	private static void warmUp(final NetworkProvider provider) throws IOException
+	{
+		for (int i = 0; i < WARM_UP; i++)
+			provider.suggestLocations("fast");
+	}
+
+	/**
+	 * Answers instantly, except for the first slow query, which blocks until released or cancelled.
+	 */
+	private static final class FakeProvider extends StubNetworkProvider
+	{
+		private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch hedged = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch cancelled = new CountDownLatch(1);
+
+		FakeProvider()
+		{
+			super(Capability.SUGGEST_LOCATIONS);
+			for (final String constraint : new String[] { "fast", "slow", "fail" })
+				calls.put(constraint, new AtomicInteger());
+		}
+
+		int calls(final String constraint)
+		{
+			return calls.get(constraint).get();
+		}
+
+		@Override
+		public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
+		{
+			final int call = calls.get(constraint.toString()).getAndIncrement();
+			if ("fail".equals(constraint))
+				throw new IOException("fail");
+
+			if ("slow".equals(constraint) && call == 0)
+			{
+				blocked.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (final InterruptedException x)
+				{
+					cancelled.countDown();
+					throw new IOException("interrupted");
+				}
+			}
+			else if ("slow".equals(constraint))
+			{
+				hedged.countDown();
+			}
+
+			return new SuggestLocationsResult(header(), Collections.singletonList(new SuggestedLocation(new Location(LocationType.STATION,
+					constraint.toString() + call))));
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.schildbach.pte.NetworkProvider.Option;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.Trip;
+import de.schildbach.pte.util.ParserUtils;
+
+/**
+ * Decodes the same binary HAFAS response eagerly and with lazy legs. The response is synthetic, not recorded.
+ */
+public class LazyLegsTest
+{
+	private static final Date TIME = new Date(1445256000000L);
+
+	private HttpServer server;
+	private final NetworkProvider provider = new NvvProvider();
+
+	@Before
+	public void setup() throws IOException
+	{
+		final byte[] body = ByteStreams.toByteArray(getClass().getResourceAsStream("hafas-trips.bin"));
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), 0), 0);
+		server.createContext("/", new HttpHandler()
+		{
+			public void handle(final HttpExchange exchange) throws IOException
+			{
+				exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+				exchange.sendResponseHeaders(200, body.length);
+				final OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		server.start();
+		ParserUtils.setReplayUrl(new URL("http", "localhost", server.getAddress().getPort(), "/"));
+	}
+
+	@After
+	public void teardown()
+	{
+		ParserUtils.setReplayUrl(null);
+		server.stop(0);
+	}
+
+	@Test
+	public void lazySameAsEager() throws IOException
+	{
+		final List<Trip> eager = queryTrips(null).trips;
+		final List<Trip> lazy = queryTrips(EnumSet.of(Option.LAZY_LEGS)).trips;
+
+		assertFalse(eager.isEmpty());
+		assertEquals(eager.size(), lazy.size());
+		for (int i = 0; i < eager.size(); i++)
+		{
+			final Trip lazyTrip = lazy.get(i);
+			assertTrue(lazyTrip.legs instanceof Trip.LazyLegs);
+			assertFalse(((Trip.LazyLegs) lazyTrip.legs).isDecoded());
+			assertSameTrip(eager.get(i), lazyTrip);
+			assertTrue(((Trip.LazyLegs) lazyTrip.legs).isDecoded());
+		}
+	}
+
+	@Test
+	public void usableAfterRelease() throws IOException
+	{
+		final List<Trip> eager = queryTrips(null).trips;
+		final List<Trip> lazy = queryTrips(EnumSet.of(Option.LAZY_LEGS)).trips;
+
+		for (final Trip trip : lazy)
+			((Trip.LazyLegs) trip.legs).release();
+
+		for (int i = 0; i < eager.size(); i++)
+		{
+			final Trip lazyTrip = lazy.get(i);
+			assertTrue(((Trip.LazyLegs) lazyTrip.legs).isDecoded());
+			assertSameTrip(eager.get(i), lazyTrip);
+			assertEquals(eager.get(i).toString(), lazyTrip.toString());
+			assertEquals(eager.get(i).getFirstPublicLeg().toString(), lazyTrip.getFirstPublicLeg().toString());
+			assertEquals(eager.get(i).getLastPublicLeg().toString(), lazyTrip.getLastPublicLeg().toString());
+		}
+	}
+
+	private QueryTripsResult queryTrips(final EnumSet<Option> options) throws IOException
+	{
+		final QueryTripsResult result = provider.queryTrips(new Location(LocationType.STATION, "2200007"), null, new Location(LocationType.STATION,
+				"2200931"), TIME, true, null, null, null, null, options);
+		assertEquals(QueryTripsResult.Status.OK, result.status);
+		return result;
+	}
+
+	private static void assertSameTrip(final Trip expected, final Trip actual)
+	{
+		// summary first, as it is known before the legs are decoded
+		assertEquals(expected.getFirstDepartureTime(), actual.getFirstDepartureTime());
+		assertEquals(expected.getLastArrivalTime(), actual.getLastArrivalTime());
+		assertEquals(expected.products(), actual.products());
+		assertEquals(expected.numChanges, actual.numChanges);
+		assertEquals(expected.legs.toString(), actual.legs.toString());
+		assertEquals(expected.getId(), actual.getId());
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import de.schildbach.pte.AbstractHafasProvider.QueryTripsBinaryContext;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryTripsContext;
+import de.schildbach.pte.util.TokenReader;
+import de.schildbach.pte.util.TokenWriter;
+
+public class QueryTripsContextTokenTest
+{
+	@Test
+	public void hafasBinaryContextRoundTrip()
+	{
+		final RtProvider provider = new RtProvider();
+		final String token = provider.encodeQueryTripsContext(new QueryTripsBinaryContext("ident#123", 4, "ld.12345.sbb", 3000, true));
+		assertTrue(token.matches("[A-Za-z0-9_-]+"));
+
+		final QueryTripsBinaryContext context = (QueryTripsBinaryContext) new RtProvider().decodeQueryTripsContext(token);
+		assertEquals("ident#123", context.ident);
+		assertEquals(4, context.seqNr);
+		assertEquals("ld.12345.sbb", context.ld);
+		assertEquals(3000, context.usedBufferSize);
+		assertTrue(context.canQueryLater());
+	}
+
+	@Test
+	public void lightweightFlagRoundTrip()
+	{
+		final RtProvider provider = new RtProvider();
+		final String token = provider.encodeQueryTripsContext(new QueryTripsBinaryContext("ident#123", 4, null, 3000, true, true, false));
+
+		final QueryTripsBinaryContext context = (QueryTripsBinaryContext) provider.decodeQueryTripsContext(token);
+		assertTrue(context.lightweight);
+		assertEquals(null, context.ld);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectOtherNetwork()
+	{
+		final String token = new TokenWriter().writeByte(3).writeString("VBB").writeByte(2).toToken();
+		new RtProvider().decodeQueryTripsContext(token);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectForgedEfaCommandLink()
+	{
+		final String token = new TokenWriter().writeByte(3).writeString("MVV").writeString("http://attacker.example/?x=").writeString("1")
+				.writeBoolean(false).toToken();
+		new MvvProvider().decodeQueryTripsContext(token);
+	}
+
+	@Test
+	public void efaContextCarriesIdsOnly()
+	{
+		final String token = new TokenWriter().writeByte(3).writeString("MVV").writeString("MVV_123:4").writeString("1").writeBoolean(false)
+				.toToken();
+		final QueryTripsContext context = new MvvProvider().decodeQueryTripsContext(token);
+		assertTrue(context.canQueryLater());
+		assertTrue(context.toString().endsWith("[MVV_123:4|1]"));
+	}
+
+	@Test
+	public void navitiaLinksAreRebuiltOnEndpoint()
+	{
+		final String token = new TokenWriter().writeByte(3).writeString("PARIS").writeLocation(null).writeLocation(null).writeString(null)
+				.writeString("http://attacker.example/journeys?from=1").writeBoolean(false).toToken();
+		final String context = new ParisProvider("secret").decodeQueryTripsContext(token).toString();
+		assertTrue(context, context.contains("|http://api.navitia.io/v1/journeys?http://attacker.example/journeys?from=1]"));
+	}
+
+	@Test
+	public void navitiaLinkQueryRoundTrip()
+	{
+		final ParisProvider provider = new ParisProvider("secret");
+		final String token = new TokenWriter().writeByte(3).writeString("PARIS").writeLocation(null).writeLocation(null).writeString("from=1")
+				.writeString("from=2").writeBoolean(false).toToken();
+		final String reencoded = provider.encodeQueryTripsContext(provider.decodeQueryTripsContext(token));
+		final QueryTripsContext context = provider.decodeQueryTripsContext(reencoded);
+		assertTrue(context.toString(),
+				context.toString().endsWith("|http://api.navitia.io/v1/journeys?from=1|http://api.navitia.io/v1/journeys?from=2]"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectMalformed()
+	{
+		new RtProvider().decodeQueryTripsContext("AQ");
+	}
+
+	@Test
+	public void primitivesRoundTrip()
+	{
+		final Location location = new Location(LocationType.STATION, "8503000", 47378177, 8540192, "Zürich", "HB");
+		final String token = new TokenWriter().writeLocation(location).writeLocation(null).writeDate(new Date(1430000000000l)).writeDate(null)
+				.writeSignedVarint(-300).writeProducts(Product.ALL).writeString("").toToken();
+
+		final TokenReader reader = new TokenReader(token);
+		final Location decoded = reader.readLocation();
+		assertEquals(location, decoded);
+		assertEquals("Zürich", decoded.place);
+		assertEquals(47378177, decoded.lat);
+		assertEquals(null, reader.readLocation());
+		assertEquals(new Date(1430000000000l), reader.readDate());
+		assertEquals(null, reader.readDate());
+		assertEquals(-300, reader.readSignedVarint());
+		assertEquals(Product.ALL, reader.readProducts());
+		assertEquals("", reader.readString());
+		reader.requireEnd();
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsContext;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.ResultHeader;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+
+/**
+ * Provider for tests that cannot query anything. Tests override the queries they need and pass them as capabilities.
+ */
+public class StubNetworkProvider extends AbstractNetworkProvider
+{
+	private final Set<Capability> capabilities;
+
+	public StubNetworkProvider(final Capability... capabilities)
+	{
+		super(NetworkId.RT);
+		this.capabilities = EnumSet.noneOf(Capability.class);
+		this.capabilities.addAll(Arrays.asList(capabilities));
+	}
+
+	@Override
+	protected boolean hasCapability(final Capability capability)
+	{
+		return capabilities.contains(capability);
+	}
+
+	protected ResultHeader header()
+	{
+		return new ResultHeader(network, "stub");
+	}
+
+	public NearbyLocationsResult queryNearbyLocations(final EnumSet<LocationType> types, final Location location, final int maxDistance,
+			final int maxLocations) throws IOException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	public QueryDeparturesResult queryDepartures(final String stationId, final Date time, final int maxDepartures, final boolean equivs)
+			throws IOException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	public QueryTripsResult queryTrips(final Location from, final Location via, final Location to, final Date date, final boolean dep,
+			final Set<Product> products, final Optimize optimize, final WalkSpeed walkSpeed, final Accessibility accessibility,
+			final Set<Option> options) throws IOException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	public QueryTripsResult queryMoreTrips(final QueryTripsContext context, final boolean later) throws IOException
+	{
+		throw new UnsupportedOperationException();
+	}
+}
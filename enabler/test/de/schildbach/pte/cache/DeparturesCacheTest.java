@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.schildbach.pte.NetworkProvider.Capability;
+import de.schildbach.pte.NetworkProvider.DepartureSink;
+import de.schildbach.pte.StubNetworkProvider;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.Line;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.ResultHeader;
+import de.schildbach.pte.dto.StationDepartures;
+
+public class DeparturesCacheTest
+{
+	private static final long T0 = 1430000000000l;
+	private static final long MINUTE = 60 * 1000;
+
+	private FakeProvider provider;
+	private List<Runnable> refreshes;
+	private long now;
+	private DeparturesCache cache;
+
+	@Before
+	public void setUp()
+	{
+		provider = new FakeProvider();
+		refreshes = new LinkedList<Runnable>();
+		now = T0;
+		cache = new DeparturesCache(provider, new Executor()
+		{
+			public void execute(final Runnable runnable)
+			{
+				refreshes.add(runnable);
+			}
+		}, 100)
+		{
+			@Override
+			protected long currentTimeMillis()
+			{
+				return now;
+			}
+		};
+	}
+
+	@Test
+	public void laterAndNarrowerSliceFromCache() throws Exception
+	{
+		cache.setMaxAge(5 * MINUTE);
+		assertEquals(10, departures(cache.queryDepartures("1", null, 10, false)).size());
+
+		now += 3 * MINUTE;
+		final List<Departure> departures = departures(cache.queryDepartures("1", null, 5, false));
+		assertEquals(1, provider.calls);
+		assertEquals(5, departures.size());
+		assertEquals(T0 + 3 * MINUTE, departures.get(0).plannedTime.getTime());
+	}
+
+	@Test
+	public void shortBoardCoversOnlyItsTimeSpan() throws Exception
+	{
+		cache.setMaxAge(30 * MINUTE);
+		provider.windowMinutes = 5;
+		assertEquals(5, departures(cache.queryDepartures("1", null, 10, false)).size());
+
+		now += 2 * MINUTE;
+		assertEquals(3, departures(cache.queryDepartures("1", null, 3, false)).size());
+		assertEquals(1, provider.calls);
+
+		// beyond the last departure of the board
+		now += 4 * MINUTE;
+		assertEquals(3, departures(cache.queryDepartures("1", null, 3, false)).size());
+		assertEquals(2, provider.calls);
+	}
+
+	@Test
+	public void widerRequestFetchesAgain() throws Exception
+	{
+		cache.queryDepartures("1", null, 5, false);
+		assertEquals(20, departures(cache.queryDepartures("1", null, 20, false)).size());
+		assertEquals(2, provider.calls);
+	}
+
+	@Test
+	public void expiredBoardFetchesAgain() throws Exception
+	{
+		cache.queryDepartures("1", null, 5, false);
+		now += 5 * MINUTE;
+		cache.queryDepartures("1", null, 5, false);
+		assertEquals(2, provider.calls);
+	}
+
+	@Test
+	public void invalidStationCachedNegatively() throws Exception
+	{
+		provider.status = QueryDeparturesResult.Status.INVALID_STATION;
+		assertEquals(QueryDeparturesResult.Status.INVALID_STATION, cache.queryDepartures("1", null, 5, false).status);
+		now += 10 * MINUTE;
+		assertEquals(QueryDeparturesResult.Status.INVALID_STATION, cache.queryDepartures("1", null, 5, false).status);
+		assertEquals(1, provider.calls);
+	}
+
+	@Test
+	public void staleWhileServiceDown() throws Exception
+	{
+		cache.queryDepartures("1", null, 10, false);
+
+		now += 5 * MINUTE;
+		provider.status = QueryDeparturesResult.Status.SERVICE_DOWN;
+		final DeparturesCache.Result stale = cache.queryDeparturesCached("1", null, 3, false);
+		assertTrue(stale.stale);
+		assertEquals(3, departures(stale.result).size());
+		assertEquals(1, refreshes.size());
+
+		// further requests don't hit the upstream while it's down
+		assertTrue(cache.queryDeparturesCached("1", null, 3, false).stale);
+		assertEquals(2, provider.calls);
+		assertEquals(1, refreshes.size());
+
+		provider.status = QueryDeparturesResult.Status.OK;
+		refreshes.remove(0).run();
+		final DeparturesCache.Result fresh = cache.queryDeparturesCached("1", null, 3, false);
+		assertFalse(fresh.stale);
+		assertEquals(3, provider.calls);
+	}
+
+	@Test
+	public void sinkServedFromCache() throws Exception
+	{
+		cache.queryDepartures("1", null, 10, false);
+
+		final List<Departure> received = new ArrayList<Departure>();
+		final QueryDeparturesResult result = cache.queryDepartures("1", null, 10, false, new DepartureSink()
+		{
+			public boolean departure(final Location station, final Departure departure)
+			{
+				received.add(departure);
+				return received.size() < 3;
+			}
+		});
+		assertEquals(3, received.size());
+		assertEquals(received, departures(result));
+		assertEquals(1, provider.calls);
+	}
+
+	private static List<Departure> departures(final QueryDeparturesResult result)
+	{
+		assertEquals(QueryDeparturesResult.Status.OK, result.status);
+		return result.stationDepartures.get(0).departures;
+	}
+
+	private class FakeProvider extends StubNetworkProvider
+	{
+		int calls = 0;
+		QueryDeparturesResult.Status status = QueryDeparturesResult.Status.OK;
+		int windowMinutes = 0;
+
+		FakeProvider()
+		{
+			super(Capability.DEPARTURES);
+		}
+
+		@Override
+		public QueryDeparturesResult queryDepartures(final String stationId, final Date time, final int maxDepartures, final boolean equivs)
+				throws IOException
+		{
+			calls++;
+			final ResultHeader header = header();
+			if (status != QueryDeparturesResult.Status.OK)
+				return new QueryDeparturesResult(header, status);
+
+			final long from = time != null ? time.getTime() : now;
+			final List<Departure> departures = new ArrayList<Departure>();
+			final Line line = new Line("1", null, Product.BUS, "1");
+			int count = maxDepartures > 0 ? maxDepartures : 10;
+			if (windowMinutes > 0)
+				count = Math.min(count, windowMinutes);
+			for (int i = 0; i < count; i++)
+				departures.add(new Departure(new Date(from + i * MINUTE), null, line, null, null, null, null));
+			final QueryDeparturesResult result = new QueryDeparturesResult(header);
+			result.stationDepartures.add(new StationDepartures(new Location(LocationType.STATION, stationId), departures, null));
+			return result;
+		}
+	}
+}
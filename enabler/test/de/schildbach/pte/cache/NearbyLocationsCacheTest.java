@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.schildbach.pte.LocationUtils;
+import de.schildbach.pte.NetworkProvider.Capability;
+import de.schildbach.pte.StubNetworkProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+
+public class NearbyLocationsCacheTest
+{
+	private static final EnumSet<LocationType> STATIONS = EnumSet.of(LocationType.STATION);
+	private static final int TILE_SIZE = 10000;
+
+	@Test
+	public void assembleTilesAndFilterByDistance() throws Exception
+	{
+		final FakeProvider upstream = new FakeProvider(0);
+		final NearbyLocationsCache cache = new NearbyLocationsCache(upstream, TILE_SIZE, 100);
+		cache.setTileMaxLocations(1000);
+
+		// within a single tile
+		final Location center = Location.coord(52505000, 13405000);
+		assertEquals(upstream.within(center, 300), cache.queryNearbyLocations(STATIONS, center, 300, 0).locations);
+		assertEquals(1, upstream.calls);
+
+		// from the same tile, without asking the upstream again
+		final Location other = Location.coord(52503300, 13405700);
+		assertEquals(upstream.within(other, 200), cache.queryNearbyLocations(STATIONS, other, 200, 0).locations);
+		assertEquals(1, upstream.calls);
+
+		// across a corner of four tiles
+		final Location corner = Location.coord(52510000, 13410000);
+		final List<Location> locations = cache.queryNearbyLocations(STATIONS, corner, 400, 0).locations;
+		assertEquals(upstream.within(corner, 400), locations);
+		assertEquals(4, upstream.calls);
+	}
+
+	@Test
+	public void nearestFirstUpToMaxLocations() throws Exception
+	{
+		final FakeProvider upstream = new FakeProvider(0);
+		final NearbyLocationsCache cache = new NearbyLocationsCache(upstream, TILE_SIZE, 100);
+		cache.setTileMaxLocations(1000);
+
+		final Location center = Location.coord(52505100, 13405100);
+		final List<Location> locations = cache.queryNearbyLocations(STATIONS, center, 1000, 3).locations;
+		assertEquals(upstream.within(center, 1000).subList(0, 3), locations);
+	}
+
+	@Test
+	public void truncatedTileIsSplit() throws Exception
+	{
+		final FakeProvider upstream = new FakeProvider(60);
+		final NearbyLocationsCache cache = new NearbyLocationsCache(upstream, TILE_SIZE, 100);
+		cache.setTileMaxLocations(60);
+
+		// more stations than the upstream returns at once
+		final Location center = Location.coord(52505000, 13405000);
+		final List<Location> locations = cache.queryNearbyLocations(STATIONS, center, 400, 0).locations;
+		assertTrue(locations.size() > 60);
+		assertEquals(upstream.within(center, 400), locations);
+		assertTrue(upstream.calls > 1);
+	}
+
+	@Test
+	public void truncatedTileIsPassedThrough() throws Exception
+	{
+		final FakeProvider upstream = new FakeProvider(1);
+		final NearbyLocationsCache cache = new NearbyLocationsCache(upstream, TILE_SIZE, 100);
+		cache.setTileMaxLocations(1);
+
+		final Location center = Location.coord(52505000, 13405000);
+		assertEquals(upstream.within(center, 300).subList(0, 1), cache.queryNearbyLocations(STATIONS, center, 300, 5).locations);
+
+		// the tile is not split again, only the request itself goes upstream
+		final int calls = upstream.calls;
+		cache.queryNearbyLocations(STATIONS, center, 300, 5);
+		assertEquals(calls + 1, upstream.calls);
+
+		// until it is tried again
+		cache.setUncacheableMaxAge(0);
+		cache.queryNearbyLocations(STATIONS, center, 300, 5);
+		assertTrue(upstream.calls > calls + 2);
+	}
+
+	/**
+	 * Stations on a grid of 1000 microdegrees within a 20 by 20 grid of tiles, truncating results like most upstreams.
+	 */
+	private static final class FakeProvider extends StubNetworkProvider
+	{
+		private final List<Location> stations = new ArrayList<Location>();
+		private final int cap;
+		int calls = 0;
+
+		/**
+		 * @param cap
+		 *            number of locations returned at most, or {@code 0} for no limit
+		 */
+		FakeProvider(final int cap)
+		{
+			super(Capability.NEARBY_LOCATIONS);
+			this.cap = cap;
+			for (int lat = 52500500; lat < 52520000; lat += 1000)
+				for (int lon = 13400500; lon < 13420000; lon += 1000)
+					stations.add(new Location(LocationType.STATION, lat + "/" + lon, lat, lon, null, null));
+		}
+
+		List<Location> within(final Location center, final int maxDistance)
+		{
+			final List<Location> locations = new ArrayList<Location>();
+			for (final Location station : stations)
+				if (distance(center, station) <= maxDistance)
+					locations.add(station);
+
+			Collections.sort(locations, new Comparator<Location>()
+			{
+				public int compare(final Location location0, final Location location1)
+				{
+					return Float.compare(distance(center, location0), distance(center, location1));
+				}
+			});
+			return locations;
+		}
+
+		private static float distance(final Location location0, final Location location1)
+		{
+			return LocationUtils.computeDistance(location0.lat / 1E6, location0.lon / 1E6, location1.lat / 1E6, location1.lon / 1E6);
+		}
+
+		@Override
+		public NearbyLocationsResult queryNearbyLocations(final EnumSet<LocationType> types, final Location location, final int maxDistance,
+				final int maxLocations) throws IOException
+		{
+			calls++;
+			final List<Location> locations = within(location, maxDistance);
+			int limit = maxLocations > 0 ? maxLocations : locations.size();
+			if (cap > 0)
+				limit = Math.min(limit, cap);
+			return new NearbyLocationsResult(header(), new ArrayList<Location>(locations.subList(0, Math.min(limit, locations.size()))));
+		}
+	}
+}
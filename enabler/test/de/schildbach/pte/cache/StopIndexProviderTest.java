@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.schildbach.pte.NetworkProvider.Capability;
+import de.schildbach.pte.StubNetworkProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryTripsContext;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.dto.SuggestedLocation;
+import de.schildbach.pte.dto.Trip;
+
+public class StopIndexProviderTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final Location ALEXANDERPLATZ = new Location(LocationType.STATION, "9100003", 52521481, 13410962, "Berlin", "Alexanderplatz");
+	private static final Location ALEXANDERSTRASSE = new Location(LocationType.STATION, "9100026", 52517868, 13414924, "Berlin",
+			"Alexanderstraße");
+	private static final Location ADDRESS = new Location(LocationType.ADDRESS, null, 52521000, 13411000, "Berlin", "Alexanderplatz 1");
+	private static final Location CENTER = new Location(LocationType.COORD, null, 52520000, 13414000);
+	private static final EnumSet<LocationType> STATIONS = EnumSet.of(LocationType.STATION);
+
+	private static final QueryTripsContext CONTEXT = new QueryTripsContext()
+	{
+		private static final long serialVersionUID = 1L;
+
+		public boolean canQueryLater()
+		{
+			return false;
+		}
+
+		public boolean canQueryEarlier()
+		{
+			return false;
+		}
+	};
+
+	private FakeProvider upstream;
+	private StopIndex index;
+	private StopIndexProvider provider;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		upstream = new FakeProvider();
+		index = new StopIndex(new File(folder.getRoot(), "test.stops"));
+		provider = new StopIndexProvider(upstream, index);
+		provider.setMinHits(1);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		index.close();
+	}
+
+	@Test
+	public void nearbyBelowLimitServedLocally() throws Exception
+	{
+		// only grid cells lying within the circle are covered, hence the narrower second query
+		provider.queryNearbyLocations(STATIONS, CENTER, 5000, 10);
+		assertEquals(2, provider.queryNearbyLocations(STATIONS, CENTER, 1000, 10).locations.size());
+		assertEquals(1, upstream.nearbyCalls);
+	}
+
+	@Test
+	public void nearbyAtLimitNotServedLocally() throws Exception
+	{
+		provider.queryNearbyLocations(STATIONS, CENTER, 5000, 2);
+		provider.queryNearbyLocations(STATIONS, CENTER, 1000, 2);
+		assertEquals(2, upstream.nearbyCalls);
+	}
+
+	@Test
+	public void nearbyWithUnknownCapNotServedLocally() throws Exception
+	{
+		provider.queryNearbyLocations(STATIONS, CENTER, 5000, 0);
+		provider.queryNearbyLocations(STATIONS, CENTER, 1000, 0);
+		assertEquals(2, upstream.nearbyCalls);
+	}
+
+	@Test
+	public void nearbyBelowUpstreamCapServedLocally() throws Exception
+	{
+		provider.setUpstreamMaxLocations(50);
+		provider.queryNearbyLocations(STATIONS, CENTER, 5000, 0);
+		provider.queryNearbyLocations(STATIONS, CENTER, 1000, 0);
+		assertEquals(1, upstream.nearbyCalls);
+	}
+
+	@Test
+	public void suggestionsComeFromUpstream() throws Exception
+	{
+		provider.suggestLocations("alexander");
+		final SuggestLocationsResult result = provider.suggestLocations("alexander");
+		assertEquals(2, upstream.suggestCalls);
+		assertEquals(3, result.getLocations().size());
+		assertEquals(ADDRESS, result.getLocations().get(0));
+	}
+
+	@Test
+	public void suggestionsForKnownStationFromIndex() throws Exception
+	{
+		provider.suggestLocations("alexander");
+		assertEquals(Arrays.asList(ALEXANDERPLATZ), provider.suggestLocations("alexanderplatz").getLocations());
+		assertEquals(Arrays.asList(ALEXANDERPLATZ), provider.suggestLocations("Berlin Alexanderplatz").getLocations());
+		assertEquals(1, upstream.suggestCalls);
+
+		// not the complete word of a station
+		provider.suggestLocations("alexanderpl");
+		assertEquals(2, upstream.suggestCalls);
+	}
+
+	@Test
+	public void suggestionsFromIndexWhileUpstreamDown() throws Exception
+	{
+		provider.suggestLocations("alexander");
+		provider.suggestLocations("alexanderstr");
+		upstream.down = true;
+		provider.setMaxSuggestions(1);
+
+		final SuggestLocationsResult result = provider.suggestLocations("alexander");
+		assertEquals(SuggestLocationsResult.Status.OK, result.status);
+		assertEquals(Arrays.asList(ALEXANDERSTRASSE), result.getLocations());
+	}
+
+	@Test
+	public void lazyLegsNotDecodedForRecording() throws Exception
+	{
+		final QueryTripsResult result = provider.queryTrips(ALEXANDERPLATZ, null, ALEXANDERSTRASSE, new Date(), true, null, null, null, null,
+				null);
+		assertFalse(((Trip.LazyLegs) result.trips.get(0).legs).isDecoded());
+		assertEquals(2, index.size());
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownSuggestionsWhileUpstreamDown() throws Exception
+	{
+		upstream.down = true;
+		provider.suggestLocations("alexander");
+	}
+
+	private static class FakeProvider extends StubNetworkProvider
+	{
+		int nearbyCalls = 0;
+		int suggestCalls = 0;
+		boolean down = false;
+
+		FakeProvider()
+		{
+			super(Capability.NEARBY_LOCATIONS, Capability.SUGGEST_LOCATIONS);
+		}
+
+		@Override
+		public NearbyLocationsResult queryNearbyLocations(final EnumSet<LocationType> types, final Location location, final int maxDistance,
+				final int maxLocations) throws IOException
+		{
+			nearbyCalls++;
+			final List<Location> locations = Arrays.asList(ALEXANDERPLATZ, ALEXANDERSTRASSE);
+			return new NearbyLocationsResult(header(), maxLocations > 0 && maxLocations < locations.size() ? locations.subList(0,
+					maxLocations) : locations);
+		}
+
+		@Override
+		public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
+		{
+			suggestCalls++;
+			if (down)
+				throw new IOException("down");
+
+			final List<SuggestedLocation> locations = new ArrayList<SuggestedLocation>();
+			locations.add(new SuggestedLocation(ADDRESS, 3));
+			for (final Location station : new Location[] { ALEXANDERPLATZ, ALEXANDERSTRASSE })
+				if (station.name.toLowerCase().startsWith(constraint.toString()))
+					locations.add(new SuggestedLocation(station, 1));
+			return new SuggestLocationsResult(header(), locations);
+		}
+
+		@Override
+		public QueryTripsResult queryTrips(final Location from, final Location via, final Location to, final Date date, final boolean dep,
+				final Set<Product> products, final Optimize optimize, final WalkSpeed walkSpeed, final Accessibility accessibility,
+				final Set<Option> options) throws IOException
+		{
+			final List<Trip.Leg> legs = new Trip.LazyLegs(date, date, EnumSet.noneOf(Product.class))
+			{
+				@Override
+				protected List<Trip.Leg> decodeLegs()
+				{
+					throw new AssertionError("decoded");
+				}
+
+				@Override
+				protected void releaseBuffer()
+				{
+				}
+			};
+			final Trip trip = new Trip(null, from, to, legs, null, null, null);
+			return new QueryTripsResult(header(), null, from, via, to, CONTEXT, Arrays.asList(trip));
+		}
+	}
+}
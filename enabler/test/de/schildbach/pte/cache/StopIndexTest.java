@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.SuggestedLocation;
+
+public class StopIndexTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final Location ALEXANDERPLATZ = new Location(LocationType.STATION, "9100003", 52521481, 13410962, "Berlin", "Alexanderplatz");
+	private static final Location JANNOWITZBRUECKE = new Location(LocationType.STATION, "9100004", 52515503, 13418027, "Berlin",
+			"Jannowitzbrücke");
+
+	@Test
+	public void suggestByWords() throws Exception
+	{
+		final StopIndex index = new StopIndex(new File(folder.getRoot(), "test.stops"));
+		index.record(ALEXANDERPLATZ);
+		index.record(JANNOWITZBRUECKE);
+
+		final List<SuggestedLocation> suggestions = index.suggest("alexander berl", 1);
+		assertEquals(1, suggestions.size());
+		assertEquals(ALEXANDERPLATZ, suggestions.get(0).location);
+		assertEquals(1, index.suggest("Jannowitzbruecke", 1).size());
+		assertEquals(0, index.suggest("alexander", 2).size());
+		assertNull(index.suggest("al", 1));
+		index.close();
+	}
+
+	@Test
+	public void nearbyOnlyWhenCovered() throws Exception
+	{
+		final StopIndex index = new StopIndex(new File(folder.getRoot(), "test.stops"));
+		index.record(ALEXANDERPLATZ);
+		index.record(JANNOWITZBRUECKE);
+
+		assertNull(index.nearby(52520000, 13414000, 1000, 0));
+		index.markCovered(52520000, 13414000, 5000);
+		final List<Location> nearby = index.nearby(52520000, 13414000, 1000, 0);
+		assertNotNull(nearby);
+		assertEquals(ALEXANDERPLATZ, nearby.get(0));
+		assertEquals(2, nearby.size());
+		index.close();
+	}
+
+	@Test
+	public void coverageExpires() throws Exception
+	{
+		final StopIndex index = new StopIndex(new File(folder.getRoot(), "test.stops"));
+		index.record(ALEXANDERPLATZ);
+		index.markCovered(52520000, 13414000, 5000);
+		assertNotNull(index.nearby(52520000, 13414000, 1000, 0));
+
+		index.setMaxCoverageAge(0);
+		assertNull(index.nearby(52520000, 13414000, 1000, 0));
+		index.close();
+	}
+
+	@Test
+	public void persistAndUpdate() throws Exception
+	{
+		final File file = new File(folder.getRoot(), "test.stops");
+		final StopIndex index = new StopIndex(file);
+		index.record(new Location(LocationType.STATION, "9100003", null, "Alexanderplatz"));
+		index.record(ALEXANDERPLATZ);
+		index.record(new Location(LocationType.STATION, "9100003"));
+		index.markCovered(52520000, 13414000, 5000);
+		index.close();
+
+		final StopIndex reopened = new StopIndex(file);
+		assertEquals(1, reopened.size());
+		final List<SuggestedLocation> suggestions = reopened.suggest("berlin alexanderplatz", 3);
+		assertEquals(1, suggestions.size());
+		assertEquals("Berlin", suggestions.get(0).location.place);
+		assertEquals(52521481, suggestions.get(0).location.lat);
+		assertEquals(1, reopened.nearby(52520000, 13414000, 1000, 0).size());
+		reopened.close();
+	}
+}
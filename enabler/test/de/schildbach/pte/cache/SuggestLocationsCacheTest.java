@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.schildbach.pte.NetworkProvider.Capability;
+import de.schildbach.pte.StubNetworkProvider;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.dto.SuggestedLocation;
+
+public class SuggestLocationsCacheTest
+{
+	private static final Location ALEXANDERPLATZ = new Location(LocationType.STATION, "1", "Berlin", "Alexanderplatz");
+	private static final Location ALEXANDERSTRASSE = new Location(LocationType.STATION, "2", "Berlin", "Alexanderstraße");
+	private static final Location JANNOWITZBRUECKE = new Location(LocationType.STATION, "3", "Berlin", "Jannowitzbrücke");
+
+	@Test
+	public void sameConstraintFromCache() throws Exception
+	{
+		final FakeProvider upstream = new FakeProvider();
+		final SuggestLocationsCache cache = new SuggestLocationsCache(upstream, 10);
+
+		cache.suggestLocations("Berlin");
+		assertEquals(3, cache.suggestLocations(" berlin ").getLocations().size());
+		assertEquals(1, upstream.calls);
+	}
+
+	@Test
+	public void narrowedConstraintFilteredFromCompleteResult() throws Exception
+	{
+		final FakeProvider upstream = new FakeProvider();
+		final SuggestLocationsCache cache = new SuggestLocationsCache(upstream, 10);
+
+		cache.suggestLocations("berlin");
+		assertEquals(Arrays.asList(ALEXANDERPLATZ, ALEXANDERSTRASSE), cache.suggestLocations("Berlin Alex").getLocations());
+		assertEquals(Arrays.asList(JANNOWITZBRUECKE), cache.suggestLocations("berlin jannowitzbruecke").getLocations());
+		assertEquals(1, upstream.calls);
+	}
+
+	@Test
+	public void incompleteResultNotReusedForNarrowedConstraint() throws Exception
+	{
+		final FakeProvider upstream = new FakeProvider();
+		final SuggestLocationsCache cache = new SuggestLocationsCache(upstream, 10);
+
+		// matches more stations than the upstream returns
+		assertEquals(10, cache.suggestLocations("ber").getLocations().size());
+		assertEquals(3, cache.suggestLocations("berlin").getLocations().size());
+		assertEquals(2, upstream.calls);
+
+		// the exact constraint is still served from cache
+		cache.suggestLocations("ber");
+		assertEquals(2, upstream.calls);
+	}
+
+	@Test
+	public void evictedPrefixNotUsed() throws Exception
+	{
+		final FakeProvider upstream = new FakeProvider();
+		final SuggestLocationsCache cache = new SuggestLocationsCache(upstream, 1);
+
+		cache.suggestLocations("berlin");
+		cache.suggestLocations("bernau");
+		assertEquals(2, cache.suggestLocations("berlin alex").getLocations().size());
+		assertEquals(3, upstream.calls);
+	}
+
+	@Test
+	public void failedResultNotCached() throws Exception
+	{
+		final FakeProvider upstream = new FakeProvider();
+		final SuggestLocationsCache cache = new SuggestLocationsCache(upstream, 10);
+
+		upstream.down = true;
+		assertEquals(SuggestLocationsResult.Status.SERVICE_DOWN, cache.suggestLocations("berlin").status);
+		upstream.down = false;
+		assertEquals(SuggestLocationsResult.Status.OK, cache.suggestLocations("berlin").status);
+		assertEquals(2, upstream.calls);
+	}
+
+	@Test
+	public void normalizeCaseAndWhitespace()
+	{
+		assertEquals("berlin alex", SuggestLocationsCache.normalize("  Berlin \t ALEX "));
+	}
+
+	@Test
+	public void normalizeUmlauts()
+	{
+		assertEquals("muenchen", SuggestLocationsCache.normalize("München"));
+		assertEquals("strasse", SuggestLocationsCache.normalize("Straße"));
+		assertEquals(SuggestLocationsCache.normalize("Muenchen"), SuggestLocationsCache.normalize("MÜNCHEN"));
+		// decomposed, as typed on some keyboards
+		assertEquals("muenchen", SuggestLocationsCache.normalize("Mu\u0308nchen"));
+	}
+
+	@Test
+	public void normalizeDiacritics()
+	{
+		assertEquals("gare de l'est", SuggestLocationsCache.normalize("Gare de l'Est"));
+		assertEquals("saint-etienne", SuggestLocationsCache.normalize("Saint-Étienne"));
+		assertEquals("nimes", SuggestLocationsCache.normalize("Nîmes"));
+	}
+
+	@Test
+	public void normalizeNull()
+	{
+		assertEquals("", SuggestLocationsCache.normalize(null));
+	}
+
+	/**
+	 * Suggests the stations containing all words of the constraint, at most 10 like most upstreams.
+	 */
+	private static final class FakeProvider extends StubNetworkProvider
+	{
+		private final List<Location> stations = new ArrayList<Location>();
+		int calls = 0;
+		boolean down = false;
+
+		FakeProvider()
+		{
+			super(Capability.SUGGEST_LOCATIONS);
+			stations.addAll(Arrays.asList(ALEXANDERPLATZ, ALEXANDERSTRASSE, JANNOWITZBRUECKE));
+			for (int i = 0; i < 12; i++)
+				stations.add(new Location(LocationType.STATION, "b" + i, "Bernau", "Bahnhof " + i));
+		}
+
+		@Override
+		public SuggestLocationsResult suggestLocations(final CharSequence constraint) throws IOException
+		{
+			calls++;
+			if (down)
+				return new SuggestLocationsResult(header(), SuggestLocationsResult.Status.SERVICE_DOWN);
+
+			final String[] tokens = SuggestLocationsCache.normalize(constraint).split(" ");
+			final List<SuggestedLocation> locations = new ArrayList<SuggestedLocation>();
+			for (final Location station : stations)
+			{
+				final String text = SuggestLocationsCache.normalize(station.place + " " + station.name);
+				boolean matches = true;
+				for (final String token : tokens)
+					matches &= text.contains(token);
+				if (matches && locations.size() < 10)
+					locations.add(new SuggestedLocation(station, stations.size() - locations.size()));
+			}
+			return new SuggestLocationsResult(header(), locations);
+		}
+	}
+}
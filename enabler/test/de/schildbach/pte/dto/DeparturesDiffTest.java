@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.dto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+
+public class DeparturesDiffTest
+{
+	private static final Location STATION = new Location(LocationType.STATION, "1");
+	private static final Location DESTINATION = new Location(LocationType.STATION, "2");
+	private static final Line LINE = new Line("1", null, Product.BUS, "100");
+
+	private static Departure departure(final long planned, final Long predicted)
+	{
+		return new Departure(new Date(planned), predicted != null ? new Date(predicted) : null, LINE, null, DESTINATION, null, null);
+	}
+
+	@Test
+	public void unchanged()
+	{
+		final DeparturesDiff diff = DeparturesDiff.between(STATION, Arrays.asList(departure(1000, null), departure(2000, null)),
+				Arrays.asList(departure(1000, null), departure(2000, null)));
+		assertTrue(diff.isEmpty());
+	}
+
+	@Test
+	public void addedRemovedChanged()
+	{
+		final Departure delayed = departure(2000, 2500L);
+		final Departure added = departure(3000, null);
+		final DeparturesDiff diff = DeparturesDiff.between(STATION, Arrays.asList(departure(1000, null), departure(2000, null)),
+				Arrays.asList(delayed, added));
+		assertEquals(1, diff.removed.size());
+		assertEquals(new Date(1000), diff.removed.get(0).plannedTime);
+		assertEquals(1, diff.changed.size());
+		assertSame(delayed, diff.changed.get(0));
+		assertEquals(1, diff.added.size());
+		assertSame(added, diff.added.get(0));
+	}
+
+	@Test
+	public void duplicatesByOccurrence()
+	{
+		final DeparturesDiff diff = DeparturesDiff.between(STATION, Arrays.asList(departure(1000, null)),
+				Arrays.asList(departure(1000, null), departure(1000, null)));
+		assertEquals(1, diff.added.size());
+		assertTrue(diff.removed.isEmpty());
+	}
+}
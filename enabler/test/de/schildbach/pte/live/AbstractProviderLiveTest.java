@@ -19,6 +19,7 @@ package de.schildbach.pte.live;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Date;
 import java.util.EnumSet;
@@ -26,6 +27,8 @@ import java.util.Set;
 
 import javax.annotation.Nullable;
 
+import org.junit.BeforeClass;
+
 import de.schildbach.pte.NetworkProvider;
 import de.schildbach.pte.NetworkProvider.Accessibility;
 import de.schildbach.pte.NetworkProvider.WalkSpeed;
@@ -37,14 +40,52 @@ import de.schildbach.pte.dto.QueryDeparturesResult;
 import de.schildbach.pte.dto.QueryTripsContext;
 import de.schildbach.pte.dto.QueryTripsResult;
 import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.util.HttpArchive;
+import de.schildbach.pte.util.ParserUtils;
+import de.schildbach.pte.util.ReplayServer;
 
 /**
+ * Live tests talk to the upstream APIs by default. Set {@code -Dpte.live.record=<dir>} to record all exchanges into an
+ * {@link HttpArchive}, and {@code -Dpte.live.replay=<dir>} to replay them from a local {@link ReplayServer} instead,
+ * optionally with {@code -Dpte.live.latency=<ms>} ({@code -1} for the recorded latencies) and
+ * {@code -Dpte.live.bandwidth=<bytes/s>}.
+ *
  * @author Andreas Schildbach
  */
 public abstract class AbstractProviderLiveTest
 {
+	private static boolean httpSetup = false;
+
 	protected final NetworkProvider provider;
 
+	@BeforeClass
+	public static synchronized void setupHttp() throws IOException
+	{
+		if (httpSetup)
+			return;
+		httpSetup = true;
+
+		final String record = System.getProperty("pte.live.record");
+		if (record != null)
+			ParserUtils.setRecordArchive(new HttpArchive(new File(record)));
+
+		final String replay = System.getProperty("pte.live.replay");
+		if (replay != null)
+		{
+			final ReplayServer server = new ReplayServer(new HttpArchive(new File(replay)).load(), Long.getLong("pte.live.latency", 0),
+					Long.getLong("pte.live.bandwidth", 0));
+			ParserUtils.setReplayUrl(server.start());
+			Runtime.getRuntime().addShutdownHook(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					server.stop();
+				}
+			});
+		}
+	}
+
 	public AbstractProviderLiveTest(final NetworkProvider provider)
 	{
 		this.provider = provider;
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest
+{
+	@Test
+	public void exactBelowSubBucketCount()
+	{
+		final Histogram histogram = new Histogram(1000000, 7);
+		for (int i = 1; i <= 100; i++)
+			histogram.record(i);
+
+		assertEquals(100, histogram.count());
+		assertEquals(100, histogram.max());
+		assertEquals(50.5, histogram.mean(), 0.001);
+		assertEquals(50, histogram.percentile(50));
+		assertEquals(99, histogram.percentile(99));
+		assertEquals(100, histogram.percentile(100));
+	}
+
+	@Test
+	public void relativePrecision()
+	{
+		final long highest = 60L * 60 * 1000 * 1000;
+		for (long value = 1; value < highest; value = value * 3 / 2 + 1)
+		{
+			final Histogram histogram = new Histogram(highest, 7);
+			histogram.record(value);
+			histogram.record(highest);
+			final long reported = histogram.percentile(50);
+			assertTrue(value + " reported as " + reported, reported >= value && reported <= value + value / 64);
+		}
+	}
+
+	@Test
+	public void clampsToHighestTrackableValue()
+	{
+		final Histogram histogram = new Histogram(1000, 4);
+		histogram.record(-5);
+		histogram.record(5000);
+
+		assertEquals(2, histogram.count());
+		assertEquals(1000, histogram.max());
+		assertEquals(0, histogram.percentile(50));
+		assertEquals(1000, histogram.percentile(100));
+	}
+
+	@Test
+	public void empty()
+	{
+		final Histogram histogram = new Histogram(1000, 4);
+		assertEquals(0, histogram.percentile(99));
+		assertEquals(0, histogram.mean(), 0);
+	}
+}
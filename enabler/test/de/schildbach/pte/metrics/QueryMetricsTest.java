@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.metrics.HistogramInstrumentation.Phase;
+import de.schildbach.pte.metrics.HistogramInstrumentation.Stats;
+import de.schildbach.pte.util.HttpArchive.Exchange;
+import de.schildbach.pte.util.ParserUtils;
+import de.schildbach.pte.util.ReplayServer;
+
+public class QueryMetricsTest
+{
+	private static final String BODY = "<html><body>" + Strings.repeat("<p>departure</p>", 1000) + "</body></html>";
+
+	private ReplayServer server;
+	private byte[] gzipped;
+
+	@Before
+	public void setup() throws Exception
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		gzip.write(BODY.getBytes(Charsets.UTF_8));
+		gzip.close();
+		gzipped = bytes.toByteArray();
+
+		final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("Content-type", Arrays.asList("text/html"));
+		headers.put("Content-Encoding", Arrays.asList("gzip"));
+		final Exchange exchange = new Exchange("GET", "http://example.com/departures", null, 200, headers, 0, 0, gzipped);
+
+		server = new ReplayServer(Arrays.asList(exchange), 0, 0);
+		ParserUtils.setReplayUrl(server.start());
+	}
+
+	@After
+	public void teardown()
+	{
+		ParserUtils.setReplayUrl(null);
+		server.stop();
+	}
+
+	@Test
+	public void networkPhases() throws Exception
+	{
+		final HistogramInstrumentation instrumentation = new HistogramInstrumentation();
+
+		final QueryMetrics metrics = QueryMetrics.begin(NetworkId.SEPTA, "queryDepartures");
+		assertSame(metrics, QueryMetrics.current());
+		assertEquals(BODY, ParserUtils.scrape("http://example.com/departures").toString());
+		metrics.succeeded("OK", 1000);
+		metrics.end(instrumentation);
+		assertNull(QueryMetrics.current());
+
+		assertEquals(1, metrics.requests());
+		assertEquals(gzipped.length, metrics.compressedBytes());
+		// peeking at the head of the response is not counted twice
+		assertEquals(BODY.length(), metrics.uncompressedBytes());
+		assertTrue(metrics.total() >= metrics.connect() + metrics.firstByte() + metrics.bodyRead() + metrics.decompress());
+
+		final Stats stats = instrumentation.stats().values().iterator().next();
+		assertEquals(1, stats.queries());
+		assertEquals(Long.valueOf(1), stats.outcomes().get("OK"));
+		assertEquals(1000, stats.objects());
+		assertEquals(gzipped.length, stats.compressedBytes());
+		assertEquals(1, stats.phase(Phase.PARSE).count());
+	}
+
+	@Test
+	public void nested() throws Exception
+	{
+		final HistogramInstrumentation instrumentation = new HistogramInstrumentation();
+
+		final QueryMetrics outer = QueryMetrics.begin(NetworkId.SEPTA, "queryTrips");
+		final QueryMetrics inner = QueryMetrics.begin(NetworkId.SEPTA, "suggestLocations");
+		ParserUtils.scrape("http://example.com/departures");
+		inner.end(instrumentation);
+		assertSame(outer, QueryMetrics.current());
+		outer.failed(new IllegalStateException());
+		outer.end(instrumentation);
+
+		assertEquals(0, outer.requests());
+		assertEquals(1, inner.requests());
+		assertEquals(2, instrumentation.stats().size());
+		assertEquals(Long.valueOf(1), instrumentation.stats().values().iterator().next().outcomes().get("IllegalStateException"));
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.schildbach.pte.dto.Point;
+
+public class CoordinateScannerTest
+{
+	@Test
+	public void efaCoordinateString()
+	{
+		final int[] values = CoordinateScanner.scan("6945000.00000,51480000.00000  6945123.50000,51480234.49999 ", CoordinateScanner.MICRODEGREES);
+		assertArrayEquals(new int[] { 6945000, 51480000, 6945124, 51480234 }, values);
+		assertEquals(Arrays.asList(new Point(51480000, 6945000), new Point(51480234, 6945124)), CoordinateScanner.toPoints(values, true));
+	}
+
+	@Test
+	public void vrsPolygon()
+	{
+		final int[] values = CoordinateScanner.scan("50.942823,6.958697 50.9357,-6.9482\t-0.000001,180", CoordinateScanner.DEGREES);
+		assertArrayEquals(new int[] { 50942823, 6958697, 50935700, -6948200, -1, 180000000 }, values);
+	}
+
+	@Test
+	public void wktPolygon()
+	{
+		final String shape = "POLYGON((2.1 48.5, 2.75 48.51,2.9 49.0)), POLYGON((1 1))";
+		final CoordinateScanner scanner = new CoordinateScanner(shape, shape.indexOf("(("), shape.indexOf(')'), CoordinateScanner.DEGREES);
+		final int[] values = new int[6];
+		for (int i = 0; i < values.length; i++)
+			values[i] = scanner.next();
+		assertFalse(scanner.hasNext());
+		assertArrayEquals(new int[] { 2100000, 48500000, 2750000, 48510000, 2900000, 49000000 }, values);
+	}
+
+	@Test
+	public void exponentsAndSigns()
+	{
+		assertArrayEquals(new int[] { 1500000, -2000, 70000000, 0 }, CoordinateScanner.scan("+1.5 -2e-3 0.7E2 0", CoordinateScanner.DEGREES));
+		assertEquals(0, CoordinateScanner.scan("", CoordinateScanner.DEGREES).length);
+	}
+
+	@Test
+	public void matchesDoubleParsing()
+	{
+		final Random random = new Random(42);
+		for (int i = 0; i < 10000; i++)
+		{
+			final String str = String.format(Locale.ENGLISH, "%.6f", (random.nextDouble() - 0.5) * 360);
+			assertEquals(str, (int) Math.round(Double.parseDouble(str) * 1E6), CoordinateScanner.scan(str, CoordinateScanner.DEGREES)[0]);
+		}
+	}
+
+	@Test
+	public void roundsHalfUp()
+	{
+		// halves are rounded up, as Math.round() does
+		assertArrayEquals(new int[] { 2000001, -2000000 }, CoordinateScanner.scan("2.0000005 -2.0000005", CoordinateScanner.DEGREES));
+	}
+}
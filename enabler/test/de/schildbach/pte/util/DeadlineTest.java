@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+import de.schildbach.pte.exception.DeadlineExceededException;
+import de.schildbach.pte.util.HttpArchive.Exchange;
+
+public class DeadlineTest
+{
+	private static final long LATENCY_MS = 2000;
+
+	private ReplayServer server;
+
+	@Before
+	public void setup() throws Exception
+	{
+		final Map<String, List<String>> headers = Collections.singletonMap("Content-type", Arrays.asList("text/plain"));
+		final Exchange exchange = new Exchange("GET", "http://example.com/departures", null, 200, headers, 0, 0,
+				"departures".getBytes(Charsets.UTF_8));
+		server = new ReplayServer(Arrays.asList(exchange), LATENCY_MS, 0);
+		ParserUtils.setReplayUrl(server.start());
+	}
+
+	@After
+	public void teardown()
+	{
+		ParserUtils.setReplayUrl(null);
+		server.stop();
+		assertNull(Deadline.current());
+	}
+
+	@Test
+	public void nested() throws Exception
+	{
+		final Deadline outer = Deadline.begin(1000);
+		final Deadline inner = Deadline.begin(60 * 1000);
+		assertSame(inner, Deadline.current());
+		assertTrue(inner.remainingMs() <= 1000);
+
+		outer.cancel();
+		assertTrue(inner.isCancelled());
+		inner.end();
+		assertSame(outer, Deadline.current());
+		outer.end();
+	}
+
+	@Test
+	public void limitsRequests() throws Exception
+	{
+		final Deadline deadline = Deadline.begin(200);
+		try
+		{
+			final long start = System.currentTimeMillis();
+			try
+			{
+				ParserUtils.scrape("http://example.com/departures");
+				fail();
+			}
+			catch (final IOException x)
+			{
+				assertTrue(System.currentTimeMillis() - start < LATENCY_MS / 2);
+			}
+
+			// follow-up requests do not get the time again
+			try
+			{
+				ParserUtils.scrape("http://example.com/departures");
+				fail();
+			}
+			catch (final DeadlineExceededException x)
+			{
+				// expected
+			}
+		}
+		finally
+		{
+			deadline.end();
+		}
+	}
+
+	@Test
+	public void cancelClosesConnection() throws Exception
+	{
+		final Deadline deadline = Deadline.begin();
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(300);
+				}
+				catch (final InterruptedException x)
+				{
+					// fall through
+				}
+				deadline.cancel();
+			}
+		}.start();
+
+		final long start = System.currentTimeMillis();
+		try
+		{
+			ParserUtils.scrape("http://example.com/departures");
+			fail();
+		}
+		catch (final IOException x)
+		{
+			assertTrue(System.currentTimeMillis() - start < LATENCY_MS / 2);
+		}
+
+		try
+		{
+			ParserUtils.scrape("http://example.com/departures");
+			fail();
+		}
+		catch (final InterruptedIOException x)
+		{
+			assertFalse(x instanceof DeadlineExceededException);
+		}
+		finally
+		{
+			deadline.end();
+		}
+	}
+
+	@Test
+	public void endedDeadlineIsForgotten() throws Exception
+	{
+		final int armed = Deadline.armedCount();
+		final Deadline deadline = Deadline.begin(60 * 1000);
+		try
+		{
+			deadline.register((HttpURLConnection) new URL("http://example.com/departures").openConnection());
+			assertEquals(armed + 1, Deadline.armedCount());
+		}
+		finally
+		{
+			deadline.end();
+		}
+		assertEquals(armed, Deadline.armedCount());
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.schildbach.pte.util.HtmlTokenizer.Element;
+import de.schildbach.pte.util.HtmlTokenizer.Token;
+
+public class HtmlTokenizerTest
+{
+	@Test
+	public void tokens() throws Exception
+	{
+		final HtmlTokenizer html = new HtmlTokenizer(new StringReader(
+				"<!DOCTYPE html><!-- <p>comment</p> --><P Class='a b' data-x=1 checked>x &lt; y<br/></p><script>if (a<b) x();</script>"));
+
+		assertEquals(Token.START_TAG, html.next());
+		assertEquals("p", html.getName());
+		assertEquals("a b", html.getAttribute("class"));
+		assertEquals("1", html.getAttribute("data-x"));
+		assertEquals("", html.getAttribute("checked"));
+		assertEquals(Token.TEXT, html.next());
+		assertEquals("x < y", html.getText());
+		assertEquals(Token.START_TAG, html.next());
+		assertTrue(html.isEmptyElement());
+		assertEquals(Token.END_TAG, html.next());
+		assertEquals("p", html.getName());
+		assertEquals(Token.START_TAG, html.next());
+		assertEquals(Token.END_TAG, html.next());
+		assertEquals("script", html.getName());
+		assertEquals(Token.END_DOCUMENT, html.next());
+	}
+
+	@Test
+	public void rows() throws Exception
+	{
+		final HtmlTokenizer html = new HtmlTokenizer(new StringReader("<table><tr class=\"zebra\"><td class=\"time top\">\n12:05 PM\n</td>"
+				+ "<td><a href=\"?input=123&amp;x=1\"><img alt=\"Bus 1\">Main&nbsp;Street</a><br>2 min</td>" //
+				+ "<tr><td>unclosed<td>cells</table><p>after</p>"));
+
+		assertEquals(Token.START_TAG, html.next());
+		final Element row = html.nextRow();
+		assertEquals("zebra", row.attribute("class"));
+		final List<Element> cells = row.cells();
+		assertEquals(2, cells.size());
+		assertTrue(cells.get(0).hasClass("top"));
+		assertFalse(cells.get(0).hasClass("to"));
+		assertEquals("12:05 PM", cells.get(0).text());
+		assertEquals("?input=123&x=1", row.first("a").attribute("href"));
+		assertEquals("Bus 1", row.first("img").attribute("alt"));
+		assertEquals("Main Street", row.first("a").text());
+		assertEquals("Main Street2 min", cells.get(1).text());
+
+		final Element unclosed = html.nextRow();
+		assertEquals(2, unclosed.cells().size());
+		assertEquals("cells", unclosed.cells().get(1).text());
+
+		assertNull(html.nextRow());
+		assertEquals(Token.START_TAG, html.next());
+		assertEquals("p", html.getName());
+	}
+
+	@Test
+	public void decodeEntities()
+	{
+		assertEquals("Grüße & \"Köln\" → A&B &unknown; &#; a&amp", HtmlTokenizer
+				.decodeEntities("Gr&uuml;&szlig;e &amp; &quot;K&#246;ln&quot; &#x2192; A&B &unknown; &#; a&amp"));
+	}
+}
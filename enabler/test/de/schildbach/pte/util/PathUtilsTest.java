@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.schildbach.pte.dto.Point;
+
+public class PathUtilsTest
+{
+	@Test
+	public void polylineRoundTrip()
+	{
+		final List<Point> path = Arrays.asList(new Point(38500000, -120200000), new Point(40700000, -120950000), new Point(43252000,
+				-126453000), new Point(-33868820, 151209296));
+		assertEquals(path, PathUtils.decodePolyline(PathUtils.encodePolyline(path)));
+		assertEquals(0, PathUtils.decodePolyline("").size());
+	}
+
+	@Test
+	public void simplifyStraightLine()
+	{
+		final List<Point> path = new ArrayList<Point>();
+		for (int i = 0; i <= 100; i++)
+			path.add(new Point(52000000 + i * 100, 13000000 + i * 100));
+
+		final List<Point> simplified = PathUtils.simplify(path, 1);
+		assertEquals(Arrays.asList(path.get(0), path.get(100)), simplified);
+	}
+
+	@Test
+	public void simplifyKeepsCorners()
+	{
+		final List<Point> path = new ArrayList<Point>();
+		for (int i = 0; i < 3000; i++)
+		{
+			// zigzag with 2 km legs and a jitter of about a meter
+			final int lat = 52000000 + (i % 200 < 100 ? i % 100 : 100 - i % 100) * 200 + (i % 2) * 8;
+			path.add(new Point(lat, 13000000 + i * 300));
+		}
+
+		final List<Point> simplified = PathUtils.simplify(path, 10);
+		assertTrue(simplified.size() < 100);
+		assertTrue(simplified.contains(path.get(100)));
+		assertEquals(path.get(0), simplified.get(0));
+		assertEquals(path.get(2999), simplified.get(simplified.size() - 1));
+	}
+}
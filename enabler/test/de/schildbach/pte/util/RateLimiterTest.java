@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.util;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+import de.schildbach.pte.exception.BlockedException;
+import de.schildbach.pte.exception.RateLimitedException;
+import de.schildbach.pte.util.HttpArchive.Exchange;
+
+public class RateLimiterTest
+{
+	private static final URL URL;
+
+	static
+	{
+		try
+		{
+			URL = new URL("http://example.com/");
+		}
+		catch (final Exception x)
+		{
+			throw new RuntimeException(x);
+		}
+	}
+
+	@Test
+	public void rejectsBeyondBurst() throws Exception
+	{
+		final RateLimiter limiter = new RateLimiter(1, 2, 0);
+		limiter.acquire(URL);
+		limiter.acquire(URL);
+		try
+		{
+			limiter.acquire(URL);
+			fail();
+		}
+		catch (final RateLimitedException x)
+		{
+			assertTrue(x.getWaitMs() > 0 && x.getWaitMs() <= 1000);
+		}
+	}
+
+	@Test
+	public void queuesAtSteadyRate() throws Exception
+	{
+		final RateLimiter limiter = new RateLimiter(20, 1, 1000);
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < 3; i++)
+			limiter.acquire(URL);
+		assertTrue(System.currentTimeMillis() - start >= 90);
+	}
+
+	@Test
+	public void pausesWhenBlocked() throws Exception
+	{
+		final RateLimiter limiter = new RateLimiter(1000, 10, 0);
+		limiter.blocked(0);
+		try
+		{
+			limiter.acquire(URL);
+			fail();
+		}
+		catch (final RateLimitedException x)
+		{
+			assertTrue(x.getWaitMs() > 500);
+		}
+
+		// the upstream asks for more than the backoff
+		limiter.blocked(60 * 1000);
+		try
+		{
+			limiter.acquire(URL);
+			fail();
+		}
+		catch (final RateLimitedException x)
+		{
+			assertTrue(x.getWaitMs() > 30 * 1000);
+		}
+	}
+
+	@Test
+	public void backsOffOnBlockingResponse() throws Exception
+	{
+		final Map<String, List<String>> headers = Collections.singletonMap("Retry-After", Arrays.asList("120"));
+		final Exchange exchange = new Exchange("GET", "http://example.com/departures", null, 503, headers, 0, 0,
+				"busy".getBytes(Charsets.UTF_8));
+		final ReplayServer server = new ReplayServer(Arrays.asList(exchange), 0, 0);
+		ParserUtils.setReplayUrl(server.start());
+		ParserUtils.setRateLimiter("example.com", new RateLimiter(10, 10, 0));
+		try
+		{
+			try
+			{
+				ParserUtils.scrape("http://example.com/departures");
+				fail();
+			}
+			catch (final BlockedException x)
+			{
+				// expected
+			}
+
+			try
+			{
+				ParserUtils.scrape("http://example.com/departures");
+				fail();
+			}
+			catch (final RateLimitedException x)
+			{
+				assertTrue(x.getWaitMs() > 60 * 1000);
+			}
+		}
+		finally
+		{
+			ParserUtils.setRateLimiter("example.com", null);
+			ParserUtils.setReplayUrl(null);
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.schildbach.pte.util.HttpArchive.Exchange;
+
+/**
+ * Local HTTP server replaying the exchanges of an {@link HttpArchive}, for running live tests offline.
+ *
+ * A request matches a recorded exchange by method, URL and request body. As queries usually contain the current time,
+ * a request without an exact match falls back to the next exchange, in recording order, that differs only in query
+ * parameters naming a date or time. Exchanges are replayed once before they are reused, so that repeated runs work as
+ * load tests.
+ *
+ * Responses are delayed by a fixed latency, or by the recorded one if the latency is negative, and throttled to the
+ * given bandwidth, or not at all if it is zero.
+ */
+public final class ReplayServer
+{
+	private static final int CHUNK_SIZE = 1024;
+	private static final Pattern P_VOLATILE_PARAM = Pattern.compile(".*(date|time).*", Pattern.CASE_INSENSITIVE);
+
+	private final List<Exchange> exchanges;
+	private final boolean[] replayed;
+	private final long latency;
+	private final long bandwidth;
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	public ReplayServer(final List<Exchange> exchanges, final long latency, final long bandwidth) throws IOException
+	{
+		this.exchanges = exchanges;
+		this.replayed = new boolean[exchanges.size()];
+		this.latency = latency;
+		this.bandwidth = bandwidth;
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), 0), 0);
+		server.createContext("/", new HttpHandler()
+		{
+			public void handle(final HttpExchange httpExchange) throws IOException
+			{
+				try
+				{
+					replay(httpExchange);
+				}
+				finally
+				{
+					httpExchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+	}
+
+	/**
+	 * @return URL to pass to {@link ParserUtils#setReplayUrl(URL)}
+	 */
+	public URL start() throws IOException
+	{
+		server.start();
+		return new URL("http", "localhost", server.getAddress().getPort(), "/");
+	}
+
+	public void stop()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void replay(final HttpExchange httpExchange) throws IOException
+	{
+		final String method = httpExchange.getRequestMethod();
+		String url = httpExchange.getRequestHeaders().getFirst(HttpArchive.ORIGINAL_URL_HEADER);
+		if (url == null)
+			url = httpExchange.getRequestURI().toString();
+		final byte[] requestBody = ByteStreams.toByteArray(httpExchange.getRequestBody());
+		final String requestHash = HttpArchive.requestHash("POST".equals(method) ? requestBody : null);
+
+		final Exchange exchange = find(method, url, requestHash);
+		if (exchange == null)
+		{
+			final byte[] message = ("no recorded exchange for " + HttpArchive.key(method, url, requestHash)).getBytes("UTF-8");
+			httpExchange.sendResponseHeaders(500, message.length);
+			httpExchange.getResponseBody().write(message);
+			return;
+		}
+
+		sleep(latency >= 0 ? latency : exchange.latency);
+
+		for (final Map.Entry<String, List<String>> header : exchange.headers.entrySet())
+		{
+			final String name = header.getKey();
+			if (!"Content-Length".equalsIgnoreCase(name) && !"Transfer-Encoding".equalsIgnoreCase(name))
+				httpExchange.getResponseHeaders().put(name, header.getValue());
+		}
+		httpExchange.sendResponseHeaders(exchange.status, exchange.body.length > 0 ? exchange.body.length : -1);
+
+		final OutputStream os = httpExchange.getResponseBody();
+		final long start = System.currentTimeMillis();
+		for (int offset = 0; offset < exchange.body.length; offset += CHUNK_SIZE)
+		{
+			final int length = Math.min(CHUNK_SIZE, exchange.body.length - offset);
+			os.write(exchange.body, offset, length);
+			os.flush();
+			if (bandwidth > 0)
+				sleep(start + (offset + length) * 1000L / bandwidth - System.currentTimeMillis());
+		}
+		os.close();
+	}
+
+	private synchronized Exchange find(final String method, final String url, final String requestHash)
+	{
+		final String key = HttpArchive.key(method, url, requestHash);
+		final String stableKey = HttpArchive.key(method, stable(url), requestHash);
+
+		int exact = -1, similar = -1;
+		for (int i = 0; i < exchanges.size(); i++)
+		{
+			final Exchange exchange = exchanges.get(i);
+			if (exchange.key().equals(key))
+			{
+				if (!replayed[i])
+				{
+					replayed[i] = true;
+					return exchange;
+				}
+				else if (exact == -1)
+				{
+					exact = i;
+				}
+			}
+			else if (similar == -1 && stableKey.equals(stableKey(exchange)))
+			{
+				similar = i;
+			}
+		}
+		if (exact != -1)
+			return exchanges.get(exact);
+
+		for (int i = similar; i >= 0 && i < exchanges.size(); i++)
+		{
+			final Exchange exchange = exchanges.get(i);
+			if (!replayed[i] && stableKey.equals(stableKey(exchange)))
+			{
+				replayed[i] = true;
+				return exchange;
+			}
+		}
+		return similar != -1 ? exchanges.get(similar) : null;
+	}
+
+	private static String stableKey(final Exchange exchange)
+	{
+		return HttpArchive.key(exchange.method, stable(exchange.url), exchange.requestHash);
+	}
+
+	/**
+	 * @return the URL without the query parameters that change with the time of the request
+	 */
+	static String stable(final String url)
+	{
+		final int queryStart = url.indexOf('?');
+		if (queryStart == -1)
+			return url;
+
+		final StringBuilder stable = new StringBuilder(url.substring(0, queryStart));
+		char separator = '?';
+		for (final String param : url.substring(queryStart + 1).split("&"))
+		{
+			final int equals = param.indexOf('=');
+			if (!P_VOLATILE_PARAM.matcher(equals != -1 ? param.substring(0, equals) : param).matches())
+			{
+				stable.append(separator).append(param);
+				separator = '&';
+			}
+		}
+		return stable.toString();
+	}
+
+	private static void sleep(final long millis)
+	{
+		if (millis <= 0)
+			return;
+
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (final InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
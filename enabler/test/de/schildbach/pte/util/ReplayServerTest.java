@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import de.schildbach.pte.exception.InternalErrorException;
+import de.schildbach.pte.exception.NotFoundException;
+import de.schildbach.pte.util.HttpArchive.Exchange;
+
+public class ReplayServerTest
+{
+	private File dir;
+	private ReplayServer server;
+
+	@Before
+	public void setup() throws Exception
+	{
+		dir = Files.createTempDir();
+
+		final HttpArchive archive = new HttpArchive(new File(dir, "recorded"));
+		archive.record(exchange("GET", "http://example.com/departures?time=1000", 200, "first"));
+		archive.record(exchange("GET", "http://example.com/departures?time=1000", 200, "second"));
+		archive.record(exchange("POST", "http://example.com/trips", 200, "trips"));
+		archive.record(exchange("GET", "http://example.com/missing", 404, "not here"));
+
+		server = new ReplayServer(archive.load(), 0, 0);
+		ParserUtils.setReplayUrl(server.start());
+	}
+
+	@After
+	public void teardown()
+	{
+		ParserUtils.setReplayUrl(null);
+		ParserUtils.setRecordArchive(null);
+		server.stop();
+		for (final File subdir : dir.listFiles())
+		{
+			for (final File file : subdir.listFiles())
+				file.delete();
+			subdir.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void replaysInOrder() throws Exception
+	{
+		assertEquals("first", ParserUtils.scrape("http://example.com/departures?time=1000").toString());
+		assertEquals("second", ParserUtils.scrape("http://example.com/departures?time=1000").toString());
+		// exchanges are reused once all have been replayed
+		assertEquals("first", ParserUtils.scrape("http://example.com/departures?time=1000").toString());
+	}
+
+	@Test
+	public void fallsBackIgnoringTime() throws Exception
+	{
+		assertEquals("first", ParserUtils.scrape("http://example.com/departures?time=2000").toString());
+		assertEquals("second", ParserUtils.scrape("http://example.com/departures?time=3000").toString());
+		assertEquals("trips", ParserUtils.scrape("http://example.com/trips", "from=x&to=y", Charsets.UTF_8).toString());
+	}
+
+	@Test(expected = InternalErrorException.class)
+	public void noFallbackForOtherQuery() throws Exception
+	{
+		ParserUtils.scrape("http://example.com/departures?station=1&time=1000");
+	}
+
+	@Test(expected = InternalErrorException.class)
+	public void noFallbackForOtherBody() throws Exception
+	{
+		ParserUtils.scrape("http://example.com/trips", "from=a&to=b", Charsets.UTF_8);
+	}
+
+	@Test
+	public void stableUrl()
+	{
+		assertEquals("http://example.com/departures?station=1&max=10",
+				ReplayServer.stable("http://example.com/departures?date=20151019&station=1&itdTime=1400&max=10"));
+		assertEquals("http://example.com/departures", ReplayServer.stable("http://example.com/departures?datetime=20151019T1400"));
+		assertEquals("http://example.com/departures", ReplayServer.stable("http://example.com/departures"));
+	}
+
+	@Test(expected = NotFoundException.class)
+	public void replaysErrors() throws Exception
+	{
+		ParserUtils.scrape("http://example.com/missing");
+	}
+
+	@Test
+	public void recordsReplayedExchanges() throws Exception
+	{
+		final HttpArchive archive = new HttpArchive(new File(dir, "rerecorded"));
+		ParserUtils.setRecordArchive(archive);
+		ParserUtils.scrape("http://example.com/departures?time=1000");
+		ParserUtils.scrape("http://example.com/trips", "from=x&to=y", Charsets.UTF_8);
+
+		final List<Exchange> exchanges = archive.load();
+		assertEquals(2, exchanges.size());
+		assertEquals("GET http://example.com/departures?time=1000", exchanges.get(0).key());
+		assertEquals("first", new String(exchanges.get(0).body, Charsets.UTF_8));
+		assertEquals("POST", exchanges.get(1).method);
+		assertEquals(HttpArchive.requestHash("from=x&to=y".getBytes(Charsets.UTF_8)), exchanges.get(1).requestHash);
+		assertEquals(Arrays.asList("text/plain"), exchanges.get(1).headers.get("Content-type"));
+		assertTrue(exchanges.get(1).latency >= 0);
+	}
+
+	private static Exchange exchange(final String method, final String url, final int status, final String body)
+	{
+		final Map<String, List<String>> headers = Collections.singletonMap("Content-type", Arrays.asList("text/plain"));
+		final String requestHash = "POST".equals(method) ? HttpArchive.requestHash("from=x&to=y".getBytes(Charsets.UTF_8)) : null;
+		return new Exchange(method, url, requestHash, status, headers, 5, 1, body.getBytes(Charsets.UTF_8));
+	}
+}
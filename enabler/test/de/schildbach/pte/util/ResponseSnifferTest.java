@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+import de.schildbach.pte.util.ResponseSniffer.Head;
+
+public class ResponseSnifferTest
+{
+	private static final byte[] ERROR_PAGE = "<html>\r\n<body><div>\r\n  Internal Error\r\n</div><meta http-equiv=refresh content=\"0;\r\nURL=/x\"></body></html>"
+			.getBytes(Charsets.UTF_8);
+
+	@Test
+	public void markup() throws Exception
+	{
+		final InputStream is = new BufferedInputStream(new ByteArrayInputStream(ERROR_PAGE));
+		final Head head = ResponseSniffer.sniff(is, "text/html; charset=UTF-8");
+		assertTrue(head.internalError);
+		assertFalse(head.expired);
+		assertEquals("/x", head.redirect);
+		assertEquals("<html><body><div>  Internal Error</div><meta http-equiv=refresh content=\"0;URL=/x\"></body></html>", head.toString());
+
+		// stream is not consumed
+		assertEquals('<', is.read());
+	}
+
+	@Test
+	public void binary() throws Exception
+	{
+		final Head head = ResponseSniffer.sniff(new BufferedInputStream(new ByteArrayInputStream(ERROR_PAGE)), "application/octet-stream");
+		assertFalse(head.internalError);
+		assertNull(head.redirect);
+	}
+
+	@Test
+	public void attachedHead() throws Exception
+	{
+		final InputStream is = new BufferedInputStream(new ByteArrayInputStream(ERROR_PAGE));
+		final Head head = ResponseSniffer.sniff(is, null);
+		assertSame(head, ResponseSniffer.head(ResponseSniffer.attach(is, head)));
+		assertEquals(head.toString(), ResponseSniffer.head(is).toString());
+	}
+
+	@Test
+	public void empty() throws Exception
+	{
+		final Head head = ResponseSniffer.sniff(new BufferedInputStream(new ByteArrayInputStream(new byte[0])), "text/html");
+		assertEquals("", head.toString());
+		assertNull(head.redirect);
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.stereotype.Component;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.exception.NotFoundException;
+import de.schildbach.pte.exception.RateLimitedException;
+
+/**
+ * Limits the requests in flight per upstream network, so that a slow network cannot use up the resources needed for
+ * the others. The limit adapts to observed latency: it grows additively while latency stays close to the best latency
+ * seen recently, and shrinks multiplicatively when latency rises or the upstream fails. Requests that fail for reasons
+ * of their own, like bad parameters, or that are cancelled by the client do not adjust the limit. Requests beyond the
+ * limit wait in a short queue for a bounded time and are rejected with {@link OverloadedException} otherwise.
+ */
+@Component
+public class AdmissionControl
+{
+	private static final double INITIAL_LIMIT = 8;
+	private static final double MIN_LIMIT = 2;
+	private static final double MAX_LIMIT = 32;
+	private static final double BACKOFF_FACTOR = 0.75;
+	private static final double LATENCY_TOLERANCE = 2.5;
+	private static final long BACKOFF_INTERVAL_MS = 1000;
+	private static final long BASELINE_DECAY_MS = 60 * 1000;
+	private static final int MAX_QUEUE = 64;
+	private static final long MAX_QUEUE_WAIT_MS = 1000;
+
+	/**
+	 * Receives the outcome of {@link AdmissionControl#admit}. Callbacks may run on the thread of another request, so
+	 * they must not block.
+	 */
+	public interface Admission
+	{
+		void admitted(Permit permit);
+
+		void rejected(OverloadedException x);
+	}
+
+	/**
+	 * Right to send one request upstream. Must be released exactly once when the request is done; further releases
+	 * are ignored.
+	 */
+	public static final class Permit
+	{
+		private final Limiter limiter;
+		private final long acquiredAt;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private Permit(final Limiter limiter, final long acquiredAt)
+		{
+			this.limiter = limiter;
+			this.acquiredAt = acquiredAt;
+		}
+
+		/**
+		 * Releases the permit after the upstream answered or failed.
+		 * 
+		 * @param success
+		 *            {@code false} if the upstream request failed, which is taken as a sign of overload
+		 */
+		public void release(final boolean success)
+		{
+			if (released.compareAndSet(false, true))
+				limiter.release(acquiredAt, true, success);
+		}
+
+		/**
+		 * Releases the permit without telling anything about the upstream, e.g. if the request was cancelled or failed
+		 * for reasons of its own.
+		 */
+		public void release()
+		{
+			if (released.compareAndSet(false, true))
+				limiter.release(acquiredAt, false, false);
+		}
+
+		/**
+		 * Releases the permit after the request failed with the given exception. Only failures of the upstream count.
+		 */
+		public void release(final Throwable failure)
+		{
+			if (isUpstreamFailure(failure))
+				release(false);
+			else
+				release();
+		}
+	}
+
+	/**
+	 * Whether an exception tells that the upstream is failing or slow, rather than that the request itself was bad or
+	 * refused locally.
+	 */
+	public static boolean isUpstreamFailure(final Throwable failure)
+	{
+		if (failure instanceof NotFoundException || failure instanceof RateLimitedException)
+			return false;
+		return failure instanceof IOException;
+	}
+
+	/**
+	 * Whether a query result tells that the upstream is down.
+	 */
+	public static boolean isServiceDown(final Object result)
+	{
+		if (result instanceof QueryDeparturesResult)
+			return ((QueryDeparturesResult) result).status == QueryDeparturesResult.Status.SERVICE_DOWN;
+		if (result instanceof QueryTripsResult)
+			return ((QueryTripsResult) result).status == QueryTripsResult.Status.SERVICE_DOWN;
+		if (result instanceof NearbyLocationsResult)
+			return ((NearbyLocationsResult) result).status == NearbyLocationsResult.Status.SERVICE_DOWN;
+		if (result instanceof SuggestLocationsResult)
+			return ((SuggestLocationsResult) result).status == SuggestLocationsResult.Status.SERVICE_DOWN;
+		return false;
+	}
+
+	private static final class Waiting
+	{
+		final Admission admission;
+		final long deadline;
+
+		Waiting(final Admission admission, final long deadline)
+		{
+			this.admission = admission;
+			this.deadline = deadline;
+		}
+	}
+
+	private final class Limiter
+	{
+		private final NetworkId network;
+		private double limit = INITIAL_LIMIT;
+		private int inFlight = 0;
+		private long baselineLatency = Long.MAX_VALUE;
+		private long baselineAt = 0;
+		private long lastBackoffAt = 0;
+		private final LinkedList<Waiting> queue = new LinkedList<Waiting>();
+
+		Limiter(final NetworkId network)
+		{
+			this.network = network;
+		}
+
+		synchronized Permit tryAcquire()
+		{
+			if (inFlight >= (int) limit)
+				return null;
+			inFlight++;
+			return new Permit(this, currentTimeMillis());
+		}
+
+		void admit(final Admission admission)
+		{
+			final Permit permit;
+			synchronized (this)
+			{
+				if (queue.isEmpty() && inFlight < (int) limit)
+				{
+					inFlight++;
+					permit = new Permit(this, currentTimeMillis());
+				}
+				else if (queue.size() < MAX_QUEUE)
+				{
+					queue.add(new Waiting(admission, currentTimeMillis() + MAX_QUEUE_WAIT_MS));
+					return;
+				}
+				else
+				{
+					permit = null;
+				}
+			}
+
+			if (permit != null)
+				admission.admitted(permit);
+			else
+				admission.rejected(new OverloadedException(network, "queue full"));
+		}
+
+		void release(final long acquiredAt, final boolean adjust, final boolean success)
+		{
+			final List<Waiting> admitted = new ArrayList<Waiting>();
+			final List<Waiting> expired = new ArrayList<Waiting>();
+			final List<Permit> permits = new ArrayList<Permit>();
+			final long now = currentTimeMillis();
+			synchronized (this)
+			{
+				inFlight--;
+				if (adjust)
+					adjust(now - acquiredAt, success, now);
+				drain(now, admitted, expired, permits);
+			}
+			dispatch(admitted, expired, permits);
+		}
+
+		void expire(final long now)
+		{
+			final List<Waiting> admitted = new ArrayList<Waiting>();
+			final List<Waiting> expired = new ArrayList<Waiting>();
+			final List<Permit> permits = new ArrayList<Permit>();
+			synchronized (this)
+			{
+				drain(now, admitted, expired, permits);
+			}
+			dispatch(admitted, expired, permits);
+		}
+
+		private void adjust(final long latency, final boolean success, final long now)
+		{
+			// the baseline is the best latency seen recently, forgotten slowly so that it can recover from outliers
+			if (latency < baselineLatency || now - baselineAt > BASELINE_DECAY_MS)
+			{
+				baselineLatency = Math.max(latency, 1);
+				baselineAt = now;
+			}
+
+			if (!success || latency > baselineLatency * LATENCY_TOLERANCE)
+			{
+				// back off at most once per interval, as the requests in flight all report the same congestion
+				if (now - lastBackoffAt >= BACKOFF_INTERVAL_MS)
+				{
+					limit = Math.max(MIN_LIMIT, limit * BACKOFF_FACTOR);
+					lastBackoffAt = now;
+				}
+			}
+			else if (inFlight + 1 >= (int) limit)
+			{
+				// only grow if the limit is actually being used
+				limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+			}
+		}
+
+		private void drain(final long now, final List<Waiting> admitted, final List<Waiting> expired, final List<Permit> permits)
+		{
+			for (final Iterator<Waiting> i = queue.iterator(); i.hasNext();)
+			{
+				final Waiting waiting = i.next();
+				if (now > waiting.deadline)
+				{
+					i.remove();
+					expired.add(waiting);
+				}
+				else if (inFlight < (int) limit)
+				{
+					i.remove();
+					inFlight++;
+					admitted.add(waiting);
+					permits.add(new Permit(this, now));
+				}
+			}
+		}
+
+		private void dispatch(final List<Waiting> admitted, final List<Waiting> expired, final List<Permit> permits)
+		{
+			for (final Waiting waiting : expired)
+				waiting.admission.rejected(new OverloadedException(network, "queue wait exceeded"));
+			for (int i = 0; i < admitted.size(); i++)
+				admitted.get(i).admission.admitted(permits.get(i));
+		}
+	}
+
+	private final ConcurrentMap<NetworkId, Limiter> limiters = new ConcurrentHashMap<NetworkId, Limiter>();
+	private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor();
+
+	public AdmissionControl()
+	{
+		sweeper.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				expire();
+			}
+		}, 100, 100, TimeUnit.MILLISECONDS);
+	}
+
+	protected long currentTimeMillis()
+	{
+		return System.currentTimeMillis();
+	}
+
+	@PreDestroy
+	public void shutdown()
+	{
+		sweeper.shutdownNow();
+	}
+
+	/**
+	 * Admits a request to the network, now or after waiting in the queue, or rejects it.
+	 */
+	public void admit(final NetworkId network, final Admission admission)
+	{
+		limiter(network).admit(admission);
+	}
+
+	/**
+	 * Admits a request to the network, waiting in the queue if necessary. For callers running on threads of their own.
+	 *
+	 * @throws OverloadedException
+	 *             if the request is not admitted
+	 */
+	public Permit acquire(final NetworkId network) throws InterruptedException
+	{
+		final Blocking blocking = new Blocking();
+		limiter(network).admit(blocking);
+		return blocking.await();
+	}
+
+	private static final class Blocking implements Admission
+	{
+		private Permit permit = null;
+		private OverloadedException rejection = null;
+		private boolean abandoned = false;
+
+		public synchronized void admitted(final Permit permit)
+		{
+			if (abandoned)
+				permit.release();
+			else
+				this.permit = permit;
+			notifyAll();
+		}
+
+		public synchronized void rejected(final OverloadedException x)
+		{
+			this.rejection = x;
+			notifyAll();
+		}
+
+		synchronized Permit await() throws InterruptedException
+		{
+			try
+			{
+				while (permit == null && rejection == null)
+					wait();
+			}
+			catch (final InterruptedException x)
+			{
+				abandoned = true;
+				throw x;
+			}
+
+			if (rejection != null)
+				throw rejection;
+			return permit;
+		}
+	}
+
+	/**
+	 * Admits a request only if that is possible without waiting.
+	 *
+	 * @return permit, or {@code null} if the network is at its limit
+	 */
+	public Permit tryAcquire(final NetworkId network)
+	{
+		return limiter(network).tryAcquire();
+	}
+
+	/**
+	 * Rejects requests that have waited in a queue for too long, and admits waiting requests the limit has room for.
+	 */
+	void expire()
+	{
+		final long now = currentTimeMillis();
+		for (final Limiter limiter : limiters.values())
+			limiter.expire(now);
+	}
+
+	double limit(final NetworkId network)
+	{
+		final Limiter limiter = limiter(network);
+		synchronized (limiter)
+		{
+			return limiter.limit;
+		}
+	}
+
+	private Limiter limiter(final NetworkId network)
+	{
+		Limiter limiter = limiters.get(network);
+		if (limiter == null)
+		{
+			final Limiter newLimiter = new Limiter(network);
+			limiter = limiters.putIfAbsent(network, newLimiter);
+			if (limiter == null)
+				limiter = newLimiter;
+		}
+		return limiter;
+	}
+}
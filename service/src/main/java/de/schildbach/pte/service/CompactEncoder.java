@@ -0,0 +1,510 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.DeparturesDiff;
+import de.schildbach.pte.dto.Fare;
+import de.schildbach.pte.dto.Line;
+import de.schildbach.pte.dto.LineDestination;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.Point;
+import de.schildbach.pte.dto.Position;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.ResultHeader;
+import de.schildbach.pte.dto.StationDepartures;
+import de.schildbach.pte.dto.Stop;
+import de.schildbach.pte.dto.Style;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.dto.Trip;
+import de.schildbach.pte.service.DepartureSubscriptions.Board;
+import de.schildbach.pte.service.DepartureSubscriptions.Delta;
+
+/**
+ * Encodes results in the compact wire format, see {@link CompactWriter} for the primitives. A message starts with the
+ * bytes {@code 'P' 'T'}, the format version and the message type, followed by the result. Lists are prefixed by their
+ * size, or by size + 1 if they may be null, in which case {@code 0} means null. Enums are written as their ordinal.
+ * Query contexts of trip results are written as their token, if they have one.
+ */
+final class CompactEncoder
+{
+	private static final int VERSION = 1;
+
+	private static final int TYPE_SUGGEST_LOCATIONS = 1;
+	private static final int TYPE_NEARBY_LOCATIONS = 2;
+	private static final int TYPE_DEPARTURES = 3;
+	private static final int TYPE_TRIPS = 4;
+	private static final int TYPE_BOARD = 5;
+	private static final int TYPE_DELTA = 6;
+
+	private static final Object LOCATIONS = Location.class;
+	private static final Object LINES = Line.class;
+
+	private final CompactWriter out;
+
+	private CompactEncoder(final OutputStream out)
+	{
+		this.out = new CompactWriter(out);
+	}
+
+	static boolean supports(final Class<?> clazz)
+	{
+		return SuggestLocationsResult.class.equals(clazz) || NearbyLocationsResult.class.equals(clazz)
+				|| QueryDeparturesResult.class.equals(clazz) || QueryTripsResult.class.equals(clazz) || Board.class.equals(clazz)
+				|| Delta.class.equals(clazz);
+	}
+
+	static void encode(final Object result, final OutputStream out) throws IOException
+	{
+		final CompactEncoder encoder = new CompactEncoder(out);
+		encoder.out.writeByte('P');
+		encoder.out.writeByte('T');
+		encoder.out.writeByte(VERSION);
+
+		if (result instanceof SuggestLocationsResult)
+		{
+			encoder.out.writeByte(TYPE_SUGGEST_LOCATIONS);
+			encoder.writeSuggestLocations((SuggestLocationsResult) result);
+		}
+		else if (result instanceof NearbyLocationsResult)
+		{
+			encoder.out.writeByte(TYPE_NEARBY_LOCATIONS);
+			encoder.writeNearbyLocations((NearbyLocationsResult) result);
+		}
+		else if (result instanceof QueryDeparturesResult)
+		{
+			encoder.out.writeByte(TYPE_DEPARTURES);
+			encoder.writeDepartures((QueryDeparturesResult) result);
+		}
+		else if (result instanceof QueryTripsResult)
+		{
+			encoder.out.writeByte(TYPE_TRIPS);
+			encoder.writeTrips((QueryTripsResult) result);
+		}
+		else if (result instanceof Board)
+		{
+			final Board board = (Board) result;
+			encoder.out.writeByte(TYPE_BOARD);
+			encoder.out.writeVarint(board.version);
+			encoder.writeDepartures(board.result);
+		}
+		else if (result instanceof Delta)
+		{
+			encoder.out.writeByte(TYPE_DELTA);
+			encoder.writeDelta((Delta) result);
+		}
+		else
+		{
+			throw new IllegalArgumentException("cannot encode: " + result.getClass());
+		}
+	}
+
+	private void writeHeader(final ResultHeader header) throws IOException
+	{
+		if (header == null)
+		{
+			out.writeByte(0);
+			return;
+		}
+
+		out.writeByte(1);
+		out.writeString(header.network.name());
+		out.writeString(header.serverProduct);
+		out.writeString(header.serverVersion);
+		out.writeVarint(header.serverTime / 1000);
+	}
+
+	private void writeSuggestLocations(final SuggestLocationsResult result) throws IOException
+	{
+		writeHeader(result.header);
+		out.writeByte(result.status.ordinal());
+		writeLocations(result.status == SuggestLocationsResult.Status.OK ? result.getLocations() : null);
+	}
+
+	private void writeNearbyLocations(final NearbyLocationsResult result) throws IOException
+	{
+		writeHeader(result.header);
+		out.writeByte(result.status.ordinal());
+		writeLocations(result.locations);
+	}
+
+	private void writeDepartures(final QueryDeparturesResult result) throws IOException
+	{
+		writeHeader(result.header);
+		out.writeByte(result.status.ordinal());
+		out.writeVarint(result.stationDepartures.size());
+		for (final StationDepartures stationDepartures : result.stationDepartures)
+		{
+			writeLocation(stationDepartures.location);
+			writeDepartureList(stationDepartures.departures);
+			if (stationDepartures.lines == null)
+			{
+				out.writeVarint(0);
+			}
+			else
+			{
+				out.writeVarint(stationDepartures.lines.size() + 1);
+				for (final LineDestination lineDestination : stationDepartures.lines)
+				{
+					writeLine(lineDestination.line);
+					writeLocation(lineDestination.destination);
+				}
+			}
+		}
+	}
+
+	private void writeDelta(final Delta delta) throws IOException
+	{
+		out.writeVarint(delta.version);
+		if (delta.result != null)
+		{
+			out.writeByte(1);
+			writeDepartures(delta.result);
+		}
+		else
+		{
+			out.writeByte(0);
+		}
+
+		if (delta.diffs == null)
+		{
+			out.writeVarint(0);
+			return;
+		}
+
+		out.writeVarint(delta.diffs.size() + 1);
+		for (final DeparturesDiff diff : delta.diffs)
+		{
+			writeLocation(diff.location);
+			writeDepartureList(diff.added);
+			writeDepartureList(diff.removed);
+			writeDepartureList(diff.changed);
+		}
+	}
+
+	private void writeDepartureList(final List<Departure> departures) throws IOException
+	{
+		out.writeVarint(departures.size());
+		for (final Departure departure : departures)
+			writeDeparture(departure);
+	}
+
+	private void writeDeparture(final Departure departure) throws IOException
+	{
+		out.writeByte((departure.plannedTime != null ? 1 : 0) | (departure.predictedTime != null ? 2 : 0));
+		if (departure.plannedTime != null)
+			out.writeTime(departure.plannedTime);
+		if (departure.predictedTime != null)
+			out.writeTime(departure.predictedTime);
+		writeLine(departure.line);
+		writePosition(departure.position);
+		writeLocation(departure.destination);
+		writeCapacity(departure.capacity);
+		out.writeString(departure.message);
+	}
+
+	private void writeTrips(final QueryTripsResult result) throws IOException
+	{
+		writeHeader(result.header);
+		out.writeByte(result.status.ordinal());
+		writeLocations(result.ambiguousFrom);
+		writeLocations(result.ambiguousVia);
+		writeLocations(result.ambiguousTo);
+		out.writeString(result.queryUri);
+		writeLocation(result.from);
+		writeLocation(result.via);
+		writeLocation(result.to);
+		if (result.context instanceof ContextToken)
+		{
+			final ContextToken token = (ContextToken) result.context;
+			out.writeString(token.token);
+			out.writeByte((token.later ? 1 : 0) | (token.earlier ? 2 : 0));
+		}
+		else
+		{
+			out.writeString(null);
+		}
+
+		if (result.trips == null)
+		{
+			out.writeVarint(0);
+			return;
+		}
+
+		out.writeVarint(result.trips.size() + 1);
+		for (final Trip trip : result.trips)
+			writeTrip(trip);
+	}
+
+	private void writeTrip(final Trip trip) throws IOException
+	{
+		out.writeString(trip.getId());
+		writeLocation(trip.from);
+		writeLocation(trip.to);
+
+		out.writeVarint(trip.legs.size());
+		for (final Trip.Leg leg : trip.legs)
+			writeLeg(leg);
+
+		if (trip.fares == null)
+		{
+			out.writeVarint(0);
+		}
+		else
+		{
+			out.writeVarint(trip.fares.size() + 1);
+			for (final Fare fare : trip.fares)
+			{
+				out.writeString(fare.network);
+				out.writeByte(fare.type.ordinal());
+				out.writeString(fare.currency.getCurrencyCode());
+				out.writeVarint(Float.floatToIntBits(fare.fare) & 0xffffffffL);
+				out.writeString(fare.unitName);
+				out.writeString(fare.units);
+			}
+		}
+
+		writeCapacity(trip.capacity);
+		out.writeVarint(trip.numChanges != null ? trip.numChanges + 1 : 0);
+	}
+
+	private void writeLeg(final Trip.Leg leg) throws IOException
+	{
+		if (leg instanceof Trip.Public)
+		{
+			final Trip.Public publicLeg = (Trip.Public) leg;
+			out.writeByte(1);
+			writeLegCommon(leg);
+			writeLine(publicLeg.line);
+			writeLocation(publicLeg.destination);
+			writeStop(publicLeg.departureStop);
+			writeStop(publicLeg.arrivalStop);
+			if (publicLeg.intermediateStops == null)
+			{
+				out.writeVarint(0);
+			}
+			else
+			{
+				out.writeVarint(publicLeg.intermediateStops.size() + 1);
+				for (final Stop stop : publicLeg.intermediateStops)
+					writeStop(stop);
+			}
+			out.writeString(publicLeg.message);
+		}
+		else if (leg instanceof Trip.Individual)
+		{
+			final Trip.Individual individualLeg = (Trip.Individual) leg;
+			out.writeByte(2);
+			writeLegCommon(leg);
+			out.writeByte(individualLeg.type.ordinal());
+			out.writeTime(individualLeg.departureTime);
+			out.writeTime(individualLeg.arrivalTime);
+			out.writeVarint(individualLeg.min);
+			out.writeVarint(individualLeg.distance);
+		}
+		else
+		{
+			throw new IllegalArgumentException("cannot encode: " + leg.getClass());
+		}
+	}
+
+	private void writeLegCommon(final Trip.Leg leg) throws IOException
+	{
+		writeLocation(leg.departure);
+		writeLocation(leg.arrival);
+		if (leg.path == null)
+		{
+			out.writeVarint(0);
+		}
+		else
+		{
+			out.writeVarint(leg.path.size() + 1);
+			for (final Point point : leg.path)
+				out.writeCoord(point.lat, point.lon);
+		}
+	}
+
+	private void writeStop(final Stop stop) throws IOException
+	{
+		writeLocation(stop.location);
+		int flags = 0;
+		if (stop.plannedArrivalTime != null)
+			flags |= 1;
+		if (stop.predictedArrivalTime != null)
+			flags |= 2;
+		if (stop.arrivalCancelled)
+			flags |= 4;
+		if (stop.plannedDepartureTime != null)
+			flags |= 8;
+		if (stop.predictedDepartureTime != null)
+			flags |= 16;
+		if (stop.departureCancelled)
+			flags |= 32;
+		out.writeByte(flags);
+		writeTimeIfPresent(stop.plannedArrivalTime);
+		writeTimeIfPresent(stop.predictedArrivalTime);
+		writePosition(stop.plannedArrivalPosition);
+		writePosition(stop.predictedArrivalPosition);
+		writeTimeIfPresent(stop.plannedDepartureTime);
+		writeTimeIfPresent(stop.predictedDepartureTime);
+		writePosition(stop.plannedDeparturePosition);
+		writePosition(stop.predictedDeparturePosition);
+	}
+
+	private void writeTimeIfPresent(final Date time) throws IOException
+	{
+		if (time != null)
+			out.writeTime(time);
+	}
+
+	private void writeLocations(final List<Location> locations) throws IOException
+	{
+		if (locations == null)
+		{
+			out.writeVarint(0);
+			return;
+		}
+
+		out.writeVarint(locations.size() + 1);
+		for (final Location location : locations)
+			writeLocation(location);
+	}
+
+	private void writeLocation(final Location location) throws IOException
+	{
+		if (!out.writeObjectRef(LOCATIONS, location != null ? locationKey(location) : null))
+			return;
+
+		final boolean hasCoord = location.hasLocation();
+		out.writeByte(location.type.ordinal() | (hasCoord ? 0x80 : 0));
+		out.writeString(location.id);
+		if (hasCoord)
+			out.writeCoord(location.lat, location.lon);
+		out.writeString(location.place);
+		out.writeString(location.name);
+	}
+
+	/**
+	 * Everything written of a location, as {@link Location#equals(Object)} does not compare all of it.
+	 */
+	private static List<Object> locationKey(final Location location)
+	{
+		final List<Object> key = new ArrayList<Object>(6);
+		key.add(location.type);
+		key.add(location.id);
+		key.add(location.lat);
+		key.add(location.lon);
+		key.add(location.place);
+		key.add(location.name);
+		return key;
+	}
+
+	private void writeLine(final Line line) throws IOException
+	{
+		if (!out.writeObjectRef(LINES, line != null ? lineKey(line) : null))
+			return;
+
+		out.writeString(line.id);
+		out.writeString(line.network);
+		out.writeByte(line.product != null ? line.product.ordinal() + 1 : 0);
+		out.writeString(line.label);
+		writeStyle(line.style);
+		if (line.attrs == null)
+		{
+			out.writeVarint(0);
+		}
+		else
+		{
+			long mask = 0;
+			for (final Line.Attr attr : line.attrs)
+				mask |= 1L << attr.ordinal();
+			out.writeVarint((mask << 1) | 1);
+		}
+		out.writeString(line.message);
+	}
+
+	/**
+	 * Everything written of a line, as {@link Line#equals(Object)} does not compare all of it.
+	 */
+	private static List<Object> lineKey(final Line line)
+	{
+		final List<Object> key = new ArrayList<Object>(11);
+		key.add(line.id);
+		key.add(line.network);
+		key.add(line.product);
+		key.add(line.label);
+		// styles do not implement equals
+		final Style style = line.style;
+		key.add(style != null ? style.shape : null);
+		key.add(style != null ? style.backgroundColor : null);
+		key.add(style != null ? style.backgroundColor2 : null);
+		key.add(style != null ? style.foregroundColor : null);
+		key.add(style != null ? style.borderColor : null);
+		key.add(line.attrs);
+		key.add(line.message);
+		return key;
+	}
+
+	private void writeStyle(final Style style) throws IOException
+	{
+		if (style == null)
+		{
+			out.writeByte(0);
+			return;
+		}
+
+		out.writeByte(style.shape.ordinal() + 1);
+		out.writeVarint(style.backgroundColor & 0xffffffffL);
+		out.writeVarint(style.backgroundColor2 & 0xffffffffL);
+		out.writeVarint(style.foregroundColor & 0xffffffffL);
+		out.writeVarint(style.borderColor & 0xffffffffL);
+	}
+
+	private void writePosition(final Position position) throws IOException
+	{
+		if (position == null)
+		{
+			out.writeString(null);
+			return;
+		}
+
+		out.writeString(position.name);
+		out.writeString(position.section);
+	}
+
+	private void writeCapacity(final int[] capacity) throws IOException
+	{
+		if (capacity == null)
+		{
+			out.writeVarint(0);
+			return;
+		}
+
+		out.writeVarint(capacity.length + 1);
+		for (final int value : capacity)
+			out.writeVarint(value);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+/**
+ * Writes results in the compact binary wire format, for clients that ask for {@link #MEDIA_TYPE} in their
+ * {@code Accept} header. The format is write-only on the service side.
+ */
+public class CompactHttpMessageConverter extends AbstractHttpMessageConverter<Object>
+{
+	public static final MediaType MEDIA_TYPE = new MediaType("application", "x-pte-compact");
+
+	public CompactHttpMessageConverter()
+	{
+		super(MEDIA_TYPE);
+	}
+
+	@Override
+	protected boolean supports(final Class<?> clazz)
+	{
+		return CompactEncoder.supports(clazz);
+	}
+
+	@Override
+	public boolean canRead(final Class<?> clazz, final MediaType mediaType)
+	{
+		return false;
+	}
+
+	@Override
+	protected Object readInternal(final Class<? extends Object> clazz, final HttpInputMessage inputMessage) throws IOException
+	{
+		throw new HttpMessageNotReadableException("compact format cannot be read");
+	}
+
+	@Override
+	protected void writeInternal(final Object result, final HttpOutputMessage outputMessage) throws IOException
+	{
+		final OutputStream out = new BufferedOutputStream(outputMessage.getBody());
+		CompactEncoder.encode(result, out);
+		out.flush();
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Primitives of the compact wire format.
+ *
+ * <ul>
+ * <li>Unsigned integers are varints: 7 bits per byte, least significant group first, high bit set on all but the last
+ * byte. Signed integers are zigzag encoded first.</li>
+ * <li>Strings and objects are interned: a reference of {@code 0} is null, {@code 1} is followed by a new value that gets
+ * the next index in its table, and {@code n >= 2} refers to entry {@code n - 2}. Strings and each kind of object have
+ * their own table.</li>
+ * <li>Times are seconds, encoded as signed difference to the previous time in the message (starting at 0).</li>
+ * <li>Coordinates are microdegrees, encoded as signed differences to the previous coordinate in the message (starting
+ * at 0,0).</li>
+ * </ul>
+ */
+final class CompactWriter
+{
+	private final OutputStream out;
+	private final Map<String, Integer> strings = new HashMap<String, Integer>();
+	private final Map<Object, Map<Object, Integer>> objects = new HashMap<Object, Map<Object, Integer>>();
+	private long lastTime = 0;
+	private int lastLat = 0, lastLon = 0;
+
+	CompactWriter(final OutputStream out)
+	{
+		this.out = out;
+	}
+
+	void writeByte(final int b) throws IOException
+	{
+		out.write(b);
+	}
+
+	void writeVarint(long value) throws IOException
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	void writeSignedVarint(final long value) throws IOException
+	{
+		writeVarint((value << 1) ^ (value >> 63));
+	}
+
+	void writeString(final String string) throws IOException
+	{
+		if (string == null)
+		{
+			writeVarint(0);
+			return;
+		}
+
+		final Integer index = strings.get(string);
+		if (index != null)
+		{
+			writeVarint(index + 2);
+			return;
+		}
+
+		strings.put(string, strings.size());
+		writeVarint(1);
+		final byte[] bytes = string.getBytes(Charsets.UTF_8);
+		writeVarint(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Writes a reference to an object of the given kind.
+	 *
+	 * @return {@code true} if the object is new and its value must follow
+	 */
+	boolean writeObjectRef(final Object kind, final Object object) throws IOException
+	{
+		if (object == null)
+		{
+			writeVarint(0);
+			return false;
+		}
+
+		Map<Object, Integer> table = objects.get(kind);
+		if (table == null)
+		{
+			table = new HashMap<Object, Integer>();
+			objects.put(kind, table);
+		}
+
+		final Integer index = table.get(object);
+		if (index != null)
+		{
+			writeVarint(index + 2);
+			return false;
+		}
+
+		table.put(object, table.size());
+		writeVarint(1);
+		return true;
+	}
+
+	void writeTime(final Date time) throws IOException
+	{
+		final long seconds = time.getTime() / 1000;
+		writeSignedVarint(seconds - lastTime);
+		lastTime = seconds;
+	}
+
+	void writeCoord(final int lat, final int lon) throws IOException
+	{
+		writeSignedVarint(lat - lastLat);
+		writeSignedVarint(lon - lastLon);
+		lastLat = lat;
+		lastLon = lon;
+	}
+}
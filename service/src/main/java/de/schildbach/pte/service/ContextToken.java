@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.QueryTripsContext;
+import de.schildbach.pte.dto.QueryTripsResult;
+
+/**
+ * Context as handed out to clients: an opaque token any service node can resume from, and whether there is more to
+ * query.
+ */
+@SuppressWarnings("serial")
+public final class ContextToken implements QueryTripsContext
+{
+	public final String token;
+	public final boolean later;
+	public final boolean earlier;
+
+	private ContextToken(final String token, final boolean later, final boolean earlier)
+	{
+		this.token = token;
+		this.later = later;
+		this.earlier = earlier;
+	}
+
+	public boolean canQueryLater()
+	{
+		return later;
+	}
+
+	public boolean canQueryEarlier()
+	{
+		return earlier;
+	}
+
+	/**
+	 * Replaces the context of a result by its signed token.
+	 */
+	public static QueryTripsResult tokenize(final NetworkProvider provider, final ContextTokenSigner signer, final QueryTripsResult result)
+	{
+		if (result.context == null)
+			return result;
+
+		final ContextToken token = new ContextToken(signer.sign(provider.encodeQueryTripsContext(result.context)), result.context.canQueryLater(),
+				result.context.canQueryEarlier());
+		return new QueryTripsResult(result.header, result.queryUri, result.from, result.via, result.to, token, result.trips);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.service;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Signs context tokens handed out to clients, and rejects tokens that were not signed by this service. The secret is
+ * taken from the system property {@code pte.contextTokenSecret} and must be the same on all nodes, so that tokens can
+ * be resumed on any of them. The service does not start without it.
+ */
+@Component
+public class ContextTokenSigner
+{
+	public static final String SECRET_PROPERTY = "pte.contextTokenSecret";
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int MAC_LENGTH = 16;
+	private static final char SEPARATOR = '.';
+	private static final BaseEncoding BASE64 = BaseEncoding.base64Url().omitPadding();
+
+	private final SecretKeySpec key;
+
+	public ContextTokenSigner()
+	{
+		this(secret());
+	}
+
+	public ContextTokenSigner(final byte[] secret)
+	{
+		this.key = new SecretKeySpec(secret, ALGORITHM);
+	}
+
+	private static byte[] secret()
+	{
+		final String secret = System.getProperty(SECRET_PROPERTY);
+		if (secret == null || secret.length() == 0)
+			throw new IllegalStateException("no " + SECRET_PROPERTY + " configured, it must be set to the same secret on all nodes");
+		return secret.getBytes(Charsets.UTF_8);
+	}
+
+	public String sign(final String token)
+	{
+		return token + SEPARATOR + BASE64.encode(mac(token));
+	}
+
+	/**
+	 * @return token as passed to {@link #sign(String)}
+	 * @throws IllegalArgumentException
+	 *             if the token is unsigned or its signature does not match
+	 */
+	public String verify(final String signed)
+	{
+		final int separator = signed.lastIndexOf(SEPARATOR);
+		if (separator < 0)
+			throw new IllegalArgumentException("unsigned token");
+
+		final String token = signed.substring(0, separator);
+		final byte[] mac;
+		try
+		{
+			mac = BASE64.decode(signed.substring(separator + 1));
+		}
+		catch (final IllegalArgumentException x)
+		{
+			throw new IllegalArgumentException("malformed signature");
+		}
+
+		if (!MessageDigest.isEqual(mac, mac(token)))
+			throw new IllegalArgumentException("invalid signature");
+
+		return token;
+	}
+
+	private byte[] mac(final String token)
+	{
+		try
+		{
+			final Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			final byte[] full = mac.doFinal(token.getBytes(Charsets.US_ASCII));
+			final byte[] truncated = new byte[MAC_LENGTH];
+			System.arraycopy(full, 0, truncated, 0, MAC_LENGTH);
+			return truncated;
+		}
+		catch (final GeneralSecurityException x)
+		{
+			throw new RuntimeException(x);
+		}
+	}
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.schildbach.pte.ForwardingNetworkProvider;
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.exception.BlockedException;
+import de.schildbach.pte.exception.RateLimitedException;
+import de.schildbach.pte.service.DepartureSubscriptions.Board;
+import de.schildbach.pte.service.DepartureSubscriptions.Delta;
+import de.schildbach.pte.service.DepartureSubscriptions.Waiter;
+import de.schildbach.pte.util.Deadline;
+
+/**
+ * Serves departure boards of subscribed stations, either by long-polling or as a stream of server-sent events, and
+ * departures of many stations at once. All of them are processed asynchronously, so that no container thread is held
+ * while waiting for boards or upstream queries.
+ */
+@Controller
+public class DepartureController
+{
+	private static final long LONG_POLL_TIMEOUT_MS = 25 * 1000;
+	private static final long STREAM_DURATION_MS = 5 * 60 * 1000;
+	private static final int MAX_BATCH_STATIONS = 50;
+	private static final int WRITER_THREADS = 4;
+
+	@Autowired
+	private DepartureSubscriptions subscriptions;
+
+	@Autowired
+	private NetworkProviders providers;
+
+	@Autowired
+	private AdmissionControl admission;
+
+	@Autowired
+	private UpstreamExecutor upstream;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final ScheduledExecutorService writers = Executors.newScheduledThreadPool(WRITER_THREADS, new ThreadFactoryBuilder()
+			.setNameFormat("stream-%d").build());
+
+	private static final Logger log = Logger.getLogger(DepartureController.class.getSimpleName());
+
+	@PreDestroy
+	public void shutdown()
+	{
+		writers.shutdownNow();
+	}
+
+	/**
+	 * Long-polls for a board newer than the given version. Instead of the version parameter, the tag of the last board
+	 * can be sent as {@code If-None-Match}; if nothing changed until the timeout, the answer is then
+	 * {@code 304 Not Modified}.
+	 */
+	@RequestMapping(value = "/departures/poll", method = RequestMethod.GET)
+	@ResponseBody
+	public DeferredResult<ResponseEntity<Board>> poll(@RequestParam("network") final NetworkId network,
+			@RequestParam("station") final String stationId, @RequestParam(value = "version", required = false) final Long versionParam,
+			@RequestHeader(value = "If-None-Match", required = false) final String ifNoneMatch)
+	{
+		providers.checkSupported(network);
+		final long version = versionParam != null ? versionParam : ETags.version(ifNoneMatch);
+		final DeferredResult<ResponseEntity<Board>> result = new DeferredResult<ResponseEntity<Board>>(LONG_POLL_TIMEOUT_MS);
+		final Waiter waiter = new Waiter(version)
+		{
+			@Override
+			protected void onBoard(final Board board)
+			{
+				result.setResult(ETags.conditional(board, ETags.of(board.version), ifNoneMatch));
+			}
+		};
+		result.onTimeout(new Runnable()
+		{
+			public void run()
+			{
+				subscriptions.cancel(network, stationId, waiter);
+				final Board board = subscriptions.current(network, stationId);
+				result.setResult(board != null ? ETags.conditional(board, ETags.of(board.version), ifNoneMatch) : new ResponseEntity<Board>(
+						HttpStatus.NO_CONTENT));
+			}
+		});
+		subscriptions.await(network, stationId, waiter);
+		return result;
+	}
+
+	@RequestMapping(value = "/departures/delta", method = RequestMethod.GET)
+	@ResponseBody
+	public DeferredResult<ResponseEntity<Delta>> delta(@RequestParam("network") final NetworkId network,
+			@RequestParam("station") final String stationId,
+			@RequestParam(value = "since", required = false, defaultValue = "0") final long since)
+	{
+		providers.checkSupported(network);
+		final DeferredResult<ResponseEntity<Delta>> result = new DeferredResult<ResponseEntity<Delta>>(LONG_POLL_TIMEOUT_MS);
+		final Waiter waiter = new Waiter(since)
+		{
+			@Override
+			protected void onBoard(final Board board)
+			{
+				result.setResult(new ResponseEntity<Delta>(subscriptions.delta(network, stationId, since, board), HttpStatus.OK));
+			}
+		};
+		result.onTimeout(new Runnable()
+		{
+			public void run()
+			{
+				subscriptions.cancel(network, stationId, waiter);
+				result.setResult(new ResponseEntity<Delta>(HttpStatus.NO_CONTENT));
+			}
+		});
+		subscriptions.await(network, stationId, waiter);
+		return result;
+	}
+
+	@RequestMapping(value = "/departures/stream", method = RequestMethod.GET)
+	public void stream(@RequestParam("network") final NetworkId network, @RequestParam("station") final String stationId,
+			@RequestHeader(value = "Last-Event-ID", required = false, defaultValue = "0") final long lastEventId,
+			final HttpServletRequest request, final HttpServletResponse response) throws IOException
+	{
+		providers.checkSupported(network);
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		new Stream(network, stationId, lastEventId, request).next();
+	}
+
+	/**
+	 * Boards of a station as server-sent events. Each board is awaited by a subscription callback rather than by a
+	 * thread, and a comment is sent as keep-alive whenever no board comes within the long-poll timeout. Events are
+	 * written on a small pool of their own, so that slow clients do not hold up polling.
+	 */
+	private final class Stream
+	{
+		private final NetworkId network;
+		private final String stationId;
+		private final long end;
+		private final AsyncResponse response;
+		private long version;
+		private Waiter waiter = null;
+		private Future<?> keepAlive = null;
+
+		Stream(final NetworkId network, final String stationId, final long version, final HttpServletRequest request) throws IOException
+		{
+			this.network = network;
+			this.stationId = stationId;
+			this.version = version;
+			this.end = System.currentTimeMillis() + STREAM_DURATION_MS;
+			this.response = new AsyncResponse(request, STREAM_DURATION_MS + LONG_POLL_TIMEOUT_MS)
+			{
+				@Override
+				protected void onClose()
+				{
+					stop();
+				}
+			};
+		}
+
+		/**
+		 * Waits for the next board, or ends the stream if its time is up.
+		 */
+		synchronized void next()
+		{
+			final long remaining = end - System.currentTimeMillis();
+			if (remaining <= 0)
+			{
+				response.close();
+				return;
+			}
+
+			final Waiter next = new Waiter(version)
+			{
+				@Override
+				protected void onBoard(final Board board)
+				{
+					final Waiter from = this;
+					writers.execute(new Runnable()
+					{
+						public void run()
+						{
+							send(from, board);
+						}
+					});
+				}
+			};
+			waiter = next;
+			keepAlive = writers.schedule(new Runnable()
+			{
+				public void run()
+				{
+					keepAlive(next);
+				}
+			}, Math.min(remaining, LONG_POLL_TIMEOUT_MS), TimeUnit.MILLISECONDS);
+			subscriptions.await(network, stationId, next);
+		}
+
+		private synchronized void send(final Waiter from, final Board board)
+		{
+			// the wait has already ended by a keep-alive
+			if (from != waiter)
+				return;
+			waiter = null;
+			keepAlive.cancel(false);
+
+			final String data;
+			try
+			{
+				data = mapper.writeValueAsString(board.result);
+			}
+			catch (final IOException x)
+			{
+				log.log(Level.WARNING, "cannot write board of " + network + "/" + stationId, x);
+				response.close();
+				return;
+			}
+
+			if (response.write("id: " + board.version + "\n" + "data: " + data + "\n\n"))
+			{
+				version = board.version;
+				next();
+			}
+		}
+
+		private synchronized void keepAlive(final Waiter from)
+		{
+			if (from != waiter)
+				return;
+			subscriptions.cancel(network, stationId, from);
+			waiter = null;
+
+			if (response.write(": keep-alive\n\n"))
+				next();
+		}
+
+		private synchronized void stop()
+		{
+			if (waiter != null)
+			{
+				subscriptions.cancel(network, stationId, waiter);
+				waiter = null;
+			}
+			if (keepAlive != null)
+				keepAlive.cancel(false);
+		}
+	}
+
+	/**
+	 * Departures of many stations, one JSON object per line in the order the results come in. Stations that failed
+	 * carry the kind of error instead of a result. The queries run on threads of the {@link UpstreamExecutor}; if the
+	 * client goes away, the queries still outstanding are cancelled.
+	 */
+	@RequestMapping(value = "/departures/batch", method = RequestMethod.GET)
+	public void batch(@RequestParam("network") final NetworkId network, @RequestParam("station") final String[] stationIds,
+			@RequestParam(value = "maxDepartures", required = false, defaultValue = "0") final int maxDepartures,
+			@RequestParam(value = "equivs", required = false, defaultValue = "false") final boolean equivs, final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException
+	{
+		if (stationIds.length > MAX_BATCH_STATIONS)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "too many stations: " + stationIds.length);
+			return;
+		}
+
+		final NetworkProvider provider = new AdmittedProvider(providers.get(network));
+		response.setContentType("application/x-ndjson");
+		response.setCharacterEncoding("UTF-8");
+		final AtomicReference<Future<?>> query = new AtomicReference<Future<?>>();
+		final AsyncResponse out = new AsyncResponse(request, UpstreamExecutor.TIMEOUT_MS)
+		{
+			@Override
+			protected void onClose()
+			{
+				// the client has gone away or the time is up, so the stations still outstanding are not worth querying
+				final Future<?> f = query.get();
+				if (f != null)
+					f.cancel(false);
+			}
+		};
+		query.set(upstream.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					queryBatch(provider, stationIds, maxDepartures, equivs, out);
+				}
+				catch (final IOException x)
+				{
+					log.log(Level.INFO, "batch of " + network + " failed", x);
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+		}));
+		// closed while submitting
+		if (out.isClosed())
+			query.get().cancel(false);
+	}
+
+	/**
+	 * Takes a permit of {@link AdmissionControl} for each departure query, so that a batch weighs as much as the
+	 * queries it makes.
+	 */
+	private final class AdmittedProvider extends ForwardingNetworkProvider
+	{
+		AdmittedProvider(final NetworkProvider delegate)
+		{
+			super(delegate);
+		}
+
+		@Override
+		public QueryDeparturesResult queryDepartures(final String stationId, final Date time, final int maxDepartures, final boolean equivs)
+				throws IOException
+		{
+			final AdmissionControl.Permit permit;
+			try
+			{
+				permit = admission.acquire(id());
+			}
+			catch (final InterruptedException x)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for admission");
+			}
+
+			try
+			{
+				final QueryDeparturesResult result = delegate.queryDepartures(stationId, time, maxDepartures, equivs);
+				permit.release(!AdmissionControl.isServiceDown(result));
+				return result;
+			}
+			catch (final IOException x)
+			{
+				releaseAfter(permit, x);
+				throw x;
+			}
+			catch (final RuntimeException x)
+			{
+				releaseAfter(permit, x);
+				throw x;
+			}
+		}
+
+		private void releaseAfter(final AdmissionControl.Permit permit, final Exception x)
+		{
+			// the client going away says nothing about the upstream
+			final Deadline deadline = Deadline.current();
+			if (deadline != null && deadline.isCancelled())
+				permit.release();
+			else
+				permit.release(x);
+		}
+	}
+
+	private void queryBatch(final NetworkProvider provider, final String[] stationIds, final int maxDepartures, final boolean equivs,
+			final AsyncResponse out) throws IOException
+	{
+		provider.queryDeparturesBatch(Arrays.asList(stationIds), null, maxDepartures, equivs, new NetworkProvider.DeparturesListener()
+		{
+			public void onDepartures(final String stationId, final QueryDeparturesResult result)
+			{
+				final Map<String, Object> line = new LinkedHashMap<String, Object>();
+				line.put("station", stationId);
+				line.put("result", result);
+				write(line);
+			}
+
+			public void onFailure(final String stationId, final Exception exception)
+			{
+				final Map<String, Object> line = new LinkedHashMap<String, Object>();
+				line.put("station", stationId);
+				line.put("error", errorKind(exception));
+				write(line);
+			}
+
+			private void write(final Map<String, Object> line)
+			{
+				try
+				{
+					out.write(mapper.writeValueAsString(line) + "\n");
+				}
+				catch (final IOException x)
+				{
+					throw new RuntimeException(x);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Response written from other threads after the container thread has been released. Writes after the response is
+	 * closed, e.g. because the client has gone away or the time is up, are dropped.
+	 */
+	private static abstract class AsyncResponse implements AsyncListener
+	{
+		private final AsyncContext async;
+		private final PrintWriter writer;
+		private boolean closed = false;
+
+		AsyncResponse(final HttpServletRequest request, final long timeoutMs) throws IOException
+		{
+			this.async = request.startAsync();
+			async.setTimeout(timeoutMs);
+			async.addListener(this);
+			this.writer = async.getResponse().getWriter();
+		}
+
+		/**
+		 * Called once when the response is closed, by whichever side closes it.
+		 */
+		protected abstract void onClose();
+
+		/**
+		 * @return {@code false} if the response is closed, or has been closed because the client has gone away
+		 */
+		boolean write(final String text)
+		{
+			synchronized (this)
+			{
+				if (closed)
+					return false;
+				writer.print(text);
+				// flushes, and tells whether the client has gone away
+				if (!writer.checkError())
+					return true;
+			}
+			close();
+			return false;
+		}
+
+		synchronized boolean isClosed()
+		{
+			return closed;
+		}
+
+		void close()
+		{
+			if (finish())
+				async.complete();
+		}
+
+		private boolean finish()
+		{
+			// waits for a write in progress, so the response is never written to after completion
+			synchronized (this)
+			{
+				if (closed)
+					return false;
+				closed = true;
+			}
+			onClose();
+			return true;
+		}
+
+		public void onComplete(final AsyncEvent event)
+		{
+			finish();
+		}
+
+		public void onTimeout(final AsyncEvent event)
+		{
+			close();
+		}
+
+		public void onError(final AsyncEvent event)
+		{
+			close();
+		}
+
+		public void onStartAsync(final AsyncEvent event)
+		{
+		}
+	}
+
+	/**
+	 * Kind of a failed query as told to clients, without details of the upstream.
+	 */
+	private static String errorKind(final Exception exception)
+	{
+		if (exception instanceof OverloadedException)
+			return "overloaded";
+		if (exception instanceof RateLimitedException)
+			return "rate_limited";
+		if (exception instanceof BlockedException)
+			return "blocked";
+		if (exception instanceof InterruptedIOException)
+			return "timeout";
+		if (exception instanceof IOException)
+			return "upstream";
+		return "internal";
+	}
+}
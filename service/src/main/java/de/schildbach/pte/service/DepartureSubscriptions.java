@@ -0,0 +1,420 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Objects;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.dto.DeparturesDiff;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+
+/**
+ * Coalesces departure polling of many clients. Each subscribed station is polled by one scheduler, no matter how many
+ * clients are interested in it, and the boards are handed out to all subscribers. The poll interval shrinks with the
+ * number of subscribers and grows at night. Stations nobody is interested in anymore are dropped.
+ */
+@Component
+public class DepartureSubscriptions
+{
+	private static final long MIN_INTERVAL_MS = 15 * 1000;
+	private static final long MAX_INTERVAL_MS = 60 * 1000;
+	private static final int NIGHT_START_HOUR = 1;
+	private static final int NIGHT_END_HOUR = 5;
+	private static final int NIGHT_FACTOR = 4;
+	private static final long LEASE_MS = 2 * MAX_INTERVAL_MS;
+	private static final int MAX_DEPARTURES = 30;
+	private static final int POLL_THREADS = 8;
+	private static final int HISTORY_SIZE = 10;
+
+	// versions are unique across stations and restarts, so a stale version is never mistaken for a current one
+	private static final AtomicLong versions = new AtomicLong(System.currentTimeMillis());
+
+	public static final class Board
+	{
+		public final long version;
+		public final QueryDeparturesResult result;
+
+		private Board(final long version, final QueryDeparturesResult result)
+		{
+			this.version = version;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Changes since a known board. If the known board is not in the history anymore, the full board is sent instead of
+	 * the diffs.
+	 */
+	public static final class Delta
+	{
+		public final long version;
+		public final QueryDeparturesResult result;
+		public final List<DeparturesDiff> diffs;
+
+		private Delta(final long version, final QueryDeparturesResult result, final List<DeparturesDiff> diffs)
+		{
+			this.version = version;
+			this.result = result;
+			this.diffs = diffs;
+		}
+	}
+
+	/**
+	 * Waits for a board without blocking a thread. Exactly one of {@link #onBoard(Board)} and a call to
+	 * {@link DepartureSubscriptions#cancel} ends the wait.
+	 */
+	public static abstract class Waiter
+	{
+		private final long knownVersion;
+
+		protected Waiter(final long knownVersion)
+		{
+			this.knownVersion = knownVersion;
+		}
+
+		protected abstract void onBoard(Board board);
+	}
+
+	private static final class Key
+	{
+		final NetworkId network;
+		final String stationId;
+
+		Key(final NetworkId network, final String stationId)
+		{
+			this.network = network;
+			this.stationId = stationId;
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			final Key other = (Key) o;
+			return network == other.network && stationId.equals(other.stationId);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hashCode(network, stationId);
+		}
+
+		@Override
+		public String toString()
+		{
+			return network + "/" + stationId;
+		}
+	}
+
+	private static final class Station
+	{
+		final Key key;
+		final TimeZone timeZone;
+		private Board board = null;
+		private final LinkedList<Board> history = new LinkedList<Board>();
+		private final List<Waiter> waiters = new LinkedList<Waiter>();
+		private int requests = 0;
+		private long leaseUntil = 0;
+		private long nextPollAt = 0;
+		private boolean polling = false;
+
+		Station(final Key key, final TimeZone timeZone)
+		{
+			this.key = key;
+			this.timeZone = timeZone;
+		}
+
+		synchronized void touch(final long now)
+		{
+			requests++;
+			leaseUntil = Math.max(leaseUntil, now + LEASE_MS);
+		}
+
+		synchronized boolean isExpired(final long now)
+		{
+			return waiters.isEmpty() && now > leaseUntil;
+		}
+
+		synchronized boolean startPollIfDue(final long now)
+		{
+			if (polling || now < nextPollAt)
+				return false;
+			polling = true;
+			return true;
+		}
+
+		void finishPoll(final QueryDeparturesResult result, final long now)
+		{
+			final Board newBoard;
+			final List<Waiter> satisfied;
+			synchronized (this)
+			{
+				polling = false;
+				nextPollAt = now + interval(Math.max(waiters.size(), requests), now, timeZone);
+				requests = 0;
+				if (result == null || result.status == QueryDeparturesResult.Status.SERVICE_DOWN)
+					return;
+				if (board != null && sameBoard(board.result, result))
+					return;
+
+				newBoard = board = new Board(versions.incrementAndGet(), result);
+				history.addFirst(board);
+				if (history.size() > HISTORY_SIZE)
+					history.removeLast();
+				satisfied = new ArrayList<Waiter>(waiters);
+				waiters.clear();
+			}
+
+			// completing a request may dispatch, so do it outside the lock
+			for (final Waiter waiter : satisfied)
+				waiter.onBoard(newBoard);
+		}
+
+		void addWaiter(final Waiter waiter)
+		{
+			final Board current;
+			synchronized (this)
+			{
+				if (board == null || board.version <= waiter.knownVersion)
+				{
+					waiters.add(waiter);
+					return;
+				}
+				current = board;
+			}
+			waiter.onBoard(current);
+		}
+
+		synchronized void removeWaiter(final Waiter waiter)
+		{
+			if (waiters.remove(waiter))
+				leaseUntil = Math.max(leaseUntil, System.currentTimeMillis() + LEASE_MS);
+		}
+
+		synchronized Board board(final long version)
+		{
+			for (final Board board : history)
+				if (board.version == version)
+					return board;
+			return null;
+		}
+
+		synchronized Board board()
+		{
+			return board;
+		}
+	}
+
+	private final NetworkProviders providers;
+	private final AdmissionControl admission;
+	private final ConcurrentMap<Key, Station> stations = new ConcurrentHashMap<Key, Station>();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	private final ExecutorService pollers = Executors.newFixedThreadPool(POLL_THREADS);
+
+	private static final Logger log = Logger.getLogger(DepartureSubscriptions.class.getSimpleName());
+
+	@Autowired
+	public DepartureSubscriptions(final NetworkProviders providers, final AdmissionControl admission)
+	{
+		this.providers = providers;
+		this.admission = admission;
+		scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				tick();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown()
+	{
+		scheduler.shutdownNow();
+		pollers.shutdownNow();
+	}
+
+	/**
+	 * Registers a waiter for a board newer than its known version, without blocking. Registers interest in the
+	 * station for as long as the waiter is registered and a lease period afterwards.
+	 */
+	public void await(final NetworkId network, final String stationId, final Waiter waiter)
+	{
+		station(network, stationId).addWaiter(waiter);
+	}
+
+	/**
+	 * Ends the wait of a waiter that has not received a board, e.g. because the request timed out.
+	 */
+	public void cancel(final NetworkId network, final String stationId, final Waiter waiter)
+	{
+		final Station station = stations.get(new Key(network, stationId));
+		if (station != null)
+			station.removeWaiter(waiter);
+	}
+
+	/**
+	 * Changes of a board since a known version.
+	 */
+	public Delta delta(final NetworkId network, final String stationId, final long knownVersion, final Board board)
+	{
+		final Station station = stations.get(new Key(network, stationId));
+		final Board knownBoard = station != null ? station.board(knownVersion) : null;
+		if (knownBoard == null || knownBoard.result.status != board.result.status)
+			return new Delta(board.version, board.result, null);
+		else
+			return new Delta(board.version, null, DeparturesDiff.between(knownBoard.result, board.result));
+	}
+
+	/**
+	 * Registers interest in a station and returns its current board without waiting.
+	 */
+	public Board current(final NetworkId network, final String stationId)
+	{
+		return station(network, stationId).board();
+	}
+
+	private Station station(final NetworkId network, final String stationId)
+	{
+		final Key key = new Key(network, stationId);
+		Station station = stations.get(key);
+		if (station == null)
+		{
+			final Station newStation = new Station(key, providers.timeZone(network));
+			station = stations.putIfAbsent(key, newStation);
+			if (station == null)
+			{
+				station = newStation;
+				// first subscriber, don't let it wait for the next tick
+				schedulePoll(station, System.currentTimeMillis());
+			}
+		}
+		station.touch(System.currentTimeMillis());
+		return station;
+	}
+
+	private void tick()
+	{
+		final long now = System.currentTimeMillis();
+		for (final Iterator<Map.Entry<Key, Station>> i = stations.entrySet().iterator(); i.hasNext();)
+		{
+			final Station station = i.next().getValue();
+			if (station.isExpired(now))
+				i.remove();
+			else
+				schedulePoll(station, now);
+		}
+	}
+
+	private void schedulePoll(final Station station, final long now)
+	{
+		if (!station.startPollIfDue(now))
+			return;
+
+		// polls are retried anyway, so never queue them behind requests to an overloaded network
+		final AdmissionControl.Permit permit = admission.tryAcquire(station.key.network);
+		if (permit == null)
+		{
+			station.finishPoll(null, now);
+			return;
+		}
+
+		pollers.execute(new Runnable()
+		{
+			public void run()
+			{
+				QueryDeparturesResult result = null;
+				try
+				{
+					result = providers.get(station.key.network).queryDepartures(station.key.stationId, null, MAX_DEPARTURES, false);
+					permit.release(!AdmissionControl.isServiceDown(result));
+				}
+				catch (final IOException x)
+				{
+					permit.release(x);
+					log.log(Level.INFO, "polling " + station.key + " failed", x);
+				}
+				catch (final RuntimeException x)
+				{
+					permit.release(x);
+					log.log(Level.WARNING, "polling " + station.key + " failed", x);
+				}
+				finally
+				{
+					// e.g. an error
+					permit.release();
+					station.finishPoll(result, System.currentTimeMillis());
+				}
+			}
+		});
+	}
+
+	private static boolean sameBoard(final QueryDeparturesResult result1, final QueryDeparturesResult result2)
+	{
+		if (result1.status != result2.status)
+			return false;
+		if (result1.status != QueryDeparturesResult.Status.OK)
+			return true;
+		return DeparturesDiff.between(result1, result2).isEmpty();
+	}
+
+	/**
+	 * Poll interval for a station. Popular stations are polled more often, and everything is polled less often at
+	 * night, as it is in the time zone of the network.
+	 */
+	static long interval(final int subscribers, final long now, final TimeZone timeZone)
+	{
+		long interval = MAX_INTERVAL_MS;
+		for (int n = subscribers; n >= 10 && interval > MIN_INTERVAL_MS; n /= 10)
+			interval /= 2;
+		interval = Math.max(interval, MIN_INTERVAL_MS);
+
+		final Calendar calendar = Calendar.getInstance(timeZone);
+		calendar.setTimeInMillis(now);
+		final int hour = calendar.get(Calendar.HOUR_OF_DAY);
+		if (hour >= NIGHT_START_HOUR && hour < NIGHT_END_HOUR)
+			interval *= NIGHT_FACTOR;
+
+		return interval;
+	}
+}
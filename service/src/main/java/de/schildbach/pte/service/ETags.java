@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.ResultHeader;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+
+/**
+ * Entity tags for conditional requests. Tags are hashed from the result objects rather than from their serialized
+ * form, so a request that turns out to be unmodified is never serialized. They cover every field the JSON and compact
+ * encoders write, except the server time of the result header, which changes with every response. Whoever adds a
+ * field to the encoders must add it here as well.
+ */
+public final class ETags
+{
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private ETags()
+	{
+	}
+
+	public static String of(final SuggestLocationsResult result)
+	{
+		final Hasher hasher = HASH.newHasher();
+		putHeader(hasher, result.header);
+		hasher.putInt(result.status.ordinal());
+		if (result.status == SuggestLocationsResult.Status.OK)
+			for (final Location location : result.getLocations())
+				putLocation(hasher, location);
+		return tag(hasher);
+	}
+
+	public static String of(final NearbyLocationsResult result)
+	{
+		final Hasher hasher = HASH.newHasher();
+		putHeader(hasher, result.header);
+		hasher.putInt(result.status.ordinal());
+		if (result.locations != null)
+			for (final Location location : result.locations)
+				putLocation(hasher, location);
+		return tag(hasher);
+	}
+
+	public static String of(final long version)
+	{
+		return '"' + Long.toString(version, Character.MAX_RADIX) + '"';
+	}
+
+	/**
+	 * Version of a tag made by {@link #of(long)}, or {@code 0} if there is none.
+	 */
+	public static long version(final String ifNoneMatch)
+	{
+		if (ifNoneMatch == null)
+			return 0;
+		String tag = ifNoneMatch.trim();
+		if (tag.startsWith("W/"))
+			tag = tag.substring(2);
+		if (tag.length() < 3 || tag.charAt(0) != '"' || tag.charAt(tag.length() - 1) != '"')
+			return 0;
+		try
+		{
+			return Long.parseLong(tag.substring(1, tag.length() - 1), Character.MAX_RADIX);
+		}
+		catch (final NumberFormatException x)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Answers with {@code 304 Not Modified} if the client already has the tagged entity, otherwise with the body.
+	 * Either way the tag is sent along.
+	 */
+	public static <T> ResponseEntity<T> conditional(final T body, final String etag, final String ifNoneMatch)
+	{
+		final HttpHeaders headers = new HttpHeaders();
+		headers.setETag(etag);
+		if (matches(etag, ifNoneMatch))
+			return new ResponseEntity<T>(headers, HttpStatus.NOT_MODIFIED);
+		else
+			return new ResponseEntity<T>(body, headers, HttpStatus.OK);
+	}
+
+	static boolean matches(final String etag, final String ifNoneMatch)
+	{
+		if (ifNoneMatch == null)
+			return false;
+		for (String candidate : ifNoneMatch.split(","))
+		{
+			candidate = candidate.trim();
+			// weak comparison is fine for GET
+			if (candidate.startsWith("W/"))
+				candidate = candidate.substring(2);
+			if (candidate.equals("*") || candidate.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	private static void putHeader(final Hasher hasher, final ResultHeader header)
+	{
+		if (header == null)
+		{
+			hasher.putInt(-1);
+			return;
+		}
+
+		hasher.putInt(header.network.ordinal());
+		putString(hasher, header.serverProduct);
+		putString(hasher, header.serverVersion);
+		// opaque to clients, but written as JSON
+		putString(hasher, header.context != null ? header.context.toString() : null);
+	}
+
+	private static void putLocation(final Hasher hasher, final Location location)
+	{
+		hasher.putInt(location.type.ordinal());
+		putString(hasher, location.id);
+		hasher.putInt(location.lat).putInt(location.lon);
+		putString(hasher, location.place);
+		putString(hasher, location.name);
+	}
+
+	private static void putString(final Hasher hasher, final String string)
+	{
+		// length prefix keeps adjacent fields apart, -1 tells null from empty
+		if (string == null)
+		{
+			hasher.putInt(-1);
+		}
+		else
+		{
+			hasher.putInt(string.length());
+			hasher.putUnencodedChars(string);
+		}
+	}
+
+	private static String tag(final Hasher hasher)
+	{
+		return '"' + hasher.hash().toString() + '"';
+	}
+}
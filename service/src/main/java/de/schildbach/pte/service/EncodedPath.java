@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+import de.schildbach.pte.dto.Point;
+import de.schildbach.pte.util.PathUtils;
+
+/**
+ * Path that is serialized to JSON as an encoded polyline string rather than as a list of points.
+ */
+@JsonSerialize(using = EncodedPath.Serializer.class)
+public final class EncodedPath extends AbstractList<Point>
+{
+	private final List<Point> points;
+
+	public EncodedPath(final List<Point> points)
+	{
+		this.points = points;
+	}
+
+	@Override
+	public Point get(final int index)
+	{
+		return points.get(index);
+	}
+
+	@Override
+	public int size()
+	{
+		return points.size();
+	}
+
+	public static final class Serializer extends JsonSerializer<EncodedPath>
+	{
+		@Override
+		public void serialize(final EncodedPath path, final JsonGenerator generator, final SerializerProvider provider) throws IOException
+		{
+			generator.writeString(PathUtils.encodePolyline(path.points));
+		}
+	}
+}
@@ -17,16 +17,21 @@
 
 package de.schildbach.pte.service;
 
-import java.io.IOException;
 import java.util.EnumSet;
+import java.util.concurrent.Callable;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
 
-import de.schildbach.pte.RtProvider;
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.NetworkProvider;
 import de.schildbach.pte.dto.Location;
 import de.schildbach.pte.dto.LocationType;
 import de.schildbach.pte.dto.NearbyLocationsResult;
@@ -38,20 +43,46 @@ import de.schildbach.pte.dto.SuggestLocationsResult;
 @Controller
 public class LocationController
 {
-	private final RtProvider provider = new RtProvider();
+	@Autowired
+	private NetworkProviders providers;
+
+	@Autowired
+	private UpstreamExecutor upstream;
 
 	@RequestMapping(value = "/location/suggest", method = RequestMethod.GET)
 	@ResponseBody
-	public SuggestLocationsResult suggest(@RequestParam("q") final String query) throws IOException
+	public DeferredResult<ResponseEntity<SuggestLocationsResult>> suggest(@RequestParam("q") final String query,
+			@RequestHeader(value = "If-None-Match", required = false) final String ifNoneMatch)
 	{
-		return provider.suggestLocations(query);
+		return upstream.submit(provider().id(), new Callable<ResponseEntity<SuggestLocationsResult>>()
+		{
+			public ResponseEntity<SuggestLocationsResult> call() throws Exception
+			{
+				final SuggestLocationsResult result = provider().suggestLocations(query);
+				return ETags.conditional(result, ETags.of(result), ifNoneMatch);
+			}
+		});
 	}
 
 	@RequestMapping(value = "/location/nearby", method = RequestMethod.GET)
 	@ResponseBody
-	public NearbyLocationsResult nearby(@RequestParam("lat") final int lat, @RequestParam("lon") final int lon) throws IOException
+	public DeferredResult<ResponseEntity<NearbyLocationsResult>> nearby(@RequestParam("lat") final int lat, @RequestParam("lon") final int lon,
+			@RequestHeader(value = "If-None-Match", required = false) final String ifNoneMatch)
 	{
 		final Location coord = Location.coord(lat, lon);
-		return provider.queryNearbyLocations(EnumSet.of(LocationType.STATION, LocationType.POI), coord, 5000, 100);
+		return upstream.submit(provider().id(), new Callable<ResponseEntity<NearbyLocationsResult>>()
+		{
+			public ResponseEntity<NearbyLocationsResult> call() throws Exception
+			{
+				final NearbyLocationsResult result = provider().queryNearbyLocations(EnumSet.of(LocationType.STATION, LocationType.POI), coord,
+						5000, 100);
+				return ETags.conditional(result, ETags.of(result), ifNoneMatch);
+			}
+		});
+	}
+
+	private NetworkProvider provider()
+	{
+		return providers.get(NetworkId.RT);
 	}
 }
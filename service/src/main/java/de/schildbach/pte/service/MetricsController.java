@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import de.schildbach.pte.metrics.Histogram;
+import de.schildbach.pte.metrics.HistogramInstrumentation;
+import de.schildbach.pte.metrics.HistogramInstrumentation.Key;
+import de.schildbach.pte.metrics.HistogramInstrumentation.Phase;
+import de.schildbach.pte.metrics.HistogramInstrumentation.Stats;
+
+/**
+ * Serves the metrics of upstream queries since startup, per network and method. Times are in milliseconds.
+ */
+@Controller
+public class MetricsController
+{
+	@Autowired
+	private HistogramInstrumentation instrumentation;
+
+	@RequestMapping(value = "/metrics", method = RequestMethod.GET)
+	@ResponseBody
+	public Map<String, Map<String, Object>> metrics()
+	{
+		final Map<String, Map<String, Object>> networks = new LinkedHashMap<String, Map<String, Object>>();
+		for (final Map.Entry<Key, Stats> entry : instrumentation.stats().entrySet())
+		{
+			final String network = entry.getKey().network.name();
+			Map<String, Object> methods = networks.get(network);
+			if (methods == null)
+			{
+				methods = new LinkedHashMap<String, Object>();
+				networks.put(network, methods);
+			}
+			methods.put(entry.getKey().method, stats(entry.getValue()));
+		}
+		return networks;
+	}
+
+	private static Map<String, Object> stats(final Stats stats)
+	{
+		final Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("queries", stats.queries());
+		map.put("outcomes", stats.outcomes());
+		map.put("requests", stats.requests());
+		map.put("objects", stats.objects());
+		map.put("compressedBytes", stats.compressedBytes());
+		map.put("uncompressedBytes", stats.uncompressedBytes());
+		for (final Phase phase : Phase.values())
+			map.put(phase.name().toLowerCase(Locale.ENGLISH), histogram(stats.phase(phase)));
+		return map;
+	}
+
+	private static Map<String, Object> histogram(final Histogram micros)
+	{
+		final Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("p50", millis(micros.percentile(50)));
+		map.put("p90", millis(micros.percentile(90)));
+		map.put("p99", millis(micros.percentile(99)));
+		map.put("max", millis(micros.max()));
+		map.put("mean", millis(micros.mean()));
+		return map;
+	}
+
+	private static double millis(final double micros)
+	{
+		return Math.round(micros / 100) / 10.0;
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import de.schildbach.pte.AbstractNetworkProvider;
+import de.schildbach.pte.AtcProvider;
+import de.schildbach.pte.AvvProvider;
+import de.schildbach.pte.BahnProvider;
+import de.schildbach.pte.BayernProvider;
+import de.schildbach.pte.BsvagProvider;
+import de.schildbach.pte.BvbProvider;
+import de.schildbach.pte.BvgProvider;
+import de.schildbach.pte.DingProvider;
+import de.schildbach.pte.DsbProvider;
+import de.schildbach.pte.DubProvider;
+import de.schildbach.pte.EireannProvider;
+import de.schildbach.pte.HedgingNetworkProvider;
+import de.schildbach.pte.InvgProvider;
+import de.schildbach.pte.IvbProvider;
+import de.schildbach.pte.JetProvider;
+import de.schildbach.pte.KvvProvider;
+import de.schildbach.pte.LinzProvider;
+import de.schildbach.pte.LuProvider;
+import de.schildbach.pte.MerseyProvider;
+import de.schildbach.pte.MetProvider;
+import de.schildbach.pte.MvgProvider;
+import de.schildbach.pte.MvvProvider;
+import de.schildbach.pte.NasaProvider;
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.NetworkProvider;
+import de.schildbach.pte.NriProvider;
+import de.schildbach.pte.NsProvider;
+import de.schildbach.pte.NvbwProvider;
+import de.schildbach.pte.NvvProvider;
+import de.schildbach.pte.OebbProvider;
+import de.schildbach.pte.PacaProvider;
+import de.schildbach.pte.PlProvider;
+import de.schildbach.pte.RsagProvider;
+import de.schildbach.pte.RtProvider;
+import de.schildbach.pte.SbbProvider;
+import de.schildbach.pte.SeProvider;
+import de.schildbach.pte.SeptaProvider;
+import de.schildbach.pte.SfProvider;
+import de.schildbach.pte.ShProvider;
+import de.schildbach.pte.SncbProvider;
+import de.schildbach.pte.StockholmProvider;
+import de.schildbach.pte.StvProvider;
+import de.schildbach.pte.SvvProvider;
+import de.schildbach.pte.SydneyProvider;
+import de.schildbach.pte.TfiProvider;
+import de.schildbach.pte.TlemProvider;
+import de.schildbach.pte.VagfrProvider;
+import de.schildbach.pte.VbbProvider;
+import de.schildbach.pte.VblProvider;
+import de.schildbach.pte.VbnProvider;
+import de.schildbach.pte.VgsProvider;
+import de.schildbach.pte.VmobilProvider;
+import de.schildbach.pte.VmsProvider;
+import de.schildbach.pte.VmvProvider;
+import de.schildbach.pte.VorProvider;
+import de.schildbach.pte.VrnProvider;
+import de.schildbach.pte.VrrProvider;
+import de.schildbach.pte.VrsProvider;
+import de.schildbach.pte.VsnProvider;
+import de.schildbach.pte.VvmProvider;
+import de.schildbach.pte.VvoProvider;
+import de.schildbach.pte.VvsProvider;
+import de.schildbach.pte.VvtProvider;
+import de.schildbach.pte.VvvProvider;
+import de.schildbach.pte.WienProvider;
+import de.schildbach.pte.ZvvProvider;
+import de.schildbach.pte.metrics.Instrumentation;
+import de.schildbach.pte.metrics.InstrumentedNetworkProvider;
+import de.schildbach.pte.util.ParserUtils;
+
+/**
+ * Provides one shared provider instance per network. Only networks listed in the registry are available; requests for
+ * others are answered with {@code 404 Not Found}. If an {@link Instrumentation} is configured, queries of all providers are reported to it.
+ *
+ * Idempotent queries are hedged, within the global hedge budget. Hedging wraps the instrumentation rather than the
+ * other way round, because each attempt runs on a thread of its own and the network phases are collected per thread;
+ * every attempt is therefore reported as a query of its own.
+ *
+ * Requests to each upstream host are smoothed by a rate limit, which backs off while the host is blocking.
+ */
+@Component
+public class NetworkProviders
+{
+	private static final double RATE_LIMIT_PER_SECOND = 10;
+	private static final int RATE_LIMIT_BURST = 20;
+	private static final long RATE_LIMIT_MAX_WAIT_MS = 2000;
+
+	private final ConcurrentMap<NetworkId, NetworkProvider> providers = new ConcurrentHashMap<NetworkId, NetworkProvider>();
+	private final ConcurrentMap<NetworkId, TimeZone> timeZones = new ConcurrentHashMap<NetworkId, TimeZone>();
+
+	@Autowired(required = false)
+	private Instrumentation instrumentation;
+
+	@PostConstruct
+	public void limitRate()
+	{
+		ParserUtils.setDefaultRateLimit(RATE_LIMIT_PER_SECOND, RATE_LIMIT_BURST, RATE_LIMIT_MAX_WAIT_MS);
+	}
+
+	/**
+	 * @throws UnsupportedNetworkException
+	 *             if there is no provider for the network
+	 */
+	public NetworkProvider get(final NetworkId network)
+	{
+		final NetworkProvider provider = providers.get(network);
+		if (provider != null)
+			return provider;
+
+		final NetworkProvider created = create(network);
+		if (created instanceof AbstractNetworkProvider)
+			timeZones.putIfAbsent(network, ((AbstractNetworkProvider) created).getTimeZone());
+		final NetworkProvider newProvider = new HedgingNetworkProvider(instrumentation != null ? new InstrumentedNetworkProvider(created,
+				instrumentation) : created);
+		final NetworkProvider existingProvider = providers.putIfAbsent(network, newProvider);
+		return existingProvider != null ? existingProvider : newProvider;
+	}
+
+	/**
+	 * Time zone of the network, as its provider is wrapped and cannot tell.
+	 *
+	 * @throws UnsupportedNetworkException
+	 *             if there is no provider for the network
+	 */
+	public TimeZone timeZone(final NetworkId network)
+	{
+		get(network);
+		final TimeZone timeZone = timeZones.get(network);
+		return timeZone != null ? timeZone : TimeZone.getDefault();
+	}
+
+	/**
+	 * @throws UnsupportedNetworkException
+	 *             if there is no provider for the network
+	 */
+	public void checkSupported(final NetworkId network)
+	{
+		get(network);
+	}
+
+	/**
+	 * Registry of the networks served. Networks whose provider needs configuration, like an API key, are left out.
+	 */
+	private static NetworkProvider create(final NetworkId network)
+	{
+		switch (network)
+		{
+			case RT:
+				return new RtProvider();
+			case DB:
+				return new BahnProvider();
+			case BVG:
+				return new BvgProvider();
+			case VBB:
+				return new VbbProvider();
+			case NVV:
+				return new NvvProvider();
+			case BAYERN:
+				return new BayernProvider();
+			case MVV:
+				return new MvvProvider();
+			case INVG:
+				return new InvgProvider();
+			case AVV:
+				return new AvvProvider();
+			case VVM:
+				return new VvmProvider();
+			case VMV:
+				return new VmvProvider();
+			case RSAG:
+				return new RsagProvider();
+			case SH:
+				return new ShProvider();
+			case VSN:
+				return new VsnProvider();
+			case BSVAG:
+				return new BsvagProvider();
+			case VBN:
+				return new VbnProvider();
+			case NASA:
+				return new NasaProvider();
+			case VVO:
+				return new VvoProvider();
+			case VMS:
+				return new VmsProvider();
+			case VGS:
+				return new VgsProvider();
+			case VRR:
+				return new VrrProvider();
+			case VRS:
+				return new VrsProvider();
+			case MVG:
+				return new MvgProvider();
+			case VRN:
+				return new VrnProvider();
+			case VVS:
+				return new VvsProvider();
+			case DING:
+				return new DingProvider();
+			case KVV:
+				return new KvvProvider();
+			case VAGFR:
+				return new VagfrProvider();
+			case NVBW:
+				return new NvbwProvider();
+			case VVV:
+				return new VvvProvider();
+			case OEBB:
+				return new OebbProvider();
+			case VOR:
+				return new VorProvider();
+			case WIEN:
+				return new WienProvider();
+			case LINZ:
+				return new LinzProvider();
+			case SVV:
+				return new SvvProvider();
+			case VVT:
+				return new VvtProvider();
+			case VMOBIL:
+				return new VmobilProvider();
+			case IVB:
+				return new IvbProvider();
+			case STV:
+				return new StvProvider();
+			case SBB:
+				return new SbbProvider();
+			case BVB:
+				return new BvbProvider();
+			case VBL:
+				return new VblProvider();
+			case ZVV:
+				return new ZvvProvider();
+			case PACA:
+				return new PacaProvider();
+			case SNCB:
+				return new SncbProvider();
+			case NS:
+				return new NsProvider();
+			case DSB:
+				return new DsbProvider();
+			case SE:
+				return new SeProvider();
+			case STOCKHOLM:
+				return new StockholmProvider();
+			case NRI:
+				return new NriProvider();
+			case LU:
+				return new LuProvider();
+			case TLEM:
+				return new TlemProvider();
+			case MERSEY:
+				return new MerseyProvider();
+			case TFI:
+				return new TfiProvider();
+			case EIREANN:
+				return new EireannProvider();
+			case PL:
+				return new PlProvider();
+			case ATC:
+				return new AtcProvider();
+			case DUB:
+				return new DubProvider();
+			case JET:
+				return new JetProvider();
+			case SF:
+				return new SfProvider();
+			case SEPTA:
+				return new SeptaProvider();
+			case SYDNEY:
+				return new SydneyProvider();
+			case MET:
+				return new MetProvider();
+			default:
+				throw new UnsupportedNetworkException(network);
+		}
+	}
+}
@@ -17,22 +17,34 @@
 
 package de.schildbach.pte.service;
 
-import java.io.IOException;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.NetworkProvider;
 import de.schildbach.pte.NetworkProvider.Accessibility;
+import de.schildbach.pte.NetworkProvider.Option;
 import de.schildbach.pte.NetworkProvider.WalkSpeed;
-import de.schildbach.pte.RtProvider;
 import de.schildbach.pte.dto.Location;
 import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.Point;
 import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryTripsContext;
 import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.Trip;
+import de.schildbach.pte.util.PathUtils;
 
 /**
  * @author Andreas Schildbach
@@ -40,19 +52,99 @@ import de.schildbach.pte.dto.QueryTripsResult;
 @Controller
 public class TripController
 {
-	private final RtProvider provider = new RtProvider();
+	public enum PathFormat
+	{
+		POINTS, POLYLINE, NONE
+	}
+
+	@Autowired
+	private NetworkProviders providers;
+
+	@Autowired
+	private UpstreamExecutor upstream;
+
+	@Autowired
+	private ContextTokenSigner signer;
 
 	@RequestMapping(value = "/trip", method = RequestMethod.GET)
 	@ResponseBody
-	public QueryTripsResult trip(@RequestParam(value = "fromType", required = false, defaultValue = "ANY") final LocationType fromType,
+	public DeferredResult<QueryTripsResult> trip(@RequestParam(value = "fromType", required = false, defaultValue = "ANY") final LocationType fromType,
 			@RequestParam(value = "from", required = false) final String from,
 			@RequestParam(value = "fromId", required = false) final String fromId,
 			@RequestParam(value = "toType", required = false, defaultValue = "ANY") final LocationType toType,
 			@RequestParam(value = "to", required = false) final String to,
-			@RequestParam(value = "toId", required = false) final String toId) throws IOException
+			@RequestParam(value = "toId", required = false) final String toId,
+			@RequestParam(value = "lightweight", required = false, defaultValue = "false") final boolean lightweight,
+			@RequestParam(value = "pathFormat", required = false, defaultValue = "POINTS") final PathFormat pathFormat,
+			@RequestParam(value = "pathTolerance", required = false, defaultValue = "0") final double pathTolerance)
 	{
 		final Location fromLocation = new Location(fromType, fromId, null, from);
 		final Location toLocation = new Location(toType, toId, null, to);
-		return provider.queryTrips(fromLocation, null, toLocation, new Date(), true, Product.ALL, null, WalkSpeed.NORMAL, Accessibility.NEUTRAL, null);
+		return upstream.submit(provider().id(), new Callable<QueryTripsResult>()
+		{
+			public QueryTripsResult call() throws Exception
+			{
+				final QueryTripsResult result = provider().queryTrips(fromLocation, null, toLocation, new Date(), true, Product.ALL, null,
+						WalkSpeed.NORMAL, Accessibility.NEUTRAL, lightweight ? EnumSet.of(Option.LIGHTWEIGHT) : null);
+				return prepare(result, pathFormat, pathTolerance);
+			}
+		});
+	}
+
+	/**
+	 * Queries earlier or later trips, resuming from the context token of a previous result.
+	 */
+	@RequestMapping(value = "/trip/more", method = RequestMethod.GET)
+	@ResponseBody
+	public DeferredResult<QueryTripsResult> more(@RequestParam("context") final String context,
+			@RequestParam(value = "later", required = false, defaultValue = "true") final boolean later,
+			@RequestParam(value = "pathFormat", required = false, defaultValue = "POINTS") final PathFormat pathFormat,
+			@RequestParam(value = "pathTolerance", required = false, defaultValue = "0") final double pathTolerance)
+	{
+		final QueryTripsContext queryTripsContext;
+		try
+		{
+			queryTripsContext = provider().decodeQueryTripsContext(signer.verify(context));
+		}
+		catch (final IllegalArgumentException x)
+		{
+			final DeferredResult<QueryTripsResult> result = new DeferredResult<QueryTripsResult>();
+			result.setErrorResult(new ResponseEntity<String>(x.getMessage(), HttpStatus.BAD_REQUEST));
+			return result;
+		}
+
+		return upstream.submit(provider().id(), new Callable<QueryTripsResult>()
+		{
+			public QueryTripsResult call() throws Exception
+			{
+				return prepare(provider().queryMoreTrips(queryTripsContext, later), pathFormat, pathTolerance);
+			}
+		});
+	}
+
+	private QueryTripsResult prepare(final QueryTripsResult result, final PathFormat pathFormat, final double pathTolerance)
+	{
+		if (result.trips != null)
+			for (final Trip trip : result.trips)
+				for (final Trip.Leg leg : trip.legs)
+					leg.path = path(leg.path, pathFormat, pathTolerance);
+		return ContextToken.tokenize(provider(), signer, result);
+	}
+
+	/**
+	 * Path as requested by the client, simplified to the given tolerance in meters.
+	 */
+	private static List<Point> path(final List<Point> path, final PathFormat format, final double tolerance)
+	{
+		if (path == null || format == PathFormat.NONE)
+			return null;
+
+		final List<Point> simplified = PathUtils.simplify(path, tolerance);
+		return format == PathFormat.POLYLINE ? new EncodedPath(simplified) : simplified;
+	}
+
+	private NetworkProvider provider()
+	{
+		return providers.get(NetworkId.RT);
 	}
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import de.schildbach.pte.NetworkId;
+
+/**
+ * Thrown if a request is for a network that is not served.
+ */
+@SuppressWarnings("serial")
+@ResponseStatus(value = HttpStatus.NOT_FOUND, reason = "unsupported network")
+public class UnsupportedNetworkException extends RuntimeException
+{
+	public final NetworkId network;
+
+	public UnsupportedNetworkException(final NetworkId network)
+	{
+		super("unsupported network: " + network);
+		this.network = network;
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.exception.RateLimitedException;
+import de.schildbach.pte.util.Deadline;
+
+/**
+ * Runs upstream queries on threads of its own, so that container threads are released while waiting for slow
+ * backends. The request is completed from the upstream thread once the query returns. Each query runs under a
+ * {@link Deadline} that ends with the request timeout and is cancelled if the client goes away, which aborts the
+ * upstream requests in flight. Only failures of the upstream count against its admission limit, not those of bad
+ * requests or of queries aborted by the client.
+ */
+@Component
+public class UpstreamExecutor
+{
+	private static final int THREADS = 64;
+	static final long TIMEOUT_MS = 60 * 1000;
+
+	@Autowired
+	private AdmissionControl admission;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactoryBuilder().setNameFormat("upstream-%d")
+			.build());
+
+	@PreDestroy
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Submits a query to the given network, once admitted by {@link AdmissionControl}. If it fails, the exception is
+	 * handled as if thrown by the handler. If it is not admitted, the request is answered with
+	 * {@code 503 Service Unavailable}, as it is if the rate limit of the upstream does not permit it in time, then with
+	 * a {@code Retry-After} header. If it does not complete in time, it is cancelled and the request answered
+	 * with {@code 504 Gateway Timeout}.
+	 */
+	public <T> DeferredResult<T> submit(final NetworkId network, final Callable<T> query)
+	{
+		final DeferredResult<T> result = new DeferredResult<T>(TIMEOUT_MS);
+		final long expiresAt = System.currentTimeMillis() + TIMEOUT_MS;
+		final AtomicReference<Future<?>> future = new AtomicReference<Future<?>>();
+		final AtomicReference<Deadline> deadline = new AtomicReference<Deadline>();
+		final AtomicBoolean timedOut = new AtomicBoolean(false);
+		admission.admit(network, new AdmissionControl.Admission()
+		{
+			public void admitted(final AdmissionControl.Permit permit)
+			{
+				// releases the permit also if cancelled before running
+				final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>()
+				{
+					public Void call()
+					{
+						final Deadline queryDeadline = Deadline.begin(Math.max(expiresAt - System.currentTimeMillis(), 0));
+						deadline.set(queryDeadline);
+						// cancelled while starting
+						if (Thread.currentThread().isInterrupted())
+							queryDeadline.cancel();
+
+						try
+						{
+							final T value = query.call();
+							permit.release(!AdmissionControl.isServiceDown(value));
+							result.setResult(value);
+						}
+						catch (final RateLimitedException x)
+						{
+							permit.release();
+							final HttpHeaders headers = new HttpHeaders();
+							headers.set("Retry-After", Long.toString((x.getWaitMs() + 999) / 1000));
+							result.setErrorResult(new ResponseEntity<Void>(headers, HttpStatus.SERVICE_UNAVAILABLE));
+						}
+						catch (final Exception x)
+						{
+							// a timeout tells that the upstream is slow, but a client going away says nothing about it
+							if (timedOut.get())
+								permit.release(false);
+							else if (queryDeadline.isCancelled())
+								permit.release();
+							else
+								permit.release(x);
+							result.setErrorResult(x);
+						}
+						finally
+						{
+							queryDeadline.end();
+							permit.release();
+						}
+						return null;
+					}
+				})
+				{
+					@Override
+					protected void done()
+					{
+						permit.release();
+					}
+				};
+				future.set(task);
+				executor.execute(task);
+			}
+
+			public void rejected(final OverloadedException x)
+			{
+				result.setErrorResult(x);
+			}
+		});
+		result.onTimeout(new Runnable()
+		{
+			public void run()
+			{
+				timedOut.set(true);
+				cancel(future, deadline);
+				result.setErrorResult(new ResponseEntity<Void>(HttpStatus.GATEWAY_TIMEOUT));
+			}
+		});
+		result.onCompletion(new Runnable()
+		{
+			public void run()
+			{
+				// completed without a result, so the client has gone away
+				if (!result.isSetOrExpired())
+					cancel(future, deadline);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Runs a query that answers the request on its own, e.g. by writing to an asynchronous response as results come
+	 * in. Like a submitted query, it runs under a {@link Deadline} that ends with the request timeout. Cancelling the
+	 * returned future cancels the deadline, which aborts the upstream requests in flight. Admission is up to the query.
+	 */
+	public Future<?> execute(final Runnable query)
+	{
+		final long expiresAt = System.currentTimeMillis() + TIMEOUT_MS;
+		final AtomicReference<Deadline> deadline = new AtomicReference<Deadline>();
+		final FutureTask<Void> task = new FutureTask<Void>(new Runnable()
+		{
+			public void run()
+			{
+				final Deadline queryDeadline = Deadline.begin(Math.max(expiresAt - System.currentTimeMillis(), 0));
+				deadline.set(queryDeadline);
+				// cancelled while starting
+				if (Thread.currentThread().isInterrupted())
+					queryDeadline.cancel();
+
+				try
+				{
+					query.run();
+				}
+				finally
+				{
+					queryDeadline.end();
+				}
+			}
+		}, null)
+		{
+			@Override
+			public boolean cancel(final boolean mayInterruptIfRunning)
+			{
+				final boolean cancelled = super.cancel(mayInterruptIfRunning);
+				final Deadline d = deadline.get();
+				if (d != null)
+					d.cancel();
+				return cancelled;
+			}
+		};
+		executor.execute(task);
+		return task;
+	}
+
+	private static void cancel(final AtomicReference<Future<?>> future, final AtomicReference<Deadline> deadline)
+	{
+		final Future<?> f = future.get();
+		if (f != null)
+			f.cancel(true);
+		final Deadline d = deadline.get();
+		if (d != null)
+			d.cancel();
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.exception.NotFoundException;
+
+public class AdmissionControlTest
+{
+	private static final NetworkId NETWORK = NetworkId.RT;
+
+	private long now = 1000 * 1000;
+
+	private final AdmissionControl admission = new AdmissionControl()
+	{
+		@Override
+		protected synchronized long currentTimeMillis()
+		{
+			return now;
+		}
+	};
+
+	@After
+	public void shutdown()
+	{
+		admission.shutdown();
+	}
+
+	private static final class Recorder implements AdmissionControl.Admission
+	{
+		AdmissionControl.Permit permit = null;
+		OverloadedException rejection = null;
+
+		public synchronized void admitted(final AdmissionControl.Permit permit)
+		{
+			this.permit = permit;
+		}
+
+		public synchronized void rejected(final OverloadedException x)
+		{
+			this.rejection = x;
+		}
+	}
+
+	private List<AdmissionControl.Permit> fill()
+	{
+		final List<AdmissionControl.Permit> permits = new ArrayList<AdmissionControl.Permit>();
+		for (AdmissionControl.Permit permit; (permit = admission.tryAcquire(NETWORK)) != null;)
+			permits.add(permit);
+		return permits;
+	}
+
+	private synchronized void advance(final long ms)
+	{
+		now += ms;
+	}
+
+	@Test
+	public void queuedUntilReleased()
+	{
+		final List<AdmissionControl.Permit> permits = fill();
+		assertEquals((int) admission.limit(NETWORK), permits.size());
+
+		final Recorder recorder = new Recorder();
+		admission.admit(NETWORK, recorder);
+		assertNull(recorder.permit);
+		assertNull(recorder.rejection);
+
+		permits.get(0).release();
+		assertNotNull(recorder.permit);
+		assertNull(recorder.rejection);
+	}
+
+	@Test
+	public void queueWaitExpires()
+	{
+		fill();
+		final Recorder recorder = new Recorder();
+		admission.admit(NETWORK, recorder);
+
+		advance(500);
+		admission.expire();
+		assertNull(recorder.rejection);
+
+		advance(1000);
+		admission.expire();
+		assertNull(recorder.permit);
+		assertNotNull(recorder.rejection);
+	}
+
+	@Test
+	public void releasedTwice()
+	{
+		final List<AdmissionControl.Permit> permits = fill();
+		permits.get(0).release();
+		permits.get(0).release();
+		assertNotNull(admission.tryAcquire(NETWORK));
+		assertNull(admission.tryAcquire(NETWORK));
+	}
+
+	@Test
+	public void upstreamFailureShrinksLimit()
+	{
+		final double limit = admission.limit(NETWORK);
+		admission.tryAcquire(NETWORK).release(new IOException("connection reset"));
+		assertTrue(admission.limit(NETWORK) < limit);
+	}
+
+	@Test
+	public void serviceDownShrinksLimit()
+	{
+		final double limit = admission.limit(NETWORK);
+		admission.tryAcquire(NETWORK).release(false);
+		assertTrue(admission.limit(NETWORK) < limit);
+	}
+
+	@Test
+	public void callerErrorKeepsLimit() throws Exception
+	{
+		final double limit = admission.limit(NETWORK);
+		admission.tryAcquire(NETWORK).release(new NullPointerException());
+		admission.tryAcquire(NETWORK).release(new IllegalArgumentException("bad station id"));
+		admission.tryAcquire(NETWORK).release(new NotFoundException(new URL("http://example.com/"), null));
+		admission.tryAcquire(NETWORK).release();
+		assertEquals(limit, admission.limit(NETWORK), 0);
+	}
+
+	@Test
+	public void slowResponseShrinksLimit()
+	{
+		final double limit = admission.limit(NETWORK);
+		final AdmissionControl.Permit fast = admission.tryAcquire(NETWORK);
+		advance(100);
+		fast.release(true);
+
+		final AdmissionControl.Permit slow = admission.tryAcquire(NETWORK);
+		advance(1000);
+		slow.release(true);
+		assertTrue(admission.limit(NETWORK) < limit);
+	}
+
+	@Test
+	public void usedLimitGrows()
+	{
+		final double limit = admission.limit(NETWORK);
+		final List<AdmissionControl.Permit> permits = fill();
+		advance(100);
+		for (final AdmissionControl.Permit permit : permits)
+			permit.release(true);
+		assertTrue(admission.limit(NETWORK) > limit);
+	}
+
+	@Test
+	public void unusedLimitKept()
+	{
+		final double limit = admission.limit(NETWORK);
+		final AdmissionControl.Permit permit = admission.tryAcquire(NETWORK);
+		advance(100);
+		permit.release(true);
+		assertEquals(limit, admission.limit(NETWORK), 0);
+	}
+}
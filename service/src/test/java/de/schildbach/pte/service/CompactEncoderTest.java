@@ -0,0 +1,616 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.dto.Departure;
+import de.schildbach.pte.dto.Fare;
+import de.schildbach.pte.dto.Line;
+import de.schildbach.pte.dto.LineDestination;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.Point;
+import de.schildbach.pte.dto.Position;
+import de.schildbach.pte.dto.Product;
+import de.schildbach.pte.dto.QueryDeparturesResult;
+import de.schildbach.pte.dto.QueryTripsContext;
+import de.schildbach.pte.dto.QueryTripsResult;
+import de.schildbach.pte.dto.ResultHeader;
+import de.schildbach.pte.dto.StationDepartures;
+import de.schildbach.pte.dto.Stop;
+import de.schildbach.pte.dto.Style;
+import de.schildbach.pte.dto.SuggestLocationsResult;
+import de.schildbach.pte.dto.SuggestedLocation;
+import de.schildbach.pte.dto.Trip;
+
+/**
+ * Round trips results through the compact wire format. There is no decoder outside of clients, so this test brings its
+ * own, written against the format description rather than the encoder.
+ */
+public class CompactEncoderTest
+{
+	private static final ResultHeader HEADER = new ResultHeader(NetworkId.VBB, "hafas", "5.45", 1445256000000L, null);
+	private static final Date TIME = new Date(1445256000000L);
+
+	private static final Location STATION = new Location(LocationType.STATION, "900100003", 52521481, 13411399, "Berlin", "Alexanderplatz");
+	private static final Location DESTINATION = new Location(LocationType.STATION, "900003201", 52525847, 13369400, "Berlin", "Hauptbahnhof");
+	private static final Location ADDRESS = new Location(LocationType.ADDRESS, null, "Berlin", "Karl-Liebknecht-Str. 8");
+	private static final Line S5 = new Line("s5", "vbb", Product.SUBURBAN_TRAIN, "S5", new Style(Style.Shape.ROUNDED, 0xffff5a22, 0xffff5a22,
+			0xffffffff, 0), EnumSet.of(Line.Attr.BICYCLE_CARRIAGE), null);
+	private static final Line BUS = new Line(null, "vbb", Product.BUS, "100", new Style(0xff95276e, 0xffffffff), "diverted");
+
+	/** Context without a token, which is not written. */
+	@SuppressWarnings("serial")
+	private static final QueryTripsContext UNTOKENIZED_CONTEXT = new QueryTripsContext()
+	{
+		public boolean canQueryLater()
+		{
+			return false;
+		}
+
+		public boolean canQueryEarlier()
+		{
+			return false;
+		}
+	};
+
+	@Test
+	public void departures() throws IOException
+	{
+		final QueryDeparturesResult result = new QueryDeparturesResult(HEADER);
+		final List<Departure> departures = new ArrayList<Departure>();
+		departures.add(new Departure(TIME, time(2), S5, new Position("2", "A"), DESTINATION, new int[] { 1, 2 }, null));
+		departures.add(new Departure(time(5), null, BUS, null, ADDRESS, null, "stop moved"));
+		// same line and destination again, written as references
+		departures.add(new Departure(null, time(10), new Line("s5", "vbb", Product.SUBURBAN_TRAIN, "S5", new Style(Style.Shape.ROUNDED,
+				0xffff5a22, 0xffff5a22, 0xffffffff, 0), EnumSet.of(Line.Attr.BICYCLE_CARRIAGE), null), new Position("2"), DESTINATION, null,
+				null));
+		result.stationDepartures.add(new StationDepartures(STATION, departures, Arrays.asList(new LineDestination(S5, DESTINATION))));
+		result.stationDepartures.add(new StationDepartures(DESTINATION, new ArrayList<Departure>(), null));
+
+		final byte[] encoded = encode(result);
+		final QueryDeparturesResult decoded = (QueryDeparturesResult) new Decoder(encoded).decode();
+
+		assertHeader(decoded.header);
+		assertEquals(result.status, decoded.status);
+		assertEquals(result.stationDepartures, decoded.stationDepartures);
+		final List<Departure> decodedDepartures = decoded.stationDepartures.get(0).departures;
+		for (int i = 0; i < departures.size(); i++)
+			assertDeparture(departures.get(i), decodedDepartures.get(i));
+		assertSame(decodedDepartures.get(0).line, decodedDepartures.get(2).line);
+		assertNull(decoded.stationDepartures.get(1).lines);
+		assertArrayEquals(encoded, encode(decoded));
+	}
+
+	@Test
+	public void suggestLocations() throws IOException
+	{
+		final SuggestLocationsResult result = new SuggestLocationsResult(HEADER, Arrays.asList(new SuggestedLocation(STATION),
+				new SuggestedLocation(ADDRESS), new SuggestedLocation(new Location(LocationType.COORD, null, 52520000, 13410000))));
+
+		final byte[] encoded = encode(result);
+		final SuggestLocationsResult decoded = (SuggestLocationsResult) new Decoder(encoded).decode();
+
+		assertHeader(decoded.header);
+		assertEquals(result.getLocations(), decoded.getLocations());
+		for (int i = 0; i < result.getLocations().size(); i++)
+			assertLocation(result.getLocations().get(i), decoded.getLocations().get(i));
+		assertArrayEquals(encoded, encode(decoded));
+	}
+
+	@Test
+	public void suggestLocationsServiceDown() throws IOException
+	{
+		final SuggestLocationsResult result = new SuggestLocationsResult(null, SuggestLocationsResult.Status.SERVICE_DOWN);
+
+		final byte[] encoded = encode(result);
+		final SuggestLocationsResult decoded = (SuggestLocationsResult) new Decoder(encoded).decode();
+
+		assertNull(decoded.header);
+		assertEquals(SuggestLocationsResult.Status.SERVICE_DOWN, decoded.status);
+		assertArrayEquals(encoded, encode(decoded));
+	}
+
+	@Test
+	public void trips() throws IOException
+	{
+		final Stop departureStop = new Stop(STATION, null, null, null, null, false, TIME, time(1), new Position("2"), null, false);
+		final Stop intermediateStop = new Stop(new Location(LocationType.STATION, "900100001", 52520268, 13388500, "Berlin", "Friedrichstr."),
+				time(3), null, null, null, false, time(4), null, null, null, true);
+		final Stop arrivalStop = new Stop(DESTINATION, time(6), time(7), new Position("15"), new Position("16", "B"), false, null, null, null,
+				null, false);
+		final List<Trip.Leg> legs = new ArrayList<Trip.Leg>();
+		legs.add(new Trip.Individual(Trip.Individual.Type.WALK, ADDRESS, time(-5), STATION, TIME, null, 350));
+		legs.add(new Trip.Public(S5, DESTINATION, departureStop, arrivalStop, Arrays.asList(intermediateStop), Arrays.asList(new Point(52521481,
+				13411399), new Point(52520268, 13388500), new Point(52525847, 13369400)), null));
+		final Trip trip = new Trip(null, ADDRESS, DESTINATION, legs, Arrays.asList(new Fare("vbb", Fare.Type.ADULT, Currency.getInstance("EUR"),
+				2.7f, "Zone", "AB")), new int[] { 1, 1 }, 0);
+		final QueryTripsResult result = new QueryTripsResult(HEADER, "http://example.com/query", ADDRESS, null, DESTINATION, UNTOKENIZED_CONTEXT,
+				Arrays.asList(trip));
+
+		final byte[] encoded = encode(result);
+		final QueryTripsResult decoded = (QueryTripsResult) new Decoder(encoded).decode();
+
+		assertHeader(decoded.header);
+		assertEquals(result.queryUri, decoded.queryUri);
+		assertSame(UNTOKENIZED_CONTEXT, decoded.context);
+		assertEquals(1, decoded.trips.size());
+		final Trip decodedTrip = decoded.trips.get(0);
+		assertEquals(trip.getId(), decodedTrip.getId());
+		assertEquals(trip.getFirstDepartureTime(), decodedTrip.getFirstDepartureTime());
+		assertEquals(trip.getLastArrivalTime(), decodedTrip.getLastArrivalTime());
+		assertEquals(trip.fares, decodedTrip.fares);
+		assertEquals(trip.numChanges, decodedTrip.numChanges);
+		assertEquals(trip.legs.toString(), decodedTrip.legs.toString());
+		assertEquals(legs.get(1).path, decodedTrip.legs.get(1).path);
+		assertArrayEquals(encoded, encode(decoded));
+	}
+
+	@Test
+	public void tripsAmbiguous() throws IOException
+	{
+		final QueryTripsResult result = new QueryTripsResult(HEADER, Arrays.asList(STATION, ADDRESS), null, Arrays.asList(DESTINATION));
+
+		final byte[] encoded = encode(result);
+		final QueryTripsResult decoded = (QueryTripsResult) new Decoder(encoded).decode();
+
+		assertEquals(QueryTripsResult.Status.AMBIGUOUS, decoded.status);
+		assertEquals(result.ambiguousFrom, decoded.ambiguousFrom);
+		assertNull(decoded.ambiguousVia);
+		assertEquals(result.ambiguousTo, decoded.ambiguousTo);
+		assertNull(decoded.trips);
+		assertArrayEquals(encoded, encode(decoded));
+	}
+
+	private static Date time(final int minutes)
+	{
+		return new Date(TIME.getTime() + minutes * 60 * 1000L);
+	}
+
+	private static byte[] encode(final Object result) throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompactEncoder.encode(result, out);
+		return out.toByteArray();
+	}
+
+	private static void assertHeader(final ResultHeader header)
+	{
+		assertEquals(HEADER.network, header.network);
+		assertEquals(HEADER.serverProduct, header.serverProduct);
+		assertEquals(HEADER.serverVersion, header.serverVersion);
+		assertEquals(HEADER.serverTime, header.serverTime);
+	}
+
+	private static void assertLocation(final Location expected, final Location actual)
+	{
+		assertEquals(expected.type, actual.type);
+		assertEquals(expected.id, actual.id);
+		assertEquals(expected.lat, actual.lat);
+		assertEquals(expected.lon, actual.lon);
+		assertEquals(expected.place, actual.place);
+		assertEquals(expected.name, actual.name);
+	}
+
+	private static void assertDeparture(final Departure expected, final Departure actual)
+	{
+		assertEquals(expected.plannedTime, actual.plannedTime);
+		assertEquals(expected.predictedTime, actual.predictedTime);
+		assertEquals(expected.line, actual.line);
+		assertEquals(expected.line.id, actual.line.id);
+		assertEquals(expected.line.attrs, actual.line.attrs);
+		assertEquals(expected.line.message, actual.line.message);
+		assertEquals(expected.line.style.backgroundColor, actual.line.style.backgroundColor);
+		assertEquals(expected.position, actual.position);
+		assertLocation(expected.destination, actual.destination);
+		assertArrayEquals(expected.capacity, actual.capacity);
+		assertEquals(expected.message, actual.message);
+	}
+
+	/**
+	 * Reads messages of the compact wire format, as far as this test needs.
+	 */
+	private static final class Decoder
+	{
+		private final InputStream in;
+		private final List<String> strings = new ArrayList<String>();
+		private final Map<Class<?>, List<Object>> objects = new HashMap<Class<?>, List<Object>>();
+		private long lastTime = 0;
+		private int lastLat = 0, lastLon = 0;
+
+		Decoder(final byte[] message)
+		{
+			this.in = new ByteArrayInputStream(message);
+		}
+
+		Object decode() throws IOException
+		{
+			assertEquals('P', readByte());
+			assertEquals('T', readByte());
+			assertEquals(1, readByte());
+			final int type = readByte();
+			final Object result;
+			if (type == 1)
+				result = readSuggestLocations();
+			else if (type == 3)
+				result = readDepartures();
+			else if (type == 4)
+				result = readTrips();
+			else
+				throw new IllegalStateException("unsupported type: " + type);
+			assertEquals("trailing bytes", -1, in.read());
+			return result;
+		}
+
+		private SuggestLocationsResult readSuggestLocations() throws IOException
+		{
+			final ResultHeader header = readHeader();
+			final SuggestLocationsResult.Status status = SuggestLocationsResult.Status.values()[readByte()];
+			final List<Location> locations = readLocations();
+			if (status != SuggestLocationsResult.Status.OK)
+				return new SuggestLocationsResult(header, status);
+
+			final List<SuggestedLocation> suggestedLocations = new ArrayList<SuggestedLocation>();
+			for (final Location location : locations)
+				suggestedLocations.add(new SuggestedLocation(location));
+			return new SuggestLocationsResult(header, suggestedLocations);
+		}
+
+		private QueryDeparturesResult readDepartures() throws IOException
+		{
+			final QueryDeparturesResult result = new QueryDeparturesResult(readHeader(), QueryDeparturesResult.Status.values()[readByte()]);
+			for (long n = readVarint(); n > 0; n--)
+			{
+				final Location location = readLocation();
+				final List<Departure> departures = readDepartureList();
+				List<LineDestination> lines = null;
+				final long numLines = readVarint();
+				if (numLines > 0)
+				{
+					lines = new ArrayList<LineDestination>();
+					for (long i = 1; i < numLines; i++)
+						lines.add(new LineDestination(readLine(), readLocation()));
+				}
+				result.stationDepartures.add(new StationDepartures(location, departures, lines));
+			}
+			return result;
+		}
+
+		private List<Departure> readDepartureList() throws IOException
+		{
+			final List<Departure> departures = new LinkedList<Departure>();
+			for (long n = readVarint(); n > 0; n--)
+			{
+				final int flags = readByte();
+				final Date plannedTime = (flags & 1) != 0 ? readTime() : null;
+				final Date predictedTime = (flags & 2) != 0 ? readTime() : null;
+				departures.add(new Departure(plannedTime, predictedTime, readLine(), readPosition(), readLocation(), readCapacity(), readString()));
+			}
+			return departures;
+		}
+
+		private QueryTripsResult readTrips() throws IOException
+		{
+			final ResultHeader header = readHeader();
+			final QueryTripsResult.Status status = QueryTripsResult.Status.values()[readByte()];
+			final List<Location> ambiguousFrom = readLocations();
+			final List<Location> ambiguousVia = readLocations();
+			final List<Location> ambiguousTo = readLocations();
+			final String queryUri = readString();
+			final Location from = readLocation();
+			final Location via = readLocation();
+			final Location to = readLocation();
+			assertNull("tokens not supported", readString());
+
+			List<Trip> trips = null;
+			final long numTrips = readVarint();
+			if (numTrips > 0)
+			{
+				trips = new ArrayList<Trip>();
+				for (long i = 1; i < numTrips; i++)
+					trips.add(readTrip());
+			}
+
+			if (status == QueryTripsResult.Status.AMBIGUOUS)
+				return new QueryTripsResult(header, ambiguousFrom, ambiguousVia, ambiguousTo);
+			else if (status != QueryTripsResult.Status.OK)
+				return new QueryTripsResult(header, status);
+			else
+				return new QueryTripsResult(header, queryUri, from, via, to, UNTOKENIZED_CONTEXT, trips);
+		}
+
+		private Trip readTrip() throws IOException
+		{
+			final String id = readString();
+			final Location from = readLocation();
+			final Location to = readLocation();
+
+			final List<Trip.Leg> legs = new ArrayList<Trip.Leg>();
+			for (long n = readVarint(); n > 0; n--)
+				legs.add(readLeg());
+
+			List<Fare> fares = null;
+			final long numFares = readVarint();
+			if (numFares > 0)
+			{
+				fares = new ArrayList<Fare>();
+				for (long i = 1; i < numFares; i++)
+					fares.add(new Fare(readString(), Fare.Type.values()[readByte()], Currency.getInstance(readString()), Float
+							.intBitsToFloat((int) readVarint()), readString(), readString()));
+			}
+
+			final int[] capacity = readCapacity();
+			final long numChanges = readVarint();
+			return new Trip(id, from, to, legs, fares, capacity, numChanges > 0 ? (int) numChanges - 1 : null);
+		}
+
+		private Trip.Leg readLeg() throws IOException
+		{
+			final int kind = readByte();
+			final Location departure = readLocation();
+			final Location arrival = readLocation();
+			final List<Point> path = readPath();
+			if (kind == 1)
+			{
+				final Line line = readLine();
+				final Location destination = readLocation();
+				final Stop departureStop = readStop();
+				final Stop arrivalStop = readStop();
+				List<Stop> intermediateStops = null;
+				final long numStops = readVarint();
+				if (numStops > 0)
+				{
+					intermediateStops = new ArrayList<Stop>();
+					for (long i = 1; i < numStops; i++)
+						intermediateStops.add(readStop());
+				}
+				final Trip.Public leg = new Trip.Public(line, destination, departureStop, arrivalStop, intermediateStops, path, readString());
+				assertSame(departure, leg.departure);
+				assertSame(arrival, leg.arrival);
+				return leg;
+			}
+			else if (kind == 2)
+			{
+				final Trip.Individual.Type type = Trip.Individual.Type.values()[readByte()];
+				final Date departureTime = readTime();
+				final Date arrivalTime = readTime();
+				final long min = readVarint();
+				final Trip.Individual leg = new Trip.Individual(type, departure, departureTime, arrival, arrivalTime, path, (int) readVarint());
+				assertEquals(min, leg.min);
+				return leg;
+			}
+			else
+			{
+				throw new IllegalStateException("unknown leg: " + kind);
+			}
+		}
+
+		private List<Point> readPath() throws IOException
+		{
+			final long size = readVarint();
+			if (size == 0)
+				return null;
+
+			final List<Point> path = new ArrayList<Point>();
+			for (long i = 1; i < size; i++)
+			{
+				readCoord();
+				path.add(new Point(lastLat, lastLon));
+			}
+			return path;
+		}
+
+		private Stop readStop() throws IOException
+		{
+			final Location location = readLocation();
+			final int flags = readByte();
+			final Date plannedArrivalTime = (flags & 1) != 0 ? readTime() : null;
+			final Date predictedArrivalTime = (flags & 2) != 0 ? readTime() : null;
+			final Position plannedArrivalPosition = readPosition();
+			final Position predictedArrivalPosition = readPosition();
+			final Date plannedDepartureTime = (flags & 8) != 0 ? readTime() : null;
+			final Date predictedDepartureTime = (flags & 16) != 0 ? readTime() : null;
+			final Position plannedDeparturePosition = readPosition();
+			final Position predictedDeparturePosition = readPosition();
+			return new Stop(location, plannedArrivalTime, predictedArrivalTime, plannedArrivalPosition, predictedArrivalPosition,
+					(flags & 4) != 0, plannedDepartureTime, predictedDepartureTime, plannedDeparturePosition, predictedDeparturePosition,
+					(flags & 32) != 0);
+		}
+
+		private ResultHeader readHeader() throws IOException
+		{
+			if (readByte() == 0)
+				return null;
+			return new ResultHeader(NetworkId.valueOf(readString()), readString(), readString(), readVarint() * 1000, null);
+		}
+
+		private List<Location> readLocations() throws IOException
+		{
+			final long size = readVarint();
+			if (size == 0)
+				return null;
+
+			final List<Location> locations = new ArrayList<Location>();
+			for (long i = 1; i < size; i++)
+				locations.add(readLocation());
+			return locations;
+		}
+
+		private Location readLocation() throws IOException
+		{
+			final long ref = readVarint();
+			if (ref != 1)
+				return (Location) object(Location.class, ref);
+
+			final int type = readByte();
+			final String id = readString();
+			if ((type & 0x80) != 0)
+				readCoord();
+			final Location location = new Location(LocationType.values()[type & 0x7f], id, (type & 0x80) != 0 ? lastLat : 0,
+					(type & 0x80) != 0 ? lastLon : 0, readString(), readString());
+			return (Location) intern(Location.class, location);
+		}
+
+		private Line readLine() throws IOException
+		{
+			final long ref = readVarint();
+			if (ref != 1)
+				return (Line) object(Line.class, ref);
+
+			final String id = readString();
+			final String network = readString();
+			final int product = readByte();
+			final String label = readString();
+			final Style style = readStyle();
+			final long attrsMask = readVarint();
+			Set<Line.Attr> attrs = null;
+			if (attrsMask != 0)
+			{
+				attrs = EnumSet.noneOf(Line.Attr.class);
+				for (final Line.Attr attr : Line.Attr.values())
+					if (((attrsMask >>> 1) & (1L << attr.ordinal())) != 0)
+						attrs.add(attr);
+			}
+			final Line line = new Line(id, network, product != 0 ? Product.values()[product - 1] : null, label, style, attrs, readString());
+			return (Line) intern(Line.class, line);
+		}
+
+		private Style readStyle() throws IOException
+		{
+			final int shape = readByte();
+			if (shape == 0)
+				return null;
+			return new Style(Style.Shape.values()[shape - 1], (int) readVarint(), (int) readVarint(), (int) readVarint(), (int) readVarint());
+		}
+
+		private Position readPosition() throws IOException
+		{
+			final String name = readString();
+			if (name == null)
+				return null;
+			return new Position(name, readString());
+		}
+
+		private int[] readCapacity() throws IOException
+		{
+			final long size = readVarint();
+			if (size == 0)
+				return null;
+
+			final int[] capacity = new int[(int) size - 1];
+			for (int i = 0; i < capacity.length; i++)
+				capacity[i] = (int) readVarint();
+			return capacity;
+		}
+
+		private Object object(final Class<?> kind, final long ref)
+		{
+			return ref == 0 ? null : objects.get(kind).get((int) ref - 2);
+		}
+
+		private Object intern(final Class<?> kind, final Object object)
+		{
+			List<Object> table = objects.get(kind);
+			if (table == null)
+			{
+				table = new ArrayList<Object>();
+				objects.put(kind, table);
+			}
+			table.add(object);
+			return object;
+		}
+
+		private String readString() throws IOException
+		{
+			final long ref = readVarint();
+			if (ref == 0)
+				return null;
+			if (ref >= 2)
+				return strings.get((int) ref - 2);
+
+			final byte[] bytes = new byte[(int) readVarint()];
+			ByteStreams.readFully(in, bytes);
+			final String string = new String(bytes, Charsets.UTF_8);
+			strings.add(string);
+			return string;
+		}
+
+		private Date readTime() throws IOException
+		{
+			lastTime += readSignedVarint();
+			return new Date(lastTime * 1000);
+		}
+
+		private void readCoord() throws IOException
+		{
+			lastLat += readSignedVarint();
+			lastLon += readSignedVarint();
+		}
+
+		private int readByte() throws IOException
+		{
+			final int b = in.read();
+			if (b == -1)
+				throw new IOException("premature end of message");
+			return b;
+		}
+
+		private long readVarint() throws IOException
+		{
+			long value = 0;
+			for (int shift = 0;; shift += 7)
+			{
+				final int b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+		}
+
+		private long readSignedVarint() throws IOException
+		{
+			final long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.schildbach.pte.service;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+import de.schildbach.pte.util.TokenWriter;
+
+public class ContextTokenSignerTest
+{
+	private final ContextTokenSigner signer = new ContextTokenSigner("secret".getBytes(Charsets.UTF_8));
+
+	@Test
+	public void signedRoundTrip()
+	{
+		final String token = new TokenWriter().writeByte(3).writeString("RT").toToken();
+		assertEquals(token, signer.verify(signer.sign(token)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectUnsigned()
+	{
+		signer.verify(new TokenWriter().writeByte(3).writeString("RT").toToken());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectForged()
+	{
+		final String genuine = signer.sign(new TokenWriter().writeByte(3).writeString("RT").writeString("a").toToken());
+		final String forged = new TokenWriter().writeByte(3).writeString("RT").writeString("http://attacker.example/").toToken();
+		signer.verify(forged + genuine.substring(genuine.lastIndexOf('.')));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectOtherSecret()
+	{
+		final String token = new TokenWriter().writeByte(3).writeString("RT").toToken();
+		signer.verify(new ContextTokenSigner("other".getBytes(Charsets.UTF_8)).sign(token));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void secretRequired()
+	{
+		final String secret = System.clearProperty(ContextTokenSigner.SECRET_PROPERTY);
+		try
+		{
+			new ContextTokenSigner();
+		}
+		finally
+		{
+			if (secret != null)
+				System.setProperty(ContextTokenSigner.SECRET_PROPERTY, secret);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectMalformedSignature()
+	{
+		signer.verify(new TokenWriter().writeByte(3).writeString("RT").toToken() + ".!!");
+	}
+}
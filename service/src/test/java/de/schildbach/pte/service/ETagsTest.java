@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.dto.Location;
+import de.schildbach.pte.dto.LocationType;
+import de.schildbach.pte.dto.NearbyLocationsResult;
+import de.schildbach.pte.dto.ResultHeader;
+
+public class ETagsTest
+{
+	private static final Location STATION = new Location(LocationType.STATION, "9100003", 52521481, 13410962, "Berlin", "Alexanderplatz");
+
+	@Test
+	public void serverTimeIgnored()
+	{
+		assertEquals(ETags.of(nearby(new ResultHeader(NetworkId.VBB, "hafas", "1", 1000, null))),
+				ETags.of(nearby(new ResultHeader(NetworkId.VBB, "hafas", "1", 2000, null))));
+	}
+
+	@Test
+	public void headerCovered()
+	{
+		final String tag = ETags.of(nearby(new ResultHeader(NetworkId.VBB, "hafas")));
+		assertFalse(tag.equals(ETags.of(nearby(new ResultHeader(NetworkId.VBB, "stopindex")))));
+		assertFalse(tag.equals(ETags.of(nearby(new ResultHeader(NetworkId.BVG, "hafas")))));
+		assertFalse(tag.equals(ETags.of(nearby(null))));
+	}
+
+	@Test
+	public void locationCovered()
+	{
+		final ResultHeader header = new ResultHeader(NetworkId.VBB, "hafas");
+		final Location renamed = new Location(LocationType.STATION, "9100003", 52521481, 13410962, "Berlin", "S+U Alexanderplatz");
+		assertFalse(ETags.of(nearby(header)).equals(ETags.of(new NearbyLocationsResult(header, Arrays.asList(renamed)))));
+	}
+
+	private static NearbyLocationsResult nearby(final ResultHeader header)
+	{
+		return new NearbyLocationsResult(header, Arrays.asList(STATION));
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.pte.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import de.schildbach.pte.NetworkId;
+import de.schildbach.pte.NetworkProvider;
+
+public class NetworkProvidersTest
+{
+	private final NetworkProviders providers = new NetworkProviders();
+
+	@Test
+	public void sharedProvider()
+	{
+		final NetworkProvider provider = providers.get(NetworkId.VBB);
+		assertEquals(NetworkId.VBB, provider.id());
+		assertSame(provider, providers.get(NetworkId.VBB));
+	}
+
+	@Test
+	public void timeZoneOfNetwork()
+	{
+		assertEquals(TimeZone.getTimeZone("Australia/Sydney"), providers.timeZone(NetworkId.SYDNEY));
+	}
+
+	@Test(expected = UnsupportedNetworkException.class)
+	public void providerNeedingConfiguration()
+	{
+		providers.get(NetworkId.PARIS);
+	}
+
+	@Test(expected = UnsupportedNetworkException.class)
+	public void networkWithoutProvider()
+	{
+		providers.checkSupported(NetworkId.HVV);
+	}
+}